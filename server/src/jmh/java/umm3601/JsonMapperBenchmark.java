@@ -0,0 +1,112 @@
+package umm3601;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import io.javalin.json.JavalinJackson;
+import io.javalin.json.JsonMapper;
+import umm3601.user.User;
+import umm3601.user.UserByCompany;
+import umm3601.user.UserIdName;
+
+/**
+ * Compares Javalin's default Jackson mapper with our `FastJsonMapper` on
+ * the work our list endpoints actually do: serializing a page of users,
+ * and deserializing the single user in the body of a `POST`.
+ *
+ * Run with `./gradlew jmh`.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({ "MagicNumber" })
+public class JsonMapperBenchmark {
+
+  private static final int USER_COUNT = 1000;
+  private static final Type USER_LIST_TYPE = new TypeReference<List<User>>() { }.getType();
+
+  private JsonMapper defaultMapper;
+  private JsonMapper fastMapper;
+  private ArrayList<User> users;
+  private String usersJson;
+  private String userJson;
+
+  /**
+   * Build the mappers and a list of realistic-looking users.
+   */
+  @Setup
+  public void setup() {
+    defaultMapper = new JavalinJackson();
+    fastMapper = new FastJsonMapper(List.of(User.class, UserByCompany.class, UserIdName.class));
+
+    String[] companies = {"OHMNET", "NIQUENT", "IBM", "UMM", "FROGS"};
+    String[] roles = {"admin", "editor", "viewer"};
+    users = new ArrayList<>();
+    for (int i = 0; i < USER_COUNT; i++) {
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = "User Number" + i;
+      user.age = 20 + i % 50;
+      user.company = companies[i % companies.length];
+      user.email = "user" + i + "@" + user.company.toLowerCase() + ".com";
+      user.role = roles[i % roles.length];
+      user.avatar = "https://gravatar.com/avatar/200fb5f06639c64a0ad75f05a93e9be3?d=identicon";
+      users.add(user);
+    }
+    usersJson = defaultMapper.toJsonString(users, ArrayList.class);
+    userJson = defaultMapper.toJsonString(users.get(0), User.class);
+  }
+
+  @Benchmark
+  public String serializeUsersDefault() {
+    return defaultMapper.toJsonString(users, ArrayList.class);
+  }
+
+  @Benchmark
+  public String serializeUsersFast() {
+    return fastMapper.toJsonString(users, ArrayList.class);
+  }
+
+  @Benchmark
+  public byte[] serializeUsersToBytesDefault() throws Exception {
+    return defaultMapper.toJsonStream(users, ArrayList.class).readAllBytes();
+  }
+
+  @Benchmark
+  public byte[] serializeUsersToBytesFast() throws Exception {
+    return fastMapper.toJsonStream(users, ArrayList.class).readAllBytes();
+  }
+
+  @Benchmark
+  public User deserializeUserDefault() {
+    return defaultMapper.fromJsonString(userJson, User.class);
+  }
+
+  @Benchmark
+  public User deserializeUserFast() {
+    return fastMapper.fromJsonString(userJson, User.class);
+  }
+
+  @Benchmark
+  public List<User> deserializeUsersDefault() {
+    return defaultMapper.fromJsonString(usersJson, USER_LIST_TYPE);
+  }
+
+  @Benchmark
+  public List<User> deserializeUsersFast() {
+    return fastMapper.fromJsonString(usersJson, USER_LIST_TYPE);
+  }
+}
@@ -0,0 +1,116 @@
+package umm3601;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.user.User;
+
+/**
+ * Compares JSON with the `BinaryFormat`s a client can ask for, on a list
+ * of users like the ones `/api/users` returns:
+ *
+ *   - `encode*` measures turning the JSON produced by the controllers into
+ *     each format, which is the extra work the server does per response.
+ *   - `decode*` measures a consumer parsing the response in each format.
+ *
+ * Payload sizes for each format are printed once during setup.
+ *
+ * Run with `./gradlew jmh`.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({ "MagicNumber" })
+public class ResponseFormatBenchmark {
+
+  private static final int USER_COUNT = 1000;
+
+  private byte[] json;
+  private ObjectMapper jsonMapper;
+  private final Map<BinaryFormat, byte[]> encoded = new EnumMap<>(BinaryFormat.class);
+  private final Map<BinaryFormat, ObjectMapper> mappers = new EnumMap<>(BinaryFormat.class);
+
+  /**
+   * Build the users, and encode them once in each format.
+   */
+  @Setup
+  public void setup() throws IOException {
+    String[] companies = {"OHMNET", "NIQUENT", "IBM", "UMM", "FROGS"};
+    String[] roles = {"admin", "editor", "viewer"};
+    List<User> users = new ArrayList<>();
+    for (int i = 0; i < USER_COUNT; i++) {
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = "User Number" + i;
+      user.age = 20 + i % 50;
+      user.company = companies[i % companies.length];
+      user.email = "user" + i + "@" + user.company.toLowerCase() + ".com";
+      user.role = roles[i % roles.length];
+      user.avatar = "https://gravatar.com/avatar/200fb5f06639c64a0ad75f05a93e9be3?d=identicon";
+      users.add(user);
+    }
+    jsonMapper = new ObjectMapper();
+    json = jsonMapper.writeValueAsBytes(users);
+    System.out.printf("%nPayload sizes for %d users:%n  JSON: %d bytes%n", USER_COUNT, json.length);
+    for (BinaryFormat format : BinaryFormat.values()) {
+      encoded.put(format, format.fromJson(json));
+      mappers.put(format, new ObjectMapper(format.factory()));
+      System.out.printf("  %s: %d bytes%n", format, encoded.get(format).length);
+    }
+  }
+
+  @Benchmark
+  public byte[] encodeCbor() throws IOException {
+    return BinaryFormat.CBOR.fromJson(json);
+  }
+
+  @Benchmark
+  public byte[] encodeSmile() throws IOException {
+    return BinaryFormat.SMILE.fromJson(json);
+  }
+
+  @Benchmark
+  public byte[] encodeMessagePack() throws IOException {
+    return BinaryFormat.MESSAGE_PACK.fromJson(json);
+  }
+
+  @Benchmark
+  public JsonNode decodeJson() throws IOException {
+    return jsonMapper.readTree(json);
+  }
+
+  @Benchmark
+  public JsonNode decodeCbor() throws IOException {
+    return decode(BinaryFormat.CBOR);
+  }
+
+  @Benchmark
+  public JsonNode decodeSmile() throws IOException {
+    return decode(BinaryFormat.SMILE);
+  }
+
+  @Benchmark
+  public JsonNode decodeMessagePack() throws IOException {
+    return decode(BinaryFormat.MESSAGE_PACK);
+  }
+
+  private JsonNode decode(BinaryFormat format) throws IOException {
+    return mappers.get(format).readTree(encoded.get(format));
+  }
+}
@@ -0,0 +1,70 @@
+package umm3601.user;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures how long `UserSearchIndex` takes to answer a page of search
+ * results over a large number of users, for queries that match a handful
+ * of users (a rare name), a few percent of them (a company), and nearly
+ * all of them (a common email domain).
+ *
+ * Run with `./gradlew jmh`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@SuppressWarnings({ "MagicNumber" })
+public class UserSearchIndexBenchmark {
+
+  private static final int PAGE_SIZE = 20;
+  private static final int COMPANY_COUNT = 50;
+  private static final int NAME_COUNT = 5000;
+
+  @Param({ "1000000" })
+  private int userCount;
+
+  private UserSearchIndex index;
+
+  /**
+   * Fill the index with made-up users.
+   */
+  @Setup
+  public void setup() {
+    Random random = new Random(3601);
+    index = new UserSearchIndex();
+    for (int i = 0; i < userCount; i++) {
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = "First" + random.nextInt(NAME_COUNT) + " Last" + random.nextInt(NAME_COUNT);
+      user.company = "Company" + random.nextInt(COMPANY_COUNT);
+      user.email = "user" + i + "@" + user.company.toLowerCase() + ".com";
+      index.add(user);
+    }
+  }
+
+  @Benchmark
+  public UserSearchIndex.Hits rareName() {
+    return index.search("first42 last17", 0, PAGE_SIZE);
+  }
+
+  @Benchmark
+  public UserSearchIndex.Hits company() {
+    return index.search("company7", 0, PAGE_SIZE);
+  }
+
+  @Benchmark
+  public UserSearchIndex.Hits commonToken() {
+    return index.search("com", 0, PAGE_SIZE);
+  }
+}
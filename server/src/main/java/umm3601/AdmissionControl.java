@@ -0,0 +1,319 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Admission control for the server.
+ *
+ * Every request to the API passes through `admit()` before it reaches a
+ * controller, and through `release()` once it's done. Between the two we
+ * decide whether the server should take on the work at all:
+ *
+ *   - Each client (identified by `clientKey()`) gets a token bucket, so a
+ *     single client hammering an endpoint gets `429 Too Many Requests`
+ *     long before it can starve everyone else.
+ *   - There is a global cap on the number of requests in flight.
+ *   - If the MongoDB connection pool already has too many threads waiting
+ *     for a connection, or recent requests have been too slow, we shed
+ *     load with `503 Service Unavailable` rather than queueing more work
+ *     behind the work that is already struggling.
+ *   - Once the server starts draining before it shuts down (see `Drain`),
+ *     every new request gets a `503 Service Unavailable`, so the requests
+ *     already in flight can finish.
+ *
+ * Rejected requests always carry a `Retry-After` header so well-behaved
+ * clients know when to come back.
+ *
+ * All of the shared state is held in atomics and a `ConcurrentHashMap`, so
+ * the limiter itself never takes a lock on the request path. The token
+ * buckets use the "generic cell rate algorithm" (GCRA) formulation, which
+ * lets a whole bucket live in a single `AtomicLong` (the bucket's
+ * "theoretical arrival time") that is updated with one compare-and-set.
+ *
+ * This also listens to the MongoDB connection pool (it's registered in
+ * `Server.configureDatabase()`) so it knows how many threads are waiting
+ * to check out a connection.
+ */
+public class AdmissionControl implements ConnectionPoolListener {
+
+  static final String RETRY_AFTER_HEADER = "Retry-After";
+  static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+  static final String CONNECTION_HEADER = "Connection";
+
+  // The request attribute we use to remember that (and when) a request was
+  // admitted, so `release()` knows whether it has anything to release.
+  private static final String ADMITTED_AT_KEY = "umm3601.admittedAt";
+
+  // Latency is tracked as an exponentially weighted moving average; each new
+  // sample moves the average 1/LATENCY_SMOOTHING of the way towards it.
+  private static final int LATENCY_SMOOTHING = 8;
+
+  // We only trust the latency average if it has been updated recently. If we've
+  // been shedding everything for this long, let requests through again so the
+  // average can recover.
+  private static final long LATENCY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // Once we track more clients than this we drop the buckets of clients that
+  // have been idle long enough for their bucket to refill completely.
+  private static final int MAX_TRACKED_CLIENTS = 10_000;
+
+  // Dropping those means looking at every bucket, so we do it at most this
+  // often, however many new clients turn up in between.
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // How long clients are told to wait when we are shedding load.
+  private static final long OVERLOAD_RETRY_AFTER_SECONDS = 1;
+
+  private final long emissionIntervalNanos;
+  private final long burstToleranceNanos;
+  private final int maxInFlight;
+  private final int maxPoolWaiters;
+  private final long latencyThresholdNanos;
+  private final int trustedProxies;
+  private final LongSupplier clock;
+
+  private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger poolWaiters = new AtomicInteger();
+  private final AtomicLong averageLatencyNanos = new AtomicLong();
+  private final AtomicLong lastLatencySampleNanos = new AtomicLong();
+  private final AtomicLong lastSweepNanos = new AtomicLong();
+
+  private volatile boolean draining;
+
+  /**
+   * Construct an admission controller.
+   *
+   * @param requestsPerSecond the sustained number of requests per second each client may make
+   * @param burst the number of requests a client may make at once before being rate limited
+   * @param maxInFlight the maximum number of requests the whole server works on at once
+   * @param maxPoolWaiters the number of threads waiting for a MongoDB connection above
+   *   which we start shedding load
+   * @param latencyThreshold the average request latency above which we start shedding load
+   * @param trustedProxies the number of proxies in front of the server that add to
+   *   `X-Forwarded-For` (see `clientKey()`)
+   */
+  public AdmissionControl(double requestsPerSecond, int burst, int maxInFlight, int maxPoolWaiters,
+      Duration latencyThreshold, int trustedProxies) {
+    this(requestsPerSecond, burst, maxInFlight, maxPoolWaiters, latencyThreshold, trustedProxies, System::nanoTime);
+  }
+
+  /**
+   * Construct an admission controller that reads the time from `clock`.
+   * This lets tests control the passing of time.
+   */
+  AdmissionControl(double requestsPerSecond, int burst, int maxInFlight, int maxPoolWaiters,
+      Duration latencyThreshold, int trustedProxies, LongSupplier clock) {
+    if (requestsPerSecond <= 0 || burst < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException("Rate, burst, and in-flight limits must all be positive");
+    }
+    if (trustedProxies < 0) {
+      throw new IllegalArgumentException("The number of trusted proxies can't be negative");
+    }
+    this.emissionIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+    this.burstToleranceNanos = emissionIntervalNanos * (burst - 1);
+    this.maxInFlight = maxInFlight;
+    this.maxPoolWaiters = maxPoolWaiters;
+    this.latencyThresholdNanos = latencyThreshold.toNanos();
+    this.trustedProxies = trustedProxies;
+    this.clock = clock;
+    lastSweepNanos.set(clock.getAsLong() - SWEEP_INTERVAL_NANOS);
+  }
+
+  /**
+   * Decide whether to admit a request. This is registered as a `before`
+   * handler for the API routes, so throwing here means the request never
+   * reaches a controller.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws HttpResponseException with status 503 if the server is overloaded
+   *   or draining, or with status 429 if this client has used up its rate limit
+   */
+  public void admit(Context ctx) {
+    long now = clock.getAsLong();
+
+    if (draining) {
+      // Ask the client to reconnect (to some other server) for its next request.
+      ctx.header(CONNECTION_HEADER, "close");
+      reject(ctx, HttpStatus.SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(OVERLOAD_RETRY_AFTER_SECONDS),
+        "The server is shutting down; please try again");
+    }
+
+    if (poolWaiters.get() > maxPoolWaiters || isLatencyOverloaded(now)) {
+      reject(ctx, HttpStatus.SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(OVERLOAD_RETRY_AFTER_SECONDS),
+        "The server is overloaded; please try again shortly");
+    }
+
+    // Take a slot before a token, so requests turned away because the server
+    // is at capacity don't use up the client's rate limit.
+    int current;
+    do {
+      current = inFlight.get();
+      if (current >= maxInFlight) {
+        reject(ctx, HttpStatus.SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(OVERLOAD_RETRY_AFTER_SECONDS),
+          "The server is at capacity; please try again shortly");
+      }
+    } while (!inFlight.compareAndSet(current, current + 1));
+
+    long waitNanos = tryAcquireToken(clientKey(ctx), now);
+    if (waitNanos > 0) {
+      inFlight.decrementAndGet();
+      reject(ctx, HttpStatus.TOO_MANY_REQUESTS, waitNanos, "Rate limit exceeded; please slow down");
+    }
+
+    ctx.attribute(ADMITTED_AT_KEY, now);
+  }
+
+  /**
+   * Release the capacity held by a request once it is done, and record
+   * how long it took. This is registered as an `after` handler, which
+   * Javalin runs even if the request was rejected in `admit()`, so we only
+   * release requests that were actually admitted.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void release(Context ctx) {
+    Long admittedAt = ctx.attribute(ADMITTED_AT_KEY);
+    if (admittedAt == null) {
+      return;
+    }
+    inFlight.decrementAndGet();
+    long now = clock.getAsLong();
+    long sample = now - admittedAt;
+    averageLatencyNanos.accumulateAndGet(sample,
+      (average, latest) -> average == 0 ? latest : average + (latest - average) / LATENCY_SMOOTHING);
+    lastLatencySampleNanos.set(now);
+  }
+
+  /**
+   * Stop admitting requests, because the server is about to shut down.
+   * Requests that have already been admitted carry on as usual.
+   */
+  public void stopAdmitting() {
+    draining = true;
+  }
+
+  /**
+   * @return whether we've stopped admitting requests
+   */
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * @return the number of requests that have been admitted but haven't finished yet
+   */
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return the number of threads currently waiting for a MongoDB connection
+   */
+  public int poolWaiters() {
+    return poolWaiters.get();
+  }
+
+  /**
+   * The key we rate limit on. In production the server sits behind Caddy,
+   * so every request comes from Caddy's address, and the real client is in
+   * the `X-Forwarded-For` header.
+   *
+   * Only the entries our own proxies appended can be trusted: a client can
+   * send whatever `X-Forwarded-For` it likes, and the proxies just add to
+   * the end of it. So with `trustedProxies` proxies in front of us, the
+   * client is the `trustedProxies`th entry from the right. If there's no
+   * such entry (or no trusted proxies), we go by the address the request
+   * came from.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the key identifying the client that made this request
+   */
+  String clientKey(Context ctx) {
+    String forwardedFor = ctx.header(FORWARDED_FOR_HEADER);
+    if (trustedProxies > 0 && forwardedFor != null) {
+      String[] entries = forwardedFor.split(",");
+      if (entries.length >= trustedProxies) {
+        String client = entries[entries.length - trustedProxies].trim();
+        if (!client.isEmpty()) {
+          return client;
+        }
+      }
+    }
+    return ctx.ip();
+  }
+
+  /**
+   * Try to take a token from the given client's bucket.
+   *
+   * @return zero if the request is allowed, otherwise how many nanoseconds
+   *   the client should wait before a token will be available
+   */
+  private long tryAcquireToken(String key, long now) {
+    AtomicLong bucket = buckets.get(key);
+    if (bucket == null) {
+      long lastSweep = lastSweepNanos.get();
+      if (buckets.size() >= MAX_TRACKED_CLIENTS && now - lastSweep >= SWEEP_INTERVAL_NANOS
+          && lastSweepNanos.compareAndSet(lastSweep, now)) {
+        // A bucket whose theoretical arrival time has passed is full again,
+        // and so is indistinguishable from a brand new one. (Only the one
+        // thread that won the CAS sweeps; everyone else just carries on.)
+        buckets.values().removeIf(idle -> idle.get() <= now);
+      }
+      bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+    while (true) {
+      long arrival = bucket.get();
+      long base = Math.max(arrival, now);
+      long waitNanos = base - now - burstToleranceNanos;
+      if (waitNanos > 0) {
+        return waitNanos;
+      }
+      if (bucket.compareAndSet(arrival, base + emissionIntervalNanos)) {
+        return 0;
+      }
+    }
+  }
+
+  private boolean isLatencyOverloaded(long now) {
+    return latencyThresholdNanos > 0
+      && averageLatencyNanos.get() > latencyThresholdNanos
+      && now - lastLatencySampleNanos.get() < LATENCY_WINDOW_NANOS;
+  }
+
+  private static void reject(Context ctx, HttpStatus status, long waitNanos, String message) {
+    // Round up to whole seconds, since that's all `Retry-After` supports.
+    long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    ctx.header(RETRY_AFTER_HEADER, String.valueOf(seconds));
+    throw new HttpResponseException(status.getCode(), message);
+  }
+
+  @Override
+  public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+    poolWaiters.incrementAndGet();
+  }
+
+  @Override
+  public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+    poolWaiters.decrementAndGet();
+  }
+
+  @Override
+  public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+    poolWaiters.decrementAndGet();
+  }
+}
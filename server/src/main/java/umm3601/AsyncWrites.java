@@ -0,0 +1,118 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Writes that the client doesn't wait for.
+ *
+ * Some clients (bulk ingestion, say) would rather not wait for each write
+ * to be acknowledged. They can ask for it to be done asynchronously: the
+ * request just queues the write here and returns `202 Accepted` with the
+ * URL of the write's status, and a single background thread does the
+ * queued writes, in order. The client can check the status later (see
+ * `status()`) to find out whether the write went through.
+ *
+ * The queue is bounded, so a flood of asynchronous writes gets
+ * `503 Service Unavailable` rather than using up all of our memory; and we
+ * only remember the status of each write for `statusTtl`.
+ *
+ * Queued writes only live in memory, so a crash loses them (which is the
+ * deal the client takes by not waiting). A graceful shutdown waits for them
+ * (see `Drain`), along with the requests in flight.
+ */
+public class AsyncWrites {
+
+  /**
+   * Where a write has got to.
+   */
+  public enum State { PENDING, DONE, FAILED }
+
+  /**
+   * The status of a write.
+   *
+   * @param state where the write has got to
+   * @param error why the write failed, or `null` if it hasn't
+   */
+  public record Status(State state, String error) {
+    static final Status PENDING = new Status(State.PENDING, null);
+    static final Status DONE = new Status(State.DONE, null);
+  }
+
+  // How many statuses to remember for each write that can be queued: the
+  // queued writes, and plenty of finished ones.
+  private static final int STATUSES_PER_QUEUED_WRITE = 10;
+
+  private final ThreadPoolExecutor writer;
+  private final TtlCache<String, Status> statuses;
+  private final AtomicInteger pending = new AtomicInteger();
+
+  /**
+   * Construct an asynchronous write queue, and start its writer thread.
+   *
+   * @param maxQueued the most writes that can be waiting at once
+   * @param statusTtl how long to remember the status of each write
+   */
+  public AsyncWrites(int maxQueued, Duration statusTtl) {
+    writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueued), runnable -> {
+      // A daemon thread, so it doesn't keep the JVM alive once the server stops.
+      Thread thread = new Thread(runnable, "async-writes");
+      thread.setDaemon(true);
+      return thread;
+    });
+    statuses = new TtlCache<>(statusTtl, maxQueued * STATUSES_PER_QUEUED_WRITE);
+  }
+
+  /**
+   * Queue a write.
+   *
+   * @param write the write to do; it fails by throwing
+   * @return the ID to look the write's status up by
+   * @throws ServiceUnavailableResponse if the queue is full
+   */
+  public String submit(Runnable write) {
+    String id = UUID.randomUUID().toString();
+    statuses.put(id, Status.PENDING);
+    pending.incrementAndGet();
+    try {
+      writer.execute(() -> {
+        try {
+          write.run();
+          statuses.put(id, Status.DONE);
+        } catch (RuntimeException e) {
+          statuses.put(id, new Status(State.FAILED, e.getMessage()));
+        } finally {
+          pending.decrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.decrementAndGet();
+      statuses.invalidate(id);
+      throw new ServiceUnavailableResponse("Too many writes are waiting to be done; please try again shortly");
+    }
+    return id;
+  }
+
+  /**
+   * @param id the ID of a write, as returned by `submit()`
+   * @return the status of the write, or `null` if we don't know of it (or
+   *   have forgotten it)
+   */
+  public Status status(String id) {
+    return statuses.get(id);
+  }
+
+  /**
+   * @return how many writes are queued or running
+   */
+  public int pending() {
+    return pending.get();
+  }
+}
@@ -0,0 +1,80 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * The binary formats we can send responses in, as an alternative to JSON.
+ *
+ * All of these are encodings of the same data model as JSON, so a JSON
+ * response can be converted to any of them token-by-token, without ever
+ * building Java objects (or even a tree) in between.
+ */
+public enum BinaryFormat {
+  CBOR(new CBORFactory(), "application/cbor"),
+  SMILE(new SmileFactory(), "application/x-jackson-smile"),
+  MESSAGE_PACK(new MessagePackFactory(), "application/msgpack", "application/x-msgpack");
+
+  private static final JsonFactory JSON = new JsonFactory();
+
+  private final JsonFactory factory;
+  private final List<String> mediaTypes;
+
+  BinaryFormat(JsonFactory factory, String... mediaTypes) {
+    this.factory = factory;
+    this.mediaTypes = List.of(mediaTypes);
+  }
+
+  /**
+   * @return the media type we label responses in this format with
+   */
+  public String mediaType() {
+    return mediaTypes.get(0);
+  }
+
+  /**
+   * @return the Jackson factory for reading and writing this format
+   */
+  public JsonFactory factory() {
+    return factory;
+  }
+
+  /**
+   * @param mediaType a media type, without any parameters
+   * @return the format with that media type, or `null` if there isn't one
+   */
+  public static BinaryFormat forMediaType(String mediaType) {
+    for (BinaryFormat format : values()) {
+      if (format.mediaTypes.contains(mediaType)) {
+        return format;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Convert a JSON document into this format.
+   *
+   * @param json the UTF-8 encoded JSON to convert
+   * @return the same document encoded in this format
+   * @throws IOException if `json` isn't valid JSON
+   */
+  public byte[] fromJson(byte[] json) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+    try (JsonParser parser = JSON.createParser(json); JsonGenerator generator = factory.createGenerator(out)) {
+      while (parser.nextToken() != null) {
+        generator.copyCurrentEvent(parser);
+      }
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,131 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A fully rendered response (status, headers, and body bytes) that can be
+ * written to any number of other requests.
+ *
+ * Handlers like `UserController.getUsers()` build their responses with
+ * `ctx.json(...)`, which serializes the result straight into the context.
+ * `capture()` runs such a handler and then takes a copy of what it
+ * produced, so the same bytes can be handed to other requests without
+ * running the query or the serializer again.
+ */
+public final class CapturedResponse {
+
+  private final int status;
+  private final Map<String, String> headers;
+  private final byte[] body;
+
+  private CapturedResponse(int status, Map<String, String> headers, byte[] body) {
+    this.status = status;
+    this.headers = headers;
+    this.body = body;
+  }
+
+  /**
+   * Rebuild a response captured earlier (and saved somewhere) from its parts.
+   *
+   * @param status the HTTP status code of the response
+   * @param headers the response headers
+   * @param body the body of the response
+   * @return the response
+   */
+  static CapturedResponse of(int status, Map<String, String> headers, byte[] body) {
+    return new CapturedResponse(status, new LinkedHashMap<>(headers), body);
+  }
+
+  /**
+   * Run `handler` against `ctx` and capture the response it produces.
+   * The response is left in place on `ctx` as well.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param handler the handler that produces the response
+   * @return the captured response
+   * @throws Exception whatever the handler throws
+   */
+  public static CapturedResponse capture(Context ctx, Handler handler) throws Exception {
+    handler.handle(ctx);
+    byte[] body = readResult(ctx);
+    // Reading the result consumed it, so put the bytes back.
+    ctx.result(body);
+
+    HttpServletResponse res = ctx.res();
+    Map<String, String> headers = new LinkedHashMap<>();
+    for (String name : res.getHeaderNames()) {
+      headers.put(name, res.getHeader(name));
+    }
+    return new CapturedResponse(res.getStatus(), headers, body);
+  }
+
+  private static byte[] readResult(Context ctx) throws IOException {
+    InputStream result = ctx.resultInputStream();
+    if (result == null) {
+      return new byte[0];
+    }
+    try (result) {
+      return result.readAllBytes();
+    }
+  }
+
+  /**
+   * Write this response to `ctx`, exactly as it was originally produced.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void writeTo(Context ctx) {
+    writeTo(ctx, body);
+  }
+
+  /**
+   * Write this response to `ctx`, but with a different encoding of the same
+   * body (e.g., a compressed copy of it).
+   *
+   * @param ctx a Javalin HTTP context
+   * @param encodedBody the bytes to send as the body of the response
+   */
+  public void writeTo(Context ctx, byte[] encodedBody) {
+    headers.forEach(ctx::header);
+    ctx.status(status);
+    ctx.result(encodedBody);
+  }
+
+  /**
+   * @return the HTTP status code of the response
+   */
+  public int status() {
+    return status;
+  }
+
+  /**
+   * @return the value of the given response header, or `null` if it wasn't set
+   */
+  public String header(String name) {
+    return headers.get(name);
+  }
+
+  /**
+   * @return all of the response headers
+   */
+  public Map<String, String> headers() {
+    return Collections.unmodifiableMap(headers);
+  }
+
+  /**
+   * Note that this is the response's own array; callers mustn't modify it.
+   *
+   * @return the body of the response
+   */
+  public byte[] body() {
+    return body;
+  }
+}
@@ -0,0 +1,192 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.javalin.http.Context;
+
+/**
+ * Content negotiation for API responses.
+ *
+ * Controllers always produce JSON (via `ctx.json(...)`). Clients that would
+ * rather not pay to parse JSON text, such as our own service-to-service
+ * consumers, can ask for CBOR, Smile, or MessagePack instead with an
+ * `Accept` header, e.g.
+ *
+ *     Accept: application/cbor
+ *
+ * `negotiate()` runs before the request is handled and works out which
+ * format the client wants (JSON unless it prefers one of the formats in
+ * `BinaryFormat`). While the request is being handled, `FastJsonMapper`
+ * asks `encodeDirectly()` which format to write, and serializes the
+ * response straight into it. `transcode()` runs afterwards, labels the
+ * response, and converts any JSON response that wasn't written that way
+ * (from some other mapper, say, or off the request's thread). Because this
+ * happens in `before` and `after` handlers in the `Server`, every
+ * controller gets it for free.
+ *
+ * Every response from a negotiated route carries `Vary: Accept`, JSON ones
+ * included, so a cache never hands one format to a client that asked for
+ * another.
+ */
+public final class ContentNegotiation {
+
+  static final String ACCEPT_HEADER = "Accept";
+  static final String VARY_HEADER = "Vary";
+  static final String JSON_MEDIA_TYPE = "application/json";
+
+  // The request attribute that holds the negotiated format, if it isn't JSON.
+  private static final String FORMAT_KEY = "umm3601.responseFormat";
+
+  // The request attribute that says the body was written in the negotiated
+  // format to begin with, so there's nothing to convert.
+  private static final String ENCODED_KEY = "umm3601.responseEncoded";
+
+  // The request being handled on this thread, if it negotiated a binary
+  // format. Javalin runs the `before` handlers, the endpoint, and the
+  // `after` handlers on the same thread, so this is set in `negotiate()`
+  // and cleared in `transcode()`.
+  private static final ThreadLocal<Context> BINARY_REQUEST = new ThreadLocal<>();
+
+  // What to assume the quality of a media range is if it doesn't say.
+  private static final double DEFAULT_QUALITY = 1.0;
+
+  private ContentNegotiation() {
+  }
+
+  /**
+   * Work out which format the client wants the response in, based on
+   * its `Accept` header. Registered as a `before` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void negotiate(Context ctx) {
+    ctx.header(VARY_HEADER, ACCEPT_HEADER);
+    BinaryFormat format = preferredFormat(ctx.header(ACCEPT_HEADER));
+    if (format != null) {
+      ctx.attribute(FORMAT_KEY, format);
+      BINARY_REQUEST.set(ctx);
+    }
+  }
+
+  /**
+   * The format a `JsonMapper` should write the response it's serializing
+   * right now in. If it's a binary format, the response is labelled with
+   * that format's media type, and `transcode()` won't touch it.
+   *
+   * @return the binary format the request being handled on this thread
+   *   negotiated, or `null` if the response should be JSON
+   */
+  public static BinaryFormat encodeDirectly() {
+    Context ctx = BINARY_REQUEST.get();
+    if (ctx == null) {
+      return null;
+    }
+    BinaryFormat format = negotiatedFormat(ctx);
+    ctx.attribute(ENCODED_KEY, true);
+    ctx.contentType(format.mediaType());
+    return format;
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context that has been through `negotiate()`
+   * @return the binary format the response will be sent in, or `null` if
+   *   it will be sent as-is
+   */
+  public static BinaryFormat negotiatedFormat(Context ctx) {
+    return ctx.attribute(FORMAT_KEY);
+  }
+
+  /**
+   * Convert a JSON response into the format the client asked for, if it
+   * asked for something other than JSON and the response wasn't written in
+   * that format to begin with. Registered as an `after` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the JSON response can't be read
+   */
+  public static void transcode(Context ctx) throws IOException {
+    BINARY_REQUEST.remove();
+    BinaryFormat format = negotiatedFormat(ctx);
+    if (format == null) {
+      return;
+    }
+    if (Boolean.TRUE.equals(ctx.attribute(ENCODED_KEY))) {
+      // In case the JSON media type was set after the body was written.
+      ctx.contentType(format.mediaType());
+      return;
+    }
+    String contentType = ctx.res().getContentType();
+    if (contentType == null || !contentType.startsWith(JSON_MEDIA_TYPE)) {
+      return;
+    }
+    InputStream result = ctx.resultInputStream();
+    if (result == null) {
+      return;
+    }
+    byte[] json;
+    try (result) {
+      json = result.readAllBytes();
+    }
+    ctx.result(format.fromJson(json));
+    ctx.contentType(format.mediaType());
+  }
+
+  /**
+   * Pick the format the client prefers, following the usual rules for
+   * `Accept` headers: media ranges are weighted by their `q` parameter
+   * (default 1); at equal weights a specific media type beats a wildcard,
+   * and otherwise whichever was listed first wins. A weight of 0 means "not
+   * this one", so those media ranges are never picked. JSON and the `*`
+   * wildcards count as votes for JSON, and media types we don't know are
+   * ignored.
+   *
+   * @param accept the value of the `Accept` header (may be `null`)
+   * @return the preferred binary format, or `null` if the client should get JSON
+   */
+  static BinaryFormat preferredFormat(String accept) {
+    if (accept == null) {
+      return null;
+    }
+    BinaryFormat best = null;
+    double bestQuality = 0;
+    boolean bestIsSpecific = false;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      String mediaType = parts[0].trim().toLowerCase();
+      BinaryFormat format = BinaryFormat.forMediaType(mediaType);
+      if (format == null && !isJsonCompatible(mediaType)) {
+        continue;
+      }
+      double quality = quality(parts);
+      if (quality <= 0) {
+        continue;
+      }
+      boolean specific = !mediaType.contains("*");
+      if (quality > bestQuality || (quality == bestQuality && specific && !bestIsSpecific)) {
+        best = format;
+        bestQuality = quality;
+        bestIsSpecific = specific;
+      }
+    }
+    return best;
+  }
+
+  private static boolean isJsonCompatible(String mediaType) {
+    return mediaType.equals(JSON_MEDIA_TYPE) || mediaType.equals("application/*") || mediaType.equals("*/*");
+  }
+
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String parameter = parts[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return DEFAULT_QUALITY;
+  }
+}
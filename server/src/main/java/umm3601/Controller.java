@@ -1,5 +1,7 @@
 package umm3601;
 
+import java.util.List;
+
 import io.javalin.Javalin;
 
 /**
@@ -18,10 +20,18 @@ import io.javalin.Javalin;
  * allows us to add routes to the server without having to modify the `Server`,
  * and without having the server know about any specific controller implementations.
  *
- * Note that this interface definition is _complete_ and you shouldn't need to
- * add anything to it. You just need to make sure that any new controllers
- * you implement also implement this interface, providing their own `addRoutes()`
- * method.
+ * Every controller has to provide its own `addRoutes()` method. The other
+ * two methods are optional hooks with defaults that do nothing, for
+ * controllers that need them:
+ *
+ *   - `warmupPaths()` lists requests for the server to make of the
+ *     controller's routes before it reports itself ready (see `Warmup`);
+ *     the default is none.
+ *   - `pendingWrites()` counts writes the controller has accepted but not
+ *     done yet, which the server waits for when it shuts down (see
+ *     `Drain`); the default is zero.
+ *
+ * You shouldn't need to add anything else to this interface.
  */
 public interface Controller {
   /**
@@ -35,4 +45,33 @@ public interface Controller {
    * @param server The Javalin server to add routes to
    */
   void addRoutes(Javalin server);
+
+  /**
+   * The requests to make of this controller's routes while the server is
+   * warming up (see `Warmup`), before it reports itself ready for traffic.
+   *
+   * These should be read-only requests that exercise the controller's busiest
+   * routes and database queries. They're made over and over, once per round,
+   * so it's a good idea to vary them from round to round (e.g., the page
+   * size) so they aren't all answered from a cache.
+   *
+   * @param round which round of warmup requests this is, starting at 0
+   * @return the paths (with query strings) to request, e.g.,
+   *   `/api/users?limit=5`; by default, none
+   */
+  default List<String> warmupPaths(int round) {
+    return List.of();
+  }
+
+  /**
+   * How many writes this controller has accepted, but not done yet (e.g.,
+   * ones it's doing in the background; see `AsyncWrites`). When the server
+   * shuts down it waits for these along with the requests in flight (see
+   * `Drain`).
+   *
+   * @return the number of writes still to do; by default, none
+   */
+  default int pendingWrites() {
+    return 0;
+  }
 }
@@ -0,0 +1,103 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains the server before it shuts down, so a rolling deploy doesn't cut
+ * off the requests it's working on (or leave them talking to a closed
+ * MongoDB client).
+ *
+ * Draining goes in three steps:
+ *
+ *   1. `/api/ready` starts reporting that we aren't ready (see `Readiness`),
+ *      and we wait a little (the *notice*) for the load balancer to notice
+ *      and stop sending us new requests.
+ *   2. Admission control stops admitting requests (see `AdmissionControl`),
+ *      so anything that still shows up gets a `503` telling it to try again
+ *      (which will get it another server).
+ *   3. We wait for the requests already in flight to finish, along with
+ *      any writes the controllers are still doing in the background (see
+ *      `Controller.pendingWrites()`), up to a deadline, logging how many
+ *      are left as we go.
+ *
+ * Only after that does `Server` stop Javalin (and close the MongoDB client).
+ */
+public class Drain {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Drain.class);
+
+  // How often to check whether the requests in flight have finished, and how
+  // often to log how many are left.
+  private static final long POLL_MILLIS = 50;
+  private static final long REPORT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Duration notice;
+  private final Duration deadline;
+  private final LongSupplier clock;
+
+  /**
+   * Construct a drain.
+   *
+   * @param notice how long to keep taking requests after we stop reporting
+   *   ourselves ready, so the load balancer has time to notice
+   * @param deadline the longest to wait for the requests in flight to finish
+   */
+  public Drain(Duration notice, Duration deadline) {
+    this(notice, deadline, System::nanoTime);
+  }
+
+  /**
+   * Construct a drain that reads the time from `clock`.
+   */
+  Drain(Duration notice, Duration deadline, LongSupplier clock) {
+    this.notice = notice;
+    this.deadline = deadline;
+    this.clock = clock;
+  }
+
+  /**
+   * Drain the server.
+   *
+   * @param readiness the server's readiness check
+   * @param admissionControl the server's admission control, which knows how
+   *   many requests are in flight
+   * @param pendingWrites how many writes are still to be done in the background
+   * @return whether all of the requests in flight (and background writes)
+   *   finished before the deadline
+   * @throws InterruptedException if we're interrupted while waiting
+   */
+  boolean run(Readiness readiness, AdmissionControl admissionControl, IntSupplier pendingWrites)
+      throws InterruptedException {
+    readiness.markDraining();
+    LOG.info("Draining: no longer ready for traffic; still taking requests for {} ms", notice.toMillis());
+    Thread.sleep(notice.toMillis());
+
+    admissionControl.stopAdmitting();
+    long start = clock.getAsLong();
+    long nextReport = start;
+    while (admissionControl.inFlight() > 0 || pendingWrites.getAsInt() > 0) {
+      long now = clock.getAsLong();
+      long left = deadline.toNanos() - (now - start);
+      if (left <= 0) {
+        LOG.warn("Draining: gave up with {} requests still in flight and {} writes still to do",
+          admissionControl.inFlight(), pendingWrites.getAsInt());
+        return false;
+      }
+      if (now >= nextReport) {
+        LOG.info("Draining: {} requests in flight, {} writes to do, {} ms until the deadline",
+          admissionControl.inFlight(), pendingWrites.getAsInt(), TimeUnit.NANOSECONDS.toMillis(left));
+        nextReport = now + REPORT_NANOS;
+      }
+      Thread.sleep(POLL_MILLIS);
+    }
+    LOG.info("Drained: no requests in flight after {} ms",
+      TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - start));
+    return true;
+  }
+}
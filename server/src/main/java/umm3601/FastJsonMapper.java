@@ -0,0 +1,150 @@
+package umm3601;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+import io.javalin.json.JsonMapper;
+
+/**
+ * The JSON mapper used by the server for every `ctx.json(...)` and
+ * `ctx.bodyValidator(...)` call.
+ *
+ * This is still Jackson (so it reads and writes exactly the same JSON as
+ * Javalin's default `JavalinJackson` mapper), tuned for throughput:
+ *
+ *   - The Blackbird module replaces Jackson's reflective getters, setters,
+ *     and constructors with generated (`LambdaMetafactory`) accessors, which
+ *     is where most of the time goes when serializing lots of small objects
+ *     like our `User`s.
+ *   - `ObjectReader`s and `ObjectWriter`s are built once per type and
+ *     reused, and the ones for our own data classes are built eagerly so
+ *     the first requests don't pay for it.
+ *   - `toJsonStream()` and `writeToOutputStream()` write UTF-8 bytes
+ *     directly (Jackson recycles its internal buffers across calls) instead
+ *     of building a `String` or handing the work to another thread, which
+ *     is what the default mapper does.
+ *   - When the client asked for the response in one of the `BinaryFormat`s
+ *     (see `ContentNegotiation.encodeDirectly()`), those two write that
+ *     format straight away, rather than writing JSON for
+ *     `ContentNegotiation` to convert afterwards.
+ */
+public class FastJsonMapper implements JsonMapper {
+
+  private final ObjectMapper mapper;
+  private final ConcurrentHashMap<Type, ObjectWriter> writers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+  // The same, for each of the binary formats.
+  private final EnumMap<BinaryFormat, ObjectMapper> binaryMappers = new EnumMap<>(BinaryFormat.class);
+  private final EnumMap<BinaryFormat, ConcurrentHashMap<Type, ObjectWriter>> binaryWriters =
+    new EnumMap<>(BinaryFormat.class);
+
+  /**
+   * Construct a JSON mapper, preparing readers and writers for `warmTypes`.
+   *
+   * @param warmTypes the types we expect to (de)serialize a lot of
+   */
+  public FastJsonMapper(List<? extends Type> warmTypes) {
+    mapper = new ObjectMapper().registerModule(new BlackbirdModule());
+    for (BinaryFormat format : BinaryFormat.values()) {
+      binaryMappers.put(format, new ObjectMapper(format.factory().copy()).registerModule(new BlackbirdModule()));
+      binaryWriters.put(format, new ConcurrentHashMap<>());
+    }
+    for (Type type : warmTypes) {
+      writerFor(type);
+      readerFor(type);
+      for (BinaryFormat format : BinaryFormat.values()) {
+        writerFor(format, type);
+      }
+    }
+  }
+
+  private ObjectWriter writerFor(Type type) {
+    return writers.computeIfAbsent(type, t -> mapper.writerFor(javaType(t)));
+  }
+
+  private ObjectWriter writerFor(BinaryFormat format, Type type) {
+    return binaryWriters.get(format).computeIfAbsent(type, t -> binaryMappers.get(format).writerFor(javaType(t)));
+  }
+
+  // The writer for the response being written on this thread: JSON, or
+  // whatever binary format the client asked for.
+  private ObjectWriter responseWriterFor(Type type) {
+    BinaryFormat format = ContentNegotiation.encodeDirectly();
+    return format == null ? writerFor(type) : writerFor(format, type);
+  }
+
+  private ObjectReader readerFor(Type type) {
+    return readers.computeIfAbsent(type, t -> mapper.readerFor(javaType(t)));
+  }
+
+  private JavaType javaType(Type type) {
+    return mapper.getTypeFactory().constructType(type);
+  }
+
+  @Override
+  public String toJsonString(Object obj, Type type) {
+    try {
+      return writerFor(type).writeValueAsString(obj);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public InputStream toJsonStream(Object obj, Type type) {
+    try {
+      return new ByteArrayInputStream(responseWriterFor(type).writeValueAsBytes(obj));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void writeToOutputStream(Stream<?> stream, OutputStream outputStream) {
+    BinaryFormat format = ContentNegotiation.encodeDirectly();
+    ObjectMapper streamMapper = format == null ? mapper : binaryMappers.get(format);
+    try (SequenceWriter writer = streamMapper.writer().writeValuesAsArray(outputStream)) {
+      Iterator<?> values = stream.iterator();
+      while (values.hasNext()) {
+        writer.write(values.next());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public <T> T fromJsonString(String json, Type targetType) {
+    try {
+      return readerFor(targetType).readValue(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public <T> T fromJsonStream(InputStream json, Type targetType) {
+    try {
+      return readerFor(targetType).readValue(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
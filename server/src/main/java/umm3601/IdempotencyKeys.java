@@ -0,0 +1,268 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+
+/**
+ * Makes retries of non-idempotent requests (like `POST /api/users`) safe.
+ *
+ * A client that times out waiting for a response can't tell whether its
+ * request happened, so it retries, and if the first attempt *did* happen,
+ * that retry adds a second copy of the user. A client can prevent that by
+ * sending a unique `Idempotency-Key` header with the request (and the same
+ * key with every retry of it). A handler wrapped with `idempotent()` then
+ * handles the first request with a given key as usual, and answers any
+ * later request with that key with a copy of the first one's response,
+ * without calling the handler (or touching the users) at all.
+ *
+ * The responses are kept in a small in-memory cache in front of a MongoDB
+ * collection (`idempotencyKeys`), which a TTL index empties of keys older
+ * than `ttl`. Keeping them in Mongo means a retry that the load balancer
+ * sends to a different server instance (or to this one, after a restart)
+ * is still recognized.
+ *
+ * Some details, along the lines of what other APIs with idempotency keys do:
+ *
+ *   - Keys are per route: the same key used with two different routes is
+ *     two different keys.
+ *   - Reusing a key with a different request (a different body, or query
+ *     string, like `?async=true`) is a mistake on the client's part, so it
+ *     gets `400 Bad Request`.
+ *   - A retry that arrives while the first request is still being handled
+ *     gets `409 Conflict`, and can try again shortly. The first request
+ *     only holds the key for a while (`lease`), though: if the server
+ *     handling it died, a retry after that handles the request itself.
+ *   - If the handler throws (e.g., because the request didn't validate),
+ *     nothing is remembered, so the client can fix the request and send it
+ *     again with the same key.
+ *   - Replayed responses have an `Idempotent-Replayed: true` header.
+ *   - If the request was handled but we couldn't save the response, the
+ *     client still gets it. A retry then sees the key as in use until the
+ *     lease runs out, and after that handles the request again, which is
+ *     as good as we can do.
+ */
+public class IdempotencyKeys {
+
+  private static final Logger LOG = LoggerFactory.getLogger(IdempotencyKeys.class);
+
+  public static final String KEY_HEADER = "Idempotency-Key";
+  static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+  static final int MAX_KEY_LENGTH = 255;
+
+  // Much longer than adding a user ever takes.
+  static final Duration DEFAULT_LEASE = Duration.ofMinutes(1);
+
+  static final String COLLECTION_NAME = "idempotencyKeys";
+  private static final String FINGERPRINT_KEY = "fingerprint";
+  private static final String COMPLETE_KEY = "complete";
+  private static final String STATUS_KEY = "status";
+  private static final String HEADERS_KEY = "headers";
+  private static final String BODY_KEY = "body";
+  private static final String CREATED_AT_KEY = "createdAt";
+  private static final String CLAIMED_AT_KEY = "claimedAt";
+
+  private final TtlCache<String, StoredResponse> recent;
+  private final MongoCollection<Document> keys;
+  private final Duration lease;
+
+  /**
+   * A response, along with the fingerprint of the request it answered.
+   */
+  private record StoredResponse(String fingerprint, CapturedResponse response) {
+  }
+
+  /**
+   * Construct the idempotency keys for a server, keeping them in the given
+   * database, with the default lease.
+   *
+   * @param database the database to keep the keys in
+   * @param ttl how long to remember each key (and its response)
+   * @param maxRecent the most keys to also keep in memory
+   */
+  public IdempotencyKeys(MongoDatabase database, Duration ttl, int maxRecent) {
+    this(database, ttl, DEFAULT_LEASE, maxRecent);
+  }
+
+  /**
+   * Construct the idempotency keys for a server, keeping them in the given
+   * database.
+   *
+   * @param database the database to keep the keys in
+   * @param ttl how long to remember each key (and its response)
+   * @param lease how long a request that hasn't been answered yet holds its
+   *   key before a retry can take it over
+   * @param maxRecent the most keys to also keep in memory
+   */
+  public IdempotencyKeys(MongoDatabase database, Duration ttl, Duration lease, int maxRecent) {
+    recent = new TtlCache<>(ttl, maxRecent);
+    keys = database.getCollection(COLLECTION_NAME);
+    this.lease = lease;
+    // Mongo checks for expired documents about once a minute, so keys can
+    // outlive `ttl` by that much; that only makes us more careful.
+    keys.createIndex(Indexes.ascending(CREATED_AT_KEY),
+      new IndexOptions().expireAfter(ttl.toSeconds(), TimeUnit.SECONDS));
+  }
+
+  /**
+   * Wrap a handler so requests with an `Idempotency-Key` are only handled
+   * once. Requests without one are handled as usual.
+   *
+   * @param handler the handler to wrap
+   * @return a handler that answers repeats of a request with the first response
+   */
+  public Handler idempotent(Handler handler) {
+    return ctx -> handle(ctx, handler);
+  }
+
+  private void handle(Context ctx, Handler handler) throws Exception {
+    String key = ctx.header(KEY_HEADER);
+    if (key == null) {
+      handler.handle(ctx);
+      return;
+    }
+    if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+      throw new BadRequestResponse("The " + KEY_HEADER + " must be between 1 and " + MAX_KEY_LENGTH
+        + " characters long");
+    }
+    String scopedKey = ctx.method() + " " + ctx.path() + " " + key;
+    String fingerprint = fingerprint(Objects.toString(ctx.queryString(), "") + "\n" + ctx.body());
+
+    // Identifies our claim on the key, so we don't touch it once someone else has taken it over.
+    Date claimedAt = new Date();
+    StoredResponse stored = recent.get(scopedKey);
+    if (stored == null) {
+      stored = claim(scopedKey, fingerprint, claimedAt);
+    }
+    if (stored != null) {
+      if (!stored.fingerprint().equals(fingerprint)) {
+        throw new BadRequestResponse("The " + KEY_HEADER + " " + key + " was already used for a different request");
+      }
+      stored.response().writeTo(ctx);
+      ctx.header(REPLAYED_HEADER, "true");
+      return;
+    }
+
+    // We've claimed the key, so it's up to us to handle the request.
+    CapturedResponse response;
+    try {
+      response = CapturedResponse.capture(ctx, handler);
+    } catch (Exception e) {
+      // Let the client try again (with the same key) once it has fixed whatever was wrong.
+      keys.deleteOne(ourClaim(scopedKey, claimedAt));
+      throw e;
+    }
+    recent.put(scopedKey, new StoredResponse(fingerprint, response));
+    try {
+      // (If someone took the key over, it's theirs to answer now.)
+      keys.replaceOne(ourClaim(scopedKey, claimedAt), new Document(FINGERPRINT_KEY, fingerprint)
+        .append(COMPLETE_KEY, true)
+        .append(STATUS_KEY, response.status())
+        .append(HEADERS_KEY, new Document(new LinkedHashMap<>(response.headers())))
+        .append(BODY_KEY, new Binary(response.body()))
+        .append(CREATED_AT_KEY, new Date()));
+    } catch (MongoException e) {
+      // The request has been handled, so the client should hear about it.
+      LOG.warn("Couldn't save the response to a request with " + KEY_HEADER + " " + key, e);
+    }
+  }
+
+  private static Bson ourClaim(String scopedKey, Date claimedAt) {
+    return and(eq("_id", scopedKey), eq(COMPLETE_KEY, false), eq(CLAIMED_AT_KEY, claimedAt));
+  }
+
+  /**
+   * Claim a key, so that we're the ones who handle the request with it, or,
+   * if someone has already claimed it, get the response to their request.
+   * A claim that's older than the lease was (most likely) left by a server
+   * that died while handling the request, so we take it over.
+   *
+   * @return `null` if we claimed the key, or the response to the request
+   *   that already used it
+   * @throws ConflictResponse if the request that claimed the key hasn't
+   *   been answered yet
+   */
+  private StoredResponse claim(String scopedKey, String fingerprint, Date claimedAt) {
+    Document claim = new Document("_id", scopedKey)
+      .append(FINGERPRINT_KEY, fingerprint)
+      .append(COMPLETE_KEY, false)
+      .append(CLAIMED_AT_KEY, claimedAt)
+      .append(CREATED_AT_KEY, claimedAt);
+    try {
+      keys.insertOne(claim);
+      return null;
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+        throw e;
+      }
+    }
+
+    Document existing = keys.find(eq("_id", scopedKey)).first();
+    if (existing != null && !existing.getBoolean(COMPLETE_KEY)) {
+      Date theirs = existing.getDate(CLAIMED_AT_KEY);
+      if (theirs == null || theirs.getTime() <= claimedAt.getTime() - lease.toMillis()) {
+        // Only one retry gets to replace that particular claim. (A claim
+        // from before there were leases has no `claimedAt`, which matches
+        // `null`.)
+        if (keys.replaceOne(ourClaim(scopedKey, theirs), claim).getModifiedCount() > 0) {
+          return null;
+        }
+        existing = keys.find(eq("_id", scopedKey)).first();
+      }
+    }
+    if (existing == null || !existing.getBoolean(COMPLETE_KEY)) {
+      // (If it has gone, the other request failed or the key just expired;
+      // either way, the client should retry.)
+      throw new ConflictResponse("A request with this " + KEY_HEADER + " is still being handled; try again shortly");
+    }
+    Map<String, String> headers = new LinkedHashMap<>();
+    existing.get(HEADERS_KEY, Document.class).forEach((name, value) -> headers.put(name, (String) value));
+    StoredResponse stored = new StoredResponse(existing.getString(FINGERPRINT_KEY), CapturedResponse.of(
+      existing.getInteger(STATUS_KEY), headers, existing.get(BODY_KEY, Binary.class).getData()));
+    recent.put(scopedKey, stored);
+    return stored;
+  }
+
+  /**
+   * @return a fingerprint (the SHA-256 hash) of a request body
+   */
+  static String fingerprint(String body) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(body.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -1,30 +1,143 @@
 package umm3601;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoDatabase;
 
+import umm3601.user.PartitionedUserController;
+import umm3601.user.UnindexedSorts;
+import umm3601.user.User;
+import umm3601.user.UserByCompany;
 import umm3601.user.UserController;
+import umm3601.user.UserIdName;
+import umm3601.user.UserPartitions;
 
 public class Main {
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    // Time how long we take to start up and serve the first request.
+    StartupTimer startupTimer = new StartupTimer();
+
+    // The JSON mapper used by the server, primed for the types our
+    // controllers send and receive most.
+    FastJsonMapper jsonMapper = new FastJsonMapper(List.of(User.class, UserByCompany.class, UserIdName.class));
+
+    // When building the AppCDS archive (see the `Dockerfile` and the
+    // `appCdsArchive` task in `build.gradle`), do a short training run
+    // instead of starting the real server.
+    if (Boolean.parseBoolean(Main.getEnvOrDefault("APPCDS_TRAINING", "false"))) {
+      StartupTraining.run(jsonMapper, startupTimer);
+      // Exit right away (which is when the JVM writes the archive), even if
+      // some library has left a thread running.
+      System.exit(0);
+    }
+
     // Get the MongoDB address and database name from environment variables and
     // if they aren't set, use the defaults of "localhost" and "dev".
     String mongoAddr = Main.getEnvOrDefault("MONGO_ADDR", "localhost");
     String databaseName = Main.getEnvOrDefault("MONGO_DB", "dev");
 
+    // Set up the admission control (rate limiting and load shedding) from
+    // environment variables, falling back to defaults that are generous
+    // enough for normal use of the app. `TRUSTED_PROXY_HOPS` is how many
+    // proxies (just Caddy, by default) add to `X-Forwarded-For` in front of us.
+    AdmissionControl admissionControl = new AdmissionControl(
+      Double.parseDouble(Main.getEnvOrDefault("RATE_LIMIT_PER_SECOND", "50")),
+      Integer.parseInt(Main.getEnvOrDefault("RATE_LIMIT_BURST", "100")),
+      Integer.parseInt(Main.getEnvOrDefault("MAX_IN_FLIGHT", "256")),
+      Integer.parseInt(Main.getEnvOrDefault("MAX_MONGO_POOL_WAITERS", "50")),
+      Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault("SHED_LATENCY_MILLIS", "2000"))),
+      Integer.parseInt(Main.getEnvOrDefault("TRUSTED_PROXY_HOPS", "1")));
+
     // Set up the MongoDB client
-    MongoClient mongoClient = Server.configureDatabase(mongoAddr);
+    MongoClient mongoClient = Server.configureDatabase(mongoAddr, admissionControl);
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
+    // What to do with requests to sort users in an order none of the indexes
+    // provide: `REJECT` them, or let Mongo `SPILL_TO_DISK` (returning only a
+    // limited number of users).
+    UnindexedSorts unindexedSorts = UnindexedSorts.valueOf(
+      Main.getEnvOrDefault("UNINDEXED_SORTS", "REJECT").toUpperCase(Locale.ROOT));
+
+    // Batch up concurrent inserts of new users: at most this many at once,
+    // waiting at most this long for more to arrive. A batch size of 1 (the
+    // default) writes each new user on its own.
+    int insertBatchSize = Integer.parseInt(Main.getEnvOrDefault("INSERT_BATCH_SIZE", "1"));
+    Duration insertBatchWindow = Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault("INSERT_BATCH_MILLIS", "2")));
+
+    // How durable writes have to be before we respond to the requests that
+    // make them (`acknowledged`, `journaled`, or `majority`; see
+    // `WriteDurability`), unless a request asks for something else.
+    WriteDurability writeDurability = WriteDurability.fromName(
+      Main.getEnvOrDefault("WRITE_DURABILITY", "acknowledged"));
+
+    // Keep a copy of the users in memory and answer user listings from it,
+    // reloading it whenever it's older than this many seconds. 0 (the
+    // default) always asks the database.
+    Duration replicaMaxStaleness = Duration.ofSeconds(
+      Long.parseLong(Main.getEnvOrDefault("USER_REPLICA_MAX_STALENESS_SECONDS", "0")));
+
+    // Split the users across several `mongod`s (see `UserPartitions`): a
+    // comma-separated list of `host[:port][/database]`, one per partition,
+    // in order (the database defaults to `MONGO_DB`). If this isn't set (the
+    // default), all the users are in `MONGO_DB` at `MONGO_ADDR`. The
+    // partitioned users only support the settings above at their defaults.
+    String partitionList = Main.getEnvOrDefault("MONGO_PARTITIONS", "");
+
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers(database);
+    final Controller[] controllers;
+    // Every client we connect, so the server can check on (and close) them all.
+    List<MongoClient> mongoClients = new ArrayList<>(List.of(mongoClient));
+    if (partitionList.isBlank()) {
+      controllers = Main.getControllers(database, unindexedSorts, insertBatchSize, insertBatchWindow,
+        writeDurability, replicaMaxStaleness);
+    } else {
+      // Partitioned users don't support these, so don't let anyone think
+      // they've turned them on.
+      List<String> unsupported = unsupportedWhenPartitioned(insertBatchSize, writeDurability, replicaMaxStaleness);
+      if (!unsupported.isEmpty()) {
+        throw new IllegalArgumentException(
+          "MONGO_PARTITIONS can't be used with " + String.join(", ", unsupported) + "; unset them, or unset it");
+      }
+      UserPartitions partitions = new UserPartitions(Main.partitionDatabases(partitionList, databaseName, addr -> {
+        if (addr.equals(mongoAddr)) {
+          return mongoClient;
+        }
+        MongoClient partitionClient = Server.configureDatabase(addr, admissionControl);
+        mongoClients.add(partitionClient);
+        return partitionClient;
+      }));
+      controllers = new Controller[] {new PartitionedUserController(partitions, database, unindexedSorts)};
+    }
+
+    // How much to warm the server up before it reports itself ready for
+    // traffic: at most this many rounds of requests, for at most this long.
+    Warmup warmup = new Warmup(
+      Integer.parseInt(Main.getEnvOrDefault("WARMUP_ROUNDS", "200")),
+      Duration.ofSeconds(Long.parseLong(Main.getEnvOrDefault("WARMUP_SECONDS", "60"))));
+
+    // How to drain the server when it's shutting down: keep taking requests
+    // for this long after we stop reporting ourselves ready (so the load
+    // balancer can notice), then wait at most this long for the requests in
+    // flight to finish. Keep the total under the orchestrator's grace period
+    // (`stop_grace_period` in `docker-compose.yml`).
+    Drain drain = new Drain(
+      Duration.ofSeconds(Long.parseLong(Main.getEnvOrDefault("DRAIN_NOTICE_SECONDS", "5"))),
+      Duration.ofSeconds(Long.parseLong(Main.getEnvOrDefault("DRAIN_SECONDS", "20"))));
 
     // Construct the server
-    Server server = new Server(mongoClient, controllers);
+    Server server = new Server(mongoClients, controllers, admissionControl, jsonMapper, startupTimer, warmup, drain);
 
     // Start the server
     server.startServer();
@@ -42,6 +155,61 @@ public class Main {
     return System.getenv().getOrDefault(envName, defaultValue);
   }
 
+  /**
+   * Connect to the databases holding the partitions of the users.
+   *
+   * @param partitionList a comma-separated list of `host[:port][/database]`,
+   *   one for each partition, in order
+   * @param defaultDatabase the database to use for partitions that don't
+   *   name one
+   * @param connect makes a client for a `host[:port]`; we only ask once
+   *   for each distinct one, so partitions on the same `mongod` share a
+   *   client
+   * @return the databases, in the same order
+   */
+  static List<MongoDatabase> partitionDatabases(String partitionList, String defaultDatabase,
+      Function<String, MongoClient> connect) {
+    Map<String, MongoClient> clients = new HashMap<>();
+    List<MongoDatabase> databases = new ArrayList<>();
+    for (String partition : partitionList.split(",")) {
+      String trimmed = partition.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+      int slash = trimmed.indexOf('/');
+      String addr = slash < 0 ? trimmed : trimmed.substring(0, slash);
+      String databaseName = slash < 0 ? defaultDatabase : trimmed.substring(slash + 1);
+      databases.add(clients.computeIfAbsent(addr, connect).getDatabase(databaseName));
+    }
+    return databases;
+  }
+
+  /**
+   * The settings that the `UserController` supports but the
+   * `PartitionedUserController` doesn't, of those that have been changed
+   * from their defaults.
+   *
+   * @param insertBatchSize `INSERT_BATCH_SIZE` (`INSERT_BATCH_MILLIS` only
+   *   matters if this is more than 1)
+   * @param writeDurability `WRITE_DURABILITY`
+   * @param replicaMaxStaleness `USER_REPLICA_MAX_STALENESS_SECONDS`
+   * @return the names of the environment variables for those settings
+   */
+  static List<String> unsupportedWhenPartitioned(int insertBatchSize, WriteDurability writeDurability,
+      Duration replicaMaxStaleness) {
+    List<String> unsupported = new ArrayList<>();
+    if (insertBatchSize != 1) {
+      unsupported.add("INSERT_BATCH_SIZE");
+    }
+    if (writeDurability != WriteDurability.ACKNOWLEDGED) {
+      unsupported.add("WRITE_DURABILITY");
+    }
+    if (!replicaMaxStaleness.isZero()) {
+      unsupported.add("USER_REPLICA_MAX_STALENESS_SECONDS");
+    }
+    return unsupported;
+  }
+
   /**
    * Get the implementations of `Controller` used for the server.
    *
@@ -51,16 +219,36 @@ public class Main {
    *
    * @param database The MongoDB database object used by the controllers
    *               to access the database.
+   * @param unindexedSorts What the `UserController` should do with sorts
+   *               that none of its indexes provide.
+   * @param insertBatchSize The most new users the `UserController` should
+   *               write at once (1 to write each on its own).
+   * @param insertBatchWindow How long the `UserController` should wait for
+   *               more new users before writing a batch.
+   * @param writeDurability How durable the `UserController`'s writes should
+   *               be by default.
+   * @param replicaMaxStaleness How stale the `UserController`'s in-memory
+   *               copy of the users can get (zero not to keep one).
    * @return An array of implementations of `Controller` for the server.
    */
-  static Controller[] getControllers(MongoDatabase database) {
+  static Controller[] getControllers(MongoDatabase database, UnindexedSorts unindexedSorts,
+      int insertBatchSize, Duration insertBatchWindow, WriteDurability writeDurability,
+      Duration replicaMaxStaleness) {
+    UserController userController = new UserController(database, unindexedSorts);
+    userController.setDefaultDurability(writeDurability);
+    if (insertBatchSize > 1) {
+      userController.coalesceInserts(insertBatchSize, insertBatchWindow);
+    }
+    if (!replicaMaxStaleness.isZero()) {
+      userController.replicateInMemory(replicaMaxStaleness);
+    }
     Controller[] controllers = new Controller[] {
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
       // the `Controller` interface.
       //
       // You can also remove this UserController once you don't need it.
-      new UserController(database)
+      userController
     };
     return controllers;
   }
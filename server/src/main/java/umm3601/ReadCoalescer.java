@@ -0,0 +1,111 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+
+/**
+ * Coalesces identical concurrent read requests ("single-flight").
+ *
+ * When a burst of clients all ask for the same thing at once (after a
+ * deploy, say, or when everyone's page refreshes at the same time), there
+ * is no point running the same query and serializing the same result N
+ * times in parallel. A handler wrapped with `coalesce()` lets the first
+ * request for a given key (the "leader") do the work, while any identical
+ * requests that arrive in the meantime (the "followers") wait for it and
+ * then write out a copy of the leader's response bytes (or throw the
+ * exception the leader threw).
+ *
+ * Nothing is cached: once the leader finishes, the next request for that
+ * key runs the handler again. Followers only wait up to `timeout` for the
+ * leader; after that they give up on it and run the handler themselves, so
+ * one slow request can't hang everyone behind it.
+ *
+ * Two requests are "identical" if they have the same method, path, and
+ * query parameters (in any order), and want the response in the same
+ * format; see `requestKey()`. This is only safe for handlers whose
+ * response depends on nothing else, i.e., reads.
+ */
+public class ReadCoalescer {
+
+  private final ConcurrentHashMap<String, CompletableFuture<CapturedResponse>> leaders = new ConcurrentHashMap<>();
+  private final Duration timeout;
+
+  /**
+   * Construct a read coalescer.
+   *
+   * @param timeout how long followers wait for a leader before running the request themselves
+   */
+  public ReadCoalescer(Duration timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Wrap a read handler so identical concurrent requests share one execution.
+   *
+   * @param handler the handler to wrap
+   * @return a handler that coalesces identical concurrent requests to `handler`
+   */
+  public Handler coalesce(Handler handler) {
+    return ctx -> handle(ctx, handler);
+  }
+
+  private void handle(Context ctx, Handler handler) throws Exception {
+    String key = requestKey(ctx);
+    CompletableFuture<CapturedResponse> ours = new CompletableFuture<>();
+    CompletableFuture<CapturedResponse> leader = leaders.putIfAbsent(key, ours);
+
+    if (leader == null) {
+      // We're the leader, so we do the work and share the result with
+      // anyone who turned up while we were doing it.
+      try {
+        ours.complete(CapturedResponse.capture(ctx, handler));
+      } catch (Exception e) {
+        ours.completeExceptionally(e);
+        throw e;
+      } finally {
+        leaders.remove(key, ours);
+      }
+      return;
+    }
+
+    CapturedResponse shared;
+    try {
+      shared = leader.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      // The leader is taking too long; stop waiting and do it ourselves.
+      handler.handle(ctx);
+      return;
+    } catch (ExecutionException e) {
+      // Ours is the same request, so it fails the same way the leader's did
+      // (and gets the same status, whether that's a 400 for a bad query
+      // parameter or a 500). The leader only shares `Exception`s.
+      throw (Exception) e.getCause();
+    }
+    shared.writeTo(ctx);
+  }
+
+  /**
+   * The key that identifies "the same" request: the method, the path, the
+   * query parameters sorted by name, and the format the response is
+   * written in (see `ContentNegotiation`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @return a normalized key for the request
+   */
+  static String requestKey(Context ctx) {
+    Map<String, List<String>> sortedParams = new TreeMap<>(ctx.queryParamMap());
+    String key = ctx.method() + " " + ctx.path() + "?" + sortedParams;
+    BinaryFormat format = ContentNegotiation.negotiatedFormat(ctx);
+    return format == null ? key : key + " as " + format;
+  }
+}
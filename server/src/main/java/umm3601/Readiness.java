@@ -0,0 +1,93 @@
+package umm3601;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Whether the server is ready to take traffic, as reported to the load
+ * balancer (or orchestrator) by `GET /api/ready`.
+ *
+ * This is separate from whether the server is *up*: a server that has just
+ * started is up, but shouldn't get real traffic until it has warmed up (see
+ * `Warmup`); and a server that can't reach its database is up, but can't
+ * do anything useful. Nor should a server that's about to shut down (see
+ * `Drain`). So we're ready when
+ *
+ *   - the warmup has finished,
+ *   - we aren't draining, and
+ *   - a ping of each of the databases we use succeeds.
+ *
+ * The readiness check itself is exempt from admission control (see
+ * `Server`), so an overloaded server still answers it.
+ */
+public class Readiness {
+
+  private final BooleanSupplier databaseUp;
+
+  private volatile boolean warmedUp;
+  private volatile boolean draining;
+
+  /**
+   * Construct a readiness check.
+   *
+   * @param databaseUp pings the databases, returning whether they all answered
+   */
+  public Readiness(BooleanSupplier databaseUp) {
+    this.databaseUp = databaseUp;
+  }
+
+  /**
+   * Note that the warmup has finished.
+   */
+  public void markWarmedUp() {
+    warmedUp = true;
+  }
+
+  /**
+   * @return whether the warmup has finished
+   */
+  public boolean isWarmedUp() {
+    return warmedUp;
+  }
+
+  /**
+   * Note that the server is draining, and shouldn't be sent any more traffic.
+   */
+  public void markDraining() {
+    draining = true;
+  }
+
+  /**
+   * @return whether the server is draining
+   */
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * Respond to `GET /api/ready` with `200 OK` if the server is ready for
+   * traffic, or `503 Service Unavailable` if not. Either way, the body says
+   * which of the checks passed, e.g., `{"ready": false, "warmedUp": true,
+   * "notDraining": true, "database": false}`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void check(Context ctx) {
+    Map<String, Boolean> checks = new LinkedHashMap<>();
+    checks.put("warmedUp", warmedUp);
+    checks.put("notDraining", !draining);
+    // Only bother the database once there's a chance we're ready.
+    checks.put("database", warmedUp && !draining && databaseUp.getAsBoolean());
+    boolean ready = !checks.containsValue(false);
+
+    Map<String, Boolean> body = new LinkedHashMap<>();
+    body.put("ready", ready);
+    body.putAll(checks);
+    ctx.json(body);
+    ctx.status(ready ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+  }
+}
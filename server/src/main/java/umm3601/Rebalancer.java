@@ -0,0 +1,74 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import umm3601.user.UserPartitions;
+
+/**
+ * Moves the users to the partitions they belong in (see `UserPartitions`)
+ * after the partitions change. Run it with
+ *
+ *   MONGO_PARTITIONS=... MONGO_RETIRED_PARTITIONS=... ./gradlew rebalance
+ *
+ * where `MONGO_PARTITIONS` is the *new* list of partitions (in the same
+ * form, and order, the server takes it; see `Main`), and
+ * `MONGO_RETIRED_PARTITIONS` lists any partitions that have been taken out
+ * of it. The users in the retired partitions are moved into the new ones,
+ * and then every user that's in the wrong one of the new partitions is
+ * moved to the right one.
+ *
+ * It's safe to run this while the servers are up (with the new list of
+ * partitions): they find users that haven't been moved yet, and a user is
+ * always copied to its new partition before it's deleted from its old one
+ * (and only deleted if it hasn't changed since it was copied), so no user
+ * is ever lost, and a user deleted while it's being moved stays deleted.
+ * It's also safe to stop it (however abruptly) and run it again.
+ */
+public final class Rebalancer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Rebalancer.class);
+
+  private Rebalancer() {
+  }
+
+  /**
+   * Rebalance the partitions given by the environment variables.
+   *
+   * @param args ignored
+   */
+  public static void main(String[] args) {
+    String databaseName = Main.getEnvOrDefault("MONGO_DB", "dev");
+    String partitionList = Main.getEnvOrDefault("MONGO_PARTITIONS", "");
+    String retiredList = Main.getEnvOrDefault("MONGO_RETIRED_PARTITIONS", "");
+    if (partitionList.isBlank()) {
+      throw new IllegalArgumentException("Set MONGO_PARTITIONS to the partitions to move the users into");
+    }
+
+    List<MongoClient> clients = new ArrayList<>();
+    Function<String, MongoClient> connect = addr -> {
+      MongoClient client = MongoClients.create("mongodb://" + addr);
+      clients.add(client);
+      return client;
+    };
+    List<MongoDatabase> databases = Main.partitionDatabases(partitionList, databaseName, connect);
+    try (UserPartitions partitions = new UserPartitions(databases)) {
+      long moved = 0;
+      for (MongoDatabase retired : Main.partitionDatabases(retiredList, databaseName, connect)) {
+        moved += partitions.drain(retired);
+      }
+      moved += partitions.rebalance();
+      LOG.info("Moved {} users in all; the users are now in {} partitions", moved, partitions.size());
+    } finally {
+      clients.forEach(MongoClient::close);
+    }
+  }
+}
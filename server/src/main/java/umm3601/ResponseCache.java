@@ -0,0 +1,134 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HttpStatus;
+
+/**
+ * A cache of fully rendered responses for read-only routes.
+ *
+ * Caching the *data* for a route still leaves us re-serializing the same
+ * objects to JSON on every request. A handler wrapped with `cached()`
+ * instead keeps the exact bytes of successful responses (along with a
+ * gzipped copy of any large ones), keyed by the normalized request (see
+ * `ReadCoalescer.requestKey()`), and writes them straight back out on later
+ * requests without calling the handler at all.
+ *
+ * Entries expire after a short time-to-live, which bounds how stale a
+ * response can get from writes made by other server instances. Writes made
+ * through *this* server should call `invalidateAll()` (controllers expose
+ * hooks for this; see `UserController.addChangeListener()`), after which no
+ * response rendered before the write will be served again.
+ */
+public class ResponseCache {
+
+  static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  static final String VARY_HEADER = "Vary";
+  static final String GZIP = "gzip";
+
+  // Responses smaller than this aren't worth gzipping. (This matches the
+  // threshold Javalin uses for its own compression.)
+  static final int MIN_GZIP_BYTES = 1500;
+
+  private final TtlCache<String, CachedResponse> cache;
+
+  // Bumped on every invalidation. A response is only served from the cache
+  // if it was rendered in the current generation, so a response that was
+  // being rendered while a write happened can't sneak back into the cache.
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Construct a response cache.
+   *
+   * @param ttl how long a rendered response may be served from the cache
+   * @param maxEntries the most responses to keep at once
+   */
+  public ResponseCache(Duration ttl, int maxEntries) {
+    this(new TtlCache<>(ttl, maxEntries));
+  }
+
+  ResponseCache(TtlCache<String, CachedResponse> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Wrap a read handler so its successful responses are cached.
+   *
+   * @param handler the handler to wrap
+   * @return a handler that serves cached responses when it can, and calls
+   *   `handler` (and caches the result) when it can't
+   */
+  public Handler cached(Handler handler) {
+    return ctx -> handle(ctx, handler);
+  }
+
+  /**
+   * Forget every cached response. Call this whenever the data behind any
+   * of the cached routes changes.
+   */
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    cache.invalidateAll();
+  }
+
+  private void handle(Context ctx, Handler handler) throws Exception {
+    String key = ReadCoalescer.requestKey(ctx);
+    long currentGeneration = generation.get();
+    CachedResponse hit = cache.get(key);
+    if (hit != null && hit.generation() == currentGeneration) {
+      hit.writeTo(ctx, acceptsGzip(ctx));
+      return;
+    }
+
+    CapturedResponse response = CapturedResponse.capture(ctx, handler);
+    if (response.status() == HttpStatus.OK.getCode()) {
+      byte[] gzipped = response.body().length >= MIN_GZIP_BYTES ? gzip(response.body()) : null;
+      cache.put(key, new CachedResponse(response, gzipped, currentGeneration));
+    }
+  }
+
+  private static boolean acceptsGzip(Context ctx) {
+    // If the response is in (or is going to be converted to) a binary format
+    // (see `ContentNegotiation`), it doesn't need gzipping, and mustn't be if
+    // it's still JSON waiting to be converted.
+    if (ContentNegotiation.negotiatedFormat(ctx) != null) {
+      return false;
+    }
+    String acceptEncoding = ctx.header(ACCEPT_ENCODING_HEADER);
+    return acceptEncoding != null && acceptEncoding.contains(GZIP);
+  }
+
+  static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+      gzipOut.write(body);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * A cached response, along with its gzipped body (if it was big enough
+   * to be worth compressing) and the generation it was rendered in.
+   */
+  record CachedResponse(CapturedResponse response, byte[] gzipped, long generation) {
+
+    void writeTo(Context ctx, boolean acceptsGzip) {
+      if (acceptsGzip && gzipped != null) {
+        response.writeTo(ctx, gzipped);
+        ctx.header(CONTENT_ENCODING_HEADER, GZIP);
+        // Keep whatever the response already varied on (e.g., `Accept`).
+        String vary = response.header(VARY_HEADER);
+        ctx.header(VARY_HEADER, vary == null ? ACCEPT_ENCODING_HEADER : vary + ", " + ACCEPT_ENCODING_HEADER);
+      } else {
+        response.writeTo(ctx);
+      }
+    }
+  }
+}
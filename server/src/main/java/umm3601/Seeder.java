@@ -0,0 +1,227 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.bson.BSONException;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+import umm3601.user.UserController;
+
+/**
+ * Seeds the database from the JSON files in `database/seed`, like
+ * `database/mongoseed.sh` does, but without needing the `mongo` shell or
+ * `mongoimport`, and a lot faster on big seed files. Run it with
+ *
+ *   ./gradlew seed
+ *
+ * which drops the `MONGO_DB` (default `dev`) database on the `mongod` at
+ * `MONGO_ADDR` (default `localhost`) and then loads each `<collection>.json`
+ * file (a JSON array of documents, in MongoDB's extended JSON, so `$oid`
+ * and friends work) into `<collection>`.
+ *
+ * It's quick because:
+ *
+ *   - It streams each file, a batch at a time, instead of reading it all
+ *     into memory first, and decodes each document straight from the file
+ *     into a `Document` (with the driver's own extended JSON reader),
+ *     rather than parsing it into one tree and then re-parsing that.
+ *   - It inserts each batch with a single *unordered* `insertMany`, so Mongo
+ *     can write the documents in a batch in whatever order suits it, and
+ *     sends several batches at once (from `SEED_THREADS` threads).
+ *   - It creates each collection's indexes after the documents are in, since
+ *     building an index over a full collection is much faster than keeping it
+ *     up to date through every insert.
+ */
+public final class Seeder {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Seeder.class);
+
+  static final int DEFAULT_BATCH_SIZE = 1000;
+
+  // The indexes to build for each collection, once it has been loaded.
+  // Collections that aren't listed here don't get any (beyond `_id`).
+  private static final Map<String, Consumer<MongoCollection<Document>>> INDEXES = Map.of(
+    "users", UserController::createIndexes);
+
+  private final MongoDatabase database;
+  private final int threads;
+  private final int batchSize;
+  private final DocumentCodec documentCodec = new DocumentCodec();
+
+  /**
+   * Construct a seeder.
+   *
+   * @param database the database to seed
+   * @param threads how many batches to insert at once
+   * @param batchSize how many documents to insert with each `insertMany`
+   */
+  Seeder(MongoDatabase database, int threads, int batchSize) {
+    if (threads < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("The seeder needs at least one thread and a batch size of at least one");
+    }
+    this.database = database;
+    this.threads = threads;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Seed the database from every `.json` file in a directory.
+   *
+   * @param seedDirectory the directory holding the seed files
+   * @return how many documents we inserted, across all the files
+   * @throws IOException if a seed file can't be read (or isn't a JSON array)
+   * @throws InterruptedException if we're interrupted while inserting
+   */
+  long seedAll(Path seedDirectory) throws IOException, InterruptedException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.list(seedDirectory)) {
+      files = paths.filter(path -> path.toString().endsWith(".json")).sorted().toList();
+    }
+    long start = System.nanoTime();
+    long total = 0;
+    for (Path file : files) {
+      total += seed(file);
+    }
+    report("all of the seed files", total, start);
+    return total;
+  }
+
+  /**
+   * Load one seed file into the collection it's named after, and then build
+   * that collection's indexes.
+   *
+   * @param file the seed file, e.g., `users.json`
+   * @return how many documents we inserted
+   * @throws IOException if the file can't be read (or isn't a JSON array)
+   * @throws InterruptedException if we're interrupted while inserting
+   */
+  long seed(Path file) throws IOException, InterruptedException {
+    String fileName = file.getFileName().toString();
+    String collectionName = fileName.substring(0, fileName.length() - ".json".length());
+    MongoCollection<Document> collection = database.getCollection(collectionName);
+
+    long start = System.nanoTime();
+    long inserted = insert(file, collection);
+    report(collectionName, inserted, start);
+
+    Consumer<MongoCollection<Document>> createIndexes = INDEXES.get(collectionName);
+    if (createIndexes != null) {
+      long indexStart = System.nanoTime();
+      createIndexes.accept(collection);
+      LOG.info("Indexed {} in {} ms", collectionName,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - indexStart));
+    }
+    return inserted;
+  }
+
+  private long insert(Path file, MongoCollection<Document> collection) throws IOException, InterruptedException {
+    InsertManyOptions unordered = new InsertManyOptions().ordered(false);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    // Only read a couple of batches ahead of the inserts, so we never hold
+    // more than a few batches of a big file in memory.
+    Semaphore batchesInMemory = new Semaphore(threads * 2);
+    List<Future<Integer>> inserts = new ArrayList<>();
+    try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8); JsonReader documents = new JsonReader(in)) {
+      // `JsonReader` understands extended JSON (`$oid`, `$date`, ...), and
+      // reads one document at a time, however big the file is.
+      documents.readStartArray();
+      List<Document> batch = new ArrayList<>(batchSize);
+      while (documents.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        batch.add(documentCodec.decode(documents, DecoderContext.builder().build()));
+        if (batch.size() == batchSize) {
+          inserts.add(insertBatch(pool, batchesInMemory, collection, batch, unordered));
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      documents.readEndArray();
+      if (!batch.isEmpty()) {
+        inserts.add(insertBatch(pool, batchesInMemory, collection, batch, unordered));
+      }
+      long inserted = 0;
+      for (Future<Integer> insert : inserts) {
+        inserted += insert.get();
+      }
+      return inserted;
+    } catch (JsonParseException | BSONException e) {
+      throw new IOException(file + " isn't a JSON array of documents", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Couldn't insert a batch from " + file, e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // Insert a batch on one of the `pool`'s threads, once there's room for
+  // another batch in memory.
+  private static Future<Integer> insertBatch(ExecutorService pool, Semaphore batchesInMemory,
+      MongoCollection<Document> collection, List<Document> batch, InsertManyOptions options)
+      throws InterruptedException {
+    batchesInMemory.acquire();
+    return pool.submit(() -> {
+      try {
+        collection.insertMany(batch, options);
+        return batch.size();
+      } finally {
+        batchesInMemory.release();
+      }
+    });
+  }
+
+  private static void report(String what, long documents, long startNanos) {
+    long nanos = Math.max(1, System.nanoTime() - startNanos);
+    LOG.info("Seeded {} documents from {} in {} ms ({} documents/second)", documents, what,
+      TimeUnit.NANOSECONDS.toMillis(nanos), documents * TimeUnit.SECONDS.toNanos(1) / nanos);
+  }
+
+  /**
+   * Drop the database and seed it again.
+   *
+   * @param args the directory holding the seed files (default `../database/seed`)
+   * @throws IOException if a seed file can't be read
+   * @throws InterruptedException if we're interrupted while inserting
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String mongoAddr = Main.getEnvOrDefault("MONGO_ADDR", "localhost");
+    String databaseName = Main.getEnvOrDefault("MONGO_DB", "dev");
+    int threads = Integer.parseInt(Main.getEnvOrDefault("SEED_THREADS",
+      String.valueOf(Runtime.getRuntime().availableProcessors())));
+    int batchSize = Integer.parseInt(Main.getEnvOrDefault("SEED_BATCH_SIZE", String.valueOf(DEFAULT_BATCH_SIZE)));
+    Path seedDirectory = Paths.get(args.length > 0 ? args[0] : "../database/seed");
+
+    try (MongoClient mongoClient = MongoClients.create("mongodb://" + mongoAddr)) {
+      MongoDatabase database = mongoClient.getDatabase(databaseName);
+      LOG.info("Dropping database {}", databaseName);
+      database.drop();
+      new Seeder(database, threads, batchSize).seedAll(seedDirectory);
+    }
+  }
+}
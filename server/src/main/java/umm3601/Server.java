@@ -1,16 +1,23 @@
 package umm3601;
 
 import java.util.Arrays;
+import java.util.List;
 
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.event.ConnectionPoolListener;
 
+import org.bson.Document;
 import org.bson.UuidRepresentation;
 
 import io.javalin.Javalin;
+import io.javalin.http.Context;
 import io.javalin.http.InternalServerErrorResponse;
+import io.javalin.json.JsonMapper;
 
 /**
  * The class used to configure and start a Javalin server.
@@ -18,24 +25,66 @@ import io.javalin.http.InternalServerErrorResponse;
 public class Server {
 
   // The port that the server should run on.
-  private static final int SERVER_PORT = 4567;
+  static final int SERVER_PORT = 4567;
 
-  // The `mongoClient` field is used to access the MongoDB
-  private final MongoClient mongoClient;
+  // The path of the readiness check (see `Readiness`).
+  static final String READY_PATH = "/api/ready";
+
+  // The `mongoClients` are every MongoDB client the controllers use (one
+  // per `mongod`, when the users are partitioned across several).
+  private final List<MongoClient> mongoClients;
 
   // The `controllers` field is an array of all the `Controller` implementations
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
 
+  // The `admissionControl` field decides which requests the server takes on
+  // (rate limits, in-flight cap, and load shedding). It sits in front of
+  // every controller route.
+  private final AdmissionControl admissionControl;
+
+  // The `jsonMapper` is used for every `ctx.json(...)` and `ctx.bodyValidator(...)`
+  // call made by the controllers.
+  private final JsonMapper jsonMapper;
+
+  // The `startupTimer` notes (and logs) how long it took to serve the first
+  // successful request.
+  private final StartupTimer startupTimer;
+
+  // The `warmup` exercises the controllers' routes after the server starts
+  // and before it reports itself ready; see `Warmup`.
+  private final Warmup warmup;
+
+  // The `drain` lets the requests in flight finish before the server shuts
+  // down; see `Drain`.
+  private final Drain drain;
+
+  // The `readiness` decides whether we tell the load balancer we're ready
+  // for traffic.
+  private final Readiness readiness;
+
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
    * and start the server.
    *
-   * @param mongoClient The MongoDB client object used to access to the database
+   * @param mongoClients The MongoDB client objects used to access the databases;
+   *   the server pings them all to check it's ready, and closes them all when it stops
    * @param controllers The implementations of `Controller` used for this server
+   * @param admissionControl The admission control applied to all API requests
+   * @param jsonMapper The mapper used to convert between JSON and Java objects
+   * @param startupTimer The timer started when `Main.main` was
+   * @param warmup The warmup to run before reporting that we're ready
+   * @param drain The drain to run before shutting down
    */
-  public Server(MongoClient mongoClient, Controller[] controllers) {
-    this.mongoClient = mongoClient;
+  public Server(List<MongoClient> mongoClients, Controller[] controllers, AdmissionControl admissionControl,
+      JsonMapper jsonMapper, StartupTimer startupTimer, Warmup warmup, Drain drain) {
+    this.mongoClients = List.copyOf(mongoClients);
+    this.admissionControl = admissionControl;
+    this.jsonMapper = jsonMapper;
+    this.startupTimer = startupTimer;
+    this.warmup = warmup;
+    this.drain = drain;
+    this.readiness = new Readiness(this::pingDatabases);
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
@@ -56,10 +105,12 @@ public class Server {
    * This sets both the `mongoClient` and `database` fields
    * so they can be used when setting up the Javalin server.
    * @param mongoAddr The address of the MongoDB server
+   * @param poolListener A listener for connection pool events; the admission
+   *   control uses this to see how many requests are waiting for a connection
    *
    * @return The MongoDB client object
    */
-  static MongoClient configureDatabase(String mongoAddr) {
+  static MongoClient configureDatabase(String mongoAddr, ConnectionPoolListener poolListener) {
     // Setup the MongoDB client object with the information we set earlier
     MongoClient mongoClient = MongoClients.create(MongoClientSettings
       .builder()
@@ -68,6 +119,7 @@ public class Server {
       // a non-standard way. This option says to use the standard encoding.
       // See: https://studio3t.com/knowledge-base/articles/mongodb-best-practices-uuid-data/
       .uuidRepresentation(UuidRepresentation.STANDARD)
+      .applyToConnectionPoolSettings(builder -> builder.addConnectionPoolListener(poolListener))
       .build());
 
     return mongoClient;
@@ -79,11 +131,44 @@ public class Server {
    * This configures and starts the Javalin server, which will start listening for HTTP requests.
    * It also sets up the server to shut down gracefully if it's killed or if the
    * JVM is shut down.
+   *
+   * Once the server has started, this warms it up (see `Warmup`), and only
+   * then does `/api/ready` start reporting that the server is ready.
+   *
+   * @return The (started) Javalin server instance
+   * @throws InterruptedException if we're interrupted while warming up
    */
-  void startServer() {
+  Javalin startServer() throws InterruptedException {
     Javalin javalin = configureJavalin();
     setupRoutes(javalin);
     javalin.start(SERVER_PORT);
+    warmup.run(SERVER_PORT, controllers);
+    readiness.markWarmedUp();
+    return javalin;
+  }
+
+  /**
+   * Ping the databases.
+   *
+   * @return whether every one of them answered
+   */
+  private boolean pingDatabases() {
+    return mongoClients.stream().allMatch(Server::pingDatabase);
+  }
+
+  private static boolean pingDatabase(MongoClient mongoClient) {
+    // If the driver doesn't currently know of a server it could use, the
+    // ping would wait (for up to 30 seconds) for one to turn up. A readiness
+    // check should answer right away.
+    if (!mongoClient.getClusterDescription().hasReadableServer(ReadPreference.primaryPreferred())) {
+      return false;
+    }
+    try {
+      mongoClient.getDatabase("admin").runCommand(new Document("ping", 1));
+      return true;
+    } catch (MongoException e) {
+      return false;
+    }
   }
 
   /**
@@ -112,14 +197,32 @@ public class Server {
      * `http://localhost:4567/api` shows all of the available endpoints and
      * what HTTP methods they use. (Replace `localhost` and `4567` with whatever server
      * and  port you're actually using, if they are different.)
+     *
+     * `jsonMapper(...)` replaces Javalin's default Jackson mapper with our
+     * tuned one (see `FastJsonMapper`); serializing lists of users is where
+     * most of our CPU time goes.
      */
-    Javalin server = Javalin.create(config ->
-      config.bundledPlugins.enableRouteOverview("/api")
-    );
+    Javalin server = Javalin.create(config -> {
+      config.bundledPlugins.enableRouteOverview("/api");
+      config.jsonMapper(jsonMapper);
+    });
 
     // Configure the MongoDB client and the Javalin server to shut down gracefully.
     configureShutdowns(server);
 
+    // Put admission control in front of all the API routes.
+    configureAdmissionControl(server);
+
+    // Let clients ask for API responses in binary formats instead of JSON.
+    configureContentNegotiation(server);
+
+    // Note how long it took us to start up and serve the first (real) request.
+    server.after("/api/*", ctx -> {
+      if (!isExempt(ctx)) {
+        startupTimer.recordResponse(ctx);
+      }
+    });
+
     // This catches any uncaught exceptions thrown in the server
     // code and turns them into a 500 response ("Internal Server
     // Error Response"). In general you'll like to *never* actually
@@ -139,34 +242,96 @@ public class Server {
   /**
    * Configure the server and the MongoDB client to shut down gracefully.
    *
-   * @param mongoClient The MongoDB client
    * @param server The Javalin server instance
    */
   private void configureShutdowns(Javalin server) {
     /*
      * We want the server to shut down gracefully if we kill it
-     * or if the JVM dies for some reason.
+     * or if the JVM dies for some reason: stop taking new requests,
+     * let the ones in flight finish (see `Drain`), and only then
+     * stop the server.
      */
-    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        drain.run(readiness, admissionControl,
+          () -> Arrays.stream(controllers).mapToInt(Controller::pendingWrites).sum());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      server.stop();
+    }));
     /*
-     * We want to shut the `mongoClient` down if the server either
+     * We want to shut the `mongoClients` down if the server either
      * fails to start, or when it's shutting down for whatever reason.
-     * Since the mongClient needs to be available throughout the
-     * life of the server, the only way to do this is to wait for
-     * these events and close it then.
+     * Since the clients need to be available throughout the
+     * life of the server (including while it drains), the only way
+     * to do this is to wait for these events and close it then.
      */
     server.events(event -> {
-      event.serverStartFailed(mongoClient::close);
-      event.serverStopped(mongoClient::close);
+      event.serverStartFailed(() -> mongoClients.forEach(MongoClient::close));
+      event.serverStopped(() -> mongoClients.forEach(MongoClient::close));
     });
   }
 
+  /**
+   * Put admission control in front of all of the API routes, so requests
+   * are rate limited (or shed entirely if the server is overloaded) before
+   * any controller does any work for them.
+   *
+   * The `after` handler runs even when the `before` handler rejected the
+   * request; `AdmissionControl.release()` only releases requests that were
+   * actually admitted.
+   *
+   * The readiness check and our own warmup requests are exempt (see
+   * `isExempt()`).
+   *
+   * @param server The Javalin server instance
+   */
+  private void configureAdmissionControl(Javalin server) {
+    server.before("/api/*", ctx -> {
+      if (!isExempt(ctx)) {
+        admissionControl.admit(ctx);
+      }
+    });
+    server.after("/api/*", admissionControl::release);
+  }
+
+  /**
+   * Whether a request is one that the server makes of itself (a warmup
+   * request) or that the load balancer makes to see whether to send us
+   * traffic (a readiness check). Neither should be turned away by admission
+   * control: the warmup requests would all be rate limited as one very busy
+   * client, and a readiness check needs an answer even (or especially) when
+   * the server is busy.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return whether the request is exempt from admission control
+   */
+  private boolean isExempt(Context ctx) {
+    return ctx.path().equals(READY_PATH) || warmup.isWarmupRequest(ctx);
+  }
+
+  /**
+   * Let clients ask for any API response in one of the `BinaryFormat`s
+   * (CBOR, Smile, or MessagePack) instead of JSON, using the `Accept`
+   * header. Controllers keep producing JSON; it's converted on the way out.
+   *
+   * @param server The Javalin server instance
+   */
+  private void configureContentNegotiation(Javalin server) {
+    server.before("/api/*", ContentNegotiation::negotiate);
+    server.after("/api/*", ContentNegotiation::transcode);
+  }
+
   /**
    * Setup routes for the server.
    *
    * @param server The Javalin server instance
    */
   private void setupRoutes(Javalin server) {
+    // Let the load balancer know whether we're ready for traffic.
+    server.get(READY_PATH, readiness::check);
+
     // Add the routes for each of the implementations of `Controller` in the
     // `controllers` array.
     for (Controller controller : controllers) {
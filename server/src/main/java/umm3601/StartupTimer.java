@@ -0,0 +1,69 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.Context;
+
+/**
+ * Measures how long the server takes from `Main.main` starting to serving
+ * its first successful API response. That's how long a new instance keeps
+ * the autoscaler (and the clients waiting on it) waiting, so it's the
+ * number the startup benchmark (`./gradlew startupBenchmark`) reports.
+ */
+public final class StartupTimer {
+
+  // The benchmark looks for this in the server's output, so don't change
+  // it without changing `build.gradle` too.
+  static final String FIRST_RESPONSE_MESSAGE = "Served the first successful request {} ms after Main.main started";
+
+  private static final Logger LOG = LoggerFactory.getLogger(StartupTimer.class);
+
+  private final LongSupplier clock;
+  private final long startNanos;
+
+  // When the first successful response was sent, or -1 if it hasn't been.
+  private final AtomicLong firstResponseNanos = new AtomicLong(-1);
+
+  /**
+   * Start timing, as of now.
+   */
+  public StartupTimer() {
+    this(System::nanoTime);
+  }
+
+  /**
+   * Start timing, as of now according to the given clock.
+   *
+   * @param clock the current time, in nanoseconds
+   */
+  StartupTimer(LongSupplier clock) {
+    this.clock = clock;
+    this.startNanos = clock.getAsLong();
+  }
+
+  /**
+   * Note the response to a request, if it's the first successful one. This
+   * is meant to be used as an `after` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void recordResponse(Context ctx) {
+    if (ctx.status().isSuccess() && firstResponseNanos.compareAndSet(-1, clock.getAsLong())) {
+      LOG.info(FIRST_RESPONSE_MESSAGE, millisToFirstResponse());
+    }
+  }
+
+  /**
+   * @return how many milliseconds after we started timing the first
+   *   successful response was sent, or -1 if it hasn't been yet
+   */
+  public long millisToFirstResponse() {
+    long firstResponse = firstResponseNanos.get();
+    return firstResponse < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstResponse - startNanos);
+  }
+}
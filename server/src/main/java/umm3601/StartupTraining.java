@@ -0,0 +1,158 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.Javalin;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.json.JsonMapper;
+import umm3601.user.User;
+
+/**
+ * A short, scripted run of the server, used to build the application
+ * class-data sharing (AppCDS) archive that the server starts from in
+ * production.
+ *
+ * Most of the time a new server instance spends starting up goes into
+ * finding, reading, verifying, and linking the thousands of classes in
+ * Javalin, Jetty, Jackson, and the MongoDB driver. If we run the server
+ * once with `-XX:ArchiveClassesAtExit`, the JVM saves every class it
+ * loaded, already parsed, in an archive; later runs with
+ * `-XX:SharedArchiveFile` map the archive into memory instead of loading
+ * those classes again.
+ *
+ * So the training run has to load the same classes the real server does,
+ * but it runs while the image is being built, with no database around.
+ * It starts the real `Server` (with its admission control, content
+ * negotiation, and JSON mapper) in front of a stand-in controller that
+ * serves made-up users and builds (but never sends) the kinds of MongoDB
+ * queries the `UserController` does, and then makes the kinds of requests
+ * clients make.
+ */
+final class StartupTraining {
+
+  // Enough rounds of requests to get every code path the real requests take.
+  private static final int ROUNDS = 20;
+
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+  // Generous admission control, so none of the training requests are turned away.
+  private static final double REQUESTS_PER_SECOND = 1_000_000;
+  private static final int BURST = 1_000_000;
+  private static final int MAX_IN_FLIGHT = 1024;
+  private static final int MAX_POOL_WAITERS = 1024;
+  private static final Duration LATENCY_THRESHOLD = Duration.ofMinutes(1);
+
+  private static final String USERS_URL = "http://localhost:" + Server.SERVER_PORT + "/api/users";
+
+  private StartupTraining() {
+  }
+
+  /**
+   * Start the server, make some requests of it, and stop it again.
+   *
+   * @param jsonMapper the JSON mapper the real server uses
+   * @param startupTimer the timer started when `Main.main` was
+   * @throws IOException if a request fails outright
+   * @throws InterruptedException if we're interrupted while waiting for a response
+   */
+  static void run(JsonMapper jsonMapper, StartupTimer startupTimer) throws IOException, InterruptedException {
+    AdmissionControl admissionControl = new AdmissionControl(
+      REQUESTS_PER_SECOND, BURST, MAX_IN_FLIGHT, MAX_POOL_WAITERS, LATENCY_THRESHOLD, 0);
+    // Creating the client doesn't connect to anything; it just tries (and
+    // fails, harmlessly) to find the database in the background.
+    MongoClient mongoClient = Server.configureDatabase("localhost", admissionControl);
+    // The training controller has nothing to warm up, so the warmup is a
+    // no-op; and there's nobody else's traffic to drain.
+    Server server = new Server(List.of(mongoClient), new Controller[] {new TrainingController()}, admissionControl,
+      jsonMapper, startupTimer, new Warmup(0, Duration.ZERO), new Drain(Duration.ZERO, Duration.ZERO));
+    Javalin javalin = server.startServer();
+    try {
+      HttpClient client = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+      for (int round = 0; round < ROUNDS; round++) {
+        for (String mediaType : List.of("application/json", "application/cbor",
+            "application/x-jackson-smile", "application/msgpack")) {
+          send(client, request(USERS_URL + "?role=viewer&sortby=company,name").header("Accept", mediaType).GET());
+        }
+        send(client, request(USERS_URL).header("Accept-Encoding", "gzip").GET());
+        send(client, request(USERS_URL + "/" + new ObjectId().toHexString()).GET());
+        send(client, request(USERS_URL).header("Content-Type", "application/json").POST(
+          HttpRequest.BodyPublishers.ofString(
+            "{\"name\":\"Pat\",\"age\":37,\"company\":\"IBM\",\"email\":\"pat@ibm.com\",\"role\":\"editor\"}")));
+      }
+    } finally {
+      javalin.stop();
+    }
+  }
+
+  private static HttpRequest.Builder request(String url) {
+    return HttpRequest.newBuilder(URI.create(url)).timeout(REQUEST_TIMEOUT);
+  }
+
+  private static void send(HttpClient client, HttpRequest.Builder request) throws IOException, InterruptedException {
+    client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  /**
+   * Stands in for the `UserController`, which can't be constructed without
+   * a database.
+   */
+  @SuppressWarnings({"MagicNumber"})
+  private static final class TrainingController implements Controller {
+    private final List<User> users = List.of(
+      user("Chris", 25, "UMM", "admin"),
+      user("Pat", 37, "IBM", "editor"),
+      user("Jamie", 37, "OHMNET", "viewer"));
+
+    private static User user(String name, int age, String company, String role) {
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = name;
+      user.age = age;
+      user.company = company;
+      user.email = (name + "@" + company + ".com").toLowerCase(Locale.ROOT);
+      user.role = role;
+      return user;
+    }
+
+    @Override
+    public void addRoutes(Javalin server) {
+      server.get("/api/users", ctx -> {
+        // Build (and encode) the same kinds of query the `UserController`
+        // does, so the driver classes involved get loaded.
+        Bson filter = Filters.and(Filters.eq("role", ctx.queryParam("role")), Filters.gte("age", 0));
+        Bson sort = Sorts.ascending("company", "name");
+        List.of(Aggregates.match(filter), Aggregates.sort(sort), Aggregates.limit(users.size()))
+          .forEach(Bson::toBsonDocument);
+        ctx.json(users);
+        ctx.status(HttpStatus.OK);
+      });
+      server.get("/api/users/{id}", ctx -> {
+        throw new NotFoundResponse("No user with id " + ctx.pathParam("id"));
+      });
+      server.post("/api/users", ctx -> {
+        User user = ctx.bodyValidator(User.class)
+          .check(usr -> usr.name != null && !usr.name.isEmpty(), "User must have a non-empty user name")
+          .get();
+        ctx.json(Map.of("id", user.name));
+        ctx.status(HttpStatus.CREATED);
+      });
+    }
+  }
+}
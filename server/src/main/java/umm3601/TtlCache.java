@@ -0,0 +1,127 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A small, bounded, in-memory cache whose entries expire after a fixed
+ * time-to-live.
+ *
+ * This is deliberately simple: entries live in a `ConcurrentHashMap`, reads
+ * never lock, and when the cache is full we first throw away anything that
+ * has expired and then, if that wasn't enough, the oldest entries. That's
+ * plenty for the few hundred or thousand entries we keep in any one cache.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ */
+public class TtlCache<K, V> {
+
+  private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+  private final long ttlNanos;
+  private final int maxEntries;
+  private final LongSupplier clock;
+
+  /**
+   * Construct a cache.
+   *
+   * @param ttl how long entries stay in the cache
+   * @param maxEntries the most entries the cache will hold at once
+   */
+  public TtlCache(Duration ttl, int maxEntries) {
+    this(ttl, maxEntries, System::nanoTime);
+  }
+
+  /**
+   * Construct a cache that reads the time from `clock`, so tests can
+   * control the passing of time.
+   */
+  TtlCache(Duration ttl, int maxEntries, LongSupplier clock) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("A cache must be able to hold at least one entry");
+    }
+    this.ttlNanos = ttl.toNanos();
+    this.maxEntries = maxEntries;
+    this.clock = clock;
+  }
+
+  /**
+   * @param key the key to look up
+   * @return the value cached for `key`, or `null` if there isn't one
+   *   (or it has expired)
+   */
+  public V get(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (isExpired(entry, clock.getAsLong())) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry.value();
+  }
+
+  /**
+   * Cache `value` under `key`, replacing anything already cached there.
+   *
+   * @param key the key to cache the value under
+   * @param value the value to cache
+   */
+  public void put(K key, V value) {
+    long now = clock.getAsLong();
+    if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+      makeRoom(now);
+    }
+    entries.put(key, new Entry<>(value, now));
+  }
+
+  /**
+   * Remove the entry for `key`, if there is one.
+   *
+   * @param key the key to remove
+   */
+  public void invalidate(K key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Remove every entry from the cache.
+   */
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  /**
+   * @return the number of entries in the cache, including any that have
+   *   expired but haven't been cleaned up yet
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private boolean isExpired(Entry<V> entry, long now) {
+    return now - entry.createdAt() >= ttlNanos;
+  }
+
+  private void makeRoom(long now) {
+    entries.values().removeIf(entry -> isExpired(entry, now));
+    while (entries.size() >= maxEntries) {
+      Map.Entry<K, Entry<V>> oldest = null;
+      for (Map.Entry<K, Entry<V>> candidate : entries.entrySet()) {
+        if (oldest == null || candidate.getValue().createdAt() < oldest.getValue().createdAt()) {
+          oldest = candidate;
+        }
+      }
+      if (oldest == null) {
+        return;
+      }
+      entries.remove(oldest.getKey(), oldest.getValue());
+    }
+  }
+
+  private record Entry<V>(V value, long createdAt) {
+  }
+}
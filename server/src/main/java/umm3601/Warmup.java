@@ -0,0 +1,128 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+import io.javalin.http.Context;
+
+/**
+ * Warms a freshly started server up before it reports itself ready (see
+ * `Readiness`), by making the requests the controllers ask for (see
+ * `Controller.warmupPaths()`) of the server itself, over HTTP.
+ *
+ * A new JVM runs everything in the interpreter at first, and only compiles
+ * the code that turns out to be hot; a new server's MongoDB connection
+ * pool is empty; and Mongo may not have the indexes and users we need in
+ * its cache. Until all of that settles down, requests are several times
+ * slower than usual. Making those first few thousand requests ourselves,
+ * before the load balancer sends us any real ones, means clients never see
+ * those slow responses.
+ *
+ * Warmup requests carry a random token (in the `X-Warmup-Token` header)
+ * that's only good for this server process, so `Server` can exempt them
+ * from admission control (so they aren't rate limited as one very busy
+ * client), and so they don't count as the first request `StartupTimer`
+ * is waiting for.
+ */
+public class Warmup {
+
+  static final String TOKEN_HEADER = "X-Warmup-Token";
+
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+  private final int rounds;
+  private final long budgetNanos;
+  private final LongSupplier clock;
+  private final String token = UUID.randomUUID().toString();
+
+  private volatile int requestsMade;
+
+  /**
+   * Construct a warmup.
+   *
+   * @param rounds how many rounds of requests to make
+   * @param budget the longest to spend warming up; we stop after the round
+   *   that's running when this runs out, even if there are more to go
+   */
+  public Warmup(int rounds, Duration budget) {
+    this(rounds, budget, System::nanoTime);
+  }
+
+  /**
+   * Construct a warmup that reads the time from `clock`.
+   */
+  Warmup(int rounds, Duration budget, LongSupplier clock) {
+    this.rounds = rounds;
+    this.budgetNanos = budget.toNanos();
+    this.clock = clock;
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return whether the request is one of our warmup requests
+   */
+  public boolean isWarmupRequest(Context ctx) {
+    return token.equals(ctx.header(TOKEN_HEADER));
+  }
+
+  /**
+   * @return the token our warmup requests carry
+   */
+  String token() {
+    return token;
+  }
+
+  /**
+   * @return how many warmup requests have been made so far
+   */
+  public int requestsMade() {
+    return requestsMade;
+  }
+
+  /**
+   * Make the warmup requests of the server.
+   *
+   * Warming up is best effort: a request that fails (or the server not
+   * answering at all) doesn't stop the warmup, since the server is no worse
+   * off than it would be without it.
+   *
+   * @param port the port the server is listening on
+   * @param controllers the controllers whose `warmupPaths()` to request
+   * @throws InterruptedException if we're interrupted while waiting for a response
+   */
+  void run(int port, Controller[] controllers) throws InterruptedException {
+    HttpClient client = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+    long start = clock.getAsLong();
+    for (int round = 0; round < rounds && clock.getAsLong() - start < budgetNanos; round++) {
+      for (String path : paths(controllers, round)) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+          .timeout(REQUEST_TIMEOUT)
+          .header(TOKEN_HEADER, token)
+          .GET()
+          .build();
+        try {
+          client.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+          // Best effort; carry on with the next request.
+        }
+        requestsMade++;
+      }
+    }
+  }
+
+  private static List<String> paths(Controller[] controllers, int round) {
+    List<String> paths = new ArrayList<>();
+    for (Controller controller : controllers) {
+      paths.addAll(controller.warmupPaths(round));
+    }
+    return paths;
+  }
+}
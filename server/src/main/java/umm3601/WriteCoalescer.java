@@ -0,0 +1,158 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Coalesces concurrent inserts into one `insertMany` ("group commit").
+ *
+ * Under a burst of sign-ups, every request doing its own `insertOne` means
+ * every request waits for its own round trip to Mongo, and for its own
+ * write to be acknowledged. Handing the inserts to `insert()` instead
+ * collects whatever inserts arrive within a short `window` of the first one
+ * (or until there are `maxBatchSize` of them) and writes them all with a
+ * single unordered `insertMany`, so they share the round trip and the
+ * acknowledgement.
+ *
+ * Each caller still gets its own result: `insert()` only returns once its
+ * document has been written, and throws if its document couldn't be
+ * (e.g., a duplicate `_id`), just like `insertOne` would. Since the batch
+ * is unordered, one bad document doesn't stop the others in its batch from
+ * being written.
+ *
+ * @param <T> the type of the documents in the collection
+ */
+public class WriteCoalescer<T> {
+
+  private final MongoCollection<T> collection;
+  private final int maxBatchSize;
+  private final long windowNanos;
+
+  private final BlockingQueue<PendingInsert<T>> pending = new LinkedBlockingQueue<>();
+  private final AtomicInteger batchesWritten = new AtomicInteger();
+
+  private record PendingInsert<T>(T document, CompletableFuture<Void> written) {
+  }
+
+  /**
+   * Construct a write coalescer, and start the thread that does its writes.
+   *
+   * @param collection the collection to insert into
+   * @param maxBatchSize the most documents to write at once
+   * @param window how long to wait for more inserts after the first one
+   *   before writing the batch
+   */
+  public WriteCoalescer(MongoCollection<T> collection, int maxBatchSize, Duration window) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("The batch size must be at least one");
+    }
+    this.collection = collection;
+    this.maxBatchSize = maxBatchSize;
+    this.windowNanos = window.toNanos();
+
+    // A daemon thread, so it doesn't keep the JVM alive once the server stops.
+    Thread writer = new Thread(this::writeBatches, "write-coalescer-" + collection.getNamespace());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Insert a document, along with any others being inserted at about the
+   * same time, and wait for it to be written.
+   *
+   * @param document the document to insert; as with `insertOne`, it gets
+   *   an `_id` if it doesn't have one
+   * @throws com.mongodb.MongoException if the document couldn't be written
+   */
+  public void insert(T document) {
+    CompletableFuture<Void> written = new CompletableFuture<>();
+    pending.add(new PendingInsert<>(document, written));
+    try {
+      written.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("The insert failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the insert (which may still happen)", e);
+    }
+  }
+
+  /**
+   * @return how many batches have been written so far
+   */
+  public int batchesWritten() {
+    return batchesWritten.get();
+  }
+
+  private void writeBatches() {
+    try {
+      while (true) {
+        List<PendingInsert<T>> batch = new ArrayList<>();
+        batch.add(pending.take());
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+          PendingInsert<T> next = pending.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        write(batch);
+      }
+    } catch (InterruptedException e) {
+      // Nobody interrupts this thread, but if they do, we stop.
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void write(List<PendingInsert<T>> batch) {
+    List<T> documents = new ArrayList<>(batch.size());
+    for (PendingInsert<T> insert : batch) {
+      documents.add(insert.document());
+    }
+    try {
+      collection.insertMany(documents, new InsertManyOptions().ordered(false));
+      batch.forEach(insert -> insert.written().complete(null));
+    } catch (MongoBulkWriteException e) {
+      if (e.getWriteConcernError() != null) {
+        // We can't tell whose writes are safe, so nobody's are.
+        batch.forEach(insert -> insert.written().completeExceptionally(e));
+      } else {
+        // Only the documents with errors failed; give each of those its own error.
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        e.getWriteErrors().forEach(error -> errors.put(error.getIndex(), error));
+        for (int i = 0; i < batch.size(); i++) {
+          BulkWriteError error = errors.get(i);
+          if (error == null) {
+            batch.get(i).written().complete(null);
+          } else {
+            batch.get(i).written().completeExceptionally(
+              new MongoWriteException(error, e.getServerAddress(), e.getErrorLabels()));
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      batch.forEach(insert -> insert.written().completeExceptionally(e));
+    } finally {
+      batchesWritten.incrementAndGet();
+    }
+  }
+}
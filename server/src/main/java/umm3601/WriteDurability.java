@@ -0,0 +1,62 @@
+package umm3601;
+
+import java.util.Locale;
+
+import com.mongodb.WriteConcern;
+
+/**
+ * How sure a write has to be before we tell the client it happened, i.e.,
+ * which MongoDB write concern we write with. The more durable, the longer
+ * the client waits:
+ *
+ *   - `ACKNOWLEDGED`: the primary has applied the write (in memory). This is
+ *     the driver's default, and the quickest, but a crash of the primary
+ *     can lose the last few writes.
+ *   - `JOURNALED`: the primary has also written it to its on-disk journal,
+ *     so it survives the primary crashing.
+ *   - `MAJORITY`: a majority of the replica set has applied (and journaled)
+ *     it, so it survives the primary failing over, too.
+ *
+ * Each deployment picks a default (`WRITE_DURABILITY`), and a request can
+ * ask for a different one with `?durability=...`.
+ */
+public enum WriteDurability {
+  ACKNOWLEDGED(WriteConcern.ACKNOWLEDGED),
+  JOURNALED(WriteConcern.JOURNALED),
+  MAJORITY(WriteConcern.MAJORITY);
+
+  private final WriteConcern writeConcern;
+
+  WriteDurability(WriteConcern writeConcern) {
+    this.writeConcern = writeConcern;
+  }
+
+  /**
+   * @return the MongoDB write concern to write with
+   */
+  public WriteConcern writeConcern() {
+    return writeConcern;
+  }
+
+  /**
+   * @param name the name of a durability, in any case, e.g., `journaled`
+   * @return whether that's the name of one of the durabilities
+   */
+  public static boolean isName(String name) {
+    for (WriteDurability durability : values()) {
+      if (durability.name().equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param name the name of a durability, in any case, e.g., `journaled`
+   * @return the durability with that name
+   * @throws IllegalArgumentException if there's no durability with that name
+   */
+  public static WriteDurability fromName(String name) {
+    return valueOf(name.toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,58 @@
+package umm3601.user;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A user as we hold it in memory for a while (e.g., in `UserColumns`),
+ * rather than as MongoJack and Javalin read and write it.
+ *
+ * A `User` straight from the database has its `_id` as a 24-character hex
+ * string and its own copies of its company and role, even though there are
+ * only a few of each. Here the id is an `ObjectId` (12 bytes) and the role
+ * is a `Role`. The company is left as it is, since whatever holds on to a
+ * lot of these keeps one copy of each company itself (`UserColumns` keeps
+ * them in a `StringDictionary`). Convert with `of()` as users come in, and
+ * back with `toUser()` only when one is about to go out.
+ *
+ * @param id the user's id
+ * @param name the user's name
+ * @param age the user's age
+ * @param company the user's company, or `null`
+ * @param email the user's email address
+ * @param avatar the URL of the user's avatar
+ * @param role the user's role
+ * @param version the user's version (see `User.version`)
+ */
+record CompactUser(ObjectId id, String name, int age, String company, String email, String avatar, Role role,
+    long version) {
+
+  /**
+   * @param user a user that's been saved (so it has an `_id`) with a legal
+   *   role
+   * @return the compact version of the user
+   * @throws IllegalArgumentException if the user has no legal `_id` or role
+   */
+  static CompactUser of(User user) {
+    if (user._id == null) {
+      throw new IllegalArgumentException("Only users with ids can be made compact");
+    }
+    return new CompactUser(new ObjectId(user._id), user.name, user.age, user.company, user.email, user.avatar,
+      Role.parse(user.role), user.version);
+  }
+
+  /**
+   * @return the user as MongoJack and Javalin expect it
+   */
+  User toUser() {
+    User user = new User();
+    user._id = id.toHexString();
+    user.name = name;
+    user.age = age;
+    user.company = company;
+    user.email = email;
+    user.avatar = avatar;
+    user.role = role.toString();
+    user.version = version;
+    return user;
+  }
+}
@@ -0,0 +1,19 @@
+package umm3601.user;
+
+/**
+ * A suggested completion for a partly typed name or company, along with
+ * how many users have that name or work for that company.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class Completion {
+  public String value;
+  public int count;
+
+  public Completion() {
+  }
+
+  public Completion(String value, int count) {
+    this.value = value;
+    this.count = count;
+  }
+}
@@ -0,0 +1,13 @@
+package umm3601.user;
+
+/**
+ * The number of users with one particular value of a field (one role, one
+ * company, or one range of ages), as part of a set of `UserFacets`.
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class FacetCount {
+  // Ignore Checkstyle warning about the identifier name.
+  @SuppressWarnings("checkstyle:membername")
+  public String _id;
+  public int count;
+}
@@ -0,0 +1,429 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory trigram index of the users' names, used to find names that
+ * are *close* to what someone typed, so "Conie" finds "Connie".
+ *
+ * Every word of every distinct name is broken into trigrams (overlapping
+ * three-letter pieces, padded at the ends so "conie" gives "  c", " co",
+ * "con", "oni", "nie", and "ie "), and each trigram maps to the names
+ * containing it. A single typo only changes a few trigrams, so a close
+ * name still shares most of its trigrams with the query. A lookup uses
+ * the trigrams to cheaply find the few names that *could* be close
+ * enough, and then works out the actual edit distance for just those.
+ *
+ * The index holds each distinct name once, no matter how many users have
+ * it, and holds at most a fixed number of names; names added once it's
+ * full are left out (and counted in `droppedNames()`).
+ *
+ * The index is kept in sync with writes made through the `UserController`
+ * by registering it as a `UserChangeListener`, and rebuilt now and then to
+ * pick up any other writes (see `ReloadableIndex`), which also gives names
+ * that were left out while it was full another chance to get in. Lookups
+ * and updates can safely happen at the same time.
+ */
+class FuzzyNameIndex implements UserChangeListener {
+
+  // Don't bother compacting until at least this many names have been removed.
+  private static final int MIN_REMOVED_TO_COMPACT = 1024;
+
+  // The edit distance allowed between a word of the query and a word of a
+  // name depends on the length of the word; one typo in a three-letter word
+  // is a much bigger deal than one in a ten-letter word.
+  private static final int SHORT_WORD = 4;
+  private static final int LONG_WORD = 8;
+
+  // Each edit changes at most this many of a word's trigrams.
+  private static final int TRIGRAMS_PER_EDIT = 3;
+
+  private final int maxNames;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Lower-cased name -> its number in `names`.
+  private final Map<String, Integer> numbers = new HashMap<>();
+
+  // Name number -> the name, or `null` if every user with it has been deleted.
+  private final List<Name> names = new ArrayList<>();
+
+  // Trigram -> the numbers of the names containing it (in increasing order).
+  private final Map<String, IntList> postings = new HashMap<>();
+
+  private int removedNames;
+  private long droppedNames;
+
+  /**
+   * A name that matched a lookup.
+   *
+   * @param spellings every way the name has been capitalized
+   * @param count how many users have the name
+   * @param distance how many edits it takes to turn the query into the name
+   */
+  record Match(List<String> spellings, int count, int distance) {
+  }
+
+  /**
+   * A distinct (lower-cased) name, its words, and how many users have each
+   * spelling (capitalization) of it.
+   */
+  private static final class Name {
+    private final String key;
+    private final String[] words;
+    private final Map<String, Integer> spellings = new TreeMap<>();
+    private int count;
+
+    Name(String key) {
+      this.key = key;
+      this.words = UserSearchIndex.tokenize(key).toArray(new String[0]);
+    }
+  }
+
+  /**
+   * Construct an (empty) index.
+   *
+   * @param maxNames the most distinct names to hold
+   */
+  FuzzyNameIndex(int maxNames) {
+    this.maxNames = maxNames;
+  }
+
+  /**
+   * @param word a (lower-cased) word
+   * @return the distinct trigrams of the word, padded with two spaces at the
+   *   front and one at the end
+   */
+  static Set<String> trigrams(String word) {
+    String padded = "  " + word + " ";
+    Set<String> trigrams = new LinkedHashSet<>();
+    for (int i = 0; i + TRIGRAMS_PER_EDIT <= padded.length(); i++) {
+      trigrams.add(padded.substring(i, i + TRIGRAMS_PER_EDIT));
+    }
+    return trigrams;
+  }
+
+  /**
+   * The Levenshtein distance between two strings, i.e., the fewest single
+   * character insertions, deletions, and substitutions that turn one into
+   * the other, if that's at most `max`.
+   *
+   * @param a one string
+   * @param b the other string
+   * @param max the largest distance we care about
+   * @return the distance, or `max + 1` if it's more than `max`
+   */
+  static int editDistance(String a, String b, int max) {
+    if (Math.abs(a.length() - b.length()) > max) {
+      return max + 1;
+    }
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      int rowMin = current[0];
+      for (int j = 1; j <= b.length(); j++) {
+        int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+        current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+        rowMin = Math.min(rowMin, current[j]);
+      }
+      // Distances never go down from one row to the next, so once a whole
+      // row is over the limit, the answer will be too.
+      if (rowMin > max) {
+        return max + 1;
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return Math.min(previous[b.length()], max + 1);
+  }
+
+  /**
+   * @param word a word from a query
+   * @return how many typos we'll forgive in that word
+   */
+  static int allowedEdits(String word) {
+    if (word.length() < SHORT_WORD) {
+      return 0;
+    }
+    return word.length() < LONG_WORD ? 1 : 2;
+  }
+
+  /**
+   * Count one more user with the given name.
+   *
+   * @param name the name to add (`null` and blank names are ignored)
+   */
+  void add(String name) {
+    if (name == null || name.isBlank()) {
+      return;
+    }
+    String spelling = name.trim();
+    String key = spelling.toLowerCase(Locale.ROOT);
+    lock.writeLock().lock();
+    try {
+      Integer number = numbers.get(key);
+      if (number == null) {
+        if (numbers.size() >= maxNames) {
+          droppedNames++;
+          return;
+        }
+        number = names.size();
+        numbers.put(key, number);
+        names.add(new Name(key));
+        addPostings(number);
+      }
+      Name entry = names.get(number);
+      entry.spellings.merge(spelling, 1, Integer::sum);
+      entry.count++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Count one fewer user with the given name, forgetting the name entirely
+   * once no users have it.
+   *
+   * @param name the name to remove (`null` and blank names are ignored)
+   */
+  void remove(String name) {
+    if (name == null || name.isBlank()) {
+      return;
+    }
+    String spelling = name.trim();
+    String key = spelling.toLowerCase(Locale.ROOT);
+    lock.writeLock().lock();
+    try {
+      Integer number = numbers.get(key);
+      if (number == null || !names.get(number).spellings.containsKey(spelling)) {
+        return;
+      }
+      Name entry = names.get(number);
+      entry.spellings.computeIfPresent(spelling, (s, count) -> count <= 1 ? null : count - 1);
+      entry.count--;
+      if (entry.count <= 0) {
+        numbers.remove(key);
+        names.set(number, null);
+        removedNames++;
+        if (removedNames >= MIN_REMOVED_TO_COMPACT && removedNames > names.size() / 2) {
+          compact();
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void userAdded(User user) {
+    add(user.name);
+  }
+
+  @Override
+  public void userDeleted(User user) {
+    remove(user.name);
+  }
+
+  /**
+   * @return the number of distinct names in the index
+   */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return numbers.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return how many names have been left out because the index was full
+   */
+  long droppedNames() {
+    lock.readLock().lock();
+    try {
+      return droppedNames;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the names closest to a query. A name matches if every word of the
+   * query is within a few edits (depending on its length; see
+   * `allowedEdits()`) of some word of the name, so "conie" matches both
+   * "Connie" and "Connie Lee". The best matches are those with the fewest
+   * edits in total, then those the most users have.
+   *
+   * @param query the (possibly misspelled) name to look for
+   * @param limit the most names to return
+   * @return the matching names, best match first
+   */
+  List<Match> find(String query, int limit) {
+    List<String> queryWords = new ArrayList<>(new LinkedHashSet<>(UserSearchIndex.tokenize(query)));
+    if (queryWords.isEmpty()) {
+      return List.of();
+    }
+    lock.readLock().lock();
+    try {
+      // Keep the names that share enough trigrams with *every* word to
+      // possibly be close enough.
+      int[] candidates = null;
+      for (String word : queryWords) {
+        Set<String> wordTrigrams = trigrams(word);
+        int needed = Math.max(1, wordTrigrams.size() - TRIGRAMS_PER_EDIT * allowedEdits(word));
+        List<IntList> lists = new ArrayList<>(wordTrigrams.size());
+        for (String trigram : wordTrigrams) {
+          IntList matches = postings.get(trigram);
+          if (matches != null) {
+            lists.add(matches);
+          }
+        }
+        candidates = keepCandidates(candidates, lists, needed);
+      }
+
+      List<Match> matches = new ArrayList<>();
+      for (int number : candidates) {
+        Name name = names.get(number);
+        int distance = distance(queryWords, name);
+        if (distance >= 0) {
+          matches.add(new Match(List.copyOf(name.spellings.keySet()), name.count, distance));
+        }
+      }
+      matches.sort(Comparator.comparingInt(Match::distance)
+        .thenComparing(Comparator.comparingInt(Match::count).reversed())
+        .thenComparing(match -> match.spellings().get(0)));
+      return List.copyOf(matches.subList(0, Math.min(limit, matches.size())));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The numbers of the (live) names that are in `previous` (or all of them,
+  // if `previous` is `null`) and in at least `needed` of `lists`, in
+  // increasing order. Every postings list is in increasing order (a new
+  // name always gets the highest number yet, and compacting keeps the
+  // order), so walking them all together meets each name in them once,
+  // with all of its postings at once, without looking at any other names.
+  private int[] keepCandidates(int[] previous, List<IntList> lists, int needed) {
+    IntList kept = new IntList();
+    int[] positions = new int[lists.size()];
+    int inPrevious = 0;
+    while (previous == null || inPrevious < previous.length) {
+      int number = Integer.MAX_VALUE;
+      for (int i = 0; i < lists.size(); i++) {
+        if (positions[i] < lists.get(i).size) {
+          number = Math.min(number, lists.get(i).values[positions[i]]);
+        }
+      }
+      if (number == Integer.MAX_VALUE) {
+        break;
+      }
+      int shared = 0;
+      for (int i = 0; i < lists.size(); i++) {
+        IntList matches = lists.get(i);
+        if (positions[i] < matches.size && matches.values[positions[i]] == number) {
+          shared++;
+          positions[i]++;
+        }
+      }
+      if (previous != null) {
+        while (inPrevious < previous.length && previous[inPrevious] < number) {
+          inPrevious++;
+        }
+        if (inPrevious == previous.length || previous[inPrevious] != number) {
+          continue;
+        }
+      }
+      if (shared >= needed && names.get(number) != null) {
+        kept.add(number);
+      }
+    }
+    return Arrays.copyOf(kept.values, kept.size);
+  }
+
+  // The total edits needed to match each query word to its closest word in
+  // the name, or -1 if any query word is too far from all of them.
+  private static int distance(List<String> queryWords, Name name) {
+    int total = 0;
+    for (String queryWord : queryWords) {
+      int allowed = allowedEdits(queryWord);
+      int best = allowed + 1;
+      for (String nameWord : name.words) {
+        best = Math.min(best, editDistance(queryWord, nameWord, allowed));
+      }
+      if (best > allowed) {
+        return -1;
+      }
+      total += best;
+    }
+    return total;
+  }
+
+  // Must be called with the write lock held.
+  private void addPostings(int number) {
+    for (String word : names.get(number).words) {
+      for (String trigram : trigrams(word)) {
+        IntList matches = postings.computeIfAbsent(trigram, t -> new IntList());
+        // A name with a repeated word (or trigram) only gets listed once.
+        if (matches.size == 0 || matches.values[matches.size - 1] != number) {
+          matches.add(number);
+        }
+      }
+    }
+  }
+
+  // Must be called with the write lock held. Renumbers the remaining names
+  // so there aren't any gaps, and rebuilds the postings.
+  private void compact() {
+    List<Name> live = new ArrayList<>(numbers.size());
+    numbers.clear();
+    for (Name name : names) {
+      if (name != null) {
+        numbers.put(name.key, live.size());
+        live.add(name);
+      }
+    }
+    names.clear();
+    names.addAll(live);
+    postings.clear();
+    for (int number = 0; number < names.size(); number++) {
+      addPostings(number);
+    }
+    removedNames = 0;
+  }
+
+  /**
+   * A growable list of `int`s, so lists of name numbers don't turn into
+   * lists of `Integer` objects.
+   */
+  private static final class IntList {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package umm3601.user;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import umm3601.Controller;
+import umm3601.IdempotencyKeys;
+
+/**
+ * Controller for users that are split across several Mongo databases (see
+ * `UserPartitions`), rather than all in one `users` collection.
+ *
+ * This serves the core user endpoints the same way `UserController` does
+ * (same query parameters, same validation, same JSON): getting, adding, and
+ * deleting a user by id, which go to the one partition the user lives in,
+ * and listing users and grouping them by company, which ask every
+ * partition at once and merge what they send back. Adding a user honors
+ * `Idempotency-Key`s, as it does unpartitioned; the keys are kept in a
+ * database of their own, since they don't belong to any one partition.
+ *
+ * The rest of `UserController`'s endpoints (search, completions, fuzzy
+ * names, facets, `PATCH`, background writes, and the in-memory copy of the
+ * users) are built around having every user in one collection, so they
+ * answer `501 Not Implemented` when the users are partitioned.
+ */
+public class PartitionedUserController implements Controller {
+
+  private final UserPartitions partitions;
+
+  // Checks the `sortby`s we're asked for against the indexes (which every
+  // partition has).
+  private final SortPlanner sortPlanner;
+
+  // Remembers the responses to `POST /api/users` with an `Idempotency-Key`.
+  private final IdempotencyKeys idempotencyKeys;
+
+  /**
+   * Construct a controller for partitioned users.
+   *
+   * @param partitions the partitions the users are in
+   * @param keysDatabase the database to keep the idempotency keys in
+   * @param unindexedSorts what to do with requests to sort users in an order
+   *   none of the indexes provide
+   */
+  public PartitionedUserController(UserPartitions partitions, MongoDatabase keysDatabase,
+      UnindexedSorts unindexedSorts) {
+    this.partitions = partitions;
+    this.sortPlanner = UserController.sortPlanner(unindexedSorts);
+    this.idempotencyKeys = new IdempotencyKeys(keysDatabase,
+      UserController.IDEMPOTENCY_KEY_TTL, UserController.IDEMPOTENCY_KEY_CACHE_SIZE);
+  }
+
+  /**
+   * Set the JSON body of the response to be the single user specified by
+   * the `id` parameter in the request, from the partition it lives in.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUser(Context ctx) {
+    User user = partitions.find(idParam(ctx));
+    if (user == null) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+    ctx.json(user);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be the users that match any
+   * requested filters, in the requested order, a page at a time (see
+   * `UserController.getUsers()` for the query parameters).
+   *
+   * Every partition finds (and sorts) its own matching users, and the
+   * sorted runs are merged into the page (see `UserPartitions.find()`).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsers(Context ctx) {
+    UserFilter filter = UserController.parseFilter(ctx);
+    SortPlanner.Plan sortPlan = sortPlanner.plan(
+      Objects.requireNonNullElse(ctx.queryParam(UserController.SORT_BY_KEY), UserController.NAME_KEY),
+      Objects.requireNonNullElse(ctx.queryParam(UserController.SORT_ORDER_KEY), "asc"));
+    boolean paged = ctx.queryParamMap().containsKey(UserController.LIMIT_KEY)
+      || ctx.queryParamMap().containsKey(UserController.OFFSET_KEY);
+    int offset = paged ? UserController.pageParam(ctx, UserController.OFFSET_KEY, 0, 0, Integer.MAX_VALUE) : 0;
+    int limit = paged
+      ? UserController.pageParam(ctx, UserController.LIMIT_KEY,
+        UserController.DEFAULT_PAGE_SIZE, 1, UserController.MAX_PAGE_SIZE)
+      : Integer.MAX_VALUE;
+    if (!sortPlan.indexed() && !paged) {
+      // The same cap as a single collection gets.
+      limit = UserController.MAX_UNINDEXED_SORT_RESULTS;
+    }
+
+    List<User> matchingUsers = partitions.find(filter.toBson(), sortPlan, offset, limit);
+    if (Boolean.parseBoolean(ctx.queryParam(UserController.COUNT_KEY))) {
+      ctx.header(UserController.TOTAL_COUNT_HEADER, String.valueOf(partitions.count(filter.toBson())));
+    }
+    ctx.json(matchingUsers);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be the users grouped by company
+   * (see `UserController.getUsersGroupedByCompany()` for the query
+   * parameters).
+   *
+   * Each partition counts its users in each company, and the counts are
+   * added up before the companies are sorted and paged through (see
+   * `UserPartitions.byCompany()`).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersGroupedByCompany(Context ctx) {
+    String sortBy = UserController.companySortBy(ctx);
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
+    int memberLimit = UserController.pageParam(ctx, UserController.MEMBER_LIMIT_KEY,
+      UserController.DEFAULT_MEMBER_LIMIT, 0, UserController.MAX_MEMBER_LIMIT);
+    boolean paged = ctx.queryParamMap().containsKey(UserController.LIMIT_KEY)
+      || ctx.queryParamMap().containsKey(UserController.OFFSET_KEY);
+    int offset = paged ? UserController.pageParam(ctx, UserController.OFFSET_KEY, 0, 0, Integer.MAX_VALUE) : 0;
+    int limit = paged
+      ? UserController.pageParam(ctx, UserController.LIMIT_KEY,
+        UserController.DEFAULT_PAGE_SIZE, 1, UserController.MAX_PAGE_SIZE)
+      : Integer.MAX_VALUE;
+
+    ctx.json(partitions.byCompany(sortBy.equals("count"), sortOrder.equals("desc"), offset, limit, memberLimit));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Add a new user (with the same checks `UserController` makes) to the
+   * partition its new `_id` belongs in, and respond with that `_id`.
+   *
+   * @param ctx a Javalin HTTP context that provides the user info
+   *  in the JSON body of the request
+   */
+  public void addNewUser(Context ctx) {
+    User newUser = UserController.validNewUser(ctx);
+    newUser.avatar = UserController.avatarFor(newUser.email);
+    newUser.version = 0;
+    // We pick the `_id` (rather than letting Mongo) because it's what
+    // decides which partition the user goes in.
+    newUser._id = new ObjectId().toHexString();
+    partitions.insert(newUser);
+
+    ctx.json(Map.of("id", newUser._id));
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Delete the user specified by the `id` parameter in the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void deleteUser(Context ctx) {
+    String id = ctx.pathParam("id");
+    if (!ObjectId.isValid(id) || partitions.delete(new ObjectId(id)) == null) {
+      throw new NotFoundResponse(
+        "Was unable to delete ID "
+          + id
+          + "; perhaps illegal ID or an ID for an item not in the system?");
+    }
+    ctx.status(HttpStatus.OK);
+  }
+
+  private static ObjectId idParam(Context ctx) {
+    String id = ctx.pathParam("id");
+    if (!ObjectId.isValid(id)) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+    return new ObjectId(id);
+  }
+
+  /**
+   * Setup routes for the partitioned users:
+   *
+   *   - `GET /api/users/:id`
+   *   - `GET /api/users?age=NUMBER&minAge=NUMBER&maxAge=NUMBER&company=STRING&role=STRING`
+   *   - `GET /api/usersByCompany`
+   *   - `POST /api/users`
+   *   - `DELETE /api/users/:id`
+   *
+   * which behave as they do in `UserController`.
+   *
+   * @param server The Javalin server instance
+   */
+  @Override
+  public void addRoutes(Javalin server) {
+    // Say so for the endpoints we don't serve, rather than answering 404
+    // (or taking "search" and friends for user ids). These have to come
+    // before `/api/users/{id}`.
+    for (String path : List.of(UserController.API_USERS_SEARCH, UserController.API_USERS_AUTOCOMPLETE,
+        UserController.API_USERS_FUZZY, UserController.API_USERS_FACETS, UserController.API_USERS_REPLICA,
+        UserController.API_USER_WRITE_BY_ID)) {
+      server.get(path, PartitionedUserController::notImplemented);
+    }
+    server.patch(UserController.API_USER_BY_ID, PartitionedUserController::notImplemented);
+
+    server.get(UserController.API_USER_BY_ID, this::getUser);
+    server.get(UserController.API_USERS, this::getUsers);
+    server.get(UserController.API_USERS_BY_COMPANY, this::getUsersGroupedByCompany);
+    server.post(UserController.API_USERS, idempotencyKeys.idempotent(this::addNewUser));
+    server.delete(UserController.API_USER_BY_ID, this::deleteUser);
+  }
+
+  private static void notImplemented(Context ctx) {
+    throw new HttpResponseException(HttpStatus.NOT_IMPLEMENTED.getCode(),
+      ctx.method() + " " + ctx.matchedPath() + " isn't supported when the users are partitioned");
+  }
+
+  /**
+   * The requests to warm the server up with: a few user listings, and the
+   * users grouped by company.
+   *
+   * @param round which round of warmup requests this is, starting at 0
+   * @return the paths (with query strings) to request
+   */
+  @Override
+  public List<String> warmupPaths(int round) {
+    int limit = round % UserController.MAX_PAGE_SIZE + 1;
+    return List.of(
+      UserController.API_USERS + "?count=true&limit=" + limit,
+      UserController.API_USERS + "?role=viewer&limit=" + limit,
+      UserController.API_USERS_BY_COMPANY + "?memberLimit=" + limit);
+  }
+}
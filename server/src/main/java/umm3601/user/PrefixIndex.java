@@ -0,0 +1,194 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * An in-memory index of the distinct values of one field of the users
+ * (such as their names or companies), used to suggest completions as
+ * someone types.
+ *
+ * The values are kept sorted (case-insensitively) in a skip list, so all
+ * of the values that start with a given prefix sit next to each other and
+ * can be found without looking at any others. Each value is stored once,
+ * with a count of how many users have it; the most common values are
+ * suggested first. A short prefix (like the first letter or two someone
+ * types) can match a good fraction of all the values, so for each of
+ * those we also keep its values ranked by count, and just read off the
+ * first few.
+ *
+ * The index is kept in sync with writes made through the `UserController`
+ * by registering it as a `UserChangeListener`, and rebuilt now and then to
+ * pick up any other writes (see `ReloadableIndex`). Lookups never block,
+ * even while the index is being updated.
+ */
+class PrefixIndex implements UserChangeListener {
+
+  // Prefixes this long or shorter (including the empty one) can match a
+  // large fraction of all the values, so rather than look through all of
+  // those on every lookup, we keep the values with each of them ranked,
+  // most common first.
+  static final int SHORT_PREFIX = 2;
+
+  private final Function<User, String> field;
+
+  // Lower-cased value -> the value (as first seen) and how many users have it.
+  // Completions are never changed once they're in the map; updating a count
+  // replaces the completion, so readers always see a consistent one.
+  private final ConcurrentSkipListMap<String, Completion> values = new ConcurrentSkipListMap<>();
+
+  // Short prefix -> the values starting with it, most common first (and
+  // then in alphabetical order).
+  private final Map<String, ConcurrentSkipListSet<Ranked>> rankings = new ConcurrentHashMap<>();
+
+  // A value (by its key) and its completion, in the order `complete()`
+  // returns them.
+  private record Ranked(String key, Completion completion) implements Comparable<Ranked> {
+    @Override
+    public int compareTo(Ranked other) {
+      int byCount = Integer.compare(other.completion.count, completion.count);
+      return byCount != 0 ? byCount : key.compareTo(other.key);
+    }
+  }
+
+  /**
+   * Construct an (empty) index.
+   *
+   * @param field the field of the users to index, e.g., `user -> user.name`
+   */
+  PrefixIndex(Function<User, String> field) {
+    this.field = field;
+  }
+
+  private static String key(String value) {
+    return value.trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Count one more user with the given value.
+   *
+   * @param value the value to add (`null` and blank values are ignored)
+   */
+  synchronized void add(String value) {
+    if (value == null || value.isBlank()) {
+      return;
+    }
+    String key = key(value);
+    Completion old = values.get(key);
+    update(key, old, old == null ? new Completion(value.trim(), 1) : new Completion(old.value, old.count + 1));
+  }
+
+  /**
+   * Count one fewer user with the given value, forgetting the value
+   * entirely once no users have it.
+   *
+   * @param value the value to remove (`null` and blank values are ignored)
+   */
+  synchronized void remove(String value) {
+    if (value == null || value.isBlank()) {
+      return;
+    }
+    String key = key(value);
+    Completion old = values.get(key);
+    if (old != null) {
+      update(key, old, old.count <= 1 ? null : new Completion(old.value, old.count - 1));
+    }
+  }
+
+  // Replace the completion for `key` (either of them may be `null`). The
+  // new one is ranked before the old one is taken out, so a lookup at the
+  // same time may see both (and skips the second), but never neither.
+  private void update(String key, Completion old, Completion updated) {
+    if (updated == null) {
+      values.remove(key);
+    } else {
+      values.put(key, updated);
+    }
+    for (int length = 0; length <= Math.min(SHORT_PREFIX, key.length()); length++) {
+      ConcurrentSkipListSet<Ranked> ranked =
+        rankings.computeIfAbsent(key.substring(0, length), p -> new ConcurrentSkipListSet<>());
+      if (updated != null) {
+        ranked.add(new Ranked(key, updated));
+      }
+      if (old != null) {
+        ranked.remove(new Ranked(key, old));
+      }
+    }
+  }
+
+  @Override
+  public void userAdded(User user) {
+    add(field.apply(user));
+  }
+
+  @Override
+  public void userDeleted(User user) {
+    remove(field.apply(user));
+  }
+
+  /**
+   * @return the number of distinct values in the index
+   */
+  int size() {
+    return values.size();
+  }
+
+  /**
+   * Find the most common values that start with a prefix (ignoring case).
+   * Values with equal counts are returned in alphabetical order.
+   *
+   * @param prefix the start of the value
+   * @param limit the most completions to return
+   * @return the completions, most common first
+   */
+  List<Completion> complete(String prefix, int limit) {
+    String from = key(prefix);
+    if (from.length() <= SHORT_PREFIX) {
+      // They're already ranked; just take the first `limit`.
+      List<Completion> best = new ArrayList<>(limit);
+      Set<String> seen = new HashSet<>();
+      for (Ranked ranked : rankings.getOrDefault(from, new ConcurrentSkipListSet<>())) {
+        if (best.size() == limit) {
+          break;
+        }
+        if (seen.add(ranked.key())) {
+          best.add(ranked.completion());
+        }
+      }
+      return List.copyOf(best);
+    }
+
+    // Every key that starts with `from` sorts before `from` followed by the
+    // largest possible character. Few values share a longer prefix, so we
+    // look at every one of them.
+    Iterable<Completion> candidates = values.subMap(from, from + Character.MAX_VALUE).values();
+
+    // Keep the best `limit` completions seen so far in order in a small
+    // array, which saves allocating anything per candidate.
+    Completion[] best = new Completion[limit];
+    int found = 0;
+    for (Completion candidate : candidates) {
+      if (found == limit && candidate.count <= best[limit - 1].count) {
+        continue;
+      }
+      int position = found == limit ? limit - 1 : found++;
+      // Candidates arrive in alphabetical order, so only a strictly larger
+      // count moves one ahead of a completion we already have.
+      while (position > 0 && best[position - 1].count < candidate.count) {
+        best[position] = best[position - 1];
+        position--;
+      }
+      best[position] = candidate;
+    }
+    return List.of(Arrays.copyOf(best, found));
+  }
+}
@@ -0,0 +1,275 @@
+package umm3601.user;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the users (such as a `UserSearchIndex`) that can
+ * be rebuilt from the database while it carries on answering queries.
+ *
+ * Like `UserColumns`, the index hears about every change made through our
+ * `UserController`, but not about changes made through other server
+ * instances, or straight to the database. So this keeps track of how long
+ * ago the index was loaded (see `freshness()`), and the controller reloads
+ * it (with `reloadInBackground()`) once that's longer than it's willing to
+ * let the index drift from the database.
+ *
+ * A reload streams the users (in order by id) straight into a new index
+ * (from `factory`), and swaps it in when it's done, so it never holds more
+ * than the one user it's reading on top of the two indexes. Changes we
+ * hear about during the reload go to the new index as well as the current
+ * one: a change to a user the reload has already read is applied just as
+ * it is to the current index, while a user the reload hasn't got to yet
+ * goes in as it is now, and the reload skips it when it gets there. That
+ * way no change is lost, and indexes that *count* users (like
+ * `PrefixIndex`) don't count a user twice, or "remove" a user they never
+ * had. All we remember are the ids of the users that changed.
+ *
+ * @param <I> the type of index
+ */
+final class ReloadableIndex<I extends UserChangeListener> implements UserChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReloadableIndex.class);
+
+  // Reloads happen one at a time, on a thread of their own, rather than
+  // tying up a thread of the common pool (which parallel streams and other
+  // `CompletableFuture`s use) for as long as a reload takes.
+  private static final ExecutorService RELOADER = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "index-reloader");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * How up to date the index is.
+   *
+   * @param ageMillis how long ago it was (re)loaded from the database
+   * @param changesSinceLoad how many changes we've applied to it since
+   * @param reloading whether it's being reloaded right now
+   */
+  record Freshness(long ageMillis, long changesSinceLoad, boolean reloading) {
+  }
+
+  private final Supplier<I> factory;
+  private final LongSupplier clock;
+  private final AtomicBoolean reloading = new AtomicBoolean();
+
+  // Changes are made to the indexes with this held, so none of them can
+  // slip in between the reload reading a user and adding it, or between
+  // the reload finishing and swapping the new index in.
+  private final Lock lock = new ReentrantLock();
+
+  private volatile I index;
+
+  // All of these are guarded by `lock`.
+  private long loadedAt;
+  private long changesSinceLoad;
+  // While reloading: the index being built, the id of the last user the
+  // reload has read, and the ids of the users that have changed since it
+  // started.
+  private I building;
+  private String lastRead;
+  private Set<String> changedDuringReload;
+
+  /**
+   * Construct an empty index, which counts as loaded now.
+   *
+   * @param factory makes new (empty) indexes
+   */
+  ReloadableIndex(Supplier<I> factory) {
+    this(factory, System::nanoTime);
+  }
+
+  /**
+   * Construct an empty index that reads the time (in nanoseconds) from
+   * `clock`.
+   */
+  ReloadableIndex(Supplier<I> factory, LongSupplier clock) {
+    this.factory = factory;
+    this.clock = clock;
+    index = factory.get();
+    loadedAt = clock.getAsLong();
+  }
+
+  /**
+   * Note that the index can be swapped for a new one at any time, so get
+   * it once per query.
+   *
+   * @return the current index
+   */
+  I index() {
+    return index;
+  }
+
+  /**
+   * Replace the index with a new one holding the given users.
+   *
+   * @param users every user in the database, in increasing order of `_id`
+   */
+  void reload(Iterable<User> users) {
+    long startedAt = clock.getAsLong();
+    I fresh = factory.get();
+    lock.lock();
+    try {
+      building = fresh;
+      lastRead = null;
+      changedDuringReload = new HashSet<>();
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      for (User user : users) {
+        lock.lock();
+        try {
+          lastRead = user._id;
+          // If it's changed since we started, the new index already has
+          // it as it is now, which may not be what we just read.
+          if (!changedDuringReload.contains(user._id)) {
+            fresh.userAdded(user);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      lock.lock();
+      try {
+        index = fresh;
+        loadedAt = startedAt;
+        changesSinceLoad = changedDuringReload.size();
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      lock.lock();
+      try {
+        building = null;
+        lastRead = null;
+        changedDuringReload = null;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Start reloading the index on the reloading thread, unless that's
+   * already happening. Until it's done, the current index answers queries.
+   *
+   * @param users gets every user in the database, in increasing order of
+   *   `_id`; or `null`, if the index isn't worth reloading right now, in
+   *   which case it's left as it is, but counts as loaded now (so we don't
+   *   ask again straight away)
+   */
+  void reloadInBackground(Supplier<? extends Iterable<User>> users) {
+    if (!reloading.compareAndSet(false, true)) {
+      return;
+    }
+    RELOADER.execute(() -> {
+      try {
+        Iterable<User> all = users.get();
+        if (all != null) {
+          reload(all);
+        } else {
+          lock.lock();
+          try {
+            loadedAt = clock.getAsLong();
+          } finally {
+            lock.unlock();
+          }
+        }
+      } catch (RuntimeException e) {
+        // We'll try again the next time someone notices it's stale.
+        LOG.warn("Couldn't reload an in-memory index of the users", e);
+      } finally {
+        reloading.set(false);
+      }
+    });
+  }
+
+  /**
+   * @return how up to date the index is
+   */
+  Freshness freshness() {
+    lock.lock();
+    try {
+      return new Freshness(TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - loadedAt), changesSinceLoad,
+        reloading.get());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param maxStaleness the longest ago it can have been loaded
+   * @return whether the index was loaded at most `maxStaleness` ago
+   */
+  boolean isFresh(Duration maxStaleness) {
+    lock.lock();
+    try {
+      return clock.getAsLong() - loadedAt <= maxStaleness.toNanos();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void userAdded(User user) {
+    changed(user._id, null, user);
+  }
+
+  @Override
+  public void userDeleted(User user) {
+    changed(user._id, user, null);
+  }
+
+  @Override
+  public void userUpdated(User before, User after) {
+    changed(after._id, before, after);
+  }
+
+  private void changed(String id, User before, User after) {
+    lock.lock();
+    try {
+      apply(index, before, after);
+      changesSinceLoad++;
+      if (building != null) {
+        boolean read = lastRead != null && id.compareTo(lastRead) <= 0;
+        if (changedDuringReload.add(id) && !read) {
+          // The reload hasn't got to this user yet (and now won't add what
+          // it reads for it), so the new index starts from how it is now.
+          apply(building, null, after);
+        } else {
+          apply(building, before, after);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Tell an index a user went from `before` to `after` (either of which
+  // is `null` if the user didn't exist).
+  private static void apply(UserChangeListener target, User before, User after) {
+    if (before != null && after != null) {
+      target.userUpdated(before, after);
+    } else if (after != null) {
+      target.userAdded(after);
+    } else if (before != null) {
+      target.userDeleted(before);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package umm3601.user;
+
+import java.util.Locale;
+
+/**
+ * The roles a user can have. In JSON and in the database a role is just
+ * its lower-case name (`"admin"`, etc.); this is for holding roles in
+ * memory, where an enum is a shared constant rather than a copy of the
+ * string in every user.
+ *
+ * These are declared in alphabetical order, so comparing roles by their
+ * `ordinal()` puts them in the same order as comparing their names.
+ */
+enum Role {
+  ADMIN,
+  EDITOR,
+  VIEWER;
+
+  private final String wireName = name().toLowerCase(Locale.ROOT);
+
+  /**
+   * @param role a role as it's written in JSON and the database (or `null`)
+   * @return whether it's one of the legal roles
+   */
+  static boolean isRole(String role) {
+    for (Role legal : values()) {
+      if (legal.wireName.equals(role)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param role a role as it's written in JSON and the database
+   * @return the role with that name
+   * @throws IllegalArgumentException if it isn't one of the legal roles
+   */
+  static Role parse(String role) {
+    for (Role legal : values()) {
+      if (legal.wireName.equals(role)) {
+        return legal;
+      }
+    }
+    throw new IllegalArgumentException("Not a legal user role: " + role);
+  }
+
+  /**
+   * @return the role as it's written in JSON and the database
+   */
+  @Override
+  public String toString() {
+    return wireName;
+  }
+}
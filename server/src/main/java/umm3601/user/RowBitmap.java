@@ -0,0 +1,320 @@
+package umm3601.user;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of row numbers (e.g., the rows of `UserColumns` that
+ * hold users with a particular role), for answering filters by
+ * intersecting sets of rows rather than checking every user.
+ *
+ * A plain `BitSet` takes a bit for *every* row, whether it's in the set or
+ * not, which adds up with one set per company. So this splits the rows
+ * into chunks of 65,536 (the way Roaring bitmaps do), and stores each chunk
+ * either as a sorted array of the (16-bit) rows in it, when there are only
+ * a few, or as a bitmap of the whole chunk (8 KB), once there are so many
+ * that the array would be bigger. Chunks with no rows take no space at all.
+ *
+ * This isn't thread safe; whatever holds the sets has to guard them.
+ */
+final class RowBitmap {
+
+  private static final int CHUNK_BITS = 16;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int WORDS_PER_CHUNK = CHUNK_SIZE / Long.SIZE;
+  // A chunk with more rows than this is stored as a bitmap; at this many,
+  // the array (2 bytes a row) is as big as the bitmap.
+  private static final int MAX_ARRAY_ROWS = WORDS_PER_CHUNK * Long.BYTES / Character.BYTES;
+  // Roughly what each chunk (and each set) costs besides its rows.
+  private static final int OVERHEAD_BYTES = 32;
+
+  // The chunks, by the high 16 bits of their rows; `null` if they're empty.
+  private Chunk[] chunks = new Chunk[0];
+
+  /**
+   * @param row a row to add to the set
+   */
+  void add(int row) {
+    int key = row >>> CHUNK_BITS;
+    if (key >= chunks.length) {
+      chunks = Arrays.copyOf(chunks, key + 1);
+    }
+    if (chunks[key] == null) {
+      chunks[key] = new Chunk();
+    }
+    chunks[key].add((char) row);
+  }
+
+  /**
+   * @param row a row to remove from the set
+   */
+  void remove(int row) {
+    int key = row >>> CHUNK_BITS;
+    if (key < chunks.length && chunks[key] != null) {
+      chunks[key].remove((char) row);
+      if (chunks[key].cardinality == 0) {
+        chunks[key] = null;
+      }
+    }
+  }
+
+  /**
+   * @return whether the row is in the set
+   */
+  boolean contains(int row) {
+    int key = row >>> CHUNK_BITS;
+    return key < chunks.length && chunks[key] != null && chunks[key].contains((char) row);
+  }
+
+  /**
+   * @return how many rows are in the set
+   */
+  int cardinality() {
+    int cardinality = 0;
+    for (Chunk chunk : chunks) {
+      if (chunk != null) {
+        cardinality += chunk.cardinality;
+      }
+    }
+    return cardinality;
+  }
+
+  /**
+   * @return roughly how many bytes of memory the set takes
+   */
+  long sizeInBytes() {
+    long bytes = OVERHEAD_BYTES + (long) chunks.length * Integer.BYTES;
+    for (Chunk chunk : chunks) {
+      if (chunk != null) {
+        bytes += OVERHEAD_BYTES + (chunk.words != null
+          ? (long) chunk.words.length * Long.BYTES
+          : (long) chunk.rows.length * Character.BYTES);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Do something with every row in the set, in increasing order.
+   *
+   * @param action what to do with each row
+   */
+  void forEach(IntConsumer action) {
+    for (int key = 0; key < chunks.length; key++) {
+      if (chunks[key] != null) {
+        chunks[key].forEach(key << CHUNK_BITS, action);
+      }
+    }
+  }
+
+  /**
+   * @return a new set of the rows in both `this` and `other`
+   */
+  RowBitmap and(RowBitmap other) {
+    RowBitmap both = new RowBitmap();
+    both.chunks = new Chunk[Math.min(chunks.length, other.chunks.length)];
+    for (int key = 0; key < both.chunks.length; key++) {
+      if (chunks[key] != null && other.chunks[key] != null) {
+        both.chunks[key] = chunks[key].and(other.chunks[key]);
+      }
+    }
+    return both;
+  }
+
+  /**
+   * @return how many rows are in both `this` and `other` (without making
+   *   a set of them)
+   */
+  int andCardinality(RowBitmap other) {
+    int cardinality = 0;
+    for (int key = 0; key < Math.min(chunks.length, other.chunks.length); key++) {
+      if (chunks[key] != null && other.chunks[key] != null) {
+        cardinality += chunks[key].andCardinality(other.chunks[key]);
+      }
+    }
+    return cardinality;
+  }
+
+  /**
+   * @param sets some sets of rows
+   * @return a new set of the rows in any of them
+   */
+  static RowBitmap or(Collection<RowBitmap> sets) {
+    RowBitmap any = new RowBitmap();
+    int length = sets.stream().mapToInt(set -> set.chunks.length).max().orElse(0);
+    any.chunks = new Chunk[length];
+    for (int key = 0; key < length; key++) {
+      long[] words = null;
+      for (RowBitmap set : sets) {
+        if (key < set.chunks.length && set.chunks[key] != null) {
+          if (words == null) {
+            words = new long[WORDS_PER_CHUNK];
+          }
+          set.chunks[key].orInto(words);
+        }
+      }
+      if (words != null) {
+        any.chunks[key] = Chunk.of(words);
+      }
+    }
+    return any;
+  }
+
+  /**
+   * The rows in one chunk: `rows` (sorted) when there are only a few of
+   * them, and `words` (a bit per row) when there are a lot. Exactly one of
+   * them is non-`null`.
+   */
+  private static final class Chunk {
+    private char[] rows = new char[1];
+    private long[] words;
+    private int cardinality;
+
+    static Chunk of(long[] words) {
+      Chunk chunk = new Chunk();
+      for (long word : words) {
+        chunk.cardinality += Long.bitCount(word);
+      }
+      if (chunk.cardinality > MAX_ARRAY_ROWS) {
+        chunk.rows = null;
+        chunk.words = words;
+      } else {
+        chunk.rows = new char[chunk.cardinality];
+        int i = 0;
+        for (int w = 0; w < words.length; w++) {
+          for (long word = words[w]; word != 0; word &= word - 1) {
+            chunk.rows[i++] = (char) (w * Long.SIZE + Long.numberOfTrailingZeros(word));
+          }
+        }
+      }
+      return chunk;
+    }
+
+    boolean contains(char row) {
+      if (words != null) {
+        return (words[row / Long.SIZE] & (1L << row)) != 0;
+      }
+      return Arrays.binarySearch(rows, 0, cardinality, row) >= 0;
+    }
+
+    void add(char row) {
+      if (words != null) {
+        if ((words[row / Long.SIZE] & (1L << row)) == 0) {
+          words[row / Long.SIZE] |= 1L << row;
+          cardinality++;
+        }
+        return;
+      }
+      int at = Arrays.binarySearch(rows, 0, cardinality, row);
+      if (at >= 0) {
+        return;
+      }
+      if (cardinality == MAX_ARRAY_ROWS) {
+        long[] bits = new long[WORDS_PER_CHUNK];
+        orInto(bits);
+        words = bits;
+        rows = null;
+        words[row / Long.SIZE] |= 1L << row;
+        cardinality++;
+        return;
+      }
+      at = -at - 1;
+      if (cardinality == rows.length) {
+        rows = Arrays.copyOf(rows, Math.min(rows.length * 2, MAX_ARRAY_ROWS));
+      }
+      System.arraycopy(rows, at, rows, at + 1, cardinality - at);
+      rows[at] = row;
+      cardinality++;
+    }
+
+    void remove(char row) {
+      if (words != null) {
+        if ((words[row / Long.SIZE] & (1L << row)) != 0) {
+          words[row / Long.SIZE] &= ~(1L << row);
+          cardinality--;
+          // Go back to an array once it's well under the size of the
+          // bitmap (not right at it, so a chunk that hovers around that
+          // size doesn't keep switching).
+          if (cardinality < MAX_ARRAY_ROWS / 2) {
+            Chunk smaller = of(words);
+            rows = smaller.rows;
+            words = null;
+          }
+        }
+        return;
+      }
+      int at = Arrays.binarySearch(rows, 0, cardinality, row);
+      if (at >= 0) {
+        System.arraycopy(rows, at + 1, rows, at, cardinality - at - 1);
+        cardinality--;
+      }
+    }
+
+    void forEach(int base, IntConsumer action) {
+      if (words != null) {
+        for (int w = 0; w < words.length; w++) {
+          for (long word = words[w]; word != 0; word &= word - 1) {
+            action.accept(base + w * Long.SIZE + Long.numberOfTrailingZeros(word));
+          }
+        }
+      } else {
+        for (int i = 0; i < cardinality; i++) {
+          action.accept(base + rows[i]);
+        }
+      }
+    }
+
+    void orInto(long[] into) {
+      if (words != null) {
+        for (int w = 0; w < words.length; w++) {
+          into[w] |= words[w];
+        }
+      } else {
+        for (int i = 0; i < cardinality; i++) {
+          into[rows[i] / Long.SIZE] |= 1L << rows[i];
+        }
+      }
+    }
+
+    Chunk and(Chunk other) {
+      if (words != null && other.words != null) {
+        long[] both = new long[WORDS_PER_CHUNK];
+        for (int w = 0; w < both.length; w++) {
+          both[w] = words[w] & other.words[w];
+        }
+        Chunk chunk = of(both);
+        return chunk.cardinality == 0 ? null : chunk;
+      }
+      // At least one is an array, so there can't be more rows than it has.
+      Chunk sparse = words == null ? this : other;
+      Chunk dense = sparse == this ? other : this;
+      Chunk both = new Chunk();
+      both.rows = new char[sparse.cardinality];
+      for (int i = 0; i < sparse.cardinality; i++) {
+        if (dense.contains(sparse.rows[i])) {
+          both.rows[both.cardinality++] = sparse.rows[i];
+        }
+      }
+      return both.cardinality == 0 ? null : both;
+    }
+
+    int andCardinality(Chunk other) {
+      int count = 0;
+      if (words != null && other.words != null) {
+        for (int w = 0; w < words.length; w++) {
+          count += Long.bitCount(words[w] & other.words[w]);
+        }
+        return count;
+      }
+      Chunk sparse = words == null ? this : other;
+      Chunk dense = sparse == this ? other : this;
+      for (int i = 0; i < sparse.cardinality; i++) {
+        if (dense.contains(sparse.rows[i])) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+}
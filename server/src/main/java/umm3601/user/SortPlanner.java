@@ -0,0 +1,110 @@
+package umm3601.user;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Works out how to sort users for a `sortby` (a comma-separated list of
+ * fields, like `company,name`) and `sortorder` (`asc` or `desc`), and
+ * whether one of our indexes can give us the users in that order.
+ *
+ * If an index holds its keys in the requested order, Mongo can just walk
+ * it (forwards or backwards) and never has to sort anything. Otherwise it
+ * has to gather every matching user and sort them in memory, which fails
+ * outright once they take up more than Mongo's in-memory sort limit; so
+ * those sorts are either rejected or (depending on `UnindexedSorts`)
+ * flagged so the caller can allow Mongo to use disk and cap the results.
+ */
+final class SortPlanner {
+
+  /**
+   * A sort we've checked.
+   *
+   * @param fields the fields to sort by, most significant first
+   * @param descending whether to sort in descending (rather than ascending)
+   *   order; this applies to every field
+   * @param indexed whether one of the indexes holds the users in this order
+   */
+  record Plan(List<String> fields, boolean descending, boolean indexed) {
+    /**
+     * @return the Bson sorting document for this sort
+     */
+    Bson toBson() {
+      return descending ? Sorts.descending(fields) : Sorts.ascending(fields);
+    }
+  }
+
+  private final Set<String> sortableFields;
+  private final List<List<String>> indexes;
+  private final UnindexedSorts unindexedSorts;
+
+  /**
+   * Construct a planner.
+   *
+   * @param sortableFields the fields anyone is allowed to sort by at all
+   * @param indexes the fields of each (ascending) index, in order
+   * @param unindexedSorts what to do with sorts none of the indexes match
+   */
+  SortPlanner(Set<String> sortableFields, List<List<String>> indexes, UnindexedSorts unindexedSorts) {
+    this.sortableFields = Set.copyOf(sortableFields);
+    this.indexes = List.copyOf(indexes);
+    this.unindexedSorts = unindexedSorts;
+  }
+
+  /**
+   * Plan a sort.
+   *
+   * @param sortBy a comma-separated list of fields to sort by
+   * @param sortOrder `desc` to sort in descending order; anything else
+   *   sorts in ascending order
+   * @return the plan for the sort
+   * @throws BadRequestResponse if `sortBy` names a field we don't sort by,
+   *   or no index matches the sort and we reject those
+   */
+  Plan plan(String sortBy, String sortOrder) {
+    Set<String> fields = new LinkedHashSet<>();
+    for (String field : sortBy.split(",")) {
+      String trimmed = field.trim();
+      if (!sortableFields.contains(trimmed)) {
+        throw new BadRequestResponse("The users can't be sorted by '" + trimmed + "'; you can sort by "
+          + sortableFields.stream().sorted().collect(Collectors.joining(", ")));
+      }
+      // Sorting by a field a second time doesn't change anything.
+      fields.add(trimmed);
+    }
+
+    List<String> fieldList = List.copyOf(fields);
+    Plan plan = new Plan(fieldList, "desc".equals(sortOrder), isIndexed(fieldList));
+    if (!plan.indexed() && unindexedSorts == UnindexedSorts.REJECT) {
+      throw new BadRequestResponse("The users can't be sorted by '" + String.join(",", fields) + "'"
+        + "; you can sort by any of " + describeIndexedSorts());
+    }
+    return plan;
+  }
+
+  // An index holds the users in the order of the given fields if they're
+  // the first fields of the index, in the same order.
+  private boolean isIndexed(List<String> fields) {
+    return indexes.stream()
+      .anyMatch(index -> index.size() >= fields.size() && index.subList(0, fields.size()).equals(fields));
+  }
+
+  // Every `sortby` an index can serve, e.g., "'age', 'age,name', 'name'".
+  private String describeIndexedSorts() {
+    Set<String> sorts = new LinkedHashSet<>();
+    for (List<String> index : indexes) {
+      for (int length = 1; length <= index.size(); length++) {
+        sorts.add(String.join(",", index.subList(0, length)));
+      }
+    }
+    return sorts.stream().sorted().map(sort -> "'" + sort + "'").collect(Collectors.joining(", "));
+  }
+}
@@ -0,0 +1,81 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives each distinct string (e.g., each company) a small integer code, so
+ * something holding a lot of users can store each user's company as an
+ * `int` (and one shared copy of the string) instead of a string of its own.
+ *
+ * Codes are handed out in the order the strings are first seen, starting
+ * at 0, and never change. `null` is always `NULL_CODE`. This isn't thread
+ * safe; whatever holds the codes has to guard it too.
+ */
+final class StringDictionary {
+
+  static final int NULL_CODE = -1;
+
+  private final Map<String, Integer> codes = new HashMap<>();
+  private final List<String> values = new ArrayList<>();
+
+  /**
+   * @param value a string (or `null`)
+   * @return the code for the string, giving it a new one if it hasn't got one yet
+   */
+  int encode(String value) {
+    if (value == null) {
+      return NULL_CODE;
+    }
+    Integer code = codes.get(value);
+    if (code == null) {
+      code = values.size();
+      codes.put(value, code);
+      values.add(value);
+    }
+    return code;
+  }
+
+  /**
+   * @param value a string (or `null`)
+   * @return the code for the string, or `NULL_CODE` if it hasn't got one
+   */
+  int code(String value) {
+    return value == null ? NULL_CODE : codes.getOrDefault(value, NULL_CODE);
+  }
+
+  /**
+   * @param code a code handed out by `encode()` (or `NULL_CODE`)
+   * @return the string with that code
+   */
+  String decode(int code) {
+    return code == NULL_CODE ? null : values.get(code);
+  }
+
+  /**
+   * @return how many distinct strings have codes
+   */
+  int size() {
+    return values.size();
+  }
+
+  /**
+   * @return the place of the string with each code in (ascending) sorted
+   *   order, indexed by code, so strings can be compared by comparing the
+   *   ranks of their codes
+   */
+  int[] ranks() {
+    Integer[] byValue = new Integer[values.size()];
+    Arrays.setAll(byValue, code -> code);
+    Arrays.sort(byValue, Comparator.comparing(values::get));
+    int[] ranks = new int[byValue.length];
+    for (int rank = 0; rank < byValue.length; rank++) {
+      ranks[byValue[rank]] = rank;
+    }
+    return ranks;
+  }
+}
@@ -0,0 +1,20 @@
+package umm3601.user;
+
+/**
+ * What to do when someone asks for the users sorted in a way that none of
+ * our indexes can give us directly (see `SortPlanner`), so Mongo would
+ * have to sort the matching users itself.
+ */
+public enum UnindexedSorts {
+  /**
+   * Refuse the request (with a 400 Bad Request), listing the sorts we do
+   * support.
+   */
+  REJECT,
+
+  /**
+   * Let Mongo sort the users itself, writing to disk if the sort needs more
+   * memory than it allows, but return at most a limited number of users.
+   */
+  SPILL_TO_DISK
+}
@@ -35,6 +35,11 @@ public class User {
   public String avatar;
   public String role;
 
+  // Bumped by every update, so an update can check that nobody else has
+  // changed the user since the client last saw it. Users that have never
+  // been updated (including ones from before we had versions) are at 0.
+  public long version;
+
   @Override
   public boolean equals(Object obj) {
     if (!(obj instanceof User)) {
@@ -0,0 +1,67 @@
+package umm3601.user;
+
+/**
+ * Something that needs to know when the users collection is changed
+ * through the `UserController`, e.g., a cache that has to be invalidated
+ * or an in-memory index that has to be kept in sync.
+ *
+ * Listeners are registered with `UserController.addChangeListener()` and
+ * are called after the change has been successfully written to the
+ * database, on the thread that wrote it (the one that handled the request,
+ * or the background writer for `?async=true` writes). They should be quick.
+ */
+public interface UserChangeListener {
+
+  /**
+   * Called after a user has been added.
+   *
+   * @param user the new user, including its newly assigned `_id`
+   */
+  void userAdded(User user);
+
+  /**
+   * Called after a user has been deleted.
+   *
+   * @param user the user as it was just before it was deleted
+   */
+  void userDeleted(User user);
+
+  /**
+   * Called after a user has been updated. By default this is treated as
+   * deleting the old user and adding the new one, which is all most
+   * indexes need.
+   *
+   * @param before the user as it was just before the update
+   * @param after the user as it is now
+   */
+  default void userUpdated(User before, User after) {
+    userDeleted(before);
+    userAdded(after);
+  }
+
+  /**
+   * A listener for things (like caches) that don't care *what* changed,
+   * only that something did.
+   *
+   * @param action what to do whenever any user changes
+   * @return a listener that runs `action` on every change
+   */
+  static UserChangeListener onAnyChange(Runnable action) {
+    return new UserChangeListener() {
+      @Override
+      public void userAdded(User user) {
+        action.run();
+      }
+
+      @Override
+      public void userDeleted(User user) {
+        action.run();
+      }
+
+      @Override
+      public void userUpdated(User before, User after) {
+        action.run();
+      }
+    };
+  }
+}
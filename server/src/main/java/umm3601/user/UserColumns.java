@@ -0,0 +1,787 @@
+package umm3601.user;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory copy of the users collection, stored a column at a time,
+ * that can answer `getUsers`' filters and sorts without asking Mongo.
+ *
+ * Each field is its own array, indexed by row: ages are an `int[]`, ids
+ * their 12 raw bytes, roles a byte (the `Role`), and companies are codes
+ * into a `StringDictionary` (so each distinct company is only stored
+ * once). Users come in as `CompactUser`s, and are only made into `User`s
+ * again for the page a query returns. On
+ * top of the columns are bitmap indexes of the rows with each role,
+ * company, and age, so a filter is an intersection of bitmaps (with the
+ * company filter checked once per *distinct* company rather than once per
+ * user), and counting the users with each role or company is just counting
+ * bits (see `facets()` and `byCompany()`). A query keeps only the best
+ * `offset + limit` matches in order.
+ *
+ * Like the other in-memory indexes, this hears about every change made
+ * through our `UserController` (it's a `UserChangeListener`). Changes made
+ * through other server instances, or straight to the database, don't reach
+ * it, though, so it keeps track of how long ago it was loaded (see
+ * `freshness()`), and the controller reloads it (with `reloadInBackground()`)
+ * once that's longer than it's willing to serve from it.
+ *
+ * Deleted users just leave a gap (a cleared bit in `live`) until there are
+ * more gaps than users, when the columns are compacted. The row to delete
+ * is found with a hash table of row numbers (an `int[]`, probed linearly)
+ * that hashes and compares the ids where they already are, in the id
+ * column; that's 8 bytes a user, rather than the hundred or so of a
+ * `HashMap` from id to row.
+ *
+ * Everything is guarded by a read-write lock, so any number of queries can
+ * run at once, and a change waits for them (and they for it).
+ */
+final class UserColumns implements UserChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UserColumns.class);
+
+  private static final int ID_BYTES = 12;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * One page of the users matching a query.
+   *
+   * @param users the users on the page, in order
+   * @param total how many users match the query, on any page
+   */
+  record Page(List<User> users, int total) {
+  }
+
+  /**
+   * How up to date the columns are.
+   *
+   * @param users how many users they hold
+   * @param ageMillis how long ago they were (re)loaded from the database
+   * @param changesSinceLoad how many changes we've applied to them since
+   * @param reloading whether they're being reloaded right now
+   */
+  record Freshness(int users, long ageMillis, long changesSinceLoad, boolean reloading) {
+  }
+
+  // A change to make to the columns (and, if we're reloading, to the new
+  // columns before they replace the old ones): the user with the id
+  // `removed` (if it isn't `null`) comes out, and `added` (if it isn't
+  // `null`) goes in.
+  private record Change(ObjectId removed, CompactUser added) {
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final LongSupplier clock;
+  private final AtomicBoolean reloading = new AtomicBoolean();
+
+  // All of these are guarded by `lock`.
+  private Columns columns = new Columns();
+  private long loadedAt;
+  private long changesSinceLoad;
+  private List<Change> changesDuringReload;
+
+  /**
+   * Construct some empty columns, which count as loaded now.
+   */
+  UserColumns() {
+    this(System::nanoTime);
+  }
+
+  /**
+   * Construct some empty columns that read the time (in nanoseconds) from
+   * `clock`.
+   */
+  UserColumns(LongSupplier clock) {
+    this.clock = clock;
+    loadedAt = clock.getAsLong();
+  }
+
+  /**
+   * Replace everything in the columns with the given users. Changes we hear
+   * about while we're reading the users are made to the new columns too, so
+   * none of them are lost whether or not `users` already had them.
+   *
+   * @param users every user in the database
+   */
+  void reload(Iterable<User> users) {
+    long startedAt = clock.getAsLong();
+    lock.writeLock().lock();
+    try {
+      changesDuringReload = new ArrayList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    Columns fresh = new Columns();
+    boolean loaded = false;
+    try {
+      users.forEach(user -> fresh.append(CompactUser.of(user)));
+      loaded = true;
+    } finally {
+      lock.writeLock().lock();
+      try {
+        if (loaded) {
+          for (Change change : changesDuringReload) {
+            if (change.added() != null) {
+              // The reload may have read the new version of the user already.
+              fresh.delete(change.added().id());
+            }
+            fresh.apply(change);
+          }
+          columns = fresh;
+          loadedAt = startedAt;
+          changesSinceLoad = changesDuringReload.size();
+        }
+        changesDuringReload = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Start reloading the columns on another thread, unless that's already
+   * happening. Until it's done, the columns answer queries as they are.
+   *
+   * @param users gets every user in the database
+   */
+  void reloadInBackground(Supplier<? extends Iterable<User>> users) {
+    if (!reloading.compareAndSet(false, true)) {
+      return;
+    }
+    CompletableFuture.runAsync(() -> {
+      try {
+        reload(users.get());
+      } catch (RuntimeException e) {
+        // We'll try again the next time someone notices they're stale.
+        LOG.warn("Couldn't reload the in-memory copy of the users", e);
+      } finally {
+        reloading.set(false);
+      }
+    });
+  }
+
+  /**
+   * @return how up to date the columns are
+   */
+  Freshness freshness() {
+    lock.readLock().lock();
+    try {
+      return new Freshness(columns.live.cardinality(),
+        TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - loadedAt), changesSinceLoad, reloading.get());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param maxStaleness the longest ago they can have been loaded
+   * @return whether the columns were loaded at most `maxStaleness` ago
+   */
+  boolean isFresh(Duration maxStaleness) {
+    lock.readLock().lock();
+    try {
+      return clock.getAsLong() - loadedAt <= maxStaleness.toNanos();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void userAdded(User user) {
+    change(new Change(null, CompactUser.of(user)));
+  }
+
+  @Override
+  public void userDeleted(User user) {
+    change(new Change(new ObjectId(user._id), null));
+  }
+
+  // Both at once, so no query sees the user missing (or there twice).
+  @Override
+  public void userUpdated(User before, User after) {
+    change(new Change(new ObjectId(before._id), CompactUser.of(after)));
+  }
+
+  private void change(Change change) {
+    lock.writeLock().lock();
+    try {
+      columns.apply(change);
+      changesSinceLoad++;
+      if (changesDuringReload != null) {
+        changesDuringReload.add(change);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find one page of the users that match a filter, in order.
+   *
+   * @param filter the filter the users have to match
+   * @param sort the order to put them in; users that tie are put in order by id
+   * @param offset how many of the matching users to skip
+   * @param limit the most users to return
+   * @return the page of users, and how many users match in all
+   */
+  Page query(UserFilter filter, SortPlanner.Plan sort, int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      return columns.page(columns.matching(filter), sort, offset, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find one page of the users that match a filter, in order, along with
+   * how many of *all* the matching users have each role, work for each
+   * company, and fall in each age bucket, the way `getUserFacets` reports
+   * them. The counts are sizes of intersections of the filter's rows with
+   * the rows of each role, company, or age, so none of the users have to be
+   * looked at to count them.
+   *
+   * @param filter the filter the users have to match
+   * @param sort the order to put the page of users in
+   * @param offset how many of the matching users to skip
+   * @param limit the most users to return
+   * @param ageBoundaries the boundaries of the age buckets (each bucket
+   *   goes from one boundary up to, but not including, the next)
+   * @param maxCompanies the most companies to count users for (the ones with
+   *   the most users)
+   * @return the page of users, and the counts
+   */
+  UserFacets facets(UserFilter filter, SortPlanner.Plan sort, int offset, int limit,
+      List<Integer> ageBoundaries, int maxCompanies) {
+    lock.readLock().lock();
+    try {
+      RowBitmap matching = columns.matching(filter);
+      Page page = columns.page(matching, sort, offset, limit);
+      UserFacets facets = new UserFacets();
+      facets.users = page.users();
+      facets.total = page.total();
+      facets.roles = columns.counts(columns.rowsByRole, Columns::roleName, matching, Integer.MAX_VALUE);
+      facets.companies = columns.counts(columns.rowsByCompany, columns.companyCodes::decode, matching, maxCompanies);
+      facets.ageBuckets = columns.ageBuckets(matching, page.total(), ageBoundaries);
+      return facets;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Group the users by company, the way `getUsersGroupedByCompany` does:
+   * one page of the companies, each with how many users work for it and
+   * the names and ids of (some of) them, in order by name.
+   *
+   * @param byCount whether to put the companies in order by how many users
+   *   they have (and then by name), rather than just by name
+   * @param descending whether to put them in descending order
+   * @param offset how many companies to skip
+   * @param limit the most companies to return
+   * @param memberLimit the most users to list for each company
+   * @return the page of companies
+   */
+  List<UserByCompany> byCompany(boolean byCount, boolean descending, int offset, int limit, int memberLimit) {
+    lock.readLock().lock();
+    try {
+      return columns.byCompany(byCount, descending, offset, limit, memberLimit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return roughly how many bytes of memory the bitmap indexes of the
+   *   roles, companies, and ages take
+   */
+  long bitmapBytes() {
+    lock.readLock().lock();
+    try {
+      return columns.bitmapBytes();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The columns themselves. Each user is a row, and row `i` of the user is
+   * at index `i` of each array (or, for the id, bytes `12 * i` to
+   * `12 * i + 11`).
+   *
+   * Along with the columns are bitmap indexes (see `RowBitmap`) of the rows
+   * of the users with each role, each company, and each age (i.e., age
+   * buckets a year wide), kept up to date as users come and go. A filter
+   * is the intersection of the rows of the roles, companies, and ages it
+   * matches.
+   */
+  private static final class Columns {
+    private static final Role[] ROLES = Role.values();
+
+    private final StringDictionary companyCodes = new StringDictionary();
+
+    private byte[] ids = new byte[INITIAL_CAPACITY * ID_BYTES];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] ages = new int[INITIAL_CAPACITY];
+    private int[] companies = new int[INITIAL_CAPACITY];
+    private String[] emails = new String[INITIAL_CAPACITY];
+    private String[] avatars = new String[INITIAL_CAPACITY];
+    private byte[] roles = new byte[INITIAL_CAPACITY];
+    private long[] versions = new long[INITIAL_CAPACITY];
+
+    // The rows in use (including gaps), and which of them hold a user.
+    private int rows;
+    private final BitSet live = new BitSet();
+
+    // Each live row (plus one, so 0 is an empty slot) in the slot its id
+    // hashes to, or the next free one after it. There are always at least
+    // twice as many slots as rows, so the runs of full slots stay short.
+    private int[] rowsById = new int[INITIAL_CAPACITY * 2];
+
+    // The rows of the users with each role (by `ordinal()`), company (by
+    // code), and age.
+    private final Map<Integer, RowBitmap> rowsByRole = new HashMap<>();
+    private final Map<Integer, RowBitmap> rowsByCompany = new HashMap<>();
+    private final NavigableMap<Integer, RowBitmap> rowsByAge = new TreeMap<>();
+
+    void apply(Change change) {
+      if (change.removed() != null) {
+        delete(change.removed());
+      }
+      if (change.added() != null) {
+        append(change.added());
+      }
+    }
+
+    void append(CompactUser user) {
+      if (rows == ages.length) {
+        grow();
+      }
+      System.arraycopy(user.id().toByteArray(), 0, ids, rows * ID_BYTES, ID_BYTES);
+      names[rows] = user.name();
+      ages[rows] = user.age();
+      companies[rows] = companyCodes.encode(user.company());
+      emails[rows] = user.email();
+      avatars[rows] = user.avatar();
+      roles[rows] = (byte) user.role().ordinal();
+      versions[rows] = user.version();
+      live.set(rows);
+      index(rows);
+      addToRowsById(rows);
+      rows++;
+    }
+
+    private void grow() {
+      int capacity = ages.length * 2;
+      ids = Arrays.copyOf(ids, capacity * ID_BYTES);
+      names = Arrays.copyOf(names, capacity);
+      ages = Arrays.copyOf(ages, capacity);
+      companies = Arrays.copyOf(companies, capacity);
+      emails = Arrays.copyOf(emails, capacity);
+      avatars = Arrays.copyOf(avatars, capacity);
+      roles = Arrays.copyOf(roles, capacity);
+      versions = Arrays.copyOf(versions, capacity);
+      rowsById = new int[capacity * 2];
+      rehash();
+    }
+
+    void delete(ObjectId id) {
+      byte[] target = id.toByteArray();
+      int slot = slotOf(target);
+      if (slot < 0) {
+        return;
+      }
+      int row = rowsById[slot] - 1;
+      removeFromRowsById(slot);
+      live.clear(row);
+      unindex(row);
+      names[row] = null;
+      emails[row] = null;
+      avatars[row] = null;
+      if (rows - live.cardinality() > Math.max(live.cardinality(), INITIAL_CAPACITY)) {
+        compact();
+      }
+    }
+
+    // The slot an id (12 bytes, starting at `offset`) hashes to. The bits
+    // are scrambled as in `UserPartitions.partitionOf()`, since only the low
+    // ones pick the slot.
+    @SuppressWarnings({"MagicNumber"})
+    private int home(byte[] id, int offset) {
+      int hash = 1;
+      for (int i = offset; i < offset + ID_BYTES; i++) {
+        hash = 31 * hash + id[i];
+      }
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      hash *= 0xc2b2ae35;
+      hash ^= hash >>> 16;
+      return hash & (rowsById.length - 1);
+    }
+
+    // The slot holding the row with this id, or -1 if there isn't one.
+    private int slotOf(byte[] id) {
+      for (int slot = home(id, 0); rowsById[slot] != 0; slot = (slot + 1) & (rowsById.length - 1)) {
+        int row = rowsById[slot] - 1;
+        if (Arrays.equals(ids, row * ID_BYTES, (row + 1) * ID_BYTES, id, 0, ID_BYTES)) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    private void addToRowsById(int row) {
+      int slot = home(ids, row * ID_BYTES);
+      while (rowsById[slot] != 0) {
+        slot = (slot + 1) & (rowsById.length - 1);
+      }
+      rowsById[slot] = row + 1;
+    }
+
+    // Empty a slot, and move later rows in its run back into the gap if
+    // they'd otherwise be cut off from their home slot.
+    private void removeFromRowsById(int slot) {
+      int mask = rowsById.length - 1;
+      int gap = slot;
+      for (int next = (gap + 1) & mask; rowsById[next] != 0; next = (next + 1) & mask) {
+        int home = home(ids, (rowsById[next] - 1) * ID_BYTES);
+        // The row at `next` can fill the gap unless its home is after the
+        // gap (going around the table), and no later than `next`.
+        boolean homeBetween = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+        if (!homeBetween) {
+          rowsById[gap] = rowsById[next];
+          gap = next;
+        }
+      }
+      rowsById[gap] = 0;
+    }
+
+    private void rehash() {
+      Arrays.fill(rowsById, 0);
+      for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+        addToRowsById(row);
+      }
+    }
+
+    // Close up the gaps left by deleted users, keeping the rest in order.
+    // (That renumbers the rows, so the bitmaps are rebuilt.)
+    private void compact() {
+      int to = 0;
+      for (int from = live.nextSetBit(0); from >= 0; from = live.nextSetBit(from + 1), to++) {
+        System.arraycopy(ids, from * ID_BYTES, ids, to * ID_BYTES, ID_BYTES);
+        names[to] = names[from];
+        ages[to] = ages[from];
+        companies[to] = companies[from];
+        emails[to] = emails[from];
+        avatars[to] = avatars[from];
+        roles[to] = roles[from];
+        versions[to] = versions[from];
+      }
+      Arrays.fill(names, to, rows, null);
+      Arrays.fill(emails, to, rows, null);
+      Arrays.fill(avatars, to, rows, null);
+      rows = to;
+      live.clear();
+      live.set(0, to);
+      rowsByRole.clear();
+      rowsByCompany.clear();
+      rowsByAge.clear();
+      for (int row = 0; row < rows; row++) {
+        index(row);
+      }
+      rehash();
+    }
+
+    private void index(int row) {
+      rowsByRole.computeIfAbsent((int) roles[row], code -> new RowBitmap()).add(row);
+      rowsByCompany.computeIfAbsent(companies[row], code -> new RowBitmap()).add(row);
+      rowsByAge.computeIfAbsent(ages[row], age -> new RowBitmap()).add(row);
+    }
+
+    private void unindex(int row) {
+      unindex(rowsByRole, (int) roles[row], row);
+      unindex(rowsByCompany, companies[row], row);
+      unindex(rowsByAge, ages[row], row);
+    }
+
+    // Take a row out of a bitmap, and drop the bitmap once it's empty.
+    private static void unindex(Map<Integer, RowBitmap> bitmaps, int key, int row) {
+      RowBitmap bitmap = bitmaps.get(key);
+      bitmap.remove(row);
+      if (bitmap.cardinality() == 0) {
+        bitmaps.remove(key);
+      }
+    }
+
+    long bitmapBytes() {
+      return Stream.of(rowsByRole, rowsByCompany, rowsByAge)
+        .flatMap(bitmaps -> bitmaps.values().stream())
+        .mapToLong(RowBitmap::sizeInBytes)
+        .sum();
+    }
+
+    /**
+     * @return the rows of the users that pass a filter, or `null` if that's
+     *   all of them
+     */
+    RowBitmap matching(UserFilter filter) {
+      RowBitmap matching = null;
+      if (!filter.roles().isEmpty()) {
+        matching = and(matching, union(rowsByRole, Columns::roleName, filter::matchesRole));
+      }
+      if (!filter.companies().isEmpty()) {
+        matching = and(matching, union(rowsByCompany, companyCodes::decode, filter::matchesCompany));
+      }
+      if (filter.age() != null || filter.minAge() != null || filter.maxAge() != null) {
+        int lowest = Integer.MIN_VALUE;
+        int highest = Integer.MAX_VALUE;
+        if (filter.age() != null) {
+          lowest = filter.age();
+          highest = filter.age();
+        }
+        if (filter.minAge() != null) {
+          lowest = Math.max(lowest, filter.minAge());
+        }
+        if (filter.maxAge() != null) {
+          highest = Math.min(highest, filter.maxAge());
+        }
+        matching = and(matching, lowest > highest
+          ? new RowBitmap()
+          : RowBitmap.or(rowsByAge.subMap(lowest, true, highest, true).values()));
+      }
+      return matching;
+    }
+
+    private static RowBitmap and(RowBitmap matching, RowBitmap more) {
+      return matching == null ? more : matching.and(more);
+    }
+
+    // The rows of every value (e.g., every company) that passes a check,
+    // which is only done once per distinct value.
+    private static RowBitmap union(Map<Integer, RowBitmap> bitmaps, IntFunction<String> decode,
+        Predicate<String> check) {
+      List<RowBitmap> passing = new ArrayList<>();
+      bitmaps.forEach((code, bitmap) -> {
+        if (check.test(decode.apply(code))) {
+          passing.add(bitmap);
+        }
+      });
+      return RowBitmap.or(passing);
+    }
+
+    // Do something with each of the rows in `matching`, or every row if it's `null`.
+    private void forEach(RowBitmap matching, IntConsumer action) {
+      if (matching != null) {
+        matching.forEach(action);
+        return;
+      }
+      for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+        action.accept(row);
+      }
+    }
+
+    Page page(RowBitmap matching, SortPlanner.Plan sort, int offset, int limit) {
+      int total = matching == null ? live.cardinality() : matching.cardinality();
+      List<User> page = top(matching, order(sort), offset, limit).stream().map(this::user).toList();
+      return new Page(page, total);
+    }
+
+    // The rows from `offset` to `offset + limit` of the ones in `matching`
+    // (or all of them, if it's `null`), in order. This only ever keeps the
+    // best `offset + limit` rows it has seen so far.
+    private List<Integer> top(RowBitmap matching, Comparator<Integer> order, int offset, int limit) {
+      int wanted = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+      // The best `wanted` rows so far, worst first.
+      PriorityQueue<Integer> best = new PriorityQueue<>(order.reversed());
+      forEach(matching, row -> {
+        if (best.size() < wanted) {
+          best.add(row);
+        } else if (wanted > 0 && order.compare(row, best.peek()) < 0) {
+          best.poll();
+          best.add(row);
+        }
+      });
+
+      // `best` gives them up worst first, so fill the page from the back
+      // (and drop the ones before `offset`).
+      int kept = best.size();
+      Integer[] page = new Integer[Math.max(kept - offset, 0)];
+      for (int i = kept - 1; i >= offset; i--) {
+        page[i - offset] = best.poll();
+      }
+      return Arrays.asList(page);
+    }
+
+    // How many matching users have each value (e.g., each role), most
+    // common first (and then in order by value), for the `max` most common.
+    List<FacetCount> counts(Map<Integer, RowBitmap> bitmaps, IntFunction<String> decode, RowBitmap matching,
+        int max) {
+      List<FacetCount> counts = new ArrayList<>();
+      bitmaps.forEach((code, bitmap) -> {
+        int count = matching == null ? bitmap.cardinality() : bitmap.andCardinality(matching);
+        if (count > 0) {
+          counts.add(facetCount(decode.apply(code), count));
+        }
+      });
+      Comparator<String> values = Comparator.nullsFirst(Comparator.naturalOrder());
+      counts.sort(Comparator.<FacetCount>comparingInt(facet -> -facet.count)
+        .thenComparing(facet -> facet._id, values));
+      return counts.size() > max ? new ArrayList<>(counts.subList(0, max)) : counts;
+    }
+
+    // How many matching users fall in each age bucket (leaving out empty
+    // buckets), and how many in none of them ("other"), the way Mongo's
+    // `$bucket` counts them.
+    List<FacetCount> ageBuckets(RowBitmap matching, int total, List<Integer> boundaries) {
+      List<FacetCount> buckets = new ArrayList<>();
+      int bucketed = 0;
+      for (int i = 0; i + 1 < boundaries.size(); i++) {
+        int count = 0;
+        for (RowBitmap bitmap : rowsByAge.subMap(boundaries.get(i), boundaries.get(i + 1)).values()) {
+          count += matching == null ? bitmap.cardinality() : bitmap.andCardinality(matching);
+        }
+        if (count > 0) {
+          buckets.add(facetCount(String.valueOf(boundaries.get(i)), count));
+        }
+        bucketed += count;
+      }
+      if (total > bucketed) {
+        buckets.add(facetCount("other", total - bucketed));
+      }
+      return buckets;
+    }
+
+    private static FacetCount facetCount(String value, int count) {
+      FacetCount facet = new FacetCount();
+      facet._id = value;
+      facet.count = count;
+      return facet;
+    }
+
+    List<UserByCompany> byCompany(boolean byCount, boolean descending, int offset, int limit, int memberLimit) {
+      int[] ranks = companyCodes.ranks();
+      Comparator<Integer> byName = byRank(code -> code, ranks);
+      Comparator<Integer> order;
+      if (byCount) {
+        Comparator<Integer> bySize = Comparator.comparingInt(code -> rowsByCompany.get(code).cardinality());
+        // Ties are always broken by name, in ascending order.
+        order = (descending ? bySize.reversed() : bySize).thenComparing(byName);
+      } else {
+        order = descending ? byName.reversed() : byName;
+      }
+      Comparator<Integer> membersByName = order(new SortPlanner.Plan(List.of(UserController.NAME_KEY), false, true));
+
+      List<UserByCompany> page = new ArrayList<>();
+      rowsByCompany.keySet().stream()
+        .sorted(order)
+        .skip(offset)
+        .limit(limit)
+        .forEach(code -> {
+          RowBitmap members = rowsByCompany.get(code);
+          UserByCompany company = new UserByCompany();
+          company._id = companyCodes.decode(code);
+          company.count = members.cardinality();
+          company.users = top(members, membersByName, 0, memberLimit).stream().map(this::idName).toList();
+          page.add(company);
+        });
+      return page;
+    }
+
+    // The order of rows for a sort, ending with the order of their ids.
+    private Comparator<Integer> order(SortPlanner.Plan sort) {
+      Comparator<Integer> order = null;
+      for (String field : sort.fields()) {
+        Comparator<Integer> byField = byField(field);
+        order = order == null ? byField : order.thenComparing(byField);
+      }
+      Comparator<Integer> byId = (a, b) -> Arrays.compareUnsigned(
+        ids, a * ID_BYTES, (a + 1) * ID_BYTES, ids, b * ID_BYTES, (b + 1) * ID_BYTES);
+      order = order == null ? byId : order.thenComparing(byId);
+      return sort.descending() ? order.reversed() : order;
+    }
+
+    private Comparator<Integer> byField(String field) {
+      // Mongo sorts missing values (`null`s) first.
+      Comparator<String> strings = Comparator.nullsFirst(Comparator.naturalOrder());
+      switch (field) {
+        case UserController.NAME_KEY:
+          return (a, b) -> strings.compare(names[a], names[b]);
+        case UserController.AGE_KEY:
+          return (a, b) -> Integer.compare(ages[a], ages[b]);
+        case UserController.EMAIL_KEY:
+          return (a, b) -> strings.compare(emails[a], emails[b]);
+        case UserController.COMPANY_KEY:
+          return byRank(row -> companies[row], companyCodes.ranks());
+        case UserController.ROLE_KEY:
+          // Roles are declared in order by name.
+          return (a, b) -> Byte.compare(roles[a], roles[b]);
+        default:
+          // `_id`, which every order ends with anyway.
+          return (a, b) -> 0;
+      }
+    }
+
+    // Compare dictionary codes by where their strings come in sorted order.
+    private static Comparator<Integer> byRank(IntUnaryOperator code, int[] ranks) {
+      return Comparator.comparingInt(row -> {
+        int c = code.applyAsInt(row);
+        return c == StringDictionary.NULL_CODE ? -1 : ranks[c];
+      });
+    }
+
+    private static String roleName(int ordinal) {
+      return ROLES[ordinal].toString();
+    }
+
+    private String hexId(int row) {
+      return new ObjectId(Arrays.copyOfRange(ids, row * ID_BYTES, (row + 1) * ID_BYTES)).toHexString();
+    }
+
+    private UserIdName idName(int row) {
+      UserIdName idName = new UserIdName();
+      idName._id = hexId(row);
+      idName.name = names[row];
+      return idName;
+    }
+
+    private User user(int row) {
+      User user = new User();
+      user._id = hexId(row);
+      user.name = names[row];
+      user.age = ages[row];
+      user.company = companyCodes.decode(companies[row]);
+      user.email = emails[row];
+      user.avatar = avatars[row];
+      user.role = roleName(roles[row]);
+      user.version = versions[row];
+      return user;
+    }
+  }
+}
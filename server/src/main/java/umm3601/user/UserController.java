@@ -2,63 +2,536 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Filters.in;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Facet;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.model.Updates;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.AsyncWrites;
 import umm3601.Controller;
+import umm3601.IdempotencyKeys;
+import umm3601.ReadCoalescer;
+import umm3601.ResponseCache;
+import umm3601.TtlCache;
+import umm3601.WriteCoalescer;
+import umm3601.WriteDurability;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController implements Controller {
 
-  private static final String API_USERS = "/api/users";
-  private static final String API_USER_BY_ID = "/api/users/{id}";
+  private static final Logger LOG = LoggerFactory.getLogger(UserController.class);
+
+  static final String API_USERS = "/api/users";
+  static final String API_USER_BY_ID = "/api/users/{id}";
+  static final String API_USERS_BY_COMPANY = "/api/usersByCompany";
+  static final String API_USERS_SEARCH = "/api/users/search";
+  static final String API_USERS_AUTOCOMPLETE = "/api/users/autocomplete";
+  static final String API_USERS_FUZZY = "/api/users/fuzzy";
+  static final String API_USERS_FACETS = "/api/users/facets";
+  static final String API_USERS_REPLICA = "/api/users/replica";
+  static final String API_USER_WRITES = "/api/users/writes/";
+  static final String API_USER_WRITE_BY_ID = API_USER_WRITES + "{id}";
+  static final String NAME_KEY = "name";
   static final String AGE_KEY = "age";
+  static final String MIN_AGE_KEY = "minAge";
+  static final String MAX_AGE_KEY = "maxAge";
   static final String COMPANY_KEY = "company";
+  static final String EMAIL_KEY = "email";
   static final String ROLE_KEY = "role";
+  static final String SORT_BY_KEY = "sortby";
   static final String SORT_ORDER_KEY = "sortorder";
+  static final String SEARCH_QUERY_KEY = "q";
+  static final String LIMIT_KEY = "limit";
+  static final String OFFSET_KEY = "offset";
+  static final String FIELD_KEY = "field";
+  static final String PREFIX_KEY = "prefix";
+  static final String COUNT_KEY = "count";
+  static final String MEMBER_LIMIT_KEY = "memberLimit";
+  static final String DURABILITY_KEY = "durability";
+  static final String ASYNC_KEY = "async";
+  static final String VERSION_KEY = "version";
+  static final String AVATAR_KEY = "avatar";
+  static final String TOTAL_COUNT_HEADER = "X-Total-Count";
 
   private static final int REASONABLE_AGE_LIMIT = 150;
-  private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // Page sizes for endpoints that return their results a page at a time.
+  static final int DEFAULT_PAGE_SIZE = 20;
+  static final int MAX_PAGE_SIZE = 100;
+
+  // How many users to list for each company in `/api/usersByCompany`.
+  static final int DEFAULT_MEMBER_LIMIT = 100;
+  static final int MAX_MEMBER_LIMIT = 1000;
+
+  // The age buckets we count users in for facets (each bucket goes from
+  // one boundary up to, but not including, the next), and the most
+  // companies we'll count users for.
+  private static final List<Integer> AGE_BUCKET_BOUNDARIES = List.of(0, 20, 30, 40, 50, 60, REASONABLE_AGE_LIMIT);
+  private static final int MAX_COMPANY_FACETS = 20;
+
+  // How many completions to suggest (by default, and at most).
+  private static final int DEFAULT_COMPLETIONS = 10;
+  private static final int MAX_COMPLETIONS = 50;
+
+  // Collections with more users than this aren't indexed in memory; searches
+  // and completions are answered by the database instead.
+  static final long IN_MEMORY_INDEX_MAX_USERS = 2_000_000;
+
+  // How long the in-memory indexes go before they're reloaded from the
+  // database, to pick up changes made through other server instances, or
+  // straight to the database (see `ReloadableIndex`).
+  private static final Duration IN_MEMORY_INDEX_MAX_STALENESS = Duration.ofMinutes(1);
+
+  // The most distinct names the fuzzy name index will hold. Unlike the other
+  // in-memory indexes, this one is always built, and just stops growing once
+  // it's full.
+  static final int FUZZY_INDEX_MAX_NAMES = 1_000_000;
+
+  // The fields of the compound indexes we create (see `createIndexes()`).
+  // Besides serving the filters, each one gives us the users already sorted
+  // by any leading run of its fields (see `SortPlanner`).
+  private static final List<String> ROLE_NAME_AGE_INDEX = List.of(ROLE_KEY, NAME_KEY, AGE_KEY);
+  private static final List<String> AGE_NAME_INDEX = List.of(AGE_KEY, NAME_KEY);
+  private static final List<String> NAME_AGE_INDEX = List.of(NAME_KEY, AGE_KEY);
+  private static final List<String> COMPANY_NAME_INDEX = List.of(COMPANY_KEY, NAME_KEY);
+  private static final List<String> ID_INDEX = List.of("_id");
+
+  // The fields `sortby` can name at all.
+  private static final Set<String> SORTABLE_FIELDS = Set.of("_id", NAME_KEY, AGE_KEY, COMPANY_KEY, EMAIL_KEY, ROLE_KEY);
+
+  // The most users we'll return from a sort that isn't backed by an index
+  // (when we allow those at all), unless they're asked for a page at a time.
+  static final int MAX_UNINDEXED_SORT_RESULTS = 1000;
+
+  // How long a request will wait for an identical request that is already
+  // running before giving up and running its own query.
+  private static final Duration COALESCE_TIMEOUT = Duration.ofSeconds(5);
+
+  // How long (at most) we'll serve a rendered list of users from the cache.
+  // Writes through this controller invalidate the cache immediately; this
+  // bounds how long writes made by *other* server instances can go unseen.
+  private static final Duration RESPONSE_CACHE_TTL = Duration.ofSeconds(10);
+  private static final int RESPONSE_CACHE_SIZE = 1000;
+
+  // How long we'll reuse the count of users matching a filter. Like the
+  // response cache, this is cleared on every write through this controller.
+  private static final Duration COUNT_CACHE_TTL = Duration.ofSeconds(10);
+  private static final int COUNT_CACHE_SIZE = 1000;
+
+  // The most asynchronous writes (`?async=true`) we'll queue up, and how
+  // long we'll remember how each one went.
+  private static final int MAX_QUEUED_WRITES = 1000;
+  private static final Duration WRITE_STATUS_TTL = Duration.ofMinutes(10);
+
+  // How long we remember the `Idempotency-Key` of each new user request
+  // (so retries of it don't add the user again), and how many of those we
+  // also keep in memory.
+  static final Duration IDEMPOTENCY_KEY_TTL = Duration.ofHours(24);
+  static final int IDEMPOTENCY_KEY_CACHE_SIZE = 10_000;
+
   private final JacksonMongoCollection<User> userCollection;
 
+  // The users collection, as written to with each durability (see
+  // `WriteDurability`), and the durability to use when a request doesn't
+  // ask for one.
+  private final Map<WriteDurability, MongoCollection<User>> durableCollections =
+    new EnumMap<>(WriteDurability.class);
+  private volatile WriteDurability defaultDurability = WriteDurability.ACKNOWLEDGED;
+
+  // The writes requests have asked us to do in the background.
+  private final AsyncWrites asyncWrites = new AsyncWrites(MAX_QUEUED_WRITES, WRITE_STATUS_TTL);
+
+  // The responses to recent new user requests, by their `Idempotency-Key`.
+  private final IdempotencyKeys idempotencyKeys;
+
+  // Lets identical concurrent list requests share a single query (and a
+  // single serialization of its results).
+  private final ReadCoalescer readCoalescer = new ReadCoalescer(COALESCE_TIMEOUT);
+
+  // Keeps the fully serialized (and gzipped) bytes of recent list responses.
+  private final ResponseCache responseCache = new ResponseCache(RESPONSE_CACHE_TTL, RESPONSE_CACHE_SIZE);
+
+  // The number of users matching recently counted filters, keyed by the
+  // (JSON of the) filter.
+  private final TtlCache<String, Long> countCache = new TtlCache<>(COUNT_CACHE_TTL, COUNT_CACHE_SIZE);
+
+  // Everything that needs to hear about writes to the users collection.
+  private final List<UserChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+  // The in-memory indexes that are reloaded from the database once they're
+  // older than `inMemoryIndexMaxStaleness` (see `InMemoryIndexes`).
+  private final ReloadableIndex<InMemoryIndexes> inMemoryIndexes;
+  private volatile Duration inMemoryIndexMaxStaleness = IN_MEMORY_INDEX_MAX_STALENESS;
+
+  // Checks the `sortby`s we're asked for against the indexes.
+  private final SortPlanner sortPlanner;
+
+  // Batches up concurrent inserts of new users (see `coalesceInserts()`),
+  // one coalescer for each durability they're written with. The batch size
+  // is 0 if each new user gets its own `insertOne`.
+  private final Map<WriteDurability, WriteCoalescer<User>> writeCoalescers = new ConcurrentHashMap<>();
+  private volatile int insertBatchSize;
+  private volatile Duration insertBatchWindow;
+
+  // The in-memory copy of the users that `getUsers` answers from (see
+  // `replicateInMemory()`), or `null` if we don't keep one, and how stale
+  // we'll let it get before we stop answering from it.
+  private volatile UserColumns replica;
+  private volatile Duration replicaMaxStaleness;
+
+  // The most users `replicateInMemory()` will hold.
+  private final long maxIndexedUsers;
+
   /**
    * Construct a controller for users.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
+    this(database, UnindexedSorts.REJECT);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param unindexedSorts what to do when asked to sort the users in an
+   *   order none of the indexes provide
+   */
+  public UserController(MongoDatabase database, UnindexedSorts unindexedSorts) {
+    this(database, IN_MEMORY_INDEX_MAX_USERS, unindexedSorts);
+  }
+
+  /**
+   * Construct a controller for users that rejects sorts none of the
+   * indexes provide.
+   *
+   * @param database the database containing user data
+   * @param maxIndexedUsers the most users to hold in the in-memory search
+   *   and completion indexes; if there are more, those requests are
+   *   answered by the database instead
+   */
+  UserController(MongoDatabase database, long maxIndexedUsers) {
+    this(database, maxIndexedUsers, UnindexedSorts.REJECT);
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param maxIndexedUsers the most users to hold in the in-memory search
+   *   and completion indexes; if there are more, those requests are
+   *   answered by the database instead
+   * @param unindexedSorts what to do when asked to sort the users in an
+   *   order none of the indexes provide
+   */
+  UserController(MongoDatabase database, long maxIndexedUsers, UnindexedSorts unindexedSorts) {
+    this.maxIndexedUsers = maxIndexedUsers;
+    sortPlanner = sortPlanner(unindexedSorts);
     userCollection = JacksonMongoCollection.builder().build(
         database,
         "users",
         User.class,
         UuidRepresentation.STANDARD);
+    idempotencyKeys = new IdempotencyKeys(database, IDEMPOTENCY_KEY_TTL, IDEMPOTENCY_KEY_CACHE_SIZE);
+    for (WriteDurability durability : WriteDurability.values()) {
+      durableCollections.put(durability, userCollection.withWriteConcern(durability.writeConcern()));
+    }
+    createIndexes(userCollection);
+
+    // Any change to the users makes every cached list (and count) of users stale.
+    addChangeListener(UserChangeListener.onAnyChange(responseCache::invalidateAll));
+    addChangeListener(UserChangeListener.onAnyChange(countCache::invalidateAll));
+
+    // Check how many users there are each time the indexes are (re)built,
+    // so a collection that grows too big stops being held in memory.
+    inMemoryIndexes = new ReloadableIndex<>(
+      () -> InMemoryIndexes.create(userCollection.estimatedDocumentCount() <= maxIndexedUsers));
+    // Listen first, so no change made while we're loading is missed.
+    addChangeListener(inMemoryIndexes);
+    inMemoryIndexes.reload(usersForInMemoryIndexes());
+  }
+
+  /**
+   * The in-memory indexes that are loaded (and reloaded) together, in a
+   * single pass over the users.
+   *
+   * @param search the index used to answer searches, or `null` if there are
+   *   too many users to hold it, in which case we ask the database instead
+   * @param completions the index used to suggest completions for each field
+   *   we complete, or `null` if there are too many users to hold them (in
+   *   which case we ask the database instead)
+   * @param fuzzyNames the index used to find users by misspelled names,
+   *   which is always built (it just stops growing once it's full)
+   */
+  private record InMemoryIndexes(
+    UserSearchIndex search,
+    Map<String, PrefixIndex> completions,
+    FuzzyNameIndex fuzzyNames) implements UserChangeListener {
+
+    static InMemoryIndexes create(boolean fitsInMemory) {
+      FuzzyNameIndex fuzzyNames = new FuzzyNameIndex(FUZZY_INDEX_MAX_NAMES);
+      if (!fitsInMemory) {
+        return new InMemoryIndexes(null, null, fuzzyNames);
+      }
+      return new InMemoryIndexes(
+        new UserSearchIndex(),
+        Map.of(
+          NAME_KEY, new PrefixIndex(user -> user.name),
+          COMPANY_KEY, new PrefixIndex(user -> user.company)),
+        fuzzyNames);
+    }
+
+    private List<UserChangeListener> all() {
+      List<UserChangeListener> indexes = new ArrayList<>(List.of(fuzzyNames));
+      if (search != null) {
+        indexes.add(search);
+      }
+      if (completions != null) {
+        indexes.addAll(completions.values());
+      }
+      return indexes;
+    }
+
+    @Override
+    public void userAdded(User user) {
+      all().forEach(index -> index.userAdded(user));
+    }
+
+    @Override
+    public void userDeleted(User user) {
+      all().forEach(index -> index.userDeleted(user));
+    }
+
+    @Override
+    public void userUpdated(User before, User after) {
+      all().forEach(index -> index.userUpdated(before, after));
+    }
+  }
+
+  /**
+   * @return the in-memory indexes. If they're too stale, this starts
+   *   reloading them for the requests to come; until that's done, these
+   *   requests are answered from them as they are.
+   */
+  private InMemoryIndexes inMemoryIndexes() {
+    if (!inMemoryIndexes.isFresh(inMemoryIndexMaxStaleness)) {
+      inMemoryIndexes.reloadInBackground(this::usersToReloadInMemoryIndexesFrom);
+    }
+    return inMemoryIndexes.index();
+  }
+
+  /**
+   * @return every user, to reload the in-memory indexes from; or `null` if
+   *   there were too many users to hold the search and completion indexes
+   *   last time, and still are. Then the only in-memory index is the fuzzy
+   *   name index, and reading every user (on every server instance, every
+   *   minute or so) just to keep that up with writes made elsewhere isn't
+   *   worth it. It still keeps up with the writes we make ourselves.
+   */
+  private FindIterable<User> usersToReloadInMemoryIndexesFrom() {
+    if (inMemoryIndexes.index().search() == null && userCollection.estimatedDocumentCount() > maxIndexedUsers) {
+      return null;
+    }
+    return usersForInMemoryIndexes();
+  }
+
+  /**
+   * @return every user, in order by `_id` (as `ReloadableIndex` needs
+   *   them), with just the fields the in-memory indexes need
+   */
+  private FindIterable<User> usersForInMemoryIndexes() {
+    return userCollection
+      .find()
+      .sort(Sorts.ascending("_id"))
+      .projection(Projections.include(NAME_KEY, COMPANY_KEY, EMAIL_KEY));
+  }
+
+  /**
+   * Reload the in-memory indexes (in the background, the next time they're
+   * used) once they're older than `maxStaleness`, instead of the default of
+   * a minute.
+   *
+   * @param maxStaleness how stale the in-memory indexes can get
+   */
+  void reloadInMemoryIndexesAfter(Duration maxStaleness) {
+    inMemoryIndexMaxStaleness = maxStaleness;
+  }
+
+  /**
+   * Make sure the indexes our queries rely on exist. Creating an index
+   * that already exists does nothing, so this is safe to do every time
+   * the server starts. (The `Seeder` calls this too, after it has loaded
+   * the users, since building an index over a full collection is much
+   * faster than keeping it up to date through every insert.)
+   *
+   * @param users the users collection
+   */
+  public static void createIndexes(MongoCollection<?> users) {
+    // Compound indexes for the filters (see `parseFilter()`) and the
+    // default sort (by name) that `getUsers` uses, with their fields in ESR
+    // order: first the fields we match for Equality, then the field we Sort
+    // on, and last the fields we match a Range of values for. That lets
+    // Mongo find exactly the matching users *already in order*, instead of
+    // having to sort them in memory.
+    //
+    //  - `role=...` (one role, or a list), sorted by name, maybe with `minAge`/`maxAge`
+    users.createIndex(Indexes.ascending(ROLE_NAME_AGE_INDEX));
+    //  - `age=...`, sorted by name
+    users.createIndex(Indexes.ascending(AGE_NAME_INDEX));
+    //  - no equality filters, sorted by name, maybe with `minAge`/`maxAge`
+    //    (This one also serves the fuzzy name lookups, which find users by name.)
+    users.createIndex(Indexes.ascending(NAME_AGE_INDEX));
+    //
+    // The `company` filter is a case-insensitive substring match, which can't
+    // be turned into index bounds, so there's no point in indexing it for
+    // filtering. We do index it for sorting by company (and then name).
+    users.createIndex(Indexes.ascending(COMPANY_NAME_INDEX));
+
+    // The text index behind `/api/users/search` when the users don't fit in
+    // the in-memory search index. It weights the fields the same way the
+    // in-memory index does. (A collection can only have one text index.)
+    users.createIndex(
+      Indexes.compoundIndex(Indexes.text(NAME_KEY), Indexes.text(COMPANY_KEY), Indexes.text(EMAIL_KEY)),
+      new IndexOptions()
+        .name("users_text")
+        .weights(new Document(NAME_KEY, UserSearchIndex.NAME_WEIGHT)
+          .append(COMPANY_KEY, UserSearchIndex.COMPANY_WEIGHT)
+          .append(EMAIL_KEY, UserSearchIndex.EMAIL_WEIGHT)));
+  }
+
+  /**
+   * @param unindexedSorts what to do with sorts none of our indexes provide
+   * @return a planner for sorts of the users, checking them against the
+   *   indexes made by `createIndexes()`
+   */
+  static SortPlanner sortPlanner(UnindexedSorts unindexedSorts) {
+    return new SortPlanner(SORTABLE_FIELDS,
+      List.of(ROLE_NAME_AGE_INDEX, AGE_NAME_INDEX, NAME_AGE_INDEX, COMPANY_NAME_INDEX, ID_INDEX),
+      unindexedSorts);
+  }
+
+  /**
+   * Register a listener to be told about every user added or deleted
+   * through this controller. This is the hook that caches and in-memory
+   * indexes of the users use to stay in sync with the database.
+   *
+   * @param listener the listener to add
+   */
+  public void addChangeListener(UserChangeListener listener) {
+    changeListeners.add(listener);
+  }
+
+  /**
+   * Write new users in batches: the users added within `window` of each
+   * other (up to `maxBatchSize` of them) are written with a single
+   * `insertMany` (see `WriteCoalescer`). Each request still waits for (and
+   * reports) the result of its own insert.
+   *
+   * @param maxBatchSize the most new users to write at once
+   * @param window how long to wait for more new users before writing a batch
+   */
+  public void coalesceInserts(int maxBatchSize, Duration window) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("The batch size must be at least one");
+    }
+    insertBatchWindow = window;
+    insertBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Keep a copy of the users in memory (see `UserColumns`) and answer
+   * `getUsers` from it, rather than from the database, as long as it was
+   * loaded at most `maxStaleness` ago. Changes made through this
+   * controller show up in it right away; `maxStaleness` bounds how long
+   * changes made any other way (e.g., through another server instance) can
+   * go unseen. Once it's staler than that, it's reloaded in the background,
+   * and the database answers in the meantime.
+   *
+   * Like the in-memory search indexes, this does nothing if there are more
+   * users than we're willing to hold in memory.
+   *
+   * @param maxStaleness how stale the copy can get before we stop using it
+   */
+  public void replicateInMemory(Duration maxStaleness) {
+    if (replica != null || userCollection.estimatedDocumentCount() > maxIndexedUsers) {
+      return;
+    }
+    UserColumns columns = new UserColumns();
+    // Listen first, so no change made while we're loading is missed.
+    addChangeListener(columns);
+    try {
+      columns.reload(userCollection.find());
+    } catch (IllegalArgumentException e) {
+      // Some user in the database has a role (or id) we can't hold in the
+      // columns, so we'll just keep asking Mongo.
+      changeListeners.remove(columns);
+      LOG.warn("Couldn't hold the users in memory", e);
+      return;
+    }
+    LOG.info("Holding {} users in memory; their bitmap indexes take {} bytes",
+      columns.freshness().users(), columns.bitmapBytes());
+    replicaMaxStaleness = maxStaleness;
+    replica = columns;
+  }
+
+  /**
+   * Set how durable writes have to be before we respond to the requests
+   * that make them, unless a request asks for something else with
+   * `?durability=...`.
+   *
+   * @param durability the durability to write with by default
+   */
+  public void setDefaultDurability(WriteDurability durability) {
+    defaultDurability = durability;
   }
 
   /**
@@ -88,20 +561,67 @@ public class UserController implements Controller {
    * Set the JSON body of the response to be a list of all the users returned from the database
    * that match any requested filters and ordering
    *
+   * If the `limit` or `offset` query parameters are given, only that page
+   * of the matching users is returned (`limit` defaults to 20, and can be at
+   * most 100). If the `count` query parameter is `true`, the total number
+   * of matching users is returned in the `X-Total-Count` header, so a
+   * paginated table can show how many pages there are.
+   *
+   * If we keep an in-memory copy of the users (see `replicateInMemory()`)
+   * and it's fresh enough, the users are found (and counted) in that,
+   * without asking the database at all.
+   *
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    Bson combinedFilter = constructFilter(ctx);
-    Bson sortingOrder = constructSortingOrder(ctx);
-
-    // All three of the find, sort, and into steps happen "in parallel" inside the
-    // database system. So MongoDB is going to find the users with the specified
-    // properties, return those sorted in the specified manner, and put the
-    // results into an initially empty ArrayList.
-    ArrayList<User> matchingUsers = userCollection
-      .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+    UserFilter filter = parseFilter(ctx);
+    SortPlanner.Plan sortPlan = planSortingOrder(ctx);
+    boolean paged = ctx.queryParamMap().containsKey(LIMIT_KEY) || ctx.queryParamMap().containsKey(OFFSET_KEY);
+    int offset = paged ? pageParam(ctx, OFFSET_KEY, 0, 0, Integer.MAX_VALUE) : 0;
+    int limit = paged ? pageParam(ctx, LIMIT_KEY, DEFAULT_PAGE_SIZE, 1, MAX_PAGE_SIZE) : Integer.MAX_VALUE;
+    if (!sortPlan.indexed() && !paged) {
+      // Don't let one request sort (and send) everyone in an order Mongo
+      // would have to sort them in itself. (We keep to this when we sort
+      // them in memory too, so the answer doesn't depend on where it came from.)
+      limit = MAX_UNINDEXED_SORT_RESULTS;
+    }
+    boolean count = Boolean.parseBoolean(ctx.queryParam(COUNT_KEY));
+
+    List<User> matchingUsers;
+    UserColumns columns = freshReplica();
+    if (columns != null) {
+      // The in-memory copy filters and sorts the users, and counts them, in one pass.
+      UserColumns.Page page = columns.query(filter, sortPlan, offset, limit);
+      matchingUsers = page.users();
+      if (count) {
+        ctx.header(TOTAL_COUNT_HEADER, String.valueOf(page.total()));
+      }
+    } else {
+      Bson combinedFilter = filter.toBson();
+      // All three of the find, sort, and into steps happen "in parallel" inside the
+      // database system. So MongoDB is going to find the users with the specified
+      // properties, return those sorted in the specified manner, and put the
+      // results into an initially empty ArrayList.
+      FindIterable<User> found = userCollection
+        .find(combinedFilter)
+        .sort(sortPlan.toBson());
+      if (offset > 0) {
+        found = found.skip(offset);
+      }
+      if (limit < Integer.MAX_VALUE) {
+        found = found.limit(limit);
+      }
+      if (!sortPlan.indexed()) {
+        // Mongo will have to sort the matching users itself. Let it use disk
+        // if they don't fit in memory. With a limit, Mongo only keeps the
+        // best users it's seen so far as it goes, rather than all of them.
+        found = found.allowDiskUse(true);
+      }
+      matchingUsers = found.into(new ArrayList<>());
+      if (count) {
+        ctx.header(TOTAL_COUNT_HEADER, String.valueOf(countUsers(combinedFilter)));
+      }
+    }
 
     // Set the JSON body of the response to be the list of users returned by the database.
     // According to the Javalin documentation (https://javalin.io/documentation#context),
@@ -113,69 +633,428 @@ public class UserController implements Controller {
   }
 
   /**
-   * Construct a Bson filter document to use in the `find` method based on the
-   * query parameters from the context.
+   * @return the in-memory copy of the users, if we keep one and it's fresh
+   *   enough to answer from, or `null` if we have to ask the database. If
+   *   it's too stale, this starts reloading it for the requests to come.
+   */
+  private UserColumns freshReplica() {
+    UserColumns columns = replica;
+    if (columns == null) {
+      return null;
+    }
+    if (columns.isFresh(replicaMaxStaleness)) {
+      return columns;
+    }
+    columns.reloadInBackground(() -> userCollection.find());
+    return null;
+  }
+
+  /**
+   * Set the JSON body of the response to be how up to date the in-memory
+   * copy of the users is (see `replicateInMemory()`): how many users it
+   * holds, how long ago it was loaded, how many changes it has had since,
+   * whether it's being reloaded, and how stale we'll let it get; along with
+   * how much memory its bitmap indexes take.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getReplicaFreshness(Context ctx) {
+    UserColumns columns = replica;
+    if (columns == null) {
+      throw new NotFoundResponse("This server doesn't keep a copy of the users in memory");
+    }
+    UserColumns.Freshness freshness = columns.freshness();
+    Map<String, Object> body = new LinkedHashMap<>();
+    body.put("users", freshness.users());
+    body.put("ageMillis", freshness.ageMillis());
+    body.put("changesSinceLoad", freshness.changesSinceLoad());
+    body.put("reloading", freshness.reloading());
+    body.put("bitmapBytes", columns.bitmapBytes());
+    body.put("maxStalenessMillis", replicaMaxStaleness.toMillis());
+    ctx.json(body);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be one page of the users that best
+   * match the search query in the `q` query parameter, best match first.
+   *
+   * The query is matched against the users' names, companies, and emails,
+   * with matches on names counting the most. Use the `limit` (default 20,
+   * at most 100) and `offset` (default 0) query parameters to page through
+   * the results. The total number of matching users is returned in the
+   * `X-Total-Count` header.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void searchUsers(Context ctx) {
+    String query = ctx.queryParamAsClass(SEARCH_QUERY_KEY, String.class)
+      .check(it -> !it.isBlank(), "Search query must not be blank")
+      .get();
+    int limit = pageParam(ctx, LIMIT_KEY, DEFAULT_PAGE_SIZE, 1, MAX_PAGE_SIZE);
+    int offset = pageParam(ctx, OFFSET_KEY, 0, 0, Integer.MAX_VALUE);
+
+    ArrayList<User> matchingUsers;
+    long total;
+    UserSearchIndex searchIndex = inMemoryIndexes().search();
+    if (searchIndex != null) {
+      UserSearchIndex.Hits hits = searchIndex.search(query, offset, limit);
+      matchingUsers = findInOrder(hits.ids());
+      total = hits.total();
+    } else {
+      // Mongo's text search ranks by its own relevance score, which (thanks
+      // to the weights on the text index) favors name matches the same way.
+      Bson textFilter = Filters.text(query);
+      matchingUsers = userCollection
+        .find(textFilter)
+        .sort(Sorts.metaTextScore("score"))
+        .skip(offset)
+        .limit(limit)
+        .into(new ArrayList<>());
+      total = userCollection.countDocuments(textFilter);
+    }
+
+    ctx.header(TOTAL_COUNT_HEADER, String.valueOf(total));
+    ctx.json(matchingUsers);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be a `UserFacets` object, with one
+   * page of the users matching the same filters (and in the same order) as
+   * `getUsers`, along with counts of how many matching users have each role,
+   * work for each company (for the 20 companies with the most matching
+   * users), and fall in each age bucket. Use the `limit` (default 20, at
+   * most 100) and `offset` (default 0) query parameters to page through the
+   * users; the counts are always for all of the matching users.
    *
-   * This checks for the presence of the `age`, `company`, and `role` query
-   * parameters and constructs a filter document that will match users with
-   * the specified values for those fields.
+   * All of this is computed in a single aggregation. The filters are
+   * applied first (using indexes where it can), so it only ever looks at
+   * the matching users, and then a `$facet` stage computes the page and
+   * each of the counts from the matching users in one pass. Nothing inside
+   * a `$facet` can use an index, so the page is always sorted (and the
+   * companies grouped) in memory, spilling to disk if there are a lot of
+   * matching users; a narrow filter keeps this cheap. (Or, if we
+   * keep a fresh enough in-memory copy of the users, it's all worked out
+   * from that copy's bitmap indexes instead; see `UserColumns.facets()`.)
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUserFacets(Context ctx) {
+    UserFilter filter = parseFilter(ctx);
+    SortPlanner.Plan sortPlan = planSortingOrder(ctx);
+    int limit = pageParam(ctx, LIMIT_KEY, DEFAULT_PAGE_SIZE, 1, MAX_PAGE_SIZE);
+    int offset = pageParam(ctx, OFFSET_KEY, 0, 0, Integer.MAX_VALUE);
+
+    UserColumns columns = freshReplica();
+    if (columns != null) {
+      // The in-memory copy's bitmap indexes count the users without looking at them.
+      ctx.json(columns.facets(filter, sortPlan, offset, limit, AGE_BUCKET_BOUNDARIES, MAX_COMPANY_FACETS));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+    Bson combinedFilter = filter.toBson();
+
+    Document countsByRole = new Document("$group",
+      new Document("_id", "$" + ROLE_KEY).append("count", new Document("$sum", 1)));
+    Document countsByCompany = new Document("$group",
+      new Document("_id", "$" + COMPANY_KEY).append("count", new Document("$sum", 1)));
+    Document mostCommonFirst = new Document("$sort", new Document("count", -1).append("_id", 1));
+    Document countsByAge = new Document("$bucket", new Document("groupBy", "$" + AGE_KEY)
+      .append("boundaries", AGE_BUCKET_BOUNDARIES)
+      .append("default", "other")
+      .append("output", new Document("count", new Document("$sum", 1))));
+
+    UserFacets facets = userCollection
+      .aggregate(
+        List.of(
+          Aggregates.match(combinedFilter),
+          Aggregates.facet(
+            new Facet("users", Aggregates.sort(sortPlan.toBson()), Aggregates.skip(offset), Aggregates.limit(limit)),
+            new Facet("roles", countsByRole, mostCommonFirst),
+            new Facet("companies", countsByCompany, mostCommonFirst, Aggregates.limit(MAX_COMPANY_FACETS)),
+            new Facet("ageBuckets", countsByAge))
+        ),
+        UserFacets.class)
+      // The sort and the `$group`s in the `$facet` never use an index, so
+      // they need to be able to spill however the users are sorted.
+      .allowDiskUse(true)
+      .first();
+
+    // Every matching user has exactly one role (even if it's missing, which
+    // counts as a role of `null`), so the role counts add up to the total.
+    facets.total = facets.roles.stream().mapToLong(role -> role.count).sum();
+
+    ctx.json(facets);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be the most common user names or
+   * companies (as `Completion`s) that start with the `prefix` query
+   * parameter, for suggesting completions as someone types.
+   *
+   * The `field` query parameter says whether to complete `name`s (the
+   * default) or `company`s, and `limit` (default 10, at most 50) how many
+   * completions to return.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void autocomplete(Context ctx) {
+    String field = Objects.requireNonNullElse(ctx.queryParam(FIELD_KEY), NAME_KEY);
+    if (!field.equals(NAME_KEY) && !field.equals(COMPANY_KEY)) {
+      throw new BadRequestResponse("Can only complete a name or company; you asked for " + field);
+    }
+    String prefix = Objects.requireNonNullElse(ctx.queryParam(PREFIX_KEY), "");
+    int limit = pageParam(ctx, LIMIT_KEY, DEFAULT_COMPLETIONS, 1, MAX_COMPLETIONS);
+
+    List<Completion> completions;
+    Map<String, PrefixIndex> completionIndexes = inMemoryIndexes().completions();
+    if (completionIndexes != null) {
+      completions = completionIndexes.get(field).complete(prefix, limit);
+    } else {
+      completions = userCollection
+        .aggregate(
+          List.of(
+            // A case-insensitive regex can't use an index, so this is slow on a
+            // big collection. It's only a fallback, though.
+            new Document("$match", new Document(field, regexForPrefix(prefix))),
+            new Document("$group", new Document("_id", "$" + field).append("count", new Document("$sum", 1))),
+            new Document("$sort", new Document("count", -1).append("_id", 1)),
+            new Document("$limit", limit),
+            new Document("$project", new Document("_id", 0).append("value", "$_id").append("count", 1))
+          ),
+          Completion.class)
+        .into(new ArrayList<>());
+    }
+
+    ctx.json(completions);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Set the JSON body of the response to be the users whose names are close
+   * to the `name` query parameter, allowing for typos, so "Conie" finds
+   * users named "Connie". The users with the closest names come first.
+   *
+   * Each word of `name` must be within a couple of edits of a word of the
+   * user's name (see `FuzzyNameIndex.find()`); the users with each name are
+   * in the order they were added. Use the `limit` (default 20, at most 100)
+   * and `offset` (default 0) query parameters to page through the users,
+   * like a search. The total number of matching users (as the index counts
+   * them) is returned in the `X-Total-Count` header.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUsersByFuzzyName(Context ctx) {
+    String name = ctx.queryParamAsClass(NAME_KEY, String.class)
+      .check(it -> !it.isBlank(), "Name to look for must not be blank")
+      .get();
+    int limit = pageParam(ctx, LIMIT_KEY, DEFAULT_PAGE_SIZE, 1, MAX_PAGE_SIZE);
+    int offset = pageParam(ctx, OFFSET_KEY, 0, 0, Integer.MAX_VALUE);
+
+    // The index knows how many users have each name, so we only ask the
+    // database for the users of the names that are on the page.
+    long total = 0;
+    long toSkip = offset;
+    ArrayList<User> matchingUsers = new ArrayList<>();
+    for (FuzzyNameIndex.Match match : inMemoryIndexes().fuzzyNames().find(name, Integer.MAX_VALUE)) {
+      total += match.count();
+      if (matchingUsers.size() == limit) {
+        continue;
+      }
+      if (toSkip >= match.count()) {
+        toSkip -= match.count();
+        continue;
+      }
+      userCollection
+        .find(in(NAME_KEY, match.spellings()))
+        .sort(Sorts.ascending("_id"))
+        .skip((int) toSkip)
+        .limit(limit - matchingUsers.size())
+        .into(matchingUsers);
+      toSkip = 0;
+    }
+
+    ctx.header(TOTAL_COUNT_HEADER, String.valueOf(total));
+    ctx.json(matchingUsers);
+    ctx.status(HttpStatus.OK);
+  }
+
+  private static Pattern regexForPrefix(String prefix) {
+    return Pattern.compile("^" + Pattern.quote(prefix.trim()), Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * Count the users that match a filter, as cheaply as we can:
+   *
+   *   - If there's no filter, we use `estimatedDocumentCount`, which just
+   *     reads the collection's metadata rather than looking at any users.
+   *   - Otherwise we use `countDocuments`, which for filters on `role` and
+   *     `age` only needs to read the compound indexes (see
+   *     `createIndexes()`), not the users themselves. We remember the count
+   *     for a few seconds, since a paginated table asks for the same count
+   *     with every page.
+   *
+   * @param filter the filter to count the matches of
+   * @return how many users match the filter
+   */
+  long countUsers(Bson filter) {
+    BsonDocument filterDocument = filter.toBsonDocument();
+    if (filterDocument.isEmpty()) {
+      return userCollection.estimatedDocumentCount();
+    }
+    String key = filterDocument.toJson();
+    Long count = countCache.get(key);
+    if (count == null) {
+      count = userCollection.countDocuments(filter);
+      countCache.put(key, count);
+    }
+    return count;
+  }
+
+  /**
+   * Get an integer paging parameter (like `limit` or `offset`) from the
+   * query parameters, making sure it's in range.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param key the name of the query parameter
+   * @param defaultValue the value to use if the parameter isn't given
+   * @param min the smallest legal value
+   * @param max the largest legal value
+   * @return the value of the parameter, or `defaultValue`
+   */
+  static int pageParam(Context ctx, String key, int defaultValue, int min, int max) {
+    if (!ctx.queryParamMap().containsKey(key)) {
+      return defaultValue;
+    }
+    return ctx.queryParamAsClass(key, Integer.class)
+      .check(it -> it >= min && it <= max,
+        "The " + key + " must be between " + min + " and " + max + "; you provided " + ctx.queryParam(key))
+      .get();
+  }
+
+  /**
+   * Get the users with the given IDs from the database.
+   *
+   * @param ids the IDs of the users to get
+   * @return the users, in the same order as `ids` (skipping any that
+   *   couldn't be found)
+   */
+  private ArrayList<User> findInOrder(List<String> ids) {
+    ArrayList<User> users = new ArrayList<>(ids.size());
+    if (ids.isEmpty()) {
+      return users;
+    }
+    Map<String, User> usersById = new HashMap<>();
+    userCollection
+      .find(in("_id", ids.stream().map(ObjectId::new).toList()))
+      .forEach(user -> usersById.put(user._id, user));
+    for (String id : ids) {
+      User user = usersById.get(id);
+      if (user != null) {
+        users.add(user);
+      }
+    }
+    return users;
+  }
+
+  /**
+   * Read the filters for a listing of users from the query parameters from
+   * the context.
+   *
+   * This checks for the presence of the `age`, `minAge`, `maxAge`, `company`,
+   * and `role` query parameters and constructs a filter that will match
+   * users with the specified values for those fields:
+   *
+   *   - `age` matches users of exactly that age, and `minAge` and `maxAge`
+   *     match users at least or at most that age.
+   *   - `company` and `role` can be comma-separated lists (`role=admin,editor`),
+   *     which match users with *any* of the listed companies or roles.
+   *   - `company` matches (case-insensitively) any company it's part of.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *    used to construct the filter
-   * @return a Bson filter document that can be used in the `find` method
-   *   to filter the database collection of users
+   * @return the filter, which can be turned into a Bson filter document or
+   *   checked against the in-memory copy of the users
    */
-  private Bson constructFilter(Context ctx) {
-    List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
-
-    if (ctx.queryParamMap().containsKey(AGE_KEY)) {
-      int targetAge = ctx.queryParamAsClass(AGE_KEY, Integer.class)
-        .check(it -> it > 0, "User's age must be greater than zero; you provided " + ctx.queryParam(AGE_KEY))
-        .check(it -> it < REASONABLE_AGE_LIMIT,
-          "User's age must be less than " + REASONABLE_AGE_LIMIT + "; you provided " + ctx.queryParam(AGE_KEY))
+  static UserFilter parseFilter(Context ctx) {
+    List<String> roleList = List.of();
+    if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
+      String roles = ctx.queryParamAsClass(ROLE_KEY, String.class)
+        .check(it -> !splitList(it).isEmpty() && splitList(it).stream().allMatch(Role::isRole),
+          "User must have a legal user role")
         .get();
-      filters.add(eq(AGE_KEY, targetAge));
+      roleList = splitList(roles);
     }
+    List<Pattern> patterns = List.of();
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
-      filters.add(regex(COMPANY_KEY, pattern));
+      patterns = splitList(ctx.queryParam(COMPANY_KEY)).stream()
+        .map(company -> Pattern.compile(Pattern.quote(company), Pattern.CASE_INSENSITIVE))
+        .toList();
     }
-    if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
-      String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
-        .check(it -> it.matches(ROLE_REGEX), "User must have a legal user role")
-        .get();
-      filters.add(eq(ROLE_KEY, role));
+    Integer age = ctx.queryParamMap().containsKey(AGE_KEY) ? ageParam(ctx, AGE_KEY) : null;
+    Integer minAge = ctx.queryParamMap().containsKey(MIN_AGE_KEY) ? ageParam(ctx, MIN_AGE_KEY) : null;
+    Integer maxAge = ctx.queryParamMap().containsKey(MAX_AGE_KEY) ? ageParam(ctx, MAX_AGE_KEY) : null;
+    if (minAge != null && maxAge != null && minAge > maxAge) {
+      throw new BadRequestResponse(
+        "The minimum age (" + minAge + ") must not be more than the maximum age (" + maxAge + ")");
     }
+    return new UserFilter(roleList, patterns, age, minAge, maxAge);
+  }
 
-    // Combine the list of filters into a single filtering document.
-    Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
+  /**
+   * Get an age (or minimum or maximum age) from the query parameters, making
+   * sure it's a reasonable age for a user.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param key the name of the query parameter
+   * @return the age
+   */
+  private static int ageParam(Context ctx, String key) {
+    return ctx.queryParamAsClass(key, Integer.class)
+      .check(it -> it > 0, "User's age must be greater than zero; you provided " + ctx.queryParam(key))
+      .check(it -> it < REASONABLE_AGE_LIMIT,
+        "User's age must be less than " + REASONABLE_AGE_LIMIT + "; you provided " + ctx.queryParam(key))
+      .get();
+  }
 
-    return combinedFilter;
+  /**
+   * Split a comma-separated list from a query parameter.
+   *
+   * @param list the comma-separated list
+   * @return the (trimmed, non-empty) items in the list
+   */
+  private static List<String> splitList(String list) {
+    return Arrays.stream(list.split(","))
+      .map(String::trim)
+      .filter(item -> !item.isEmpty())
+      .toList();
   }
 
   /**
-   * Construct a Bson sorting document to use in the `sort` method based on the
-   * query parameters from the context.
+   * Plan how to sort the users based on the query parameters from the
+   * context.
    *
    * This checks for the presence of the `sortby` and `sortorder` query
-   * parameters and constructs a sorting document that will sort users by
-   * the specified field in the specified order. If the `sortby` query
-   * parameter is not present, it defaults to "name". If the `sortorder`
-   * query parameter is not present, it defaults to "asc".
+   * parameters and plans a sort of the users by the specified fields (a
+   * comma-separated list, like `company,name`) in the specified order. If
+   * the `sortby` query parameter is not present, it defaults to "name". If
+   * the `sortorder` query parameter is not present, it defaults to "asc".
+   *
+   * Sorts that none of our indexes provide are either rejected or allowed
+   * with a cap on the results, depending on how the controller was
+   * configured (see `SortPlanner`).
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *   used to construct the sorting order
-   * @return a Bson sorting document that can be used in the `sort` method
-   *  to sort the database collection of users
-   */
-  private Bson constructSortingOrder(Context ctx) {
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
-    return sortingOrder;
+   * @return the plan for the sort, whose `toBson()` can be used in the
+   *   `sort` method to sort the database collection of users
+   */
+  private SortPlanner.Plan planSortingOrder(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam(SORT_BY_KEY), NAME_KEY);
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
+    return sortPlanner.plan(sortBy, sortOrder);
   }
 
   /**
@@ -187,59 +1066,131 @@ public class UserController implements Controller {
    * and the company name, the number of users in that company, and the list of user
    * names and IDs are stored in `UserByCompany` objects.
    *
+   * So that one large company can't make the response (or any single document
+   * in the aggregation) arbitrarily large, each company only lists its first
+   * `memberLimit` users by name (default 100, at most 1000); its `count` is
+   * still the total. The `limit` and `offset` query parameters page through
+   * the companies themselves, so, e.g., `sortBy=count&sortOrder=desc&limit=10`
+   * gets the ten biggest companies.
+   *
+   * Like `getUsers`, this is answered from the in-memory copy of the users,
+   * if we keep one and it's fresh enough.
+   *
    * @param ctx a Javalin HTTP context that provides the query parameters
    *   used to sort the results. We support either sorting by company name
    *   (in either `asc` or `desc` order) or by the number of users in the
    *   company (`count`, also in either `asc` or `desc` order).
    */
   public void getUsersGroupedByCompany(Context ctx) {
-    // We'll support sorting the results either by company name (in either `asc` or `desc` order)
-    // or by the number of users in the company (`count`, also in either `asc` or `desc` order).
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortBy"), "_id");
-    if (sortBy.equals("company")) {
-      sortBy = "_id";
-    }
+    String sortBy = companySortBy(ctx);
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
     Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    if (sortBy.equals("count")) {
+      // Break ties between companies with the same count by name, so pages
+      // of companies don't overlap.
+      sortingOrder = Sorts.orderBy(sortingOrder, Sorts.ascending("_id"));
+    }
+    int memberLimit = pageParam(ctx, MEMBER_LIMIT_KEY, DEFAULT_MEMBER_LIMIT, 0, MAX_MEMBER_LIMIT);
+    boolean paged = ctx.queryParamMap().containsKey(LIMIT_KEY) || ctx.queryParamMap().containsKey(OFFSET_KEY);
+
+    UserColumns columns = freshReplica();
+    if (columns != null) {
+      // The in-memory copy knows how many users each company has (it's the
+      // size of the company's bitmap), and only has to look at the users of
+      // the companies on the page to list them.
+      ctx.json(columns.byCompany(sortBy.equals("count"), sortOrder.equals("desc"),
+        paged ? pageParam(ctx, OFFSET_KEY, 0, 0, Integer.MAX_VALUE) : 0,
+        paged ? pageParam(ctx, LIMIT_KEY, DEFAULT_PAGE_SIZE, 1, MAX_PAGE_SIZE) : Integer.MAX_VALUE,
+        memberLimit));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
 
     // The `UserByCompany` class is a simple class that has fields for the company
     // name, the number of users in that company, and a list of user names and IDs
     // (using the `UserIdName` class to store the user names and IDs).
     // We're going to use the aggregation pipeline to group users by company, and
     // then count the number of users in each company. We'll also collect the user
-    // names and IDs for each user in each company. We'll then convert the results
-    // of the aggregation pipeline to `UserByCompany` objects.
+    // names and IDs for (some of the) users in each company. We'll then convert the
+    // results of the aggregation pipeline to `UserByCompany` objects.
+    List<Bson> pipeline = new ArrayList<>(List.of(
+      // Sort by, and project, only the company. Together these let Mongo count
+      // the users in each company by just walking the `{company, name}` index,
+      // without reading any of the users themselves.
+      new Document("$sort", new Document(COMPANY_KEY, 1)),
+      new Document("$project", new Document("_id", 0).append(COMPANY_KEY, 1)),
+      // Group the users by company, and count the number of users in each company
+      new Document("$group", new Document("_id", "$company")
+        .append("count", new Document("$sum", 1))),
+      // Sort the results. Use the `sortBy` query param (default "company")
+      // as the field to sort by, and the query param `sortOrder` (default
+      // "asc") to specify the sort order.
+      Aggregates.sort(sortingOrder)));
+
+    // Only page through the companies if we're asked to. A `$sort` followed
+    // by a `$limit` only has to keep the top companies in memory.
+    if (paged) {
+      pipeline.add(Aggregates.skip(pageParam(ctx, OFFSET_KEY, 0, 0, Integer.MAX_VALUE)));
+      pipeline.add(Aggregates.limit(pageParam(ctx, LIMIT_KEY, DEFAULT_PAGE_SIZE, 1, MAX_PAGE_SIZE)));
+    }
+
+    // Only now, when we know which companies we're returning, collect the
+    // names and IDs of (at most `memberLimit` of) the users in each one, in
+    // order by name. Each of these lookups is a short walk of the
+    // `{company, name}` index, so we never gather every user of a large
+    // company into a single document.
+    if (memberLimit == 0) {
+      // Mongo won't `$limit` to zero, and there's nothing to look up anyway.
+      pipeline.add(new Document("$set", new Document("users", List.of())));
+    } else {
+      pipeline.add(new Document("$lookup", new Document("from", userCollection.getNamespace().getCollectionName())
+        .append("localField", "_id")
+        .append("foreignField", COMPANY_KEY)
+        .append("pipeline", List.of(
+          new Document("$sort", new Document(NAME_KEY, 1)),
+          new Document("$limit", memberLimit),
+          new Document("$project", new Document("_id", 1).append(NAME_KEY, 1))))
+        .append("as", "users")));
+    }
 
     ArrayList<UserByCompany> matchingUsers = userCollection
-      // The following aggregation pipeline groups users by company, and
-      // then counts the number of users in each company. It also collects
-      // the user names and IDs for each user in each company.
       .aggregate(
-        List.of(
-          // Project the fields we want to use in the next step, i.e., the _id, name, and company fields
-          new Document("$project", new Document("_id", 1).append("name", 1).append("company", 1)),
-          // Group the users by company, and count the number of users in each company
-          new Document("$group", new Document("_id", "$company")
-            // Count the number of users in each company
-            .append("count", new Document("$sum", 1))
-            // Collect the user names and IDs for each user in each company
-            .append("users", new Document("$push", new Document("_id", "$_id").append("name", "$name")))),
-          // Sort the results. Use the `sortby` query param (default "company")
-          // as the field to sort by, and the query param `sortorder` (default
-          // "asc") to specify the sort order.
-          new Document("$sort", sortingOrder)
-        ),
+        pipeline,
         // Convert the results of the aggregation pipeline to UserGroupResult objects
         // (i.e., a list of UserGroupResult objects). It is necessary to have a Java type
         // to convert the results to, and the JacksonMongoCollection will do this for us.
         UserByCompany.class
       )
+      // With a lot of companies, grouping them (or sorting them by count) can
+      // need more memory than Mongo allows a stage; let it use disk instead
+      // of failing.
+      .allowDiskUse(true)
       .into(new ArrayList<>());
 
     ctx.json(matchingUsers);
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * Get what to sort companies by for `/api/usersByCompany`: either by
+   * company name (`_id`, which `company` is another name for), or by the
+   * number of users in the company (`count`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @return `_id` or `count`
+   * @throws BadRequestResponse if `sortBy` is something else
+   */
+  static String companySortBy(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortBy"), "_id");
+    if (sortBy.equals("company")) {
+      sortBy = "_id";
+    }
+    if (!sortBy.equals("_id") && !sortBy.equals("count")) {
+      throw new BadRequestResponse("Companies can only be sorted by company or count; you provided " + sortBy);
+    }
+    return sortBy;
+  }
+
   /**
    * Add a new user using information from the context
    * (as long as the information gives "legal" values to User fields)
@@ -248,6 +1199,45 @@ public class UserController implements Controller {
    *  in the JSON body of the request
    */
   public void addNewUser(Context ctx) {
+    User newUser = validNewUser(ctx);
+
+    // Generate a user avatar (you won't need this part for todos)
+    newUser.avatar = generateAvatar(newUser.email);
+    // New users start at the first version, whatever the client says.
+    newUser.version = 0;
+
+    WriteDurability durability = durabilityParam(ctx);
+    if (asyncParam(ctx)) {
+      // Pick the new user's ID now, so we can tell the client what it will be.
+      newUser._id = new ObjectId().toHexString();
+      respondAccepted(ctx, newUser._id, asyncWrites.submit(() -> insertUser(newUser, durability)));
+      return;
+    }
+
+    // Add the new user to the database
+    insertUser(newUser, durability);
+
+    // Set the JSON response to be the `_id` of the newly created user.
+    // This gives the client the opportunity to know the ID of the new user,
+    // which it can then use to perform further operations (e.g., a GET request
+    // to get and display the details of the new user).
+    ctx.json(Map.of("id", newUser._id));
+    // 201 (`HttpStatus.CREATED`) is the HTTP code for when we successfully
+    // create a new resource (a user in this case).
+    // See, e.g., https://developer.mozilla.org/en-US/docs/Web/HTTP/Status
+    // for a description of the various response codes.
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Read a new user from the JSON body of a request, making sure it's a
+   * "legal" user.
+   *
+   * @param ctx a Javalin HTTP context that provides the user info
+   *  in the JSON body of the request
+   * @return the new user
+   */
+  static User validNewUser(Context ctx) {
     /*
      * The follow chain of statements uses the Javalin validator system
      * to verify that instance of `User` provided in this context is
@@ -263,7 +1253,7 @@ public class UserController implements Controller {
      * `BadRequestResponse` with an appropriate error message.
      */
     String body = ctx.body();
-    User newUser = ctx.bodyValidator(User.class)
+    return ctx.bodyValidator(User.class)
       .check(usr -> usr.name != null && usr.name.length() > 0,
         "User must have a non-empty user name; body was " + body)
       .check(usr -> usr.email.matches(EMAIL_REGEX),
@@ -272,28 +1262,11 @@ public class UserController implements Controller {
         "User's age must be greater than zero; body was " + body)
       .check(usr -> usr.age < REASONABLE_AGE_LIMIT,
         "User's age must be less than " + REASONABLE_AGE_LIMIT + "; body was " + body)
-      .check(usr -> usr.role.matches(ROLE_REGEX),
+      .check(usr -> Role.isRole(usr.role),
         "User must have a legal user role; body was " + body)
       .check(usr -> usr.company != null && usr.company.length() > 0,
         "User must have a non-empty company name; body was " + body)
       .get();
-
-    // Generate a user avatar (you won't need this part for todos)
-    newUser.avatar = generateAvatar(newUser.email);
-
-    // Add the new user to the database
-    userCollection.insertOne(newUser);
-
-    // Set the JSON response to be the `_id` of the newly created user.
-    // This gives the client the opportunity to know the ID of the new user,
-    // which it can then use to perform further operations (e.g., a GET request
-    // to get and display the details of the new user).
-    ctx.json(Map.of("id", newUser._id));
-    // 201 (`HttpStatus.CREATED`) is the HTTP code for when we successfully
-    // create a new resource (a user in this case).
-    // See, e.g., https://developer.mozilla.org/en-US/docs/Web/HTTP/Status
-    // for a description of the various response codes.
-    ctx.status(HttpStatus.CREATED);
   }
 
   /**
@@ -303,9 +1276,17 @@ public class UserController implements Controller {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", new ObjectId(id)));
+    WriteDurability durability = durabilityParam(ctx);
+    if (asyncParam(ctx)) {
+      respondAccepted(ctx, id, asyncWrites.submit(() -> {
+        if (!removeUser(id, durability)) {
+          throw new NotFoundResponse("There was no user with ID " + id + " to delete");
+        }
+      }));
+      return;
+    }
     // We should have deleted 1 or 0 users, depending on whether `id` is a valid user ID.
-    if (deleteResult.getDeletedCount() != 1) {
+    if (!removeUser(id, durability)) {
       ctx.status(HttpStatus.NOT_FOUND);
       throw new NotFoundResponse(
         "Was unable to delete ID "
@@ -315,6 +1296,205 @@ public class UserController implements Controller {
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * Change some of the fields of the user with the specified `id`, with the
+   * changes (see `UserPatch`) in the JSON body of the request, and respond
+   * with the updated user.
+   *
+   * The changes are made with a single `findOneAndUpdate` that `$set`s the
+   * changed fields and bumps the user's `version`, and only matches the
+   * user if it's still at the `version` the client sent. So there's no
+   * read-modify-write race: if someone else changed the user first, this
+   * update doesn't happen, and the client gets `409 Conflict` (and should
+   * get the user again and redo its changes). The avatar is only
+   * regenerated if the email is changed.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateUser(Context ctx) {
+    String id = ctx.pathParam("id");
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(id);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+
+    // The same checks as for a new user, but only of the fields being changed.
+    String body = ctx.body();
+    UserPatch patch = ctx.bodyValidator(UserPatch.class)
+      .check(p -> p.version != null,
+        "The changes must include the version of the user they're changing; body was " + body)
+      .check(p -> p.otherFields().isEmpty(),
+        "Only name, age, company, email, and role can be changed; body was " + body)
+      .check(p -> p.hasChanges(),
+        "The changes must change at least one field; body was " + body)
+      .check(p -> p.name == null || p.name.length() > 0,
+        "User must have a non-empty user name; body was " + body)
+      .check(p -> p.email == null || p.email.matches(EMAIL_REGEX),
+        "User must have a legal email; body was " + body)
+      .check(p -> p.age == null || p.age > 0,
+        "User's age must be greater than zero; body was " + body)
+      .check(p -> p.age == null || p.age < REASONABLE_AGE_LIMIT,
+        "User's age must be less than " + REASONABLE_AGE_LIMIT + "; body was " + body)
+      .check(p -> p.role == null || Role.isRole(p.role),
+        "User must have a legal user role; body was " + body)
+      .check(p -> p.company == null || p.company.length() > 0,
+        "User must have a non-empty company name; body was " + body)
+      .get();
+
+    List<Bson> changes = new ArrayList<>();
+    addChange(changes, NAME_KEY, patch.name);
+    addChange(changes, AGE_KEY, patch.age);
+    addChange(changes, COMPANY_KEY, patch.company);
+    addChange(changes, ROLE_KEY, patch.role);
+    String avatar = null;
+    if (patch.email != null) {
+      avatar = generateAvatar(patch.email);
+      addChange(changes, EMAIL_KEY, patch.email);
+      addChange(changes, AVATAR_KEY, avatar);
+    }
+    changes.add(Updates.inc(VERSION_KEY, 1));
+
+    // Users from before we had versions don't have one, and count as version 0.
+    Bson atVersion = patch.version == 0
+      ? Filters.or(eq(VERSION_KEY, 0L), Filters.exists(VERSION_KEY, false))
+      : eq(VERSION_KEY, patch.version);
+    User before = durableCollections.get(durabilityParam(ctx)).findOneAndUpdate(
+      and(eq("_id", objectId), atVersion),
+      Updates.combine(changes),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+
+    if (before == null) {
+      // Only now do we need to know why: is there no such user, or has it changed?
+      User current = userCollection.find(eq("_id", objectId)).projection(Projections.include(VERSION_KEY)).first();
+      if (current == null) {
+        throw new NotFoundResponse("The requested user was not found");
+      }
+      throw new ConflictResponse("The user has been changed since version " + patch.version
+        + " (it's at version " + current.version + " now); get it again and redo the changes");
+    }
+
+    User after = patch.applyTo(before, avatar);
+    for (UserChangeListener listener : changeListeners) {
+      listener.userUpdated(before, after);
+    }
+    ctx.json(after);
+    ctx.status(HttpStatus.OK);
+  }
+
+  private static void addChange(List<Bson> changes, String field, Object value) {
+    if (value != null) {
+      changes.add(Updates.set(field, value));
+    }
+  }
+
+  /**
+   * Report how an asynchronous write (one made with `?async=true`) went, as
+   * `{"id": ..., "state": "pending"}` (or `"done"`, or `"failed"` with an
+   * `"error"` saying why).
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getWriteStatus(Context ctx) {
+    String id = ctx.pathParam("id");
+    AsyncWrites.Status status = asyncWrites.status(id);
+    if (status == null) {
+      throw new NotFoundResponse("No write with ID " + id + "; perhaps it finished too long ago?");
+    }
+    Map<String, String> body = new LinkedHashMap<>();
+    body.put("id", id);
+    body.put("state", status.state().name().toLowerCase(Locale.ROOT));
+    if (status.error() != null) {
+      body.put("error", status.error());
+    }
+    ctx.json(body);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * @return how many asynchronous writes haven't been done yet
+   */
+  @Override
+  public int pendingWrites() {
+    return asyncWrites.pending();
+  }
+
+  /**
+   * Add a new user to the database (along with any other new users being
+   * added at about the same time, if we're coalescing inserts), and tell
+   * the change listeners about it.
+   */
+  private void insertUser(User newUser, WriteDurability durability) {
+    if (insertBatchSize > 1) {
+      writeCoalescers.computeIfAbsent(durability,
+        d -> new WriteCoalescer<>(durableCollections.get(d), insertBatchSize, insertBatchWindow)).insert(newUser);
+    } else {
+      durableCollections.get(durability).insertOne(newUser);
+    }
+    for (UserChangeListener listener : changeListeners) {
+      listener.userAdded(newUser);
+    }
+  }
+
+  /**
+   * Delete a user from the database, and tell the change listeners about it.
+   *
+   * @return whether there was a user with that ID to delete
+   */
+  private boolean removeUser(String id, WriteDurability durability) {
+    // `findOneAndDelete` (rather than `deleteOne`) hands us back the user we
+    // deleted, which the change listeners need to update their indexes.
+    User deletedUser = durableCollections.get(durability).findOneAndDelete(eq("_id", new ObjectId(id)));
+    if (deletedUser == null) {
+      return false;
+    }
+    for (UserChangeListener listener : changeListeners) {
+      listener.userDeleted(deletedUser);
+    }
+    return true;
+  }
+
+  /**
+   * Get the durability a write request asks for with `?durability=...`, or
+   * the default one if it doesn't ask.
+   *
+   * @throws io.javalin.validation.ValidationException if it asks for one there isn't
+   */
+  private WriteDurability durabilityParam(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(DURABILITY_KEY)) {
+      return defaultDurability;
+    }
+    return WriteDurability.fromName(ctx.queryParamAsClass(DURABILITY_KEY, String.class)
+      .check(WriteDurability::isName, "Durability must be acknowledged, journaled, or majority")
+      .get());
+  }
+
+  /**
+   * @return whether a write request asks (with `?async=true`) to be done in the background
+   * @throws io.javalin.validation.ValidationException if `async` isn't true or false
+   */
+  private boolean asyncParam(Context ctx) {
+    if (!ctx.queryParamMap().containsKey(ASYNC_KEY)) {
+      return false;
+    }
+    return Boolean.parseBoolean(ctx.queryParamAsClass(ASYNC_KEY, String.class)
+      .check(it -> it.equals("true") || it.equals("false"), "Async must be true or false")
+      .get());
+  }
+
+  /**
+   * Respond to a write request that we've queued to be done in the
+   * background with `202 Accepted`, the ID of the user it's writing, and
+   * (in the body and the `Location` header) where to check on its status.
+   */
+  private static void respondAccepted(Context ctx, String userId, String writeId) {
+    String statusPath = API_USER_WRITES + writeId;
+    ctx.header(Header.LOCATION, statusPath);
+    ctx.json(Map.of("id", userId, "status", statusPath));
+    ctx.status(HttpStatus.ACCEPTED);
+  }
+
   /**
    * Utility function to generate an URI that points
    * at a unique avatar image based on a user's email.
@@ -340,12 +1520,33 @@ public class UserController implements Controller {
     return avatar;
   }
 
+  /**
+   * The avatar `generateAvatar()` makes, for controllers that don't have a
+   * `UserController` to ask (like `PartitionedUserController`). The tests
+   * stub out `md5()` to check `generateAvatar()`, which is why that one
+   * still goes through it.
+   *
+   * @param email the email to generate an avatar for
+   * @return a URI pointing to an avatar image
+   */
+  static String avatarFor(String email) {
+    try {
+      return "https://gravatar.com/avatar/" + md5Hex(email) + "?d=identicon";
+    } catch (NoSuchAlgorithmException ignored) {
+      return "https://gravatar.com/avatar/?d=mp";
+    }
+  }
+
   /**
    * Utility function to generate the md5 hash for a given string
    *
    * @param str the string to generate a md5 for
    */
   public String md5(String str) throws NoSuchAlgorithmException {
+    return md5Hex(str);
+  }
+
+  private static String md5Hex(String str) throws NoSuchAlgorithmException {
     MessageDigest md = MessageDigest.getInstance("MD5");
     byte[] hashInBytes = md.digest(str.toLowerCase().getBytes(StandardCharsets.UTF_8));
 
@@ -360,13 +1561,29 @@ public class UserController implements Controller {
    * Setup routes for the `user` collection endpoints.
    *
    * These endpoints are:
+   *   - `GET /api/users/search?q=STRING&limit=NUMBER&offset=NUMBER`
+   *       - Search users by name, company, and email, best match first
+   *   - `GET /api/users/autocomplete?field=name|company&prefix=STRING&limit=NUMBER`
+   *       - Suggest the most common names or companies starting with `prefix`
+   *   - `GET /api/users/fuzzy?name=STRING&limit=NUMBER`
+   *       - Get users with names close to `name`, allowing for typos
+   *   - `GET /api/users/facets?age=NUMBER&company=STRING&role=STRING&limit=NUMBER&offset=NUMBER`
+   *       - Get a page of (filtered) users along with counts by role, company, and age
+   *   - `GET /api/users/replica`
+   *       - See how up to date (and how big) the in-memory copy of the users is, if we keep one
    *   - `GET /api/users/:id`
    *       - Get the specified user
-   *   - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
+   *   - `GET /api/users?age=NUMBER&minAge=NUMBER&maxAge=NUMBER&company=STRING&role=STRING`
    *      - List users, filtered using query parameters
-   *      - `age`, `company`, and `name` are optional query parameters
-   *   - `GET /api/usersByCompany`
+   *      - All of the query parameters are optional; `company` and `role` can
+   *        be comma-separated lists
+   *      - Add `limit=NUMBER&offset=NUMBER` to get one page of the users, and
+   *        `count=true` to get the total number of matching users in a header
+   *      - Add `sortby=FIELD,FIELD&sortorder=asc|desc` to sort the users; the
+   *        default is by name
+   *   - `GET /api/usersByCompany?sortBy=company|count&sortOrder=asc|desc&memberLimit=NUMBER`
    *     - Get user names and IDs, possibly filtered, grouped by company
+   *     - Add `limit=NUMBER&offset=NUMBER` to get one page of the companies
    *   - `DELETE /api/users/:id`
    *      - Delete the specified user
    *   - `POST /api/users`
@@ -384,20 +1601,77 @@ public class UserController implements Controller {
    * @param userController The controller that handles the user endpoints
    */
   public void addRoutes(Javalin server) {
+    // Search the users. This has to come before `/api/users/{id}`, since
+    // Javalin uses the first route that matches, and "search" would make a
+    // fine (if not very legal) user ID.
+    server.get(API_USERS_SEARCH, responseCache.cached(readCoalescer.coalesce(this::searchUsers)));
+
+    // Suggest completions for names and companies. (Like search, this has to
+    // come before `/api/users/{id}`.) These lookups are cheaper than
+    // checking the response cache would be, so they aren't cached.
+    server.get(API_USERS_AUTOCOMPLETE, this::autocomplete);
+
+    // Find users by misspelled names (also before `/api/users/{id}`).
+    server.get(API_USERS_FUZZY, responseCache.cached(readCoalescer.coalesce(this::getUsersByFuzzyName)));
+
+    // Get a page of users along with facet counts (also before `/api/users/{id}`).
+    server.get(API_USERS_FACETS, responseCache.cached(readCoalescer.coalesce(this::getUserFacets)));
+
+    // How up to date the in-memory copy of the users is (also before `/api/users/{id}`).
+    server.get(API_USERS_REPLICA, this::getReplicaFreshness);
+
     // Get the specified user
     server.get(API_USER_BY_ID, this::getUser);
 
-    // List users, filtered using query parameters
-    server.get(API_USERS, this::getUsers);
+    // List users, filtered using query parameters. Recently rendered lists
+    // are served straight from the response cache, and identical requests
+    // that miss the cache at the same time share a single query.
+    server.get(API_USERS, responseCache.cached(readCoalescer.coalesce(this::getUsers)));
 
     // Get the users, possibly filtered, grouped by company
-    server.get("/api/usersByCompany", this::getUsersGroupedByCompany);
+    server.get(API_USERS_BY_COMPANY,
+      responseCache.cached(readCoalescer.coalesce(this::getUsersGroupedByCompany)));
 
     // Add new user with the user info being in the JSON body
-    // of the HTTP request
-    server.post(API_USERS, this::addNewUser);
+    // of the HTTP request. Retries of a request with the same
+    // `Idempotency-Key` get the first one's response, rather than
+    // adding the user again.
+    server.post(API_USERS, idempotencyKeys.idempotent(this::addNewUser));
+
+    // Change some of the fields of the specified user
+    server.patch(API_USER_BY_ID, this::updateUser);
 
     // Delete the specified user
     server.delete(API_USER_BY_ID, this::deleteUser);
+
+    // Check on a write that's being done in the background
+    server.get(API_USER_WRITE_BY_ID, this::getWriteStatus);
+  }
+
+  /**
+   * The requests to warm the server up with: the user listings (with the
+   * common filters, sorts, and counts), search, completions, fuzzy lookups,
+   * facets, and the users grouped by company. None of them change anything.
+   *
+   * The page size changes from round to round, so the requests miss the
+   * response cache and actually exercise the handlers and Mongo queries.
+   *
+   * @param round which round of warmup requests this is, starting at 0
+   * @return the paths (with query strings) to request
+   */
+  @Override
+  public List<String> warmupPaths(int round) {
+    int limit = round % MAX_PAGE_SIZE + 1;
+    return List.of(
+      API_USERS + "?count=true&limit=" + limit,
+      API_USERS + "?role=viewer&limit=" + limit,
+      // `minAge` has to be at least 1, or we'd turn the request away.
+      API_USERS + "?minAge=" + (round % (REASONABLE_AGE_LIMIT - 1) + 1) + "&limit=" + limit,
+      API_USERS + "?company=a&sortby=company,name&limit=" + limit,
+      API_USERS_SEARCH + "?q=a&limit=" + limit,
+      API_USERS_AUTOCOMPLETE + "?prefix=a&limit=" + (round % MAX_COMPLETIONS + 1),
+      API_USERS_FUZZY + "?name=sam&limit=" + limit,
+      API_USERS_FACETS + "?limit=" + limit,
+      API_USERS_BY_COMPANY + "?memberLimit=" + limit);
   }
 }
@@ -0,0 +1,18 @@
+package umm3601.user;
+
+import java.util.List;
+
+/**
+ * One page of the users matching some filters, along with how many of
+ * *all* the matching users have each role, work for each company, and
+ * fall in each age bucket. (Age buckets are labeled with the lowest age
+ * in the bucket.)
+ */
+@SuppressWarnings("checkstyle:visibilitymodifier")
+public class UserFacets {
+  public List<User> users;
+  public long total;
+  public List<FacetCount> roles;
+  public List<FacetCount> companies;
+  public List<FacetCount> ageBuckets;
+}
@@ -0,0 +1,84 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * The filters a listing of users (like `getUsers`) can be asked for, as
+ * read from the query parameters by `UserController.parseFilter()`. A user
+ * has to pass all of them to match.
+ *
+ * This can be turned into a Mongo filter (`toBson()`), or checked against
+ * users directly (see `UserColumns`); the two always agree.
+ *
+ * @param roles the roles to match any of, or an empty list for any role
+ * @param companies case-insensitive patterns to find *any* of in the
+ *   company, or an empty list for any company
+ * @param age the exact age to match, or `null`
+ * @param minAge the smallest age to match, or `null`
+ * @param maxAge the largest age to match, or `null`
+ */
+record UserFilter(List<String> roles, List<Pattern> companies, Integer age, Integer minAge, Integer maxAge) {
+
+  /**
+   * @return a filter document for the `find` method, with the filters built
+   *   equality first, then ranges, to mirror the order of the fields in the
+   *   compound indexes made in `UserController.createIndexes()`
+   */
+  Bson toBson() {
+    List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
+
+    if (!roles.isEmpty()) {
+      filters.add(roles.size() == 1
+        ? eq(UserController.ROLE_KEY, roles.get(0))
+        : in(UserController.ROLE_KEY, roles));
+    }
+    if (companies.size() == 1) {
+      filters.add(regex(UserController.COMPANY_KEY, companies.get(0)));
+    } else if (companies.size() > 1) {
+      filters.add(in(UserController.COMPANY_KEY, companies));
+    }
+    if (age != null) {
+      filters.add(eq(UserController.AGE_KEY, age));
+    }
+    if (minAge != null) {
+      filters.add(gte(UserController.AGE_KEY, minAge));
+    }
+    if (maxAge != null) {
+      filters.add(lte(UserController.AGE_KEY, maxAge));
+    }
+
+    // Combine the list of filters into a single filtering document.
+    return filters.isEmpty() ? new Document() : and(filters);
+  }
+
+  /**
+   * @return whether a user with this company passes the company filter,
+   *   the way Mongo's `$regex` would decide it
+   */
+  boolean matchesCompany(String company) {
+    if (companies.isEmpty()) {
+      return true;
+    }
+    // A regex never matches a missing company.
+    return company != null && companies.stream().anyMatch(pattern -> pattern.matcher(company).find());
+  }
+
+  /**
+   * @return whether a user with this role passes the role filter
+   */
+  boolean matchesRole(String role) {
+    return roles.isEmpty() || roles.contains(role);
+  }
+}
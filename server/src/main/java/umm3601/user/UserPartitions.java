@@ -0,0 +1,457 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+
+/**
+ * The users, split across the `users` collections of several Mongo
+ * databases (normally each on its own `mongod`), for when one `mongod`
+ * can't hold (or keep up with) all of them.
+ *
+ * Each user lives in exactly one *partition*, picked by hashing its `_id`
+ * (see `partitionOf()`), so getting, adding, or deleting a user by id only
+ * involves that one partition. Anything else (listing, counting, grouping
+ * by company) is asked of every partition at once, on a thread for each,
+ * and the partial answers are merged: sorted lists of users with a k-way
+ * merge, and counts by adding them up.
+ *
+ * When the partitions change (one is added or taken away), most users'
+ * `_id`s hash to a different partition than the one they're in; see
+ * `rebalance()` and `drain()`, and the `Rebalancer` tool that runs them.
+ * Until that's done, lookups by id that miss the user's home partition
+ * check the rest of them too, so no user goes missing in the meantime.
+ */
+public final class UserPartitions implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UserPartitions.class);
+
+  private static final String USERS = "users";
+
+  // How many queries we'll have running on each partition at once.
+  private static final int THREADS_PER_PARTITION = 16;
+
+  // The partitions, both as `User`s (for serving requests) and as raw
+  // documents (for moving them between partitions without losing anything).
+  private final List<JacksonMongoCollection<User>> partitions;
+  private final List<MongoCollection<Document>> documents;
+
+  private final ExecutorService pool;
+
+  /**
+   * Construct the partitions, making sure each has the indexes the
+   * `UserController` would give a single users collection.
+   *
+   * @param databases the databases holding the partitions, in order; the
+   *   order matters, since it's what the `_id`s hash to
+   */
+  public UserPartitions(List<MongoDatabase> databases) {
+    if (databases.isEmpty()) {
+      throw new IllegalArgumentException("There has to be at least one partition");
+    }
+    partitions = databases.stream()
+      .map(database -> JacksonMongoCollection.builder().build(database, USERS, User.class, UuidRepresentation.STANDARD))
+      .toList();
+    documents = databases.stream().map(database -> database.getCollection(USERS)).toList();
+    documents.forEach(UserController::createIndexes);
+    pool = Executors.newFixedThreadPool(databases.size() * THREADS_PER_PARTITION, runnable -> {
+      Thread thread = new Thread(runnable, "user-partitions");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return how many partitions there are
+   */
+  public int size() {
+    return partitions.size();
+  }
+
+  /**
+   * The partition a user with the given id belongs in. This only depends
+   * on the id and the number of partitions, so every server (and the
+   * `Rebalancer`) agrees on it.
+   *
+   * @param id a user's id
+   * @param partitions how many partitions there are
+   * @return the index of the user's partition
+   */
+  @SuppressWarnings({"MagicNumber"})
+  static int partitionOf(ObjectId id, int partitions) {
+    // The bytes of an id are mostly a timestamp and a counter, so scramble
+    // the bits (with the finishing step of MurmurHash3) before taking the
+    // remainder, to spread consecutive ids evenly.
+    int hash = Arrays.hashCode(id.toByteArray());
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return Math.floorMod(hash, partitions);
+  }
+
+  private JacksonMongoCollection<User> home(ObjectId id) {
+    return partitions.get(partitionOf(id, partitions.size()));
+  }
+
+  /**
+   * @param id a user's id
+   * @return the user with that id, or `null` if there isn't one
+   */
+  User find(ObjectId id) {
+    User user = home(id).find(eq("_id", id)).first();
+    if (user == null && partitions.size() > 1) {
+      // It may not have been moved to its home yet (see `rebalance()`).
+      user = scatter(partition -> partition.find(eq("_id", id)).first()).stream()
+        .filter(Objects::nonNull)
+        .findFirst()
+        .orElse(null);
+    }
+    return user;
+  }
+
+  /**
+   * Add a new user to its partition, giving it an `_id` first if it
+   * doesn't have one.
+   *
+   * @param user the user to add
+   */
+  void insert(User user) {
+    if (user._id == null) {
+      user._id = new ObjectId().toHexString();
+    }
+    home(new ObjectId(user._id)).insertOne(user);
+  }
+
+  /**
+   * @param id a user's id
+   * @return the user we deleted, or `null` if there wasn't one with that id
+   */
+  User delete(ObjectId id) {
+    if (partitions.size() == 1) {
+      return partitions.get(0).findOneAndDelete(eq("_id", id));
+    }
+    // Delete it everywhere, not just at home: while it's being moved (see
+    // `rebalance()`), or if a move was interrupted, there can be a copy in
+    // its old partition too, and the next rebalance would bring that back.
+    return scatter(partition -> partition.findOneAndDelete(eq("_id", id))).stream()
+      .filter(Objects::nonNull)
+      .findFirst()
+      .orElse(null);
+  }
+
+  /**
+   * Find the users matching a filter, in order, a page at a time.
+   *
+   * Each partition sorts its own matching users (using its indexes, if
+   * they provide the order) and sends us just its first `offset + limit`
+   * of them, since none of the rest can be on the page. Those runs are
+   * then merged, a user at a time, until we've skipped `offset` users and
+   * have `limit` more.
+   *
+   * @param filter the filter (from `UserFilter.toBson()`)
+   * @param sort the order to put them in
+   * @param offset how many of the users to skip
+   * @param limit the most users to return
+   * @return the page of users
+   */
+  List<User> find(Bson filter, SortPlanner.Plan sort, int offset, int limit) {
+    int wanted = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+    List<List<User>> runs = scatter(partition -> {
+      FindIterable<User> found = partition.find(filter).sort(sort.toBson());
+      if (wanted < Integer.MAX_VALUE) {
+        found = found.limit(wanted);
+      }
+      if (!sort.indexed()) {
+        found = found.allowDiskUse(true);
+      }
+      return found.into(new ArrayList<>());
+    });
+    return merge(runs, order(sort), offset, limit);
+  }
+
+  /**
+   * Merge lists that are each already in order into one list in that
+   * order, keeping only the `limit` after the first `offset`.
+   */
+  static <T> List<T> merge(List<List<T>> runs, Comparator<? super T> order, int offset, int limit) {
+    // Each entry is a run and where we are in it; the one with the smallest
+    // next item comes out first.
+    PriorityQueue<int[]> next = new PriorityQueue<>(
+      (a, b) -> order.compare(runs.get(a[0]).get(a[1]), runs.get(b[0]).get(b[1])));
+    for (int run = 0; run < runs.size(); run++) {
+      if (!runs.get(run).isEmpty()) {
+        next.add(new int[] {run, 0});
+      }
+    }
+    List<T> merged = new ArrayList<>();
+    int skipped = 0;
+    while (!next.isEmpty() && merged.size() < limit) {
+      int[] at = next.poll();
+      List<T> run = runs.get(at[0]);
+      if (skipped < offset) {
+        skipped++;
+      } else {
+        merged.add(run.get(at[1]));
+      }
+      if (at[1] + 1 < run.size()) {
+        next.add(new int[] {at[0], at[1] + 1});
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * The order Mongo puts users in for a sort (missing values first, ties
+   * in no particular order), so the runs from the partitions merge in the
+   * same order a single collection would have given them.
+   */
+  static Comparator<User> order(SortPlanner.Plan sort) {
+    Comparator<String> strings = Comparator.nullsFirst(Comparator.naturalOrder());
+    Comparator<User> order = (a, b) -> 0;
+    for (String field : sort.fields()) {
+      switch (field) {
+        case UserController.NAME_KEY:
+          order = order.thenComparing(user -> user.name, strings);
+          break;
+        case UserController.AGE_KEY:
+          order = order.thenComparingInt(user -> user.age);
+          break;
+        case UserController.COMPANY_KEY:
+          order = order.thenComparing(user -> user.company, strings);
+          break;
+        case UserController.EMAIL_KEY:
+          order = order.thenComparing(user -> user.email, strings);
+          break;
+        case UserController.ROLE_KEY:
+          order = order.thenComparing(user -> user.role, strings);
+          break;
+        default:
+          // `_id`. The hex strings of ids are in the same order as the ids.
+          order = order.thenComparing(user -> user._id, strings);
+          break;
+      }
+    }
+    return sort.descending() ? order.reversed() : order;
+  }
+
+  /**
+   * @param filter a filter (from `UserFilter.toBson()`)
+   * @return how many users (in all the partitions) match it
+   */
+  long count(Bson filter) {
+    return scatter(partition -> partition.countDocuments(filter)).stream().mapToLong(Long::longValue).sum();
+  }
+
+  /**
+   * Group the users by company, the way `getUsersGroupedByCompany` does.
+   *
+   * Each partition counts its own users in each company, and we add those
+   * counts up (a company's users can be in any of the partitions) before
+   * sorting and paging through the companies. Then, for just the companies
+   * on the page, each partition sends its first `memberLimit` users by
+   * name, and we merge those.
+   *
+   * @param byCount whether to put the companies in order by how many users
+   *   they have (and then by name), rather than just by name
+   * @param descending whether to put them in descending order
+   * @param offset how many companies to skip
+   * @param limit the most companies to return
+   * @param memberLimit the most users to list for each company
+   * @return the page of companies
+   */
+  List<UserByCompany> byCompany(boolean byCount, boolean descending, int offset, int limit, int memberLimit) {
+    List<Bson> countByCompany = List.of(
+      new Document("$sort", new Document(UserController.COMPANY_KEY, 1)),
+      new Document("$project", new Document("_id", 0).append(UserController.COMPANY_KEY, 1)),
+      new Document("$group", new Document("_id", "$" + UserController.COMPANY_KEY)
+        .append("count", new Document("$sum", 1))));
+    // Users without a company are counted under a company of `null`.
+    Map<String, Integer> counts = new HashMap<>();
+    for (List<Document> partial : scatter(partition -> partition
+        .aggregate(countByCompany, Document.class)
+        .allowDiskUse(true)
+        .into(new ArrayList<>()))) {
+      partial.forEach(company -> counts.merge(company.getString("_id"), company.getInteger("count"), Integer::sum));
+    }
+
+    Comparator<String> byName = Comparator.nullsFirst(Comparator.naturalOrder());
+    Comparator<String> order;
+    if (byCount) {
+      Comparator<String> bySize = Comparator.comparingInt(counts::get);
+      // Ties are always broken by name, in ascending order.
+      order = (descending ? bySize.reversed() : bySize).thenComparing(byName);
+    } else {
+      order = descending ? byName.reversed() : byName;
+    }
+    List<String> page = counts.keySet().stream().sorted(order).skip(offset).limit(limit).toList();
+
+    List<Map<String, List<User>>> members = scatter(partition -> {
+      Map<String, List<User>> firstByName = new HashMap<>();
+      if (memberLimit > 0) {
+        for (String company : page) {
+          firstByName.put(company, partition.find(eq(UserController.COMPANY_KEY, company))
+            .sort(new Document(UserController.NAME_KEY, 1))
+            .limit(memberLimit)
+            .projection(Projections.include("_id", UserController.NAME_KEY))
+            .into(new ArrayList<>()));
+        }
+      }
+      return firstByName;
+    });
+    Comparator<User> membersByName = order(new SortPlanner.Plan(List.of(UserController.NAME_KEY), false, true));
+
+    List<UserByCompany> companies = new ArrayList<>();
+    for (String name : page) {
+      UserByCompany company = new UserByCompany();
+      company._id = name;
+      company.count = counts.get(name);
+      company.users = merge(members.stream().map(firstByName -> firstByName.getOrDefault(name, List.of())).toList(),
+          membersByName, 0, memberLimit).stream()
+        .map(user -> {
+          UserIdName idName = new UserIdName();
+          idName._id = user._id;
+          idName.name = user.name;
+          return idName;
+        })
+        .toList();
+      companies.add(company);
+    }
+    return companies;
+  }
+
+  /**
+   * Move every user that isn't in the partition its `_id` hashes to into
+   * that partition. Run this after adding (or reordering) partitions.
+   *
+   * Each user is copied to its home (replacing any copy already there)
+   * before it's deleted from where it was, so it's never missing, only
+   * (briefly) in two places; if this is interrupted (or a write fails) at
+   * any point, running it again finishes the job. The delete only matches
+   * the user exactly as we copied it: if it didn't match, the user was
+   * deleted (or changed) while we were copying it, so we take our copy back
+   * out and try again with whatever is there now. A `delete()` removes the
+   * user from every partition, so it can't leave a copy behind either.
+   *
+   * @return how many users were moved
+   */
+  public long rebalance() {
+    return IntStream.range(0, documents.size())
+      .mapToObj(partition -> CompletableFuture.supplyAsync(
+        () -> moveHome(documents.get(partition), partition), pool))
+      .toList().stream()
+      .mapToLong(UserPartitions::join)
+      .sum();
+  }
+
+  /**
+   * Move every user out of a database that isn't (any longer) one of the
+   * partitions, into the partitions they belong in. Run this before
+   * shutting down a partition that's been taken away.
+   *
+   * @param retired the database that used to hold a partition
+   * @return how many users were moved
+   */
+  public long drain(MongoDatabase retired) {
+    return moveHome(retired.getCollection(USERS), -1);
+  }
+
+  // Move the users in `from` (which is partition number `partition`, or
+  // -1 if it isn't one of them) that don't belong there to their homes.
+  private long moveHome(MongoCollection<Document> from, int partition) {
+    ReplaceOptions upsert = new ReplaceOptions().upsert(true);
+    long moved = 0;
+    for (Document found : from.find().projection(Projections.include("_id"))) {
+      ObjectId id = found.getObjectId("_id");
+      int home = partitionOf(id, documents.size());
+      if (home == partition) {
+        continue;
+      }
+      MongoCollection<Document> to = documents.get(home);
+      // Move the user as it is now; it's gone if it was deleted since we
+      // found it.
+      for (Document user = from.find(eq("_id", id)).first(); user != null; user = from.find(eq("_id", id)).first()) {
+        to.replaceOne(eq("_id", id), user, upsert);
+        // Filtering on the whole document only deletes it if it's still
+        // exactly what we copied.
+        if (from.deleteOne(user).getDeletedCount() > 0) {
+          moved++;
+          break;
+        }
+        // It changed (or went) under us, so our copy may be out of date,
+        // or bring back a deleted user.
+        to.deleteOne(user);
+      }
+    }
+    LOG.info("Moved {} users out of {} {}", moved,
+      partition < 0 ? "retired" : "partition " + partition, from.getNamespace());
+    return moved;
+  }
+
+  /**
+   * Ask every partition the same thing at once.
+   *
+   * @param query what to ask each partition
+   * @return the answers, in the order of the partitions
+   */
+  private <T> List<T> scatter(Function<JacksonMongoCollection<User>, T> query) {
+    if (partitions.size() == 1) {
+      return List.of(query.apply(partitions.get(0)));
+    }
+    List<CompletableFuture<T>> answers = partitions.stream()
+      .map(partition -> CompletableFuture.supplyAsync(() -> query.apply(partition), pool))
+      .toList();
+    // Not `Stream.toList()`: a partition with nothing to say answers `null`.
+    List<T> all = new ArrayList<>(answers.size());
+    for (CompletableFuture<T> answer : answers) {
+      all.add(join(answer));
+    }
+    return all;
+  }
+
+  // Wait for an answer, and throw whatever went wrong getting it as itself
+  // (e.g., a `MongoException`), rather than wrapped up.
+  private static <T> T join(CompletableFuture<T> answer) {
+    try {
+      return answer.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+}
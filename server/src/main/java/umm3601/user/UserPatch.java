@@ -0,0 +1,68 @@
+package umm3601.user;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+
+/**
+ * The body of a `PATCH /api/users/{id}` request: the fields of a user to
+ * change (any that are left out, or `null`, stay as they are), along with
+ * the `version` of the user the client is changing.
+ *
+ * The `version` is what keeps two clients from silently overwriting each
+ * other's changes: the update only happens if the user is still at that
+ * version (see `UserController.updateUser()`). A user's `_id` can't be
+ * changed, and its `avatar` follows from its email, so neither is here.
+ */
+// The fields are public for the same reason `User`'s are: Jackson sets them.
+@SuppressWarnings({"VisibilityModifier"})
+public class UserPatch {
+  public String name;
+  public Integer age;
+  public String company;
+  public String email;
+  public String role;
+
+  public Long version;
+
+  // Any other fields the body has, which can't be changed.
+  private final Set<String> otherFields = new TreeSet<>();
+
+  @JsonAnySetter
+  void setOtherField(String field, Object value) {
+    otherFields.add(field);
+  }
+
+  /**
+   * @return the fields in the body that can't be changed (e.g., `_id`)
+   */
+  public Set<String> otherFields() {
+    return otherFields;
+  }
+
+  /**
+   * @return whether this patch changes any fields at all
+   */
+  public boolean hasChanges() {
+    return name != null || age != null || company != null || email != null || role != null;
+  }
+
+  /**
+   * @param user a user, as it was before this patch was applied to it
+   * @param avatar the user's new avatar, if the email changed
+   * @return a copy of `user` with this patch applied (and its version bumped)
+   */
+  User applyTo(User user, String avatar) {
+    User patched = new User();
+    patched._id = user._id;
+    patched.name = name != null ? name : user.name;
+    patched.age = age != null ? age : user.age;
+    patched.company = company != null ? company : user.company;
+    patched.email = email != null ? email : user.email;
+    patched.avatar = email != null ? avatar : user.avatar;
+    patched.role = role != null ? role : user.role;
+    patched.version = user.version + 1;
+    return patched;
+  }
+}
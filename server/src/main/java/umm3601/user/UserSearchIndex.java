@@ -0,0 +1,317 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory inverted index over the names, companies, and emails of the
+ * users, used to answer `/api/users/search` without asking the database to
+ * scan (or even look at) every user.
+ *
+ * Each user is given a small integer *slot* when it's added, and every
+ * token in its name, company, or email maps to a postings list of the
+ * slots (and field weights) it appears in. A search walks the query
+ * tokens' postings, adds up, for each user in them, the weights of the
+ * query tokens it contains (scaled so that rare tokens count for more than
+ * common ones), and returns the best-scoring users' IDs.
+ *
+ * Deleting a user just empties its slot; the postings are compacted once
+ * enough of the slots are empty.
+ *
+ * The index is kept in sync with writes made through the `UserController`
+ * by registering it as a `UserChangeListener`, and rebuilt now and then to
+ * pick up any other writes (see `ReloadableIndex`). Searches and updates
+ * can safely happen at the same time.
+ */
+class UserSearchIndex implements UserChangeListener {
+
+  // How much a match in each field counts for. A match on someone's name is
+  // a much better sign that they're who you're looking for than a match on
+  // (say) the domain of their email address.
+  static final int NAME_WEIGHT = 3;
+  static final int COMPANY_WEIGHT = 2;
+  static final int EMAIL_WEIGHT = 1;
+
+  // Don't bother compacting until at least this many slots are empty.
+  private static final int MIN_EMPTY_SLOTS_TO_COMPACT = 1024;
+
+  private static final Pattern TOKEN_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Token -> the slots it appears in.
+  private final Map<String, Postings> postings = new HashMap<>();
+
+  // Slot -> user ID, or `null` if the user in that slot has been deleted.
+  private final List<String> ids = new ArrayList<>();
+
+  // User ID -> slot.
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  private int emptySlots;
+
+  /**
+   * The result of a search: one page of user IDs, best match first, along
+   * with how many users matched in total.
+   */
+  record Hits(List<String> ids, int total) {
+  }
+
+  /**
+   * Split some text into lower-case tokens on anything that isn't a letter
+   * or a digit, so "sam@frogs.com" becomes "sam", "frogs", and "com".
+   *
+   * @param text the text to split (may be `null`)
+   * @return the tokens, in order (possibly with repeats)
+   */
+  static List<String> tokenize(String text) {
+    if (text == null) {
+      return List.of();
+    }
+    List<String> tokens = new ArrayList<>();
+    for (String token : TOKEN_SEPARATORS.split(text.toLowerCase(Locale.ROOT))) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Add (or replace) a user in the index.
+   *
+   * @param user the user to add; only its `_id`, `name`, `company`, and
+   *   `email` are used
+   */
+  void add(User user) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    addWeights(weights, user.name, NAME_WEIGHT);
+    addWeights(weights, user.company, COMPANY_WEIGHT);
+    addWeights(weights, user.email, EMAIL_WEIGHT);
+
+    lock.writeLock().lock();
+    try {
+      removeLocked(user._id);
+      int slot = ids.size();
+      ids.add(user._id);
+      slots.put(user._id, slot);
+      weights.forEach((token, weight) -> postings.computeIfAbsent(token, t -> new Postings()).add(slot, weight));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a user from the index, if it's there.
+   *
+   * @param id the `_id` of the user to remove
+   */
+  void remove(String id) {
+    lock.writeLock().lock();
+    try {
+      removeLocked(id);
+      if (emptySlots >= MIN_EMPTY_SLOTS_TO_COMPACT && emptySlots > ids.size() / 2) {
+        compact();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void userAdded(User user) {
+    add(user);
+  }
+
+  @Override
+  public void userDeleted(User user) {
+    remove(user._id);
+  }
+
+  /**
+   * @return the number of users in the index
+   */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return slots.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the users that best match a query. A user matches if it contains
+   * any of the query's tokens; users that contain more of them, rarer ones,
+   * or contain them in more heavily weighted fields rank higher. Users with
+   * equal scores are returned in the order they were added.
+   *
+   * This only looks at the users in the query tokens' postings, never at
+   * every user in the index.
+   *
+   * @param query the text to search for
+   * @param offset how many of the best matches to skip
+   * @param limit the most IDs to return
+   * @return one page of matching user IDs, and the total number of matches
+   */
+  Hits search(String query, int offset, int limit) {
+    Set<String> tokens = new LinkedHashSet<>(tokenize(query));
+    lock.readLock().lock();
+    try {
+      List<Postings> matches = new ArrayList<>(tokens.size());
+      float[] idfs = new float[tokens.size()];
+      int liveUsers = slots.size();
+      for (String token : tokens) {
+        Postings tokenMatches = postings.get(token);
+        if (tokenMatches != null) {
+          // Standard inverse document frequency: a token that only a handful
+          // of users have tells us a lot more than one nearly everyone has.
+          idfs[matches.size()] = (float) Math.log(1 + (double) liveUsers / tokenMatches.size);
+          matches.add(tokenMatches);
+        }
+      }
+
+      int wanted = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+      // Keep the best `wanted` matches in a min-heap, so the worst of them is
+      // always on top and can be replaced by anything that beats it. Slots
+      // added later lose ties.
+      PriorityQueue<ScoredSlot> best = new PriorityQueue<>(
+        Comparator.comparingDouble(ScoredSlot::score).thenComparing(ScoredSlot::slot, Comparator.reverseOrder()));
+      int total = 0;
+      // Every postings list is in increasing order of slot (a user always
+      // gets the highest slot yet, and compacting keeps the order), so by
+      // walking them all together we meet each matching slot once, with all
+      // of its postings at once, and in the order the users were added.
+      int[] positions = new int[matches.size()];
+      while (true) {
+        int slot = Integer.MAX_VALUE;
+        for (int i = 0; i < matches.size(); i++) {
+          if (positions[i] < matches.get(i).size) {
+            slot = Math.min(slot, matches.get(i).slots[positions[i]]);
+          }
+        }
+        if (slot == Integer.MAX_VALUE) {
+          break;
+        }
+        float score = 0;
+        for (int i = 0; i < matches.size(); i++) {
+          Postings tokenMatches = matches.get(i);
+          if (positions[i] < tokenMatches.size && tokenMatches.slots[positions[i]] == slot) {
+            score += tokenMatches.weights[positions[i]] * idfs[i];
+            positions[i]++;
+          }
+        }
+        if (ids.get(slot) == null) {
+          continue;
+        }
+        total++;
+        if (best.size() < wanted) {
+          best.add(new ScoredSlot(slot, score));
+        } else if (score > best.peek().score()) {
+          best.poll();
+          best.add(new ScoredSlot(slot, score));
+        }
+      }
+
+      String[] ranked = new String[best.size()];
+      for (int i = ranked.length - 1; i >= 0; i--) {
+        ranked[i] = ids.get(best.poll().slot());
+      }
+      List<String> page = offset >= ranked.length
+        ? List.of()
+        : List.of(Arrays.copyOfRange(ranked, offset, ranked.length));
+      return new Hits(page, total);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // A matching user's slot, and how well it matched.
+  private record ScoredSlot(int slot, float score) {
+  }
+
+  private static void addWeights(Map<String, Integer> weights, String text, int weight) {
+    for (String token : tokenize(text)) {
+      weights.merge(token, weight, Integer::sum);
+    }
+  }
+
+  // Must be called with the write lock held.
+  private void removeLocked(String id) {
+    Integer slot = slots.remove(id);
+    if (slot != null) {
+      ids.set(slot, null);
+      emptySlots++;
+    }
+  }
+
+  // Must be called with the write lock held. Renumbers the remaining users'
+  // slots so there aren't any gaps, and drops the empty slots from the
+  // postings (and any postings that end up empty).
+  private void compact() {
+    int[] newSlots = new int[ids.size()];
+    List<String> liveIds = new ArrayList<>(slots.size());
+    for (int slot = 0; slot < ids.size(); slot++) {
+      String id = ids.get(slot);
+      newSlots[slot] = id == null ? -1 : liveIds.size();
+      if (id != null) {
+        slots.put(id, liveIds.size());
+        liveIds.add(id);
+      }
+    }
+    ids.clear();
+    ids.addAll(liveIds);
+    postings.values().removeIf(matches -> matches.renumber(newSlots) == 0);
+    emptySlots = 0;
+  }
+
+  /**
+   * A growable list of (slot, weight) pairs, kept in two parallel arrays
+   * so a million of them don't turn into a million objects.
+   */
+  private static final class Postings {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int[] weights = new int[INITIAL_CAPACITY];
+    private int size;
+
+    void add(int slot, int weight) {
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+        weights = Arrays.copyOf(weights, size * 2);
+      }
+      slots[size] = slot;
+      weights[size] = weight;
+      size++;
+    }
+
+    // Map every slot to its new number, dropping the ones mapped to -1.
+    // Returns how many are left.
+    int renumber(int[] newSlots) {
+      int kept = 0;
+      for (int i = 0; i < size; i++) {
+        int slot = newSlots[slots[i]];
+        if (slot >= 0) {
+          slots[kept] = slot;
+          weights[kept] = weights[i];
+          kept++;
+        }
+      }
+      size = kept;
+      return kept;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests for the rate limiting and load shedding in `AdmissionControl`.
+ *
+ * The admission controller reads the time from a clock we control, so
+ * these tests can "wait" without actually sleeping.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class AdmissionControlSpec {
+
+  private AtomicLong now;
+  private AdmissionControl admissionControl;
+
+  @BeforeEach
+  void setupEach() {
+    now = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+    // 10 requests per second, bursts of 3, at most 2 in flight,
+    // shed if more than 1 thread waits for Mongo or requests average over 500ms,
+    // behind one proxy.
+    admissionControl = new AdmissionControl(10, 3, 2, 1, Duration.ofMillis(500), 1, now::get);
+  }
+
+  /**
+   * Build a mock context for a request from the given client address,
+   * with working request attributes.
+   */
+  private Context contextFrom(String ip) {
+    Context ctx = mock(Context.class);
+    Map<String, Object> attributes = new HashMap<>();
+    when(ctx.ip()).thenReturn(ip);
+    Mockito.doAnswer(invocation -> {
+      attributes.put(invocation.getArgument(0), invocation.getArgument(1));
+      return null;
+    }).when(ctx).attribute(anyString(), any());
+    when(ctx.attribute(anyString())).thenAnswer(invocation -> attributes.get(invocation.getArgument(0)));
+    return ctx;
+  }
+
+  private void admitAndRelease(Context ctx) {
+    admissionControl.admit(ctx);
+    admissionControl.release(ctx);
+  }
+
+  @Test
+  void admitsABurstThenRateLimits() {
+    Context ctx = contextFrom("10.0.0.1");
+    admitAndRelease(ctx);
+    admitAndRelease(ctx);
+    admitAndRelease(ctx);
+
+    HttpResponseException e = assertThrows(HttpResponseException.class, () -> admissionControl.admit(ctx));
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS.getCode(), e.getStatus());
+    verify(ctx).header(AdmissionControl.RETRY_AFTER_HEADER, "1");
+  }
+
+  @Test
+  void tokensRefillOverTime() {
+    Context ctx = contextFrom("10.0.0.1");
+    admitAndRelease(ctx);
+    admitAndRelease(ctx);
+    admitAndRelease(ctx);
+    assertThrows(HttpResponseException.class, () -> admissionControl.admit(ctx));
+
+    // One token comes back every 100ms.
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    assertDoesNotThrow(() -> admitAndRelease(ctx));
+    assertThrows(HttpResponseException.class, () -> admissionControl.admit(ctx));
+  }
+
+  @Test
+  void clientsAreLimitedIndependently() {
+    Context first = contextFrom("10.0.0.1");
+    Context second = contextFrom("10.0.0.2");
+    admitAndRelease(first);
+    admitAndRelease(first);
+    admitAndRelease(first);
+    assertThrows(HttpResponseException.class, () -> admissionControl.admit(first));
+
+    assertDoesNotThrow(() -> admitAndRelease(second));
+  }
+
+  @Test
+  void forwardedForIdentifiesTheClientBehindTheProxy() {
+    Context ctx = contextFrom("172.18.0.2");
+    when(ctx.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn("203.0.113.7");
+    assertEquals("203.0.113.7", admissionControl.clientKey(ctx));
+
+    // The client sent its own (made up) `X-Forwarded-For`, and the proxy
+    // added the address it really came from to the end.
+    Context spoofed = contextFrom("172.18.0.2");
+    when(spoofed.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn("198.51.100.1, 203.0.113.7");
+    assertEquals("203.0.113.7", admissionControl.clientKey(spoofed));
+
+    Context direct = contextFrom("172.18.0.2");
+    when(direct.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn(" ");
+    assertEquals("172.18.0.2", admissionControl.clientKey(direct));
+  }
+
+  @Test
+  void countsProxyHopsFromTheRight() {
+    AdmissionControl behindTwo = new AdmissionControl(10, 3, 2, 1, Duration.ofMillis(500), 2, now::get);
+    Context ctx = contextFrom("172.18.0.3");
+    when(ctx.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn("198.51.100.1, 203.0.113.7, 172.18.0.2");
+    assertEquals("203.0.113.7", behindTwo.clientKey(ctx));
+
+    // Too few entries to have come through both proxies.
+    Context tooShort = contextFrom("172.18.0.3");
+    when(tooShort.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn("203.0.113.7");
+    assertEquals("172.18.0.3", behindTwo.clientKey(tooShort));
+
+    AdmissionControl exposed = new AdmissionControl(10, 3, 2, 1, Duration.ofMillis(500), 0, now::get);
+    assertEquals("172.18.0.3", exposed.clientKey(ctx));
+  }
+
+  @Test
+  void rotatingForwardedForDoesNotDodgeTheRateLimit() {
+    for (int i = 0; i < 3; i++) {
+      Context ctx = contextFrom("172.18.0.2");
+      when(ctx.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn("198.51.100." + i + ", 203.0.113.7");
+      admitAndRelease(ctx);
+    }
+    Context ctx = contextFrom("172.18.0.2");
+    when(ctx.header(AdmissionControl.FORWARDED_FOR_HEADER)).thenReturn("198.51.100.99, 203.0.113.7");
+    HttpResponseException e = assertThrows(HttpResponseException.class, () -> admissionControl.admit(ctx));
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS.getCode(), e.getStatus());
+  }
+
+  @Test
+  void capsRequestsInFlight() {
+    Context first = contextFrom("10.0.0.1");
+    Context second = contextFrom("10.0.0.2");
+    Context third = contextFrom("10.0.0.3");
+    admissionControl.admit(first);
+    admissionControl.admit(second);
+    assertEquals(2, admissionControl.inFlight());
+
+    HttpResponseException e = assertThrows(HttpResponseException.class, () -> admissionControl.admit(third));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), e.getStatus());
+    verify(third).header(eq(AdmissionControl.RETRY_AFTER_HEADER), anyString());
+
+    admissionControl.release(first);
+    assertEquals(1, admissionControl.inFlight());
+    assertDoesNotThrow(() -> admissionControl.admit(third));
+  }
+
+  @Test
+  void requestsTurnedAwayAtCapacityKeepTheirTokens() {
+    Context first = contextFrom("10.0.0.1");
+    Context second = contextFrom("10.0.0.2");
+    admissionControl.admit(first);
+    admissionControl.admit(second);
+    Context busy = contextFrom("10.0.0.3");
+    for (int i = 0; i < 5; i++) {
+      HttpResponseException e = assertThrows(HttpResponseException.class, () -> admissionControl.admit(busy));
+      assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), e.getStatus());
+    }
+    admissionControl.release(first);
+    admissionControl.release(second);
+
+    // The whole burst of 3 is still there once there's room.
+    admitAndRelease(busy);
+    admitAndRelease(busy);
+    admitAndRelease(busy);
+  }
+
+  @Test
+  void rateLimitedRequestsGiveBackTheirSlot() {
+    Context ctx = contextFrom("10.0.0.1");
+    admitAndRelease(ctx);
+    admitAndRelease(ctx);
+    admitAndRelease(ctx);
+    assertThrows(HttpResponseException.class, () -> admissionControl.admit(ctx));
+    assertEquals(0, admissionControl.inFlight());
+  }
+
+  @Test
+  void releasingARejectedRequestDoesNothing() {
+    Context ctx = contextFrom("10.0.0.1");
+    admissionControl.release(ctx);
+    assertEquals(0, admissionControl.inFlight());
+    verify(ctx, never()).header(anyString(), anyString());
+  }
+
+  @Test
+  void shedsLoadWhenMongoPoolHasTooManyWaiters() {
+    ConnectionCheckOutStartedEvent started = mock(ConnectionCheckOutStartedEvent.class);
+    admissionControl.connectionCheckOutStarted(started);
+    admissionControl.connectionCheckOutStarted(started);
+    assertEquals(2, admissionControl.poolWaiters());
+
+    HttpResponseException e = assertThrows(HttpResponseException.class,
+      () -> admissionControl.admit(contextFrom("10.0.0.1")));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), e.getStatus());
+
+    admissionControl.connectionCheckedOut(mock(ConnectionCheckedOutEvent.class));
+    admissionControl.connectionCheckOutFailed(mock(ConnectionCheckOutFailedEvent.class));
+    assertEquals(0, admissionControl.poolWaiters());
+    assertDoesNotThrow(() -> admitAndRelease(contextFrom("10.0.0.1")));
+  }
+
+  @Test
+  void shedsLoadWhileRecentRequestsAreSlow() {
+    Context slow = contextFrom("10.0.0.1");
+    admissionControl.admit(slow);
+    now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+    admissionControl.release(slow);
+
+    HttpResponseException e = assertThrows(HttpResponseException.class,
+      () -> admissionControl.admit(contextFrom("10.0.0.2")));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), e.getStatus());
+
+    // Once the latency sample is stale we let requests through again.
+    now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+    assertDoesNotThrow(() -> admitAndRelease(contextFrom("10.0.0.2")));
+  }
+
+  @Test
+  void stopsAdmittingWhileDrainingButLetsTheRequestsInFlightFinish() {
+    Context inFlight = contextFrom("10.0.0.1");
+    admissionControl.admit(inFlight);
+    admissionControl.stopAdmitting();
+    assertTrue(admissionControl.isDraining());
+
+    Context late = contextFrom("10.0.0.2");
+    HttpResponseException e = assertThrows(HttpResponseException.class, () -> admissionControl.admit(late));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), e.getStatus());
+    verify(late).header(AdmissionControl.CONNECTION_HEADER, "close");
+    verify(late).header(eq(AdmissionControl.RETRY_AFTER_HEADER), anyString());
+
+    admissionControl.release(late);
+    assertEquals(1, admissionControl.inFlight());
+    admissionControl.release(inFlight);
+    assertEquals(0, admissionControl.inFlight());
+  }
+
+  @Test
+  void rejectsNonsensicalLimits() {
+    assertThrows(IllegalArgumentException.class,
+      () -> new AdmissionControl(0, 1, 1, 1, Duration.ZERO, 1));
+    assertThrows(IllegalArgumentException.class,
+      () -> new AdmissionControl(1, 0, 1, 1, Duration.ZERO, 1));
+    assertThrows(IllegalArgumentException.class,
+      () -> new AdmissionControl(1, 1, 0, 1, Duration.ZERO, 1));
+    assertThrows(IllegalArgumentException.class,
+      () -> new AdmissionControl(1, 1, 1, 1, Duration.ZERO, -1));
+  }
+}
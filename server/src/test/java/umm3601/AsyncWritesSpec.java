@@ -0,0 +1,90 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Tests for `AsyncWrites` (and `WriteDurability`, which says how durable
+ * those writes, and all the others, are).
+ */
+@SuppressWarnings({ "MagicNumber" })
+class AsyncWritesSpec {
+
+  private final AsyncWrites asyncWrites = new AsyncWrites(2, Duration.ofMinutes(1));
+
+  private void waitForPendingWrites() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (asyncWrites.pending() > 0) {
+      assertTrue(System.nanoTime() < deadline, "The background writes never finished");
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  void reportsWritesThatWorked() throws InterruptedException {
+    String id = asyncWrites.submit(() -> { });
+    waitForPendingWrites();
+    assertEquals(new AsyncWrites.Status(AsyncWrites.State.DONE, null), asyncWrites.status(id));
+  }
+
+  @Test
+  void reportsWritesThatFailed() throws InterruptedException {
+    String id = asyncWrites.submit(() -> {
+      throw new IllegalStateException("The disk is full");
+    });
+    waitForPendingWrites();
+    assertEquals(new AsyncWrites.Status(AsyncWrites.State.FAILED, "The disk is full"), asyncWrites.status(id));
+  }
+
+  @Test
+  void knowsNothingOfOtherWrites() {
+    assertNull(asyncWrites.status("no-such-write"));
+  }
+
+  @Test
+  void turnsWritesAwayWhenTheQueueIsFull() throws InterruptedException {
+    CountDownLatch stuck = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    String running = asyncWrites.submit(() -> {
+      started.countDown();
+      try {
+        stuck.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    started.await();
+    String first = asyncWrites.submit(() -> { });
+    String second = asyncWrites.submit(() -> { });
+    assertEquals(3, asyncWrites.pending());
+    assertEquals(AsyncWrites.State.PENDING, asyncWrites.status(first).state());
+
+    assertThrows(ServiceUnavailableResponse.class, () -> asyncWrites.submit(() -> { }));
+    assertEquals(3, asyncWrites.pending());
+
+    stuck.countDown();
+    waitForPendingWrites();
+    assertEquals(AsyncWrites.State.DONE, asyncWrites.status(running).state());
+    assertEquals(AsyncWrites.State.DONE, asyncWrites.status(second).state());
+  }
+
+  @Test
+  void durabilitiesGoByName() {
+    assertTrue(WriteDurability.isName("Majority"));
+    assertEquals(WriteDurability.JOURNALED, WriteDurability.fromName("journaled"));
+    assertEquals(Boolean.TRUE, WriteDurability.JOURNALED.writeConcern().getJournal());
+    assertFalse(WriteDurability.isName("eventually"));
+    assertThrows(IllegalArgumentException.class, () -> WriteDurability.fromName("eventually"));
+  }
+}
@@ -0,0 +1,214 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.Context;
+
+/**
+ * Tests for `ContentNegotiation` and the `BinaryFormat`s it converts
+ * responses to.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ContentNegotiationSpec {
+
+  private static final String JSON = "[{\"_id\":\"588935f57546a2daea44de7c\",\"name\":\"Sam\",\"age\":45,"
+    + "\"tags\":[true,null,1.5]}]";
+
+  private static JsonNode read(BinaryFormat format, byte[] bytes) throws IOException {
+    return new ObjectMapper(format.factory()).readTree(bytes);
+  }
+
+  @Test
+  void jsonIsTheDefault() {
+    assertNull(ContentNegotiation.preferredFormat(null));
+    assertNull(ContentNegotiation.preferredFormat("*/*"));
+    assertNull(ContentNegotiation.preferredFormat("application/json"));
+    assertNull(ContentNegotiation.preferredFormat("text/html, application/xhtml+xml"));
+  }
+
+  @Test
+  void binaryFormatsCanBeRequested() {
+    assertEquals(BinaryFormat.CBOR, ContentNegotiation.preferredFormat("application/cbor"));
+    assertEquals(BinaryFormat.SMILE, ContentNegotiation.preferredFormat("application/x-jackson-smile"));
+    assertEquals(BinaryFormat.MESSAGE_PACK, ContentNegotiation.preferredFormat("application/msgpack"));
+    assertEquals(BinaryFormat.MESSAGE_PACK, ContentNegotiation.preferredFormat("Application/X-MsgPack"));
+  }
+
+  @Test
+  void qualityValuesAreRespected() {
+    assertEquals(BinaryFormat.CBOR,
+      ContentNegotiation.preferredFormat("application/json;q=0.5, application/cbor"));
+    assertNull(ContentNegotiation.preferredFormat("application/cbor;q=0.5, application/json"));
+    assertEquals(BinaryFormat.SMILE,
+      ContentNegotiation.preferredFormat("application/cbor;q=0.8, application/x-jackson-smile;q=0.9"));
+    assertNull(ContentNegotiation.preferredFormat("application/cbor;q=0"));
+    assertNull(ContentNegotiation.preferredFormat("application/cbor;q=lots"));
+  }
+
+  @Test
+  void rangesWithNoWeightAreNeverPicked() {
+    assertNull(ContentNegotiation.preferredFormat("application/cbor;q=0, */*;q=0.1"));
+    assertNull(ContentNegotiation.preferredFormat("application/json;q=0, application/cbor;q=0"));
+    assertEquals(BinaryFormat.CBOR,
+      ContentNegotiation.preferredFormat("application/x-jackson-smile;q=0, application/cbor;q=0.1"));
+  }
+
+  @Test
+  void specificTypesBeatWildcardsAndEarlierBeatsLater() {
+    assertEquals(BinaryFormat.CBOR, ContentNegotiation.preferredFormat("*/*, application/cbor"));
+    assertEquals(BinaryFormat.CBOR, ContentNegotiation.preferredFormat("application/cbor, application/json"));
+    assertNull(ContentNegotiation.preferredFormat("application/json, application/cbor"));
+  }
+
+  @Test
+  void everyFormatPreservesTheData() throws IOException {
+    JsonNode expected = new ObjectMapper().readTree(JSON);
+    for (BinaryFormat format : BinaryFormat.values()) {
+      byte[] encoded = format.fromJson(JSON.getBytes(StandardCharsets.UTF_8));
+      assertEquals(expected, read(format, encoded), format.name());
+      assertEquals(format, BinaryFormat.forMediaType(format.mediaType()));
+    }
+    assertNull(BinaryFormat.forMediaType("text/plain"));
+  }
+
+  @Test
+  void invalidJsonCannotBeConverted() {
+    assertThrows(IOException.class, () -> BinaryFormat.CBOR.fromJson("{\"name\":".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void jsonResponsesAreTranscoded() throws IOException {
+    Context ctx = ReadCoalescerSpec.requestFor();
+    when(ctx.attribute(any())).thenReturn(BinaryFormat.CBOR);
+    when(ctx.res().getContentType()).thenReturn("application/json;charset=utf-8");
+    when(ctx.resultInputStream()).thenReturn(new ByteArrayInputStream(JSON.getBytes(StandardCharsets.UTF_8)));
+
+    ContentNegotiation.transcode(ctx);
+
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(body.capture());
+    verify(ctx).contentType("application/cbor");
+    assertEquals(new ObjectMapper().readTree(JSON), read(BinaryFormat.CBOR, body.getValue()));
+  }
+
+  @Test
+  void otherResponsesAreLeftAlone() throws IOException {
+    Context json = ReadCoalescerSpec.requestFor();
+    when(json.res().getContentType()).thenReturn("application/json");
+    ContentNegotiation.transcode(json);
+    verify(json, never()).result(any(byte[].class));
+
+    Context html = ReadCoalescerSpec.requestFor();
+    when(html.attribute(any())).thenReturn(BinaryFormat.CBOR);
+    when(html.res().getContentType()).thenReturn("text/html");
+    ContentNegotiation.transcode(html);
+    verify(html, never()).result(any(byte[].class));
+
+    Context empty = ReadCoalescerSpec.requestFor();
+    when(empty.attribute(any())).thenReturn(BinaryFormat.CBOR);
+    when(empty.res().getContentType()).thenReturn("application/json");
+    ContentNegotiation.transcode(empty);
+    verify(empty, never()).result(any(byte[].class));
+  }
+
+  @Test
+  void negotiationRecordsTheFormat() throws IOException {
+    Context ctx = ReadCoalescerSpec.requestFor();
+    when(ctx.header(ContentNegotiation.ACCEPT_HEADER)).thenReturn("application/x-jackson-smile");
+    ContentNegotiation.negotiate(ctx);
+    verify(ctx).attribute(any(String.class), any(BinaryFormat.class));
+    ContentNegotiation.transcode(ctx);
+
+    Context jsonCtx = ReadCoalescerSpec.requestFor();
+    when(jsonCtx.header(ContentNegotiation.ACCEPT_HEADER)).thenReturn("application/json");
+    ContentNegotiation.negotiate(jsonCtx);
+    verify(jsonCtx, never()).attribute(any(String.class), any());
+    ContentNegotiation.transcode(jsonCtx);
+  }
+
+  @Test
+  void everyNegotiatedResponseVariesOnAccept() throws IOException {
+    for (String accept : new String[] {null, "application/json", "application/cbor"}) {
+      Context ctx = requestAccepting(accept);
+      ContentNegotiation.negotiate(ctx);
+      ContentNegotiation.transcode(ctx);
+      verify(ctx).header(ContentNegotiation.VARY_HEADER, ContentNegotiation.ACCEPT_HEADER);
+    }
+  }
+
+  /**
+   * A mock context for a request with the given `Accept` header, with
+   * working request attributes.
+   */
+  private static Context requestAccepting(String accept) {
+    Context ctx = ReadCoalescerSpec.requestFor();
+    Map<String, Object> attributes = new HashMap<>();
+    when(ctx.header(ContentNegotiation.ACCEPT_HEADER)).thenReturn(accept);
+    doAnswer(invocation -> {
+      attributes.put(invocation.getArgument(0), invocation.getArgument(1));
+      return null;
+    }).when(ctx).attribute(anyString(), any());
+    when(ctx.attribute(anyString())).thenAnswer(invocation -> attributes.get(invocation.getArgument(0)));
+    return ctx;
+  }
+
+  @Test
+  void binaryResponsesAreWrittenDirectly() throws IOException {
+    FastJsonMapper mapper = new FastJsonMapper(List.of());
+    Context ctx = requestAccepting("application/msgpack");
+    ContentNegotiation.negotiate(ctx);
+    byte[] body = mapper.toJsonStream(new ObjectMapper().readTree(JSON), JsonNode.class).readAllBytes();
+    verify(ctx).contentType("application/msgpack");
+    assertEquals(new ObjectMapper().readTree(JSON), read(BinaryFormat.MESSAGE_PACK, body));
+
+    // There's nothing left to convert.
+    when(ctx.res().getContentType()).thenReturn("application/json");
+    when(ctx.resultInputStream()).thenReturn(new ByteArrayInputStream(body));
+    ContentNegotiation.transcode(ctx);
+    verify(ctx, never()).result(any(byte[].class));
+    verify(ctx, times(2)).contentType("application/msgpack");
+
+    // Once the request is done, this thread is back to writing JSON.
+    byte[] json = mapper.toJsonStream(new ObjectMapper().readTree(JSON), JsonNode.class).readAllBytes();
+    assertEquals(new ObjectMapper().readTree(JSON), new ObjectMapper().readTree(json));
+  }
+
+  @Test
+  void responsesInDifferentFormatsAreNotShared() {
+    Context json = requestAccepting("application/json");
+    Context cbor = requestAccepting("application/cbor");
+    ContentNegotiation.negotiate(json);
+    ContentNegotiation.negotiate(cbor);
+    assertNotEquals(ReadCoalescer.requestKey(json), ReadCoalescer.requestKey(cbor));
+  }
+
+  @AfterEach
+  void teardownEach() throws IOException {
+    // Don't leave a request negotiated on this thread for the next test.
+    ContentNegotiation.transcode(ReadCoalescerSpec.requestFor());
+  }
+}
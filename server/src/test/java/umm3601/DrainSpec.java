@@ -0,0 +1,72 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+/**
+ * Tests for `Drain`.
+ *
+ * The drain reads the time from a clock we control, so the deadline can
+ * pass without the test waiting for it.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class DrainSpec {
+
+  private final AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+  private final Readiness readiness = new Readiness(() -> true);
+  private final AdmissionControl admissionControl = mock(AdmissionControl.class);
+
+  @Test
+  void stopsBeingReadyThenStopsAdmittingThenWaitsForTheRequestsInFlight() throws InterruptedException {
+    when(admissionControl.inFlight()).thenReturn(2, 2, 1, 0);
+    Drain drain = new Drain(Duration.ZERO, Duration.ofSeconds(10), now::get);
+
+    assertTrue(drain.run(readiness, admissionControl, () -> 0));
+    assertTrue(readiness.isDraining());
+    InOrder order = inOrder(admissionControl);
+    order.verify(admissionControl).stopAdmitting();
+    order.verify(admissionControl, atLeast(3)).inFlight();
+  }
+
+  @Test
+  void returnsStraightAwayWithNothingInFlight() throws InterruptedException {
+    when(admissionControl.inFlight()).thenReturn(0);
+    assertTrue(new Drain(Duration.ZERO, Duration.ZERO, now::get).run(readiness, admissionControl, () -> 0));
+  }
+
+  @Test
+  void waitsForTheBackgroundWritesToo() throws InterruptedException {
+    when(admissionControl.inFlight()).thenReturn(0);
+    // The background writes finish one check at a time.
+    AtomicInteger checks = new AtomicInteger();
+    Drain drain = new Drain(Duration.ZERO, Duration.ofSeconds(10), now::get);
+
+    assertTrue(drain.run(readiness, admissionControl, () -> Math.max(0, 3 - checks.incrementAndGet())));
+    assertTrue(checks.get() >= 3);
+  }
+
+  @Test
+  void givesUpAtTheDeadline() throws InterruptedException {
+    when(admissionControl.inFlight()).thenAnswer(invocation -> {
+      // Each check of the requests in flight takes a (pretend) second.
+      now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+      return 1;
+    });
+    Drain drain = new Drain(Duration.ZERO, Duration.ofSeconds(3), now::get);
+
+    assertFalse(drain.run(readiness, admissionControl, () -> 0));
+    assertTrue(readiness.isDraining());
+  }
+}
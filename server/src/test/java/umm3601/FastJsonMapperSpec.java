@@ -0,0 +1,112 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import io.javalin.json.JavalinJackson;
+import umm3601.user.User;
+import umm3601.user.UserByCompany;
+import umm3601.user.UserIdName;
+
+/**
+ * Tests for `FastJsonMapper`. The main thing we care about is that it
+ * produces and accepts exactly the same JSON as Javalin's default mapper.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class FastJsonMapperSpec {
+
+  private static final Type USER_LIST_TYPE = new TypeReference<List<User>>() { }.getType();
+
+  private FastJsonMapper mapper;
+  private JavalinJackson javalinJackson;
+  private User sam;
+
+  @BeforeEach
+  void setupEach() {
+    mapper = new FastJsonMapper(List.of(User.class, UserByCompany.class, UserIdName.class));
+    javalinJackson = new JavalinJackson();
+
+    sam = new User();
+    sam._id = "588935f57546a2daea44de7c";
+    sam.name = "Sam";
+    sam.age = 45;
+    sam.company = "OHMNET";
+    sam.email = "sam@frogs.com";
+    sam.role = "viewer";
+    sam.avatar = "https://gravatar.com/avatar/08b7610b558a4cbbd20ae99072801f4d?d=identicon";
+  }
+
+  @Test
+  void writesTheSameJsonAsTheDefaultMapper() {
+    assertEquals(javalinJackson.toJsonString(sam, User.class), mapper.toJsonString(sam, User.class));
+    assertEquals(
+      javalinJackson.toJsonString(List.of(sam, sam), List.class),
+      mapper.toJsonString(List.of(sam, sam), List.class));
+  }
+
+  @Test
+  void writesJsonStreams() throws Exception {
+    String json = new String(mapper.toJsonStream(sam, User.class).readAllBytes(), StandardCharsets.UTF_8);
+    assertEquals(mapper.toJsonString(sam, User.class), json);
+  }
+
+  @Test
+  void writesStreamsOfValuesAsArrays() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    mapper.writeToOutputStream(Stream.of(sam, sam), out);
+
+    List<User> users = mapper.fromJsonString(out.toString(StandardCharsets.UTF_8), USER_LIST_TYPE);
+    assertEquals(2, users.size());
+    assertEquals("Sam", users.get(1).name);
+  }
+
+  @Test
+  void readsJson() {
+    String json = javalinJackson.toJsonString(sam, User.class);
+
+    User fromString = mapper.fromJsonString(json, User.class);
+    assertEquals(sam, fromString);
+    assertEquals(45, fromString.age);
+
+    User fromStream = mapper.fromJsonStream(
+      new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), User.class);
+    assertEquals("OHMNET", fromStream.company);
+  }
+
+  @Test
+  void readsGroupedUsers() {
+    String json = "{\"_id\":\"OHMNET\",\"count\":1,\"users\":[{\"_id\":\"588935f57546a2daea44de7c\",\"name\":\"Sam\"}]}";
+    UserByCompany group = mapper.fromJsonString(json, UserByCompany.class);
+    assertEquals("OHMNET", group._id);
+    assertEquals("Sam", group.users.get(0).name);
+  }
+
+  @Test
+  void malformedJsonIsAnError() {
+    assertThrows(UncheckedIOException.class, () -> mapper.fromJsonString("{\"name\":", User.class));
+    assertThrows(UncheckedIOException.class,
+      () -> mapper.fromJsonStream(new ByteArrayInputStream(new byte[] {'['}), USER_LIST_TYPE));
+  }
+
+  @Test
+  void unserializableValuesAreAnError() {
+    Object notABean = new Object();
+    assertThrows(UncheckedIOException.class, () -> mapper.toJsonString(notABean, Object.class));
+    assertThrows(UncheckedIOException.class, () -> mapper.toJsonStream(notABean, Object.class));
+    assertThrows(UncheckedIOException.class,
+      () -> mapper.writeToOutputStream(Stream.of(notABean), new ByteArrayOutputStream()));
+  }
+}
@@ -0,0 +1,202 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+
+/**
+ * Tests for `IdempotencyKeys`, against the test database.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class IdempotencyKeysSpec {
+
+  private static final String BODY = "{\"name\":\"Pat\"}";
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  // Adds "a user", i.e., counts its calls, and responds with the count.
+  private final Handler addUser = ctx -> {
+    int call = calls.incrementAndGet();
+    ctx.header("Location", "/api/users/" + call);
+    ctx.result(("{\"id\":\"" + call + "\"}").getBytes(StandardCharsets.UTF_8));
+  };
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.getCollection(IdempotencyKeys.COLLECTION_NAME).deleteMany(new Document());
+  }
+
+  /**
+   * A mock `POST /api/users` with the given idempotency key and body.
+   */
+  private static Context post(String key, String body) {
+    Context ctx = ReadCoalescerSpec.requestFor();
+    when(ctx.method()).thenReturn(HandlerType.POST);
+    when(ctx.header(IdempotencyKeys.KEY_HEADER)).thenReturn(key);
+    when(ctx.body()).thenReturn(body);
+    return ctx;
+  }
+
+  private static byte[] bodyOf(Context ctx) throws Exception {
+    return ctx.resultInputStream().readAllBytes();
+  }
+
+  @Test
+  void requestsWithoutAKeyAreAlwaysHandled() throws Exception {
+    Handler handler = new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser);
+    handler.handle(post(null, BODY));
+    handler.handle(post(null, BODY));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void retriesGetTheFirstResponse() throws Exception {
+    Handler handler = new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser);
+    Context first = post("key-1", BODY);
+    handler.handle(first);
+    Context retry = post("key-1", BODY);
+    handler.handle(retry);
+
+    assertEquals(1, calls.get());
+    assertArrayEquals(bodyOf(first), bodyOf(retry));
+    verify(retry).header("Location", "/api/users/1");
+    verify(retry).header(IdempotencyKeys.REPLAYED_HEADER, "true");
+    verify(first, never()).header(IdempotencyKeys.REPLAYED_HEADER, "true");
+
+    // A different key is a different request.
+    handler.handle(post("key-2", BODY));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void retriesAreRecognizedBySomeOtherServer() throws Exception {
+    new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser).handle(post("key-1", BODY));
+
+    // This one has nothing in memory, so it has to find the response in Mongo.
+    Context retry = post("key-1", BODY);
+    new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser).handle(retry);
+
+    assertEquals(1, calls.get());
+    assertEquals("{\"id\":\"1\"}", new String(bodyOf(retry), StandardCharsets.UTF_8));
+    verify(retry).status(200);
+  }
+
+  @Test
+  void reusingAKeyForADifferentRequestIsAnError() throws Exception {
+    Handler handler = new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser);
+    handler.handle(post("key-1", BODY));
+    assertThrows(BadRequestResponse.class, () -> handler.handle(post("key-1", "{\"name\":\"Sam\"}")));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void retriesWhileTheFirstRequestIsRunningConflict() throws Exception {
+    IdempotencyKeys idempotencyKeys = new IdempotencyKeys(db, Duration.ofHours(1), 10);
+    Handler retryWhileRunning = idempotencyKeys.idempotent(ctx -> {
+      calls.incrementAndGet();
+      idempotencyKeys.idempotent(addUser).handle(post("key-1", BODY));
+    });
+
+    assertThrows(ConflictResponse.class, () -> retryWhileRunning.handle(post("key-1", BODY)));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void reusingAKeyWithADifferentQueryStringIsAnError() throws Exception {
+    Handler handler = new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser);
+    handler.handle(post("key-1", BODY));
+    Context async = post("key-1", BODY);
+    when(async.queryString()).thenReturn("async=true");
+    assertThrows(BadRequestResponse.class, () -> handler.handle(async));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void retriesTakeOverClaimsThatHaveOutlivedTheirLease() throws Exception {
+    // With no lease at all, every claim is as good as abandoned (as if the
+    // server handling the first request had died).
+    IdempotencyKeys idempotencyKeys = new IdempotencyKeys(db, Duration.ofHours(1), Duration.ZERO, 10);
+    Context retry = post("key-1", BODY);
+    Handler abandoned = idempotencyKeys.idempotent(ctx -> {
+      calls.incrementAndGet();
+      idempotencyKeys.idempotent(addUser).handle(retry);
+    });
+    abandoned.handle(post("key-1", BODY));
+    assertEquals(2, calls.get());
+
+    // The retry's response is the one that's remembered.
+    Context later = post("key-1", BODY);
+    new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser).handle(later);
+    assertEquals(2, calls.get());
+    assertArrayEquals(bodyOf(retry), bodyOf(later));
+  }
+
+  @Test
+  void failedRequestsCanBeRetried() throws Exception {
+    Handler handler = new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(ctx -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new BadRequestResponse("Not this time");
+      }
+      ctx.result(new byte[0]);
+    });
+
+    assertThrows(BadRequestResponse.class, () -> handler.handle(post("key-1", BODY)));
+    handler.handle(post("key-1", BODY));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void keysHaveToBeReasonable() {
+    Handler handler = new IdempotencyKeys(db, Duration.ofHours(1), 10).idempotent(addUser);
+    assertThrows(BadRequestResponse.class, () -> handler.handle(post(" ", BODY)));
+    assertThrows(BadRequestResponse.class,
+      () -> handler.handle(post("k".repeat(IdempotencyKeys.MAX_KEY_LENGTH + 1), BODY)));
+    assertEquals(0, calls.get());
+  }
+}
@@ -0,0 +1,321 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.validation.Validation;
+import io.javalin.validation.ValidationException;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for `ReadCoalescer` (and the `CapturedResponse`s it shares).
+ *
+ * The interesting cases involve two requests being in flight at the same
+ * time, so these tests run the "leader" on a separate thread and hold it
+ * inside the handler with a latch until the "follower" is waiting for it.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ReadCoalescerSpec {
+
+  private static final byte[] BODY = "[{\"name\":\"Sam\"}]".getBytes(StandardCharsets.UTF_8);
+
+  private ExecutorService executor;
+  private AtomicInteger calls;
+  private CountDownLatch leaderStarted;
+  private CountDownLatch releaseLeader;
+
+  @BeforeEach
+  void setupEach() {
+    executor = Executors.newCachedThreadPool();
+    calls = new AtomicInteger();
+    leaderStarted = new CountDownLatch(1);
+    releaseLeader = new CountDownLatch(1);
+  }
+
+  @AfterEach
+  void teardownEach() {
+    releaseLeader.countDown();
+    executor.shutdownNow();
+  }
+
+  /**
+   * A mock context for `GET /api/users` with the given query parameters,
+   * which remembers whatever result is set on it.
+   */
+  static Context requestFor(Map<String, List<String>> queryParams) {
+    Context ctx = mock(Context.class);
+    AtomicReference<byte[]> result = new AtomicReference<>();
+    HttpServletResponse res = mock(HttpServletResponse.class);
+    Map<String, String> headers = new LinkedHashMap<>();
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.path()).thenReturn("/api/users");
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.res()).thenReturn(res);
+    when(res.getStatus()).thenReturn(200);
+    when(res.getHeaderNames()).thenReturn(headers.keySet());
+    when(res.getHeader(any())).thenAnswer(invocation -> headers.get(invocation.getArgument(0)));
+    doAnswer(invocation -> {
+      headers.put(invocation.getArgument(0), invocation.getArgument(1));
+      return ctx;
+    }).when(ctx).header(any(String.class), any(String.class));
+    doAnswer(invocation -> {
+      result.set(invocation.getArgument(0));
+      return ctx;
+    }).when(ctx).result(any(byte[].class));
+    when(ctx.resultInputStream()).thenAnswer(invocation ->
+      result.get() == null ? null : new ByteArrayInputStream(result.get()));
+    return ctx;
+  }
+
+  static Context requestFor() {
+    return requestFor(Map.of());
+  }
+
+  /**
+   * A handler that counts its calls, and (the first time it's called)
+   * waits until the test lets it finish.
+   */
+  private Handler slowHandler() {
+    return ctx -> {
+      if (calls.incrementAndGet() == 1) {
+        leaderStarted.countDown();
+        releaseLeader.await();
+      }
+      ctx.header("X-Total-Count", "1");
+      ctx.result(BODY);
+    };
+  }
+
+  /**
+   * Wait until `thread` is blocked, which for our followers means they are
+   * waiting on the leader.
+   */
+  private static void awaitBlocked(AtomicReference<Thread> thread) throws InterruptedException {
+    while (thread.get() == null || thread.get().getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  void followersShareTheLeadersResponse() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(Duration.ofSeconds(10));
+    Handler handler = coalescer.coalesce(slowHandler());
+    Context leaderCtx = requestFor();
+    Context followerCtx = requestFor();
+
+    Future<?> leader = executor.submit(() -> {
+      handler.handle(leaderCtx);
+      return null;
+    });
+    assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+
+    AtomicReference<Thread> followerThread = new AtomicReference<>();
+    Future<?> follower = executor.submit(() -> {
+      followerThread.set(Thread.currentThread());
+      handler.handle(followerCtx);
+      return null;
+    });
+    awaitBlocked(followerThread);
+    releaseLeader.countDown();
+    leader.get(10, TimeUnit.SECONDS);
+    follower.get(10, TimeUnit.SECONDS);
+
+    assertEquals(1, calls.get());
+    verify(followerCtx).result(BODY);
+    verify(followerCtx).status(200);
+    verify(followerCtx).header("X-Total-Count", "1");
+  }
+
+  @Test
+  void followersStopWaitingForASlowLeader() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(Duration.ofMillis(20));
+    Handler handler = coalescer.coalesce(slowHandler());
+    Context leaderCtx = requestFor();
+    Context followerCtx = requestFor();
+
+    Future<?> leader = executor.submit(() -> {
+      handler.handle(leaderCtx);
+      return null;
+    });
+    assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+
+    // The leader is stuck, so the follower should time out and run the
+    // handler itself.
+    handler.handle(followerCtx);
+    assertEquals(2, calls.get());
+    verify(followerCtx).result(BODY);
+
+    releaseLeader.countDown();
+    leader.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void followersSeeTheLeadersRejection() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(Duration.ofSeconds(10));
+    Handler handler = coalescer.coalesce(ctx -> {
+      calls.incrementAndGet();
+      leaderStarted.countDown();
+      releaseLeader.await();
+      throw new BadRequestResponse("Bad age");
+    });
+
+    Future<?> leader = executor.submit(() -> {
+      handler.handle(requestFor());
+      return null;
+    });
+    assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+
+    AtomicReference<Thread> followerThread = new AtomicReference<>();
+    Future<?> follower = executor.submit(() -> {
+      followerThread.set(Thread.currentThread());
+      handler.handle(requestFor());
+      return null;
+    });
+    awaitBlocked(followerThread);
+    releaseLeader.countDown();
+
+    Exception leaderFailure = assertThrows(Exception.class, () -> leader.get(10, TimeUnit.SECONDS));
+    assertTrue(leaderFailure.getCause() instanceof BadRequestResponse);
+    Exception followerFailure = assertThrows(Exception.class, () -> follower.get(10, TimeUnit.SECONDS));
+    assertTrue(followerFailure.getCause() instanceof BadRequestResponse);
+    assertEquals(1, calls.get());
+  }
+
+  /**
+   * Run a leader and a follower for the same request through `handler`
+   * (which should wait on `releaseLeader` before it fails), and return
+   * what each of them threw.
+   */
+  private List<Throwable> leaderAndFollowerFailures(Handler handler) throws Exception {
+    Future<?> leader = executor.submit(() -> {
+      handler.handle(requestFor());
+      return null;
+    });
+    assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+
+    AtomicReference<Thread> followerThread = new AtomicReference<>();
+    Future<?> follower = executor.submit(() -> {
+      followerThread.set(Thread.currentThread());
+      handler.handle(requestFor());
+      return null;
+    });
+    awaitBlocked(followerThread);
+    releaseLeader.countDown();
+
+    Exception leaderFailure = assertThrows(ExecutionException.class, () -> leader.get(10, TimeUnit.SECONDS));
+    Exception followerFailure = assertThrows(ExecutionException.class, () -> follower.get(10, TimeUnit.SECONDS));
+    return List.of(leaderFailure.getCause(), followerFailure.getCause());
+  }
+
+  @Test
+  void followersSeeTheLeadersValidationFailure() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(Duration.ofSeconds(10));
+    Handler handler = coalescer.coalesce(ctx -> {
+      calls.incrementAndGet();
+      leaderStarted.countDown();
+      releaseLeader.await();
+      // Javalin turns this into a 400.
+      new Validation().validator("age", Integer.class, "abc").get();
+    });
+
+    List<Throwable> failures = leaderAndFollowerFailures(handler);
+    assertTrue(failures.get(0) instanceof ValidationException);
+    assertSame(failures.get(0), failures.get(1));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void followersSeeOtherLeaderFailuresToo() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(Duration.ofSeconds(10));
+    Handler handler = coalescer.coalesce(ctx -> {
+      calls.incrementAndGet();
+      leaderStarted.countDown();
+      releaseLeader.await();
+      throw new IllegalStateException("Mongo went away");
+    });
+
+    List<Throwable> failures = leaderAndFollowerFailures(handler);
+    assertTrue(failures.get(0) instanceof IllegalStateException);
+    assertSame(failures.get(0), failures.get(1));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void sequentialRequestsAreNotCached() throws Exception {
+    ReadCoalescer coalescer = new ReadCoalescer(Duration.ofSeconds(10));
+    Handler handler = coalescer.coalesce(ctx -> {
+      calls.incrementAndGet();
+      ctx.result(BODY);
+    });
+
+    handler.handle(requestFor());
+    handler.handle(requestFor());
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void requestKeysIgnoreParameterOrder() {
+    Map<String, List<String>> forwards = new LinkedHashMap<>();
+    forwards.put("age", List.of("37"));
+    forwards.put("role", List.of("viewer"));
+    Map<String, List<String>> backwards = new LinkedHashMap<>();
+    backwards.put("role", List.of("viewer"));
+    backwards.put("age", List.of("37"));
+
+    assertEquals(ReadCoalescer.requestKey(requestFor(forwards)), ReadCoalescer.requestKey(requestFor(backwards)));
+    assertNotEquals(ReadCoalescer.requestKey(requestFor(forwards)), ReadCoalescer.requestKey(requestFor()));
+  }
+
+  @Test
+  void capturedResponsesCopyStatusHeadersAndBody() throws Exception {
+    Context ctx = requestFor();
+    CapturedResponse response = CapturedResponse.capture(ctx, c -> {
+      c.header("Content-Type", "application/json");
+      c.result(BODY);
+    });
+
+    assertEquals(200, response.status());
+    assertEquals("application/json", response.header("Content-Type"));
+    assertArrayEquals(BODY, response.body());
+    // The captured result is left in place on the original context.
+    assertArrayEquals(BODY, ctx.resultInputStream().readAllBytes());
+  }
+
+  @Test
+  void capturingAnEmptyResponse() throws Exception {
+    CapturedResponse response = CapturedResponse.capture(requestFor(), c -> { });
+    assertEquals(0, response.body().length);
+  }
+}
@@ -0,0 +1,76 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests for `Readiness`.
+ */
+class ReadinessSpec {
+
+  private final AtomicBoolean databaseUp = new AtomicBoolean(true);
+  private final AtomicInteger pings = new AtomicInteger();
+  private final Readiness readiness = new Readiness(() -> {
+    pings.incrementAndGet();
+    return databaseUp.get();
+  });
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Boolean> check(HttpStatus expectedStatus) {
+    Context ctx = mock(Context.class);
+    readiness.check(ctx);
+    ArgumentCaptor<Map<String, Boolean>> body = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(body.capture());
+    verify(ctx).status(expectedStatus);
+    return body.getValue();
+  }
+
+  @Test
+  void notReadyUntilWarmedUp() {
+    assertFalse(readiness.isWarmedUp());
+    assertEquals(Map.of("ready", false, "warmedUp", false, "notDraining", true, "database", false),
+      check(HttpStatus.SERVICE_UNAVAILABLE));
+    // There's no point pinging the database until we've warmed up.
+    assertEquals(0, pings.get());
+  }
+
+  @Test
+  void readyOnceWarmedUpWithTheDatabaseUp() {
+    readiness.markWarmedUp();
+    assertTrue(readiness.isWarmedUp());
+    assertEquals(Map.of("ready", true, "warmedUp", true, "notDraining", true, "database", true),
+      check(HttpStatus.OK));
+    assertEquals(1, pings.get());
+  }
+
+  @Test
+  void notReadyWithTheDatabaseDown() {
+    readiness.markWarmedUp();
+    databaseUp.set(false);
+    assertEquals(Map.of("ready", false, "warmedUp", true, "notDraining", true, "database", false),
+      check(HttpStatus.SERVICE_UNAVAILABLE));
+  }
+
+  @Test
+  void notReadyWhileDraining() {
+    readiness.markWarmedUp();
+    readiness.markDraining();
+    assertTrue(readiness.isDraining());
+    assertEquals(Map.of("ready", false, "warmedUp", true, "notDraining", false, "database", false),
+      check(HttpStatus.SERVICE_UNAVAILABLE));
+    assertEquals(0, pings.get());
+  }
+}
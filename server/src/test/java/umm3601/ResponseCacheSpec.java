@@ -0,0 +1,151 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.NotFoundResponse;
+
+/**
+ * Tests for `ResponseCache`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ResponseCacheSpec {
+
+  private static final byte[] SMALL_BODY = "[]".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] LARGE_BODY = "[{\"name\":\"Sam\"}]".repeat(200).getBytes(StandardCharsets.UTF_8);
+
+  private ResponseCache responseCache;
+  private AtomicInteger calls;
+
+  @BeforeEach
+  void setupEach() {
+    responseCache = new ResponseCache(Duration.ofMinutes(1), 10);
+    calls = new AtomicInteger();
+  }
+
+  private Handler countingHandler(byte[] body) {
+    return ctx -> {
+      calls.incrementAndGet();
+      ctx.result(body);
+    };
+  }
+
+  private static byte[] gunzip(byte[] bytes) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      return in.readAllBytes();
+    }
+  }
+
+  @Test
+  void repeatedRequestsAreServedFromTheCache() throws Exception {
+    Handler handler = responseCache.cached(countingHandler(SMALL_BODY));
+    handler.handle(ReadCoalescerSpec.requestFor());
+    Context second = ReadCoalescerSpec.requestFor();
+    handler.handle(second);
+
+    assertEquals(1, calls.get());
+    verify(second).result(SMALL_BODY);
+    verify(second).status(200);
+  }
+
+  @Test
+  void invalidationForcesANewRender() throws Exception {
+    Handler handler = responseCache.cached(countingHandler(SMALL_BODY));
+    handler.handle(ReadCoalescerSpec.requestFor());
+    responseCache.invalidateAll();
+    handler.handle(ReadCoalescerSpec.requestFor());
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void responsesRenderedDuringAWriteAreNotServed() throws Exception {
+    // The write (and so the invalidation) happens while the response is being rendered.
+    Handler handler = responseCache.cached(ctx -> {
+      calls.incrementAndGet();
+      responseCache.invalidateAll();
+      ctx.result(SMALL_BODY);
+    });
+    handler.handle(ReadCoalescerSpec.requestFor());
+    handler.handle(ReadCoalescerSpec.requestFor());
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void errorsAreNotCached() throws Exception {
+    Handler handler = responseCache.cached(ctx -> {
+      calls.incrementAndGet();
+      ctx.status(404);
+      ctx.result(SMALL_BODY);
+    });
+    Context first = ReadCoalescerSpec.requestFor();
+    when(first.res().getStatus()).thenReturn(404);
+    handler.handle(first);
+    Context second = ReadCoalescerSpec.requestFor();
+    when(second.res().getStatus()).thenReturn(404);
+    handler.handle(second);
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void exceptionsPassThrough() {
+    Handler handler = responseCache.cached(ctx -> {
+      throw new NotFoundResponse("Nope");
+    });
+    assertThrows(NotFoundResponse.class, () -> handler.handle(ReadCoalescerSpec.requestFor()));
+  }
+
+  @Test
+  void largeResponsesAreServedPreGzippedWhenAccepted() throws Exception {
+    Handler handler = responseCache.cached(countingHandler(LARGE_BODY));
+    handler.handle(ReadCoalescerSpec.requestFor());
+
+    Context gzipClient = ReadCoalescerSpec.requestFor();
+    when(gzipClient.header(ResponseCache.ACCEPT_ENCODING_HEADER)).thenReturn("gzip, deflate, br");
+    handler.handle(gzipClient);
+
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(gzipClient).result(body.capture());
+    verify(gzipClient).header(ResponseCache.CONTENT_ENCODING_HEADER, ResponseCache.GZIP);
+    assertArrayEquals(LARGE_BODY, gunzip(body.getValue()));
+    assertEquals(1, calls.get());
+
+    Context plainClient = ReadCoalescerSpec.requestFor();
+    handler.handle(plainClient);
+    verify(plainClient).result(LARGE_BODY);
+    verify(plainClient, never()).header(ResponseCache.CONTENT_ENCODING_HEADER, ResponseCache.GZIP);
+  }
+
+  @Test
+  void smallResponsesAreNeverGzipped() throws Exception {
+    Handler handler = responseCache.cached(countingHandler(SMALL_BODY));
+    handler.handle(ReadCoalescerSpec.requestFor());
+
+    Context gzipClient = ReadCoalescerSpec.requestFor();
+    when(gzipClient.header(ResponseCache.ACCEPT_ENCODING_HEADER)).thenReturn("gzip");
+    handler.handle(gzipClient);
+
+    verify(gzipClient).result(SMALL_BODY);
+    verify(gzipClient, never()).header(any(String.class), any(String.class));
+  }
+}
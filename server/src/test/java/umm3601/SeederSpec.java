@@ -0,0 +1,124 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Tests for the `Seeder`, against the test database.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class SeederSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  @TempDir
+  private Path seedDirectory;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.getCollection("users").drop();
+    db.getCollection("widgets").drop();
+  }
+
+  private void writeSeedFile(String name, int count) throws IOException {
+    List<String> documents = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      documents.add("{\"_id\": {\"$oid\": \"" + new ObjectId().toHexString() + "\"}, \"name\": \"User " + i
+        + "\", \"age\": " + (20 + i % 50) + ", \"company\": \"Company " + (i % 7) + "\", \"email\": \"user" + i
+        + "@example.com\", \"role\": \"viewer\"}");
+    }
+    Files.writeString(seedDirectory.resolve(name), "[\n" + String.join(",\n", documents) + "\n]\n");
+  }
+
+  @Test
+  void seedsEachFileIntoItsCollectionInParallelBatches() throws IOException, InterruptedException {
+    // More than a few batches, with a partial one at the end.
+    writeSeedFile("users.json", 2345);
+    writeSeedFile("widgets.json", 3);
+    Files.writeString(seedDirectory.resolve("README.md"), "Not a seed file");
+
+    assertEquals(2348, new Seeder(db, 4, 100).seedAll(seedDirectory));
+    assertEquals(2345, db.getCollection("users").countDocuments());
+    assertEquals(3, db.getCollection("widgets").countDocuments());
+
+    // Extended JSON comes through as the right types.
+    Document user = db.getCollection("users").find(new Document("name", "User 7")).first();
+    assertTrue(user.get("_id") instanceof ObjectId);
+    assertEquals(27, user.getInteger("age"));
+  }
+
+  @Test
+  void buildsTheIndexesAfterLoading() throws IOException, InterruptedException {
+    writeSeedFile("users.json", 10);
+    writeSeedFile("widgets.json", 10);
+
+    new Seeder(db, 2, 3).seedAll(seedDirectory);
+
+    List<String> userIndexes = db.getCollection("users").listIndexes()
+      .map(index -> index.getString("name")).into(new ArrayList<>());
+    assertTrue(userIndexes.contains("users_text"), userIndexes.toString());
+    assertTrue(userIndexes.contains("company_1_name_1"), userIndexes.toString());
+    // Only the `_id` index for collections we don't know the indexes of.
+    assertEquals(1, db.getCollection("widgets").listIndexes().into(new ArrayList<>()).size());
+  }
+
+  @Test
+  void seedsAnEmptyFile() throws IOException, InterruptedException {
+    Files.writeString(seedDirectory.resolve("widgets.json"), "[]");
+    assertEquals(0, new Seeder(db, 2, 10).seed(seedDirectory.resolve("widgets.json")));
+  }
+
+  @Test
+  void rejectsAFileThatIsNotAnArrayOfDocuments() throws IOException {
+    Files.writeString(seedDirectory.resolve("widgets.json"), "{\"name\": \"Not in an array\"}");
+    assertThrows(IOException.class, () -> new Seeder(db, 2, 10).seed(seedDirectory.resolve("widgets.json")));
+    Files.writeString(seedDirectory.resolve("widgets.json"), "[{\"name\": \"Fine\"}, 42]");
+    assertThrows(IOException.class, () -> new Seeder(db, 2, 10).seed(seedDirectory.resolve("widgets.json")));
+  }
+
+  @Test
+  void rejectsNonsensicalSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new Seeder(db, 0, 10));
+    assertThrows(IllegalArgumentException.class, () -> new Seeder(db, 2, 0));
+  }
+}
@@ -0,0 +1,47 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests for `StartupTimer`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class StartupTimerSpec {
+
+  private static Context responseWith(HttpStatus status) {
+    Context ctx = mock(Context.class);
+    when(ctx.status()).thenReturn(status);
+    return ctx;
+  }
+
+  @Test
+  void timesTheFirstSuccessfulResponse() {
+    AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+    StartupTimer timer = new StartupTimer(now::get);
+    assertEquals(-1, timer.millisToFirstResponse());
+
+    // Failed requests (say, while the database isn't up yet) don't count.
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+    timer.recordResponse(responseWith(HttpStatus.SERVICE_UNAVAILABLE));
+    assertEquals(-1, timer.millisToFirstResponse());
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+    timer.recordResponse(responseWith(HttpStatus.OK));
+    assertEquals(500, timer.millisToFirstResponse());
+
+    // Only the first one counts.
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+    timer.recordResponse(responseWith(HttpStatus.CREATED));
+    assertEquals(500, timer.millisToFirstResponse());
+  }
+}
@@ -0,0 +1,106 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `TtlCache`, using a clock we control.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class TtlCacheSpec {
+
+  private AtomicLong now;
+  private TtlCache<String, String> cache;
+
+  @BeforeEach
+  void setupEach() {
+    now = new AtomicLong();
+    cache = new TtlCache<>(Duration.ofSeconds(10), 3, now::get);
+  }
+
+  private void advanceSeconds(long seconds) {
+    now.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+  }
+
+  @Test
+  void returnsWhatWasPut() {
+    cache.put("a", "apple");
+    assertEquals("apple", cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+  @Test
+  void entriesExpire() {
+    cache.put("a", "apple");
+    advanceSeconds(9);
+    assertEquals("apple", cache.get("a"));
+    advanceSeconds(1);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void expiredEntriesAreEvictedFirstWhenFull() {
+    cache.put("a", "apple");
+    advanceSeconds(5);
+    cache.put("b", "banana");
+    cache.put("c", "cherry");
+    advanceSeconds(6);
+    cache.put("d", "date");
+
+    assertNull(cache.get("a"));
+    assertEquals("banana", cache.get("b"));
+    assertEquals("date", cache.get("d"));
+  }
+
+  @Test
+  void oldestEntriesAreEvictedWhenFull() {
+    cache.put("a", "apple");
+    advanceSeconds(1);
+    cache.put("b", "banana");
+    advanceSeconds(1);
+    cache.put("c", "cherry");
+    cache.put("d", "date");
+
+    assertEquals(3, cache.size());
+    assertNull(cache.get("a"));
+    assertEquals("banana", cache.get("b"));
+  }
+
+  @Test
+  void replacingAnEntryDoesNotEvict() {
+    cache.put("a", "apple");
+    cache.put("b", "banana");
+    cache.put("c", "cherry");
+    cache.put("a", "apricot");
+
+    assertEquals("apricot", cache.get("a"));
+    assertEquals("banana", cache.get("b"));
+    assertEquals("cherry", cache.get("c"));
+  }
+
+  @Test
+  void invalidation() {
+    cache.put("a", "apple");
+    cache.put("b", "banana");
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+    assertEquals("banana", cache.get("b"));
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void mustHoldSomething() {
+    assertThrows(IllegalArgumentException.class, () -> new TtlCache<String, String>(Duration.ofSeconds(1), 0));
+  }
+}
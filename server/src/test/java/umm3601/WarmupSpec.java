@@ -0,0 +1,97 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+/**
+ * Tests for `Warmup`.
+ *
+ * These don't start a server; there's nothing listening on the port the
+ * warmup requests go to, which the warmup should shrug off.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class WarmupSpec {
+
+  /**
+   * A controller that asks for two requests per round, and remembers which
+   * rounds it was asked about.
+   */
+  private static final class TwoPathController implements Controller {
+    private final List<Integer> rounds = new ArrayList<>();
+
+    @Override
+    public void addRoutes(Javalin server) {
+      // No routes needed.
+    }
+
+    @Override
+    public List<String> warmupPaths(int round) {
+      rounds.add(round);
+      return List.of("/api/things?limit=" + (round + 1), "/api/things/search?q=a");
+    }
+  }
+
+  // A port nothing is listening on (as of when we checked).
+  private static int unusedPort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  @Test
+  void makesEveryRoundOfRequests() throws IOException, InterruptedException {
+    TwoPathController controller = new TwoPathController();
+    Warmup warmup = new Warmup(3, Duration.ofMinutes(1));
+    warmup.run(unusedPort(), new Controller[] {controller});
+    assertEquals(List.of(0, 1, 2), controller.rounds);
+    assertEquals(6, warmup.requestsMade());
+  }
+
+  @Test
+  void stopsWhenTheBudgetRunsOut() throws IOException, InterruptedException {
+    TwoPathController controller = new TwoPathController();
+    AtomicLong now = new AtomicLong();
+    // Every time the warmup checks the clock, a second has passed.
+    Warmup warmup = new Warmup(100, Duration.ofSeconds(3), () -> now.getAndAdd(TimeUnit.SECONDS.toNanos(1)));
+    warmup.run(unusedPort(), new Controller[] {controller});
+    assertEquals(List.of(0, 1), controller.rounds);
+  }
+
+  @Test
+  void controllersHaveNoWarmupPathsByDefault() {
+    Controller controller = server -> { };
+    assertEquals(List.of(), controller.warmupPaths(0));
+  }
+
+  @Test
+  void recognizesItsOwnRequests() {
+    Warmup warmup = new Warmup(1, Duration.ofSeconds(1));
+    Warmup otherWarmup = new Warmup(1, Duration.ofSeconds(1));
+
+    Context ctx = mock(Context.class);
+    assertFalse(warmup.isWarmupRequest(ctx));
+    when(ctx.header(Warmup.TOKEN_HEADER)).thenReturn("guess");
+    assertFalse(warmup.isWarmupRequest(ctx));
+    assertFalse(otherWarmup.isWarmupRequest(ctx));
+
+    when(ctx.header(Warmup.TOKEN_HEADER)).thenReturn(warmup.token());
+    assertTrue(warmup.isWarmupRequest(ctx));
+    assertFalse(otherWarmup.isWarmupRequest(ctx));
+  }
+}
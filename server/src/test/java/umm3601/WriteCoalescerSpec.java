@@ -0,0 +1,152 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Tests for `WriteCoalescer`, against the test database.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class WriteCoalescerSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> widgets;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    widgets = db.getCollection("widgets");
+    widgets.drop();
+  }
+
+  @Test
+  void insertsOnItsOwn() {
+    WriteCoalescer<Document> coalescer = new WriteCoalescer<>(widgets, 10, Duration.ZERO);
+    Document widget = new Document("name", "sprocket");
+    coalescer.insert(widget);
+
+    // Like `insertOne`, the document gets an `_id`.
+    assertNotNull(widget.getObjectId("_id"));
+    assertEquals(1, widgets.countDocuments());
+    assertEquals(1, coalescer.batchesWritten());
+  }
+
+  @Test
+  void coalescesConcurrentInserts() throws Exception {
+    // A long window, so everybody's insert lands in the first batch or two.
+    WriteCoalescer<Document> coalescer = new WriteCoalescer<>(widgets, 100, Duration.ofMillis(500));
+    int callers = 20;
+    ExecutorService pool = Executors.newFixedThreadPool(callers);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<?>> inserts = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        Document widget = new Document("number", i);
+        inserts.add(pool.submit(() -> {
+          start.await();
+          coalescer.insert(widget);
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> insert : inserts) {
+        insert.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    assertEquals(callers, widgets.countDocuments());
+    assertTrue(coalescer.batchesWritten() < callers, "Wrote " + coalescer.batchesWritten() + " batches");
+  }
+
+  @Test
+  void splitsBatchesAtTheMaximumSize() throws Exception {
+    WriteCoalescer<Document> coalescer = new WriteCoalescer<>(widgets, 2, Duration.ofMillis(500));
+    ExecutorService pool = Executors.newFixedThreadPool(5);
+    try {
+      List<Future<?>> inserts = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        Document widget = new Document("number", i);
+        inserts.add(pool.submit(() -> coalescer.insert(widget)));
+      }
+      for (Future<?> insert : inserts) {
+        insert.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    assertEquals(5, widgets.countDocuments());
+    assertTrue(coalescer.batchesWritten() >= 3, "Wrote " + coalescer.batchesWritten() + " batches");
+  }
+
+  @Test
+  void onlyTheBadDocumentInABatchFails() throws Exception {
+    ObjectId taken = new ObjectId();
+    widgets.insertOne(new Document("_id", taken));
+    WriteCoalescer<Document> coalescer = new WriteCoalescer<>(widgets, 10, Duration.ofMillis(500));
+
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> duplicate = pool.submit(() -> coalescer.insert(new Document("_id", taken)));
+      Future<?> fine = pool.submit(() -> coalescer.insert(new Document("name", "fine")));
+
+      Exception e = assertThrows(Exception.class, duplicate::get);
+      assertTrue(e.getCause() instanceof MongoWriteException, e.toString());
+      fine.get();
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(2, widgets.countDocuments());
+  }
+
+  @Test
+  void rejectsNonsensicalBatchSizes() {
+    assertThrows(IllegalArgumentException.class, () -> new WriteCoalescer<>(widgets, 0, Duration.ZERO));
+  }
+}
@@ -0,0 +1,64 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static umm3601.user.TestUsers.user;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `CompactUser` (and the `Role`s it holds).
+ */
+@SuppressWarnings({ "MagicNumber" })
+class CompactUserSpec {
+
+  @Test
+  void convertsBackToTheSameUser() {
+    User pat = user("Pat", 37, "IBM", "editor");
+    pat.version = 4;
+    User back = CompactUser.of(pat).toUser();
+    assertEquals(pat._id, back._id);
+    assertEquals(pat.name, back.name);
+    assertEquals(pat.age, back.age);
+    assertEquals(pat.company, back.company);
+    assertEquals(pat.email, back.email);
+    assertEquals(pat.avatar, back.avatar);
+    assertEquals(pat.role, back.role);
+    assertEquals(pat.version, back.version);
+
+    User noCompany = user("Jamie", 37, null, "viewer");
+    assertEquals(null, CompactUser.of(noCompany).toUser().company);
+  }
+
+  @Test
+  void sharesRoles() {
+    // Two separate copies of the same string, the way MongoJack would make them.
+    CompactUser jamie = CompactUser.of(user("Jamie", 37, "OHMNET", new String("viewer")));
+    CompactUser sam = CompactUser.of(user("Sam", 37, "OHMNET", new String("viewer")));
+    assertSame(Role.VIEWER, jamie.role());
+    assertSame(Role.VIEWER, sam.role());
+  }
+
+  @Test
+  void onlyHoldsSavedUsersWithLegalRoles() {
+    User unsaved = user("Chris", 37, "UMM", "admin");
+    unsaved._id = null;
+    assertThrows(IllegalArgumentException.class, () -> CompactUser.of(unsaved));
+    assertThrows(IllegalArgumentException.class, () -> CompactUser.of(user("Chris", 37, "UMM", "boss")));
+    assertThrows(IllegalArgumentException.class, () -> CompactUser.of(user("Chris", 37, "UMM", null)));
+  }
+
+  @Test
+  void rolesAreWrittenInLowerCase() {
+    assertEquals(List.of("admin", "editor", "viewer"), List.of(Role.values()).stream().map(Role::toString).toList());
+    assertEquals(Role.ADMIN, Role.parse("admin"));
+    assertTrue(Role.isRole("viewer"));
+    assertFalse(Role.isRole("VIEWER"));
+    assertFalse(Role.isRole(null));
+  }
+}
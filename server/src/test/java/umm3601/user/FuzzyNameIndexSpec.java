@@ -0,0 +1,111 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static umm3601.user.TestUsers.userNamed;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the in-memory `FuzzyNameIndex`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class FuzzyNameIndexSpec {
+
+  private FuzzyNameIndex index;
+
+  private List<String> find(String query) {
+    return index.find(query, 10).stream()
+      .map(match -> String.join("/", match.spellings()) + " " + match.count() + " " + match.distance())
+      .collect(Collectors.toList());
+  }
+
+  @BeforeEach
+  void setupEach() {
+    index = new FuzzyNameIndex(100);
+    for (String name : List.of("Connie Stewart", "Connie", "Lynn Ferguson", "Bonnie Lee", "Jon", "Jan", "Jon")) {
+      index.add(name);
+    }
+  }
+
+  @Test
+  void trigramsArePadded() {
+    assertEquals(Set.of("  c", " co", "con", "oni", "nie", "ie "), FuzzyNameIndex.trigrams("conie"));
+    assertEquals(Set.of("  j", " jo", "jo "), FuzzyNameIndex.trigrams("jo"));
+  }
+
+  @Test
+  void computesBoundedEditDistances() {
+    assertEquals(0, FuzzyNameIndex.editDistance("connie", "connie", 2));
+    assertEquals(1, FuzzyNameIndex.editDistance("conie", "connie", 2));
+    assertEquals(2, FuzzyNameIndex.editDistance("kitten", "sittin", 2));
+    assertEquals(3, FuzzyNameIndex.editDistance("kitten", "sitting", 2));
+    assertEquals(2, FuzzyNameIndex.editDistance("a", "abcdef", 1));
+    assertEquals(1, FuzzyNameIndex.editDistance("abcdef", "xyzuvw", 0));
+  }
+
+  @Test
+  void allowsMoreTyposInLongerWords() {
+    assertEquals(0, FuzzyNameIndex.allowedEdits("jon"));
+    assertEquals(1, FuzzyNameIndex.allowedEdits("conie"));
+    assertEquals(2, FuzzyNameIndex.allowedEdits("fergusson"));
+  }
+
+  @Test
+  void findsNamesWithTypos() {
+    assertEquals(List.of("Connie 1 1", "Connie Stewart 1 1"), find("Conie"));
+    assertEquals(List.of("Lynn Ferguson 1 1"), find("lynn fergusen"));
+    assertEquals(List.of("Connie Stewart 1 0"), find("stewart connie"));
+  }
+
+  @Test
+  void shortWordsMustMatchExactly() {
+    assertEquals(List.of("Jon 2 0"), find("jon"));
+    assertEquals(List.of(), find("jen"));
+    assertEquals(List.of(), find(" "));
+  }
+
+  @Test
+  void keepsTrackOfSpellingsAndCounts() {
+    index.add("CONNIE");
+    assertEquals(List.of("CONNIE/Connie 2 0", "Connie Stewart 1 0", "Bonnie Lee 1 1"), find("connie"));
+    index.remove("Connie");
+    index.remove("connie");
+    index.remove("Nobody");
+    assertEquals(List.of("CONNIE 1 0", "Connie Stewart 1 0", "Bonnie Lee 1 1"), find("connie"));
+    index.userDeleted(userNamed("CONNIE"));
+    assertEquals(List.of("Connie Stewart 1 0", "Bonnie Lee 1 1"), find("connie"));
+    index.userAdded(userNamed("Connie"));
+    assertEquals(List.of("Connie 1 0", "Connie Stewart 1 0", "Bonnie Lee 1 1"), find("connie"));
+  }
+
+  @Test
+  void stopsGrowingWhenFull() {
+    FuzzyNameIndex small = new FuzzyNameIndex(2);
+    small.add("Connie");
+    small.add("Bonnie");
+    small.add("Ronnie");
+    small.add("Connie");
+    assertEquals(2, small.size());
+    assertEquals(1, small.droppedNames());
+    assertEquals(2, small.find("onnie", 10).size());
+  }
+
+  @Test
+  void compactsAfterManyRemoves() {
+    FuzzyNameIndex big = new FuzzyNameIndex(10_000);
+    for (int i = 0; i < 3000; i++) {
+      big.add("Person " + i);
+    }
+    for (int i = 0; i < 2500; i++) {
+      big.remove("Person " + i);
+    }
+    assertEquals(500, big.size());
+    assertEquals(List.of("Person 2999"), big.find("persn 2999", 1).get(0).spellings());
+    assertEquals(0, big.find("person 12", 10).size());
+  }
+}
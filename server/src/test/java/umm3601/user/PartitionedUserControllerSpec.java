@@ -0,0 +1,241 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static umm3601.user.TestUsers.user;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.json.JavalinJackson;
+import io.javalin.validation.BodyValidator;
+import io.javalin.validation.Validation;
+import umm3601.IdempotencyKeys;
+
+/**
+ * Tests for `PartitionedUserController`, with the users split across two
+ * databases (see `UserPartitionsSpec` for spreading those across several
+ * `mongod`s).
+ */
+@SuppressWarnings({ "MagicNumber" })
+class PartitionedUserControllerSpec {
+
+  private static MongoClient mongoClient;
+  private static List<MongoDatabase> databases;
+
+  private static JavalinJackson javalinJackson = new JavalinJackson();
+
+  private UserPartitions partitions;
+  private PartitionedUserController controller;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<ArrayList<User>> userArrayListCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<UserByCompany>> userByCompanyListCaptor;
+
+  @Captor
+  private ArgumentCaptor<Map<String, String>> mapCaptor;
+
+  @Captor
+  private ArgumentCaptor<User> userCaptor;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    mongoClient = MongoClients.create("mongodb://" + mongoAddr);
+    databases = List.of(mongoClient.getDatabase("test_partition_a"), mongoClient.getDatabase("test_partition_b"));
+  }
+
+  @AfterAll
+  static void teardown() {
+    databases.forEach(MongoDatabase::drop);
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    databases.forEach(database -> database.getCollection("users").drop());
+    partitions = new UserPartitions(databases);
+    partitions.insert(user("Chris", 25, "UMM", "admin"));
+    partitions.insert(user("Pat", 37, "IBM", "editor"));
+    partitions.insert(user("Jamie", 37, "OHMNET", "viewer"));
+    partitions.insert(user("Sam", 45, "OHMNET", "viewer"));
+    controller = new PartitionedUserController(partitions, databases.get(0), UnindexedSorts.REJECT);
+  }
+
+  @AfterEach
+  void teardownEach() {
+    partitions.close();
+  }
+
+  private void withQueryParams(Map<String, String> params) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    Validation validation = new Validation();
+    params.forEach((key, value) -> {
+      queryParams.put(key, List.of(value));
+      when(ctx.queryParam(key)).thenReturn(value);
+      when(ctx.queryParamAsClass(key, String.class)).thenReturn(validation.validator(key, String.class, value));
+      when(ctx.queryParamAsClass(key, Integer.class)).thenReturn(validation.validator(key, Integer.class, value));
+    });
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+  }
+
+  @Test
+  void getsPagesOfUsersFromEveryPartition() {
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "age", UserController.LIMIT_KEY, "2",
+      UserController.OFFSET_KEY, "1", UserController.COUNT_KEY, "true"));
+    controller.getUsers(ctx);
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    // Pat and Jamie are both 37, so they can come in either order.
+    assertEquals(List.of(37, 37), userArrayListCaptor.getValue().stream().map(user -> user.age).toList());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "4");
+  }
+
+  @Test
+  void filtersUsersInEveryPartition() {
+    withQueryParams(Map.of(UserController.ROLE_KEY, "viewer,admin", UserController.MAX_AGE_KEY, "40"));
+    controller.getUsers(ctx);
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(List.of("Chris", "Jamie"), userArrayListCaptor.getValue().stream().map(user -> user.name).toList());
+  }
+
+  @Test
+  void groupsUsersByCompanyFromEveryPartition() {
+    withQueryParams(Map.of("sortBy", "count", "sortOrder", "desc", UserController.LIMIT_KEY, "2"));
+    controller.getUsersGroupedByCompany(ctx);
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    List<String> companies = userByCompanyListCaptor.getValue().stream()
+      .map(company -> company._id + " " + company.count + " "
+        + company.users.stream().map(user -> user.name).toList())
+      .toList();
+    assertEquals(List.of("OHMNET 2 [Jamie, Sam]", "IBM 1 [Pat]"), companies);
+  }
+
+  @Test
+  void addsGetsAndDeletesAUser() {
+    String newUserJson = javalinJackson.toJsonString(user("Lee", 30, "UMM", "viewer"), User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+        () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    controller.addNewUser(ctx);
+    verify(ctx).json(mapCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+    String id = mapCaptor.getValue().get("id");
+    assertEquals(5, partitions.count(new Document()));
+
+    Context getCtx = mock(Context.class);
+    when(getCtx.pathParam("id")).thenReturn(id);
+    controller.getUser(getCtx);
+    verify(getCtx).json(userCaptor.capture());
+    assertEquals("Lee", userCaptor.getValue().name);
+    assertEquals(UserController.avatarFor("lee@example.com"), userCaptor.getValue().avatar);
+
+    Context deleteCtx = mock(Context.class);
+    when(deleteCtx.pathParam("id")).thenReturn(id);
+    controller.deleteUser(deleteCtx);
+    verify(deleteCtx).status(HttpStatus.OK);
+    assertThrows(NotFoundResponse.class, () -> controller.getUser(getCtx));
+    assertThrows(NotFoundResponse.class, () -> controller.deleteUser(deleteCtx));
+  }
+
+  @Test
+  void rejectsIllegalIds() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+    assertThrows(BadRequestResponse.class, () -> controller.getUser(ctx));
+    assertThrows(NotFoundResponse.class, () -> controller.deleteUser(ctx));
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    assertThrows(NotFoundResponse.class, () -> controller.getUser(ctx));
+  }
+
+  @Test
+  void endpointsThatNeedOneCollectionAreNotImplemented() throws IOException, InterruptedException {
+    Javalin server = Javalin.create(config -> config.jsonMapper(javalinJackson));
+    controller.addRoutes(server);
+    server.start(0);
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      String base = "http://localhost:" + server.port();
+      String someId = new ObjectId().toHexString();
+      List<HttpRequest> requests = List.of(
+        HttpRequest.newBuilder(URI.create(base + "/api/users/search?q=sam")).build(),
+        HttpRequest.newBuilder(URI.create(base + "/api/users/autocomplete?prefix=s")).build(),
+        HttpRequest.newBuilder(URI.create(base + "/api/users/fuzzy?name=sam")).build(),
+        HttpRequest.newBuilder(URI.create(base + "/api/users/facets")).build(),
+        HttpRequest.newBuilder(URI.create(base + "/api/users/replica")).build(),
+        HttpRequest.newBuilder(URI.create(base + "/api/users/writes/" + someId)).build(),
+        HttpRequest.newBuilder(URI.create(base + "/api/users/" + someId))
+          .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"age\": 30}")).build());
+      for (HttpRequest request : requests) {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(HttpStatus.NOT_IMPLEMENTED.getCode(), response.statusCode(), request.uri().toString());
+      }
+
+      // The endpoints we do serve still work.
+      HttpResponse<String> users = client.send(HttpRequest.newBuilder(URI.create(base + "/api/users")).build(),
+        HttpResponse.BodyHandlers.ofString());
+      assertEquals(HttpStatus.OK.getCode(), users.statusCode());
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void retriedAddsWithAnIdempotencyKeyAddOneUser() throws IOException, InterruptedException {
+    Javalin server = Javalin.create(config -> config.jsonMapper(javalinJackson));
+    controller.addRoutes(server);
+    server.start(0);
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      HttpRequest add = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/users"))
+        .header(IdempotencyKeys.KEY_HEADER, "add-lee-" + new ObjectId())
+        .POST(HttpRequest.BodyPublishers.ofString(
+          javalinJackson.toJsonString(user("Lee", 30, "UMM", "viewer"), User.class)))
+        .build();
+      HttpResponse<String> first = client.send(add, HttpResponse.BodyHandlers.ofString());
+      HttpResponse<String> retry = client.send(add, HttpResponse.BodyHandlers.ofString());
+
+      assertEquals(HttpStatus.CREATED.getCode(), first.statusCode());
+      assertEquals(first.body(), retry.body());
+      assertEquals(5, partitions.count(new Document()));
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the in-memory `PrefixIndex` used for autocompletion.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class PrefixIndexSpec {
+
+  private PrefixIndex index;
+
+  private static List<String> describe(List<Completion> completions) {
+    return completions.stream().map(c -> c.value + " " + c.count).collect(Collectors.toList());
+  }
+
+  @BeforeEach
+  void setupEach() {
+    index = new PrefixIndex(user -> user.company);
+    for (String company : List.of("OHMNET", "Ohmnet", "OHMNET", "Omni", "Omega", "Omega", "IBM", "UMM")) {
+      index.add(company);
+    }
+  }
+
+  @Test
+  void completesIgnoringCase() {
+    assertEquals(List.of("OHMNET 3"), describe(index.complete("ohm", 10)));
+    assertEquals(List.of("IBM 1"), describe(index.complete(" I", 10)));
+    assertEquals(List.of(), describe(index.complete("xyz", 10)));
+  }
+
+  @Test
+  void mostCommonComesFirstThenAlphabetical() {
+    assertEquals(List.of("OHMNET 3", "Omega 2", "Omni 1"), describe(index.complete("o", 10)));
+    assertEquals(List.of("OHMNET 3", "Omega 2", "IBM 1", "Omni 1", "UMM 1"), describe(index.complete("", 10)));
+  }
+
+  @Test
+  void returnsAtMostTheLimit() {
+    assertEquals(List.of("OHMNET 3", "Omega 2"), describe(index.complete("o", 2)));
+    assertEquals(List.of("OHMNET 3"), describe(index.complete("", 1)));
+  }
+
+  @Test
+  void countsGoUpAndDown() {
+    User omega = new User();
+    omega.company = "omega";
+    index.userAdded(omega);
+    index.userAdded(omega);
+    assertEquals(List.of("Omega 4", "OHMNET 3", "Omni 1"), describe(index.complete("o", 10)));
+
+    User omni = new User();
+    omni.company = "Omni";
+    index.userDeleted(omni);
+    index.userDeleted(omni);
+    assertEquals(List.of("Omega 4", "OHMNET 3"), describe(index.complete("o", 10)));
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  void ignoresMissingValues() {
+    index.add(null);
+    index.add("  ");
+    index.remove(null);
+    index.remove("");
+    index.remove("Nowhere");
+    assertEquals(5, index.size());
+  }
+
+  @Test
+  void findsTheMostCommonAmongManyCandidates() {
+    PrefixIndex names = new PrefixIndex(user -> user.name);
+    for (int i = 0; i < 2000; i++) {
+      names.add(String.format("a%04d", i));
+    }
+    // This is the most common name starting with "a", though it sorts after
+    // all the others.
+    names.add("azzz");
+    names.add("azzz");
+    assertEquals(List.of("azzz 2", "a0000 1"), describe(names.complete("a", 2)));
+    assertEquals(List.of("azzz 2"), describe(names.complete("az", 1)));
+    assertEquals(List.of("a1990 1"), describe(names.complete("a199", 1)));
+
+    // Take it away again, and it's off the top.
+    names.remove("azzz");
+    names.remove("azzz");
+    assertEquals(List.of("a0000 1"), describe(names.complete("a", 1)));
+    assertEquals(List.of(), describe(names.complete("az", 1)));
+  }
+}
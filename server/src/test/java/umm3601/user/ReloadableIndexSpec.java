@@ -0,0 +1,129 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static umm3601.user.TestUsers.user;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `ReloadableIndex`, using a `PrefixIndex` of companies (which
+ * counts users, so would notice one being added twice or removed when it
+ * was never there).
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ReloadableIndexSpec {
+
+  private final AtomicLong now = new AtomicLong();
+  private ReloadableIndex<PrefixIndex> companies;
+
+  private final User chris = user("1", "Chris", "UMM");
+  private final User pat = user("2", "Pat", "IBM");
+  private final User jamie = user("3", "Jamie", "OHMNET");
+  private final User sam = user("4", "Sam", "OHMNET");
+
+  private static User movedTo(User user, String company) {
+    return user(user._id, user.name, company);
+  }
+
+  @BeforeEach
+  void setupEach() {
+    companies = new ReloadableIndex<>(() -> new PrefixIndex(user -> user.company), now::get);
+    companies.reload(List.of(chris, pat, jamie, sam));
+  }
+
+  private List<String> completions(String prefix) {
+    return companies.index().complete(prefix, 10).stream()
+      .map(c -> c.value + " " + c.count)
+      .collect(Collectors.toList());
+  }
+
+  @Test
+  void reloadReplacesTheIndex() {
+    assertEquals(List.of("OHMNET 2"), completions("o"));
+    companies.reload(List.of(chris, pat, jamie, movedTo(sam, "Omni")));
+    assertEquals(List.of("OHMNET 1", "Omni 1"), completions("o"));
+  }
+
+  @Test
+  void changesHeardAboutAreAppliedToTheCurrentIndex() {
+    companies.userAdded(user("5", "Lee", "Omni"));
+    companies.userUpdated(pat, movedTo(pat, "OHMNET"));
+    companies.userDeleted(chris);
+    assertEquals(List.of("OHMNET 3", "Omni 1"), completions("o"));
+    assertEquals(List.of(), completions("u"));
+  }
+
+  @Test
+  void changesMadeDuringAReloadAreKept() {
+    User lee = user("5", "Lee", "Omni");
+    // The users change while we're reading the "database" we reload from:
+    // Pat moves after we've read them, and just as we read Sam, Sam is
+    // deleted and Lee (who we never read) is added.
+    Iterable<User> database = () -> List.of(chris, pat, jamie, sam).stream()
+      .peek(user -> {
+        if (user == sam) {
+          companies.userUpdated(pat, movedTo(pat, "OHMNET"));
+          companies.userDeleted(sam);
+          companies.userAdded(lee);
+        }
+      })
+      .iterator();
+    companies.reload(database);
+    assertEquals(List.of("OHMNET 2", "Omni 1"), completions("o"));
+    assertEquals(List.of(), completions("i"));
+  }
+
+  @Test
+  void usersChangedMoreThanOnceDuringAReloadEndUpAsTheyAreNow() {
+    // Just as we read Jamie, Chris (who we've read) and Sam (who we haven't
+    // yet) each move twice.
+    Iterable<User> database = () -> List.of(chris, pat, jamie, sam).stream()
+      .peek(user -> {
+        if (user == jamie) {
+          User chrisAtOmni = movedTo(chris, "Omni");
+          companies.userUpdated(chris, chrisAtOmni);
+          companies.userUpdated(chrisAtOmni, movedTo(chris, "Omega"));
+          User samAtOmni = movedTo(sam, "Omni");
+          companies.userUpdated(sam, samAtOmni);
+          companies.userUpdated(samAtOmni, movedTo(sam, "Omega"));
+        }
+      })
+      .iterator();
+    companies.reload(database);
+    assertEquals(List.of("Omega 2", "OHMNET 1"), completions("o"));
+    assertEquals(List.of(), completions("u"));
+  }
+
+  @Test
+  void reloadsInTheBackground() throws InterruptedException {
+    companies.reloadInBackground(() -> List.of(chris, pat));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while ((companies.freshness().reloading() || !completions("o").isEmpty()) && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(List.of(), completions("o"));
+    assertEquals(List.of("IBM 1"), completions("i"));
+  }
+
+  @Test
+  void knowsHowStaleItIs() {
+    assertTrue(companies.isFresh(Duration.ofSeconds(10)));
+    now.addAndGet(TimeUnit.SECONDS.toNanos(11));
+    companies.userDeleted(sam);
+    assertFalse(companies.isFresh(Duration.ofSeconds(10)));
+    assertEquals(new ReloadableIndex.Freshness(11_000, 1, false), companies.freshness());
+
+    companies.reload(List.of(chris));
+    assertTrue(companies.isFresh(Duration.ofSeconds(10)));
+    assertEquals(0, companies.freshness().changesSinceLoad());
+  }
+}
@@ -0,0 +1,117 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `RowBitmap`, checked against a plain `BitSet`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class RowBitmapSpec {
+
+  private static BitSet toBitSet(RowBitmap bitmap) {
+    BitSet bits = new BitSet();
+    List<Integer> rows = new ArrayList<>();
+    bitmap.forEach(row -> {
+      bits.set(row);
+      rows.add(row);
+    });
+    // `forEach` goes in increasing order.
+    assertEquals(rows.stream().sorted().toList(), rows);
+    return bits;
+  }
+
+  // A bitmap (and the same set as a `BitSet`) with about `density` of the
+  // rows up to `size` in it.
+  private static RowBitmap randomBitmap(Random random, int size, double density, BitSet expected) {
+    RowBitmap bitmap = new RowBitmap();
+    for (int row = 0; row < size; row++) {
+      if (random.nextDouble() < density) {
+        bitmap.add(row);
+        expected.set(row);
+      }
+    }
+    return bitmap;
+  }
+
+  @Test
+  void holdsRows() {
+    RowBitmap bitmap = new RowBitmap();
+    bitmap.add(3);
+    bitmap.add(70_000);
+    bitmap.add(3);
+    assertTrue(bitmap.contains(3));
+    assertTrue(bitmap.contains(70_000));
+    assertFalse(bitmap.contains(4));
+    assertFalse(bitmap.contains(1_000_000));
+    assertEquals(2, bitmap.cardinality());
+
+    bitmap.remove(3);
+    bitmap.remove(5);
+    assertFalse(bitmap.contains(3));
+    assertEquals(1, bitmap.cardinality());
+  }
+
+  @Test
+  void switchesBetweenArraysAndBitmaps() {
+    RowBitmap bitmap = new RowBitmap();
+    BitSet expected = new BitSet();
+    // Every other row of a chunk is too many for an array.
+    for (int row = 0; row < 65_536; row += 2) {
+      bitmap.add(row);
+      expected.set(row);
+    }
+    assertEquals(expected, toBitSet(bitmap));
+    long denseBytes = bitmap.sizeInBytes();
+
+    for (int row = 0; row < 65_536; row += 4) {
+      bitmap.remove(row);
+      expected.clear(row);
+    }
+    for (int row = 0; row < 60_000; row += 2) {
+      bitmap.remove(row);
+      expected.clear(row);
+    }
+    assertEquals(expected, toBitSet(bitmap));
+    assertEquals(expected.cardinality(), bitmap.cardinality());
+    // Back to an array, which is much smaller than the bitmap.
+    assertTrue(bitmap.sizeInBytes() < denseBytes / 4);
+  }
+
+  @Test
+  void intersectsAndUnites() {
+    Random random = new Random(3601);
+    BitSet sparse = new BitSet();
+    BitSet dense = new BitSet();
+    BitSet other = new BitSet();
+    RowBitmap sparseBitmap = randomBitmap(random, 200_000, 0.01, sparse);
+    RowBitmap denseBitmap = randomBitmap(random, 300_000, 0.5, dense);
+    RowBitmap otherBitmap = randomBitmap(random, 150_000, 0.3, other);
+
+    BitSet sparseAndDense = (BitSet) sparse.clone();
+    sparseAndDense.and(dense);
+    assertEquals(sparseAndDense, toBitSet(sparseBitmap.and(denseBitmap)));
+    assertEquals(sparseAndDense.cardinality(), sparseBitmap.andCardinality(denseBitmap));
+
+    BitSet denseAndOther = (BitSet) dense.clone();
+    denseAndOther.and(other);
+    assertEquals(denseAndOther, toBitSet(denseBitmap.and(otherBitmap)));
+    assertEquals(denseAndOther.cardinality(), otherBitmap.andCardinality(denseBitmap));
+
+    BitSet any = (BitSet) sparse.clone();
+    any.or(dense);
+    any.or(other);
+    RowBitmap union = RowBitmap.or(List.of(sparseBitmap, denseBitmap, otherBitmap));
+    assertEquals(any, toBitSet(union));
+    assertEquals(any.cardinality(), union.cardinality());
+    assertEquals(0, RowBitmap.or(List.of()).cardinality());
+  }
+}
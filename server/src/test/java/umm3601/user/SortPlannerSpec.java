@@ -0,0 +1,66 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * Tests for `SortPlanner`.
+ */
+class SortPlannerSpec {
+
+  private static final Set<String> FIELDS = Set.of("name", "age", "company", "email");
+  private static final List<List<String>> INDEXES = List.of(List.of("name", "age"), List.of("company", "name"));
+
+  private final SortPlanner rejecting = new SortPlanner(FIELDS, INDEXES, UnindexedSorts.REJECT);
+  private final SortPlanner spilling = new SortPlanner(FIELDS, INDEXES, UnindexedSorts.SPILL_TO_DISK);
+
+  @Test
+  void plansSortsThatLeadAnIndex() {
+    SortPlanner.Plan plan = rejecting.plan("company, name", "asc");
+    assertEquals(List.of("company", "name"), plan.fields());
+    assertTrue(plan.indexed());
+    assertEquals(BsonDocument.parse("{company: 1, name: 1}"), plan.toBson().toBsonDocument());
+
+    assertTrue(rejecting.plan("name", "desc").indexed());
+    assertEquals(BsonDocument.parse("{name: -1}"), rejecting.plan("name", "desc").toBson().toBsonDocument());
+  }
+
+  @Test
+  void repeatedFieldsAreIgnored() {
+    assertEquals(List.of("name", "age"), rejecting.plan("name,age,name", "asc").fields());
+  }
+
+  @Test
+  void rejectsUnindexedSortsIfConfiguredTo() {
+    BadRequestResponse exception = assertThrows(BadRequestResponse.class, () -> rejecting.plan("name,company", "asc"));
+    assertEquals("The users can't be sorted by 'name,company'; you can sort by any of "
+      + "'company', 'company,name', 'name', 'name,age'", exception.getMessage());
+    assertThrows(BadRequestResponse.class, () -> rejecting.plan("age", "asc"));
+  }
+
+  @Test
+  void flagsUnindexedSortsIfConfiguredTo() {
+    SortPlanner.Plan plan = spilling.plan("email", "desc");
+    assertFalse(plan.indexed());
+    assertEquals(BsonDocument.parse("{email: -1}"), plan.toBson().toBsonDocument());
+  }
+
+  @Test
+  void alwaysRejectsFieldsThatAreNotSortable() {
+    BadRequestResponse exception = assertThrows(BadRequestResponse.class, () -> spilling.plan("name,avatar", "asc"));
+    assertEquals("The users can't be sorted by 'avatar'; you can sort by age, company, email, name",
+      exception.getMessage());
+    assertThrows(BadRequestResponse.class, () -> spilling.plan("", "asc"));
+    assertThrows(BadRequestResponse.class, () -> spilling.plan("$where", "asc"));
+  }
+}
@@ -0,0 +1,63 @@
+package umm3601.user;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Users (and ways of describing what comes back) for the specs of the
+ * in-memory indexes and controllers, so they all make users the same way.
+ */
+final class TestUsers {
+
+  private TestUsers() {
+  }
+
+  /**
+   * A complete, legal user, with a new id, an email made from their name,
+   * and the default avatar.
+   */
+  static User user(String name, int age, String company, String role) {
+    User user = user(new ObjectId().toHexString(), name, company);
+    user.age = age;
+    user.avatar = "https://gravatar.com/avatar/?d=mp";
+    user.role = role;
+    return user;
+  }
+
+  /**
+   * A user with just the fields the text indexes look at, and an email
+   * made from their name.
+   */
+  static User user(String id, String name, String company) {
+    return user(id, name, company, name.toLowerCase() + "@example.com");
+  }
+
+  /**
+   * A user with just the fields the text indexes look at.
+   */
+  static User user(String id, String name, String company, String email) {
+    User user = new User();
+    user._id = id;
+    user.name = name;
+    user.company = company;
+    user.email = email;
+    return user;
+  }
+
+  /**
+   * A user with nothing but a name.
+   */
+  static User userNamed(String name) {
+    User user = new User();
+    user.name = name;
+    return user;
+  }
+
+  /**
+   * @return each facet count as "value count", e.g., "viewer 2"
+   */
+  static List<String> describe(List<FacetCount> counts) {
+    return counts.stream().map(count -> count._id + " " + count.count).toList();
+  }
+}
@@ -0,0 +1,220 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static umm3601.user.TestUsers.describe;
+import static umm3601.user.TestUsers.user;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for `UserColumns`, the column-wise in-memory copy of the users.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class UserColumnsSpec {
+
+  private static final UserFilter EVERYONE = new UserFilter(List.of(), List.of(), null, null, null);
+  private static final SortPlanner.Plan BY_NAME = new SortPlanner.Plan(List.of("name"), false, true);
+
+  private final AtomicLong now = new AtomicLong();
+  private UserColumns columns;
+
+  private final User chris = user("Chris", 25, "UMM", "admin");
+  private final User pat = user("Pat", 37, "IBM", "editor");
+  private final User jamie = user("Jamie", 37, "OHMNET", "viewer");
+  private final User sam = user("Sam", 45, "OHMNET", "viewer");
+
+  @BeforeEach
+  void setupEach() {
+    columns = new UserColumns(now::get);
+    columns.reload(List.of(chris, pat, jamie, sam));
+  }
+
+  private List<String> names(UserFilter filter, SortPlanner.Plan sort, int offset, int limit) {
+    return columns.query(filter, sort, offset, limit).users().stream().map(user -> user.name).toList();
+  }
+
+  private List<String> names(UserFilter filter) {
+    return names(filter, BY_NAME, 0, Integer.MAX_VALUE);
+  }
+
+  private static Pattern company(String company) {
+    return Pattern.compile(Pattern.quote(company), Pattern.CASE_INSENSITIVE);
+  }
+
+  @Test
+  void filtersLikeMongoWould() {
+    assertEquals(List.of("Chris", "Jamie", "Pat", "Sam"), names(EVERYONE));
+    assertEquals(List.of("Jamie", "Pat"), names(new UserFilter(List.of(), List.of(), 37, null, null)));
+    assertEquals(List.of("Jamie", "Pat", "Sam"), names(new UserFilter(List.of(), List.of(), null, 30, null)));
+    assertEquals(List.of("Jamie"), names(new UserFilter(List.of("viewer"), List.of(), null, null, 40)));
+    assertEquals(List.of("Chris", "Pat"),
+      names(new UserFilter(List.of("admin", "editor"), List.of(), null, null, null)));
+    assertEquals(List.of("Chris", "Pat"),
+      names(new UserFilter(List.of(), List.of(company("ibm"), company("umm")), null, null, null)));
+    assertEquals(List.of("Jamie", "Sam"), names(new UserFilter(List.of(), List.of(company("mne")), null, null, null)));
+    assertEquals(List.of(), names(new UserFilter(List.of("admin"), List.of(company("ohm")), null, null, null)));
+  }
+
+  @Test
+  void sortsAndPages() {
+    SortPlanner.Plan byCompanyThenNameDescending = new SortPlanner.Plan(List.of("company", "name"), true, true);
+    assertEquals(List.of("Chris", "Sam", "Jamie", "Pat"), names(EVERYONE, byCompanyThenNameDescending, 0, 10));
+    assertEquals(List.of("Sam", "Jamie"), names(EVERYONE, byCompanyThenNameDescending, 1, 2));
+    assertEquals(List.of(), names(EVERYONE, byCompanyThenNameDescending, 4, 2));
+
+    SortPlanner.Plan byAge = new SortPlanner.Plan(List.of("age"), false, true);
+    // Pat and Jamie are the same age, so they're in the order of their ids (i.e., when they were made).
+    assertEquals(List.of("Chris", "Pat", "Jamie", "Sam"), names(EVERYONE, byAge, 0, 10));
+
+    UserColumns.Page page = columns.query(new UserFilter(List.of("viewer", "editor"), List.of(), null, null, null),
+      BY_NAME, 1, 2);
+    assertEquals(3, page.total());
+    assertEquals(List.of("Pat", "Sam"), page.users().stream().map(user -> user.name).toList());
+  }
+
+  @Test
+  void materializesWholeUsers() {
+    User found = columns.query(new UserFilter(List.of(), List.of(), 25, null, null), BY_NAME, 0, 1).users().get(0);
+    assertEquals(chris._id, found._id);
+    assertEquals(chris.email, found.email);
+    assertEquals(chris.avatar, found.avatar);
+    assertEquals("UMM", found.company);
+    assertEquals("admin", found.role);
+  }
+
+  @Test
+  void countsFacetsOfTheMatchingUsers() {
+    UserFacets facets = columns.facets(new UserFilter(List.of(), List.of(), null, 30, null), BY_NAME, 0, 1,
+      List.of(0, 20, 30, 40, 50, 60, 150), 2);
+    assertEquals(3, facets.total);
+    assertEquals(List.of("Jamie"), facets.users.stream().map(user -> user.name).toList());
+    assertEquals(List.of("viewer 2", "editor 1"), describe(facets.roles));
+    assertEquals(List.of("OHMNET 2", "IBM 1"), describe(facets.companies));
+    assertEquals(List.of("30 2", "40 1"), describe(facets.ageBuckets));
+
+    // Ages outside all of the buckets are "other".
+    facets = columns.facets(EVERYONE, BY_NAME, 0, 1, List.of(30, 40), 10);
+    assertEquals(List.of("30 2", "other 2"), describe(facets.ageBuckets));
+  }
+
+  @Test
+  void groupsUsersByCompany() {
+    List<String> byName = columns.byCompany(false, true, 0, 10, 1).stream()
+      .map(company -> company._id + " " + company.count + " " + company.users.get(0).name)
+      .toList();
+    assertEquals(List.of("UMM 1 Chris", "OHMNET 2 Jamie", "IBM 1 Pat"), byName);
+
+    List<UserByCompany> biggest = columns.byCompany(true, true, 0, 1, 10);
+    assertEquals(1, biggest.size());
+    assertEquals("OHMNET", biggest.get(0)._id);
+    assertEquals(List.of("Jamie", "Sam"), biggest.get(0).users.stream().map(user -> user.name).toList());
+
+    // Pages of companies with the same count are in order by name.
+    assertEquals(List.of("UMM"), columns.byCompany(true, false, 1, 1, 0).stream().map(c -> c._id).toList());
+  }
+
+  @Test
+  void reportsHowBigTheBitmapsAre() {
+    long bytes = columns.bitmapBytes();
+    assertTrue(bytes > 0);
+    columns.userDeleted(chris);
+    // Chris was the only admin, the only one at UMM, and the only 25-year-old.
+    assertTrue(columns.bitmapBytes() < bytes);
+  }
+
+  @Test
+  void keepsUpWithChanges() {
+    User lee = user("Lee", 30, "UMM", "viewer");
+    columns.userAdded(lee);
+    columns.userDeleted(sam);
+    User olderPat = user("Pat", 38, "IBM", "admin");
+    olderPat._id = pat._id;
+    olderPat.version = 1;
+    columns.userUpdated(pat, olderPat);
+
+    assertEquals(List.of("Chris", "Jamie", "Lee", "Pat"), names(EVERYONE));
+    assertEquals(List.of("Chris", "Pat"), names(new UserFilter(List.of("admin"), List.of(), null, null, null)));
+    assertEquals(1, columns.query(new UserFilter(List.of(), List.of(), 38, null, null), BY_NAME, 0, 1)
+      .users().get(0).version);
+    assertEquals(3, columns.freshness().changesSinceLoad());
+  }
+
+  @Test
+  void closesUpTheGapsLeftByDeletedUsers() {
+    List<User> many = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      many.add(user(String.format("User %04d", i), 20 + i % 50, "Company " + i % 7, "viewer"));
+    }
+    columns.reload(many);
+    for (int i = 0; i < 2500; i++) {
+      columns.userDeleted(many.get(i));
+    }
+    UserColumns.Page page = columns.query(EVERYONE, BY_NAME, 0, 2);
+    assertEquals(500, page.total());
+    assertEquals(List.of("User 2500", "User 2501"), page.users().stream().map(user -> user.name).toList());
+    assertEquals(500, columns.freshness().users());
+  }
+
+  @Test
+  void findsUsersToDeleteByIdInAnyOrder() {
+    List<User> many = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      many.add(user(String.format("User %04d", i), 20 + i % 50, "Company " + i % 7, "viewer"));
+    }
+    columns.reload(many);
+    // Every third user, last first, and a couple that were never there.
+    for (int i = 2999; i >= 0; i -= 3) {
+      columns.userDeleted(many.get(i));
+    }
+    columns.userDeleted(chris);
+    columns.userDeleted(many.get(2999));
+    assertEquals(2000, columns.freshness().users());
+    assertEquals(List.of("User 0000", "User 0001", "User 0003"),
+      columns.query(EVERYONE, BY_NAME, 0, 3).users().stream().map(user -> user.name).toList());
+
+    // And the rest, so the columns are compacted (and the ids rehashed) along the way.
+    for (int i = 0; i < 3000; i++) {
+      columns.userDeleted(many.get(i));
+    }
+    assertEquals(0, columns.freshness().users());
+  }
+
+  @Test
+  void changesMadeDuringAReloadAreKept() {
+    User lee = user("Lee", 30, "UMM", "viewer");
+    // The users change while we're reading the "database" we reload from:
+    // just as we read Sam, Sam is deleted and Lee (who we never read) is added.
+    Iterable<User> database = () -> List.of(chris, pat, jamie, sam).stream()
+      .peek(user -> {
+        if (user == sam) {
+          columns.userDeleted(sam);
+          columns.userAdded(lee);
+        }
+      })
+      .iterator();
+    columns.reload(database);
+    assertEquals(List.of("Chris", "Jamie", "Lee", "Pat"), names(EVERYONE));
+  }
+
+  @Test
+  void knowsHowStaleItIs() {
+    assertTrue(columns.isFresh(Duration.ofSeconds(10)));
+    now.addAndGet(TimeUnit.SECONDS.toNanos(11));
+    assertFalse(columns.isFresh(Duration.ofSeconds(10)));
+    assertEquals(new UserColumns.Freshness(4, 11_000, 0, false), columns.freshness());
+
+    columns.reload(List.of(chris));
+    assertTrue(columns.isFresh(Duration.ofSeconds(10)));
+    assertEquals(1, columns.freshness().users());
+  }
+}
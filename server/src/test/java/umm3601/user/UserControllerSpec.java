@@ -2,6 +2,7 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.eq;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -11,15 +12,23 @@ import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static umm3601.user.TestUsers.describe;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.bson.Document;
@@ -46,7 +55,9 @@ import com.mongodb.client.MongoDatabase;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.json.JavalinJackson;
@@ -101,6 +112,12 @@ class UserControllerSpec {
   @Captor
   private ArgumentCaptor<Map<String, String>> mapCaptor;
 
+  @Captor
+  private ArgumentCaptor<List<Completion>> completionsCaptor;
+
+  @Captor
+  private ArgumentCaptor<Map<String, Object>> objectMapCaptor;
+
   /**
    * Sets up (the connection to the) DB once; that connection and DB will
    * then be (re)used for all the tests, and closed in the `teardown()`
@@ -581,6 +598,234 @@ class UserControllerSpec {
     }
   }
 
+  /**
+   * Set up `ctx` with the given query parameters, each of which can be
+   * asked for as a string or (with a validator) as a string or integer.
+   */
+  private void withQueryParams(Map<String, String> params) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    Validation validation = new Validation();
+    params.forEach((key, value) -> {
+      queryParams.put(key, List.of(value));
+      when(ctx.queryParam(key)).thenReturn(value);
+      when(ctx.queryParamAsClass(key, String.class)).thenReturn(validation.validator(key, String.class, value));
+      when(ctx.queryParamAsClass(key, Integer.class)).thenReturn(validation.validator(key, Integer.class, value));
+    });
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+  }
+
+  private List<String> namesOfUsersFound() {
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    return userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList());
+  }
+
+  @Test
+  void getUsersInAnAgeRange() throws IOException {
+    withQueryParams(Map.of(UserController.MIN_AGE_KEY, "30", UserController.MAX_AGE_KEY, "40"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Jamie", "Pat"), namesOfUsersFound());
+  }
+
+  @Test
+  void getUsersWithMinimumAge() throws IOException {
+    withQueryParams(Map.of(UserController.MIN_AGE_KEY, "37"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Jamie", "Pat", "Sam"), namesOfUsersFound());
+  }
+
+  @Test
+  void getUsersWithMaximumAgeAndRole() throws IOException {
+    withQueryParams(Map.of(UserController.MAX_AGE_KEY, "40", UserController.ROLE_KEY, "viewer"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Jamie"), namesOfUsersFound());
+  }
+
+  @Test
+  void getUsersWithBackwardsAgeRange() {
+    withQueryParams(Map.of(UserController.MIN_AGE_KEY, "40", UserController.MAX_AGE_KEY, "30"));
+    assertThrows(BadRequestResponse.class, () -> userController.getUsers(ctx));
+  }
+
+  @Test
+  void getUsersWithIllegalMinimumAge() {
+    withQueryParams(Map.of(UserController.MIN_AGE_KEY, "-1"));
+    ValidationException exception = assertThrows(ValidationException.class, () -> userController.getUsers(ctx));
+    assertTrue(exception.getErrors().get(UserController.MIN_AGE_KEY).get(0).toString().contains("greater than zero"));
+  }
+
+  @Test
+  void getUsersWithAnyOfSeveralRoles() throws IOException {
+    withQueryParams(Map.of(UserController.ROLE_KEY, "admin, editor"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Chris", "Pat"), namesOfUsersFound());
+  }
+
+  @Test
+  void getUsersWithAnIllegalRoleInTheList() {
+    withQueryParams(Map.of(UserController.ROLE_KEY, "admin,owner"));
+    assertThrows(ValidationException.class, () -> userController.getUsers(ctx));
+    withQueryParams(Map.of(UserController.ROLE_KEY, ","));
+    assertThrows(ValidationException.class, () -> userController.getUsers(ctx));
+  }
+
+  @Test
+  void getUsersWithAnyOfSeveralCompanies() throws IOException {
+    withQueryParams(Map.of(UserController.COMPANY_KEY, "ibm,umm"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Chris", "Pat"), namesOfUsersFound());
+  }
+
+  @Test
+  void getUsersWithTotalCount() throws IOException {
+    withQueryParams(Map.of(UserController.COUNT_KEY, "true"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Chris", "Jamie", "Pat", "Sam"), namesOfUsersFound());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "4");
+  }
+
+  @Test
+  void getUsersWithoutTotalCountLeavesOutTheHeader() throws IOException {
+    withQueryParams(Map.of(UserController.COUNT_KEY, "false"));
+    userController.getUsers(ctx);
+    assertEquals(4, namesOfUsersFound().size());
+    verify(ctx, Mockito.never()).header(Mockito.eq(UserController.TOTAL_COUNT_HEADER), Mockito.anyString());
+  }
+
+  @Test
+  void getOnePageOfFilteredUsersWithTotalCount() throws IOException {
+    withQueryParams(Map.of(
+      UserController.ROLE_KEY, "viewer,editor",
+      UserController.LIMIT_KEY, "2",
+      UserController.OFFSET_KEY, "1",
+      UserController.COUNT_KEY, "true"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Pat", "Sam"), namesOfUsersFound());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "3");
+  }
+
+  @Test
+  void getUsersWithTooLargeALimitIsAnError() {
+    withQueryParams(Map.of(UserController.LIMIT_KEY, "1000"));
+    assertThrows(ValidationException.class, () -> userController.getUsers(ctx));
+  }
+
+  @Test
+  void getUsersSortedByCompanyThenName() throws IOException {
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "company,name", UserController.SORT_ORDER_KEY, "desc"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Chris", "Sam", "Jamie", "Pat"), namesOfUsersFound());
+  }
+
+  @Test
+  void getUsersWithAnUnindexedSortIsRejectedByDefault() {
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "email"));
+    assertThrows(BadRequestResponse.class, () -> userController.getUsers(ctx));
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "avatar"));
+    assertThrows(BadRequestResponse.class, () -> userController.getUsers(ctx));
+  }
+
+  @Test
+  void getUsersWithAnUnindexedSortCanSpillToDisk() throws IOException {
+    UserController spillingController = new UserController(db, UnindexedSorts.SPILL_TO_DISK);
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "email"));
+    spillingController.getUsers(ctx);
+    // chris@this.that, jamie@frogs.com, pat@something.com, sam@frogs.com
+    assertEquals(List.of("Chris", "Jamie", "Pat", "Sam"), namesOfUsersFound());
+
+    // Fields that aren't sortable at all are still rejected.
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "avatar"));
+    assertThrows(BadRequestResponse.class, () -> spillingController.getUsers(ctx));
+  }
+
+  @Test
+  void getUsersWithAnUnindexedSortIsCapped() throws IOException {
+    List<Document> manyUsers = new ArrayList<>();
+    for (int i = 0; i < UserController.MAX_UNINDEXED_SORT_RESULTS; i++) {
+      manyUsers.add(new Document("name", "User " + i).append("email", "user" + i + "@example.com"));
+    }
+    db.getCollection("users").insertMany(manyUsers);
+
+    UserController spillingController = new UserController(db, UnindexedSorts.SPILL_TO_DISK);
+    withQueryParams(Map.of(UserController.SORT_BY_KEY, "email"));
+    spillingController.getUsers(ctx);
+    assertEquals(UserController.MAX_UNINDEXED_SORT_RESULTS, namesOfUsersFound().size());
+  }
+
+  @Test
+  void countsAreForgottenWhenUsersChange() throws IOException {
+    assertEquals(2, userController.countUsers(eq("role", "viewer")));
+
+    // Counts are remembered for a while, so a user added behind the
+    // controller's back doesn't show up right away...
+    db.getCollection("users").insertMany(List.of(
+      new Document("name", "Lee").append("role", "viewer"),
+      new Document("name", "Kim").append("role", "viewer")));
+    assertEquals(2, userController.countUsers(eq("role", "viewer")));
+
+    // ...but any change made through the controller clears them.
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+    assertEquals(3, userController.countUsers(eq("role", "viewer")));
+    assertEquals(5, userController.countUsers(new Document()));
+  }
+
+  @Test
+  void getUsersFromTheInMemoryCopy() throws IOException {
+    userController.replicateInMemory(Duration.ofMinutes(1));
+    withQueryParams(Map.of(
+      UserController.ROLE_KEY, "viewer,editor",
+      UserController.MAX_AGE_KEY, "44",
+      UserController.SORT_BY_KEY, "age",
+      UserController.SORT_ORDER_KEY, "desc",
+      UserController.LIMIT_KEY, "1",
+      UserController.COUNT_KEY, "true"));
+    userController.getUsers(ctx);
+    assertEquals(1, namesOfUsersFound().size());
+    assertEquals(37, userArrayListCaptor.getValue().get(0).age);
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "2");
+  }
+
+  @Test
+  void theInMemoryCopySeesChangesMadeThroughTheController() throws IOException {
+    userController.replicateInMemory(Duration.ofMinutes(1));
+
+    // A user added behind the controller's back doesn't show up until the
+    // copy is reloaded...
+    db.getCollection("users").insertOne(
+      new Document("name", "Lee").append("age", 30).append("company", "UMM").append("role", "viewer"));
+    // ...but changes made through the controller show up right away.
+    Context deleteCtx = mock(Context.class);
+    when(deleteCtx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(deleteCtx);
+
+    withQueryParams(Map.of(UserController.ROLE_KEY, "viewer"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Jamie"), namesOfUsersFound());
+
+    userController.getReplicaFreshness(ctx);
+    verify(ctx, Mockito.times(2)).json(objectMapCaptor.capture());
+    assertEquals(3, objectMapCaptor.getValue().get("users"));
+    assertEquals(1L, objectMapCaptor.getValue().get("changesSinceLoad"));
+  }
+
+  @Test
+  void aStaleInMemoryCopyIsNotUsed() throws IOException {
+    // Any copy is too stale for this controller, so it always asks Mongo.
+    userController.replicateInMemory(Duration.ZERO);
+    db.getCollection("users").insertOne(
+      new Document("name", "Lee").append("age", 30).append("company", "UMM").append("role", "viewer"));
+
+    withQueryParams(Map.of(UserController.ROLE_KEY, "viewer"));
+    userController.getUsers(ctx);
+    assertEquals(List.of("Jamie", "Lee", "Sam"), namesOfUsersFound());
+  }
+
+  @Test
+  void thereIsNoInMemoryCopyUnlessWeAskForOne() {
+    assertThrows(NotFoundResponse.class, () -> userController.getReplicaFreshness(ctx));
+  }
+
   @Test
   void getUserWithExistentId() throws IOException {
     String id = samsId.toHexString();
@@ -723,6 +968,108 @@ class UserControllerSpec {
     assertEquals(2, ohmnet.count);
   }
 
+  private List<String> companiesFound() {
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    return userByCompanyListCaptor.getValue().stream().map(company -> company._id).collect(Collectors.toList());
+  }
+
+  @Test
+  void usersByCompanyListsAtMostMemberLimitUsersInNameOrder() {
+    withQueryParams(Map.of(UserController.MEMBER_LIMIT_KEY, "1"));
+    userController.getUsersGroupedByCompany(ctx);
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    UserByCompany ohmnet = userByCompanyListCaptor.getValue().get(1);
+    assertEquals("OHMNET", ohmnet._id);
+    // The count is still for all of the company's users.
+    assertEquals(2, ohmnet.count);
+    assertEquals(1, ohmnet.users.size());
+    assertEquals("Jamie", ohmnet.users.get(0).name);
+    assertNotNull(ohmnet.users.get(0)._id);
+  }
+
+  @Test
+  void usersByCompanyCanJustCountTheUsers() {
+    withQueryParams(Map.of(UserController.MEMBER_LIMIT_KEY, "0"));
+    userController.getUsersGroupedByCompany(ctx);
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    List<UserByCompany> companies = userByCompanyListCaptor.getValue();
+    assertEquals(List.of(1, 2, 1), companies.stream().map(company -> company.count).toList());
+    companies.forEach(company -> assertEquals(List.of(), company.users));
+  }
+
+  @Test
+  void usersByCompanyCanJustCountTheUsersInMemory() {
+    userController.replicateInMemory(Duration.ofMinutes(1));
+    withQueryParams(Map.of(UserController.MEMBER_LIMIT_KEY, "0"));
+    userController.getUsersGroupedByCompany(ctx);
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    List<UserByCompany> companies = userByCompanyListCaptor.getValue();
+    assertEquals(List.of(1, 2, 1), companies.stream().map(company -> company.count).toList());
+    companies.forEach(company -> assertEquals(List.of(), company.users));
+  }
+
+  @Test
+  void usersByCompanyCanBePaged() {
+    withQueryParams(Map.of(UserController.LIMIT_KEY, "2", UserController.OFFSET_KEY, "1"));
+    userController.getUsersGroupedByCompany(ctx);
+    assertEquals(List.of("OHMNET", "UMM"), companiesFound());
+  }
+
+  @Test
+  void usersByCompanyCanGetTheBiggestCompanies() {
+    withQueryParams(Map.of("sortBy", "count", "sortOrder", "desc", UserController.LIMIT_KEY, "2"));
+    userController.getUsersGroupedByCompany(ctx);
+    // IBM and UMM both have one user, so they're in order by name.
+    assertEquals(List.of("OHMNET", "IBM"), companiesFound());
+  }
+
+  @Test
+  void usersByCompanyOnlySortsByCompanyOrCount() {
+    withQueryParams(Map.of("sortBy", "name"));
+    assertThrows(BadRequestResponse.class, () -> userController.getUsersGroupedByCompany(ctx));
+  }
+
+  @Test
+  void usersByCompanyWithTooLargeAMemberLimitIsAnError() {
+    withQueryParams(Map.of(UserController.MEMBER_LIMIT_KEY, "100000"));
+    assertThrows(ValidationException.class, () -> userController.getUsersGroupedByCompany(ctx));
+  }
+
+  @Test
+  void warmupPathsAreReadOnlyRequestsThatVaryByRound() {
+    List<String> firstRound = userController.warmupPaths(0);
+    List<String> secondRound = userController.warmupPaths(1);
+    assertEquals(firstRound.size(), secondRound.size());
+    for (String path : firstRound) {
+      assertTrue(path.startsWith("/api/users"), path);
+      // They should all miss the response cache on the next round.
+      assertFalse(secondRound.contains(path), path);
+    }
+  }
+
+  @Test
+  void warmupPathsAllSucceed() throws IOException, InterruptedException {
+    // Warmup requests that we turn away would warm up the error handling,
+    // not the queries, so actually make them against a real server.
+    Javalin server = Javalin.create(config -> config.jsonMapper(javalinJackson));
+    userController.addRoutes(server);
+    server.start(0);
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      // Round 0 (and every 150th round) once asked for `minAge=0`.
+      for (int round : List.of(0, 1, 149, 150)) {
+        for (String path : userController.warmupPaths(round)) {
+          HttpResponse<String> response = client.send(
+            HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path)).build(),
+            HttpResponse.BodyHandlers.ofString());
+          assertEquals(2, response.statusCode() / 100, path + " got " + response.statusCode());
+        }
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
   @Test
   void addUser() throws IOException {
     // Create a new user to add
@@ -781,6 +1128,133 @@ class UserControllerSpec {
     assertNotNull(addedUser.get("avatar"));
   }
 
+  @Test
+  void addUserWithCoalescedInserts() throws IOException {
+    userController.coalesceInserts(10, Duration.ofMillis(1));
+
+    User newUser = new User();
+    newUser.name = "Batched User";
+    newUser.age = 30;
+    newUser.company = "testers";
+    newUser.email = "batched@example.com";
+    newUser.role = "editor";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+
+    userController.addNewUser(ctx);
+    verify(ctx).json(mapCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+
+    // The batched insert still reports the new user's own ID.
+    Document addedUser = db.getCollection("users")
+        .find(eq("_id", new ObjectId(mapCaptor.getValue().get("id")))).first();
+    assertEquals(newUser.name, addedUser.get("name"));
+    assertEquals(newUser.email, addedUser.get("email"));
+  }
+
+  private void withNewUserBody(String name, String email) {
+    User newUser = new User();
+    newUser.name = name;
+    newUser.age = 30;
+    newUser.company = "testers";
+    newUser.email = email;
+    newUser.role = "viewer";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+  }
+
+  private void waitForPendingWrites() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (userController.pendingWrites() > 0) {
+      assertTrue(System.nanoTime() < deadline, "The background writes never finished");
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  void addUserWithARequestedDurability() throws IOException {
+    withQueryParams(Map.of(UserController.DURABILITY_KEY, "Journaled"));
+    withNewUserBody("Journaled User", "journaled@example.com");
+
+    userController.addNewUser(ctx);
+    verify(ctx).json(mapCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+    assertEquals(1, db.getCollection("users")
+        .countDocuments(eq("_id", new ObjectId(mapCaptor.getValue().get("id")))));
+  }
+
+  @Test
+  void addUserWithAnUnknownDurability() throws IOException {
+    withQueryParams(Map.of(UserController.DURABILITY_KEY, "eventually"));
+    withNewUserBody("Hopeful User", "hopeful@example.com");
+
+    assertThrows(ValidationException.class, () -> userController.addNewUser(ctx));
+    assertEquals(0, db.getCollection("users").countDocuments(eq("name", "Hopeful User")));
+  }
+
+  @Test
+  void addUserAsynchronously() throws IOException, InterruptedException {
+    withQueryParams(Map.of(UserController.ASYNC_KEY, "true"));
+    withNewUserBody("Async User", "async@example.com");
+
+    userController.addNewUser(ctx);
+    verify(ctx).status(HttpStatus.ACCEPTED);
+    verify(ctx).json(mapCaptor.capture());
+    String id = mapCaptor.getValue().get("id");
+    String statusPath = mapCaptor.getValue().get("status");
+    verify(ctx).header(Header.LOCATION, statusPath);
+    assertTrue(statusPath.startsWith("/api/users/writes/"), statusPath);
+
+    waitForPendingWrites();
+    assertEquals(1, db.getCollection("users").countDocuments(eq("_id", new ObjectId(id))));
+
+    Context statusCtx = mock(Context.class);
+    when(statusCtx.pathParam("id")).thenReturn(statusPath.substring("/api/users/writes/".length()));
+    userController.getWriteStatus(statusCtx);
+    verify(statusCtx).json(mapCaptor.capture());
+    verify(statusCtx).status(HttpStatus.OK);
+    assertEquals("done", mapCaptor.getValue().get("state"));
+  }
+
+  @Test
+  void deleteMissingUserAsynchronously() throws IOException, InterruptedException {
+    withQueryParams(Map.of(UserController.ASYNC_KEY, "true", UserController.DURABILITY_KEY, "acknowledged"));
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+
+    // The request is accepted; we only find out there was nobody to delete later.
+    userController.deleteUser(ctx);
+    verify(ctx).status(HttpStatus.ACCEPTED);
+    verify(ctx).json(mapCaptor.capture());
+    String statusPath = mapCaptor.getValue().get("status");
+    waitForPendingWrites();
+
+    Context statusCtx = mock(Context.class);
+    when(statusCtx.pathParam("id")).thenReturn(statusPath.substring("/api/users/writes/".length()));
+    userController.getWriteStatus(statusCtx);
+    verify(statusCtx).json(mapCaptor.capture());
+    assertEquals("failed", mapCaptor.getValue().get("state"));
+    assertTrue(mapCaptor.getValue().get("error").contains("no user"), mapCaptor.getValue().get("error"));
+  }
+
+  @Test
+  void deleteWithABadAsyncFlag() throws IOException {
+    withQueryParams(Map.of(UserController.ASYNC_KEY, "maybe"));
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+
+    assertThrows(ValidationException.class, () -> userController.deleteUser(ctx));
+    assertEquals(1, db.getCollection("users").countDocuments(eq("_id", samsId)));
+  }
+
+  @Test
+  void getUnknownWriteStatus() {
+    when(ctx.pathParam("id")).thenReturn("no-such-write");
+    assertThrows(NotFoundResponse.class, () -> userController.getWriteStatus(ctx));
+  }
+
   @Test
   void addInvalidEmailUser() throws IOException {
     // Create a new user JSON string to add.
@@ -1087,6 +1561,116 @@ class UserControllerSpec {
     assertTrue(companyExceptionMessage.contains("non-empty company name"));
   }
 
+  private void withPatchBody(String json) {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn(json);
+    when(ctx.bodyValidator(UserPatch.class))
+      .thenReturn(new BodyValidator<UserPatch>(json, UserPatch.class,
+                    () -> javalinJackson.fromJsonString(json, UserPatch.class)));
+  }
+
+  @Test
+  void updateSomeOfAUsersFields() throws IOException {
+    List<String> changes = new ArrayList<>();
+    userController.addChangeListener(new UserChangeListener() {
+      @Override
+      public void userAdded(User user) {
+        changes.add("added " + user.name);
+      }
+
+      @Override
+      public void userDeleted(User user) {
+        changes.add("deleted " + user.name);
+      }
+    });
+    withPatchBody("{\"name\": \"Samuel\", \"age\": 46, \"version\": 0}");
+
+    userController.updateUser(ctx);
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).json(userCaptor.capture());
+    assertEquals("Samuel", userCaptor.getValue().name);
+    assertEquals(46, userCaptor.getValue().age);
+    assertEquals(1, userCaptor.getValue().version);
+
+    Document sam = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertEquals("Samuel", sam.get("name"));
+    assertEquals(46, sam.get(UserController.AGE_KEY));
+    assertEquals(1, sam.get(UserController.VERSION_KEY));
+    // The fields that weren't mentioned (including the avatar) are left alone.
+    assertEquals("sam@frogs.com", sam.get("email"));
+    assertEquals("OHMNET", sam.get(UserController.COMPANY_KEY));
+    assertEquals("https://gravatar.com/avatar/08b7610b558a4cbbd20ae99072801f4d?d=identicon", sam.get("avatar"));
+
+    // By default, an update is a delete of the old user and an add of the new one.
+    assertEquals(List.of("deleted Sam", "added Samuel"), changes);
+  }
+
+  @Test
+  void updatingTheEmailUpdatesTheAvatar() throws IOException {
+    withPatchBody("{\"email\": \"sam@toads.com\", \"version\": 0}");
+
+    userController.updateUser(ctx);
+    verify(ctx).status(HttpStatus.OK);
+
+    Document sam = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertEquals("sam@toads.com", sam.get("email"));
+    assertEquals(userController.generateAvatar("sam@toads.com"), sam.get("avatar"));
+  }
+
+  @Test
+  void updatingAnOutOfDateVersionConflicts() throws IOException {
+    withPatchBody("{\"company\": \"IBM\", \"version\": 0}");
+    userController.updateUser(ctx);
+
+    // Someone else, who also saw version 0, tries to change Sam too.
+    withPatchBody("{\"company\": \"UMM\", \"version\": 0}");
+    assertThrows(ConflictResponse.class, () -> userController.updateUser(ctx));
+    assertEquals("IBM", db.getCollection("users").find(eq("_id", samsId)).first().get(UserController.COMPANY_KEY));
+
+    // Once they've seen version 1, it works.
+    withPatchBody("{\"company\": \"UMM\", \"version\": 1}");
+    userController.updateUser(ctx);
+    Document sam = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertEquals("UMM", sam.get(UserController.COMPANY_KEY));
+    assertEquals(2, sam.get(UserController.VERSION_KEY));
+  }
+
+  @Test
+  void updateMissingUser() throws IOException {
+    withPatchBody("{\"name\": \"Nobody\", \"version\": 0}");
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    assertThrows(NotFoundResponse.class, () -> userController.updateUser(ctx));
+  }
+
+  @Test
+  void updateUserWithBadId() throws IOException {
+    withPatchBody("{\"name\": \"Nobody\", \"version\": 0}");
+    when(ctx.pathParam("id")).thenReturn("bad");
+    assertThrows(BadRequestResponse.class, () -> userController.updateUser(ctx));
+  }
+
+  @Test
+  void updatesHaveToBeValid() throws IOException {
+    // No version
+    withPatchBody("{\"name\": \"Samuel\"}");
+    assertThrows(ValidationException.class, () -> userController.updateUser(ctx));
+    // No changes
+    withPatchBody("{\"version\": 0}");
+    assertThrows(ValidationException.class, () -> userController.updateUser(ctx));
+    // Bad changes
+    withPatchBody("{\"email\": \"not an email\", \"version\": 0}");
+    assertThrows(ValidationException.class, () -> userController.updateUser(ctx));
+    withPatchBody("{\"role\": \"overlord\", \"version\": 0}");
+    assertThrows(ValidationException.class, () -> userController.updateUser(ctx));
+    withPatchBody("{\"age\": 0, \"version\": 0}");
+    assertThrows(ValidationException.class, () -> userController.updateUser(ctx));
+    // You can't change the ID (or anything else that isn't a field you can change).
+    withPatchBody("{\"_id\": \"588935f57546a2daea44de7c\", \"version\": 0}");
+    assertThrows(ValidationException.class, () -> userController.updateUser(ctx));
+
+    assertEquals("Sam", db.getCollection("users").find(eq("_id", samsId)).first().get("name"));
+  }
+
   @Test
   void deleteFoundUser() throws IOException {
     String testID = samsId.toHexString();
@@ -1103,6 +1687,400 @@ class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  void changeListenersHearAboutAddsAndDeletes() throws IOException {
+    List<String> changes = new ArrayList<>();
+    userController.addChangeListener(new UserChangeListener() {
+      @Override
+      public void userAdded(User user) {
+        changes.add("added " + user.name);
+      }
+
+      @Override
+      public void userDeleted(User user) {
+        changes.add("deleted " + user._id + " " + user.name);
+      }
+    });
+
+    User newUser = new User();
+    newUser.name = "Test User";
+    newUser.age = 25;
+    newUser.company = "testers";
+    newUser.email = "test@example.com";
+    newUser.role = "viewer";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+
+    String testID = samsId.toHexString();
+    when(ctx.pathParam("id")).thenReturn(testID);
+    userController.deleteUser(ctx);
+
+    assertEquals(List.of("added Test User", "deleted " + testID + " Sam"), changes);
+  }
+
+  /**
+   * Set up `ctx` as a request to search for `query`, with the given
+   * (other) query parameters.
+   */
+  private void searchFor(String query, Map<String, String> otherParams) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.SEARCH_QUERY_KEY, List.of(query));
+    Validation validation = new Validation();
+    when(ctx.queryParamAsClass(UserController.SEARCH_QUERY_KEY, String.class))
+      .thenReturn(validation.validator(UserController.SEARCH_QUERY_KEY, String.class, query));
+    otherParams.forEach((key, value) -> {
+      queryParams.put(key, List.of(value));
+      when(ctx.queryParam(key)).thenReturn(value);
+      when(ctx.queryParamAsClass(key, Integer.class)).thenReturn(validation.validator(key, Integer.class, value));
+    });
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+  }
+
+  @Test
+  void searchFindsUsersByAnyField() throws IOException {
+    searchFor("ohmnet", Map.of());
+    userController.searchUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "2");
+    assertEquals(
+      List.of("Jamie", "Sam"),
+      userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList()));
+  }
+
+  @Test
+  void searchRanksNameMatchesFirst() throws IOException {
+    // Every user whose email ends in ".com" matches, but Sam also matches by name.
+    searchFor("sam com", Map.of());
+    userController.searchUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "3");
+    assertEquals("Sam", userArrayListCaptor.getValue().get(0).name);
+  }
+
+  @Test
+  void searchResultsArePaged() throws IOException {
+    searchFor("ohmnet", Map.of(UserController.LIMIT_KEY, "1", UserController.OFFSET_KEY, "1"));
+    userController.searchUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "2");
+    assertEquals(1, userArrayListCaptor.getValue().size());
+    assertEquals("Sam", userArrayListCaptor.getValue().get(0).name);
+  }
+
+  @Test
+  void searchSeesUsersAddedAndDeleted() throws IOException {
+    User newUser = new User();
+    newUser.name = "Ohmnet Fan";
+    newUser.age = 25;
+    newUser.company = "testers";
+    newUser.email = "fan@example.com";
+    newUser.role = "viewer";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+
+    searchFor("ohmnet", Map.of());
+    userController.searchUsers(ctx);
+
+    // `addNewUser` also called `json`; the search results are the last call.
+    verify(ctx, Mockito.times(2)).json(userArrayListCaptor.capture());
+    assertEquals(
+      List.of("Ohmnet Fan", "Jamie"),
+      userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList()));
+  }
+
+  /**
+   * Run `lookup` (against a freshly reset `ctx`) until the names it finds
+   * include `expected`, or a few seconds have gone by. The in-memory indexes
+   * are reloaded in the background, so a change made behind the
+   * controller's back shows up eventually, not straight away.
+   */
+  private List<String> eventuallyFinds(String expected, Callable<List<String>> lookup) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (true) {
+      Mockito.reset(ctx);
+      List<String> names = lookup.call();
+      if (names.contains(expected) || System.nanoTime() > deadline) {
+        return names;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  void searchPicksUpUsersAddedStraightToTheDatabase() throws Exception {
+    userController.reloadInMemoryIndexesAfter(Duration.ZERO);
+    db.getCollection("users").insertOne(new Document("name", "Lee Ohmnet").append("age", 30)
+      .append("company", "UMM").append("email", "lee@example.com").append("role", "viewer"));
+
+    List<String> names = eventuallyFinds("Lee Ohmnet", () -> {
+      searchFor("ohmnet", Map.of());
+      userController.searchUsers(ctx);
+      verify(ctx).json(userArrayListCaptor.capture());
+      return userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList());
+    });
+    assertEquals(List.of("Lee Ohmnet", "Jamie", "Sam"), names);
+  }
+
+  @Test
+  void searchFallsBackToTheTextIndex() throws IOException {
+    // With no room for any users in memory, searches go to Mongo's text index.
+    UserController textIndexController = new UserController(db, 0);
+    searchFor("ohmnet", Map.of());
+    textIndexController.searchUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "2");
+    for (User user : userArrayListCaptor.getValue()) {
+      assertEquals("OHMNET", user.company);
+    }
+  }
+
+  @Test
+  void searchWithBlankQueryIsAnError() {
+    searchFor("  ", Map.of());
+    assertThrows(ValidationException.class, () -> userController.searchUsers(ctx));
+  }
+
+  @Test
+  void searchWithTooLargeALimitIsAnError() {
+    searchFor("ohmnet", Map.of(UserController.LIMIT_KEY, "1000"));
+    ValidationException exception = assertThrows(ValidationException.class, () -> userController.searchUsers(ctx));
+    assertTrue(exception.getErrors().get(UserController.LIMIT_KEY).get(0).toString().contains("between 1 and 100"));
+  }
+
+  private List<String> autocomplete(UserController controller, String field, String prefix) {
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    when(ctx.queryParam(UserController.FIELD_KEY)).thenReturn(field);
+    when(ctx.queryParam(UserController.PREFIX_KEY)).thenReturn(prefix);
+    controller.autocomplete(ctx);
+    verify(ctx, Mockito.atLeastOnce()).json(completionsCaptor.capture());
+    verify(ctx, Mockito.atLeastOnce()).status(HttpStatus.OK);
+    return completionsCaptor.getValue().stream().map(c -> c.value + " " + c.count).collect(Collectors.toList());
+  }
+
+  @Test
+  void autocompletesCompanies() {
+    assertEquals(List.of("OHMNET 2"), autocomplete(userController, "company", "oh"));
+  }
+
+  @Test
+  void autocompletesNamesByDefault() {
+    assertEquals(List.of("Jamie 1"), autocomplete(userController, null, "J"));
+    assertEquals(4, autocomplete(userController, null, null).size());
+  }
+
+  @Test
+  void autocompleteSeesUsersAddedAndDeleted() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.deleteUser(ctx);
+    assertEquals(List.of("OHMNET 1"), autocomplete(userController, "company", "OHM"));
+  }
+
+  @Test
+  void autocompletePicksUpUsersAddedStraightToTheDatabase() throws Exception {
+    userController.reloadInMemoryIndexesAfter(Duration.ZERO);
+    db.getCollection("users").insertOne(new Document("name", "Lee").append("age", 30)
+      .append("company", "OHMNET").append("email", "lee@frogs.com").append("role", "viewer"));
+
+    assertEquals(List.of("OHMNET 3"),
+      eventuallyFinds("OHMNET 3", () -> autocomplete(userController, "company", "oh")));
+  }
+
+  @Test
+  void autocompleteFallsBackToTheDatabase() {
+    UserController databaseController = new UserController(db, 0);
+    assertEquals(List.of("OHMNET 2"), autocomplete(databaseController, "company", "oh"));
+    assertEquals(List.of("Pat 1"), autocomplete(databaseController, "name", "pa"));
+  }
+
+  @Test
+  void autocompleteOnlyCompletesNamesAndCompanies() {
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    when(ctx.queryParam(UserController.FIELD_KEY)).thenReturn("email");
+    assertThrows(BadRequestResponse.class, () -> userController.autocomplete(ctx));
+  }
+
+  private void fuzzyLookupFor(String name) {
+    when(ctx.queryParamMap()).thenReturn(Map.of(UserController.NAME_KEY, List.of(name)));
+    when(ctx.queryParamAsClass(UserController.NAME_KEY, String.class))
+      .thenReturn(new Validation().validator(UserController.NAME_KEY, String.class, name));
+  }
+
+  @Test
+  void fuzzyLookupFindsMisspelledNames() throws IOException {
+    fuzzyLookupFor("Chriss");
+    userController.getUsersByFuzzyName(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(1, userArrayListCaptor.getValue().size());
+    assertEquals("Chris", userArrayListCaptor.getValue().get(0).name);
+  }
+
+  @Test
+  void fuzzyLookupSeesNewUsers() throws IOException {
+    User newUser = new User();
+    newUser.name = "Jammie";
+    newUser.age = 25;
+    newUser.company = "testers";
+    newUser.email = "jammie@example.com";
+    newUser.role = "viewer";
+    String newUserJson = javalinJackson.toJsonString(newUser, User.class);
+    when(ctx.bodyValidator(User.class))
+      .thenReturn(new BodyValidator<User>(newUserJson, User.class,
+                    () -> javalinJackson.fromJsonString(newUserJson, User.class)));
+    userController.addNewUser(ctx);
+
+    fuzzyLookupFor("Jamie");
+    userController.getUsersByFuzzyName(ctx);
+
+    // `addNewUser` also called `json`; the fuzzy lookup results are the last call.
+    verify(ctx, Mockito.times(2)).json(userArrayListCaptor.capture());
+    assertEquals(
+      List.of("Jamie", "Jammie"),
+      userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList()));
+  }
+
+  @Test
+  void fuzzyLookupPicksUpUsersAddedStraightToTheDatabase() throws Exception {
+    userController.reloadInMemoryIndexesAfter(Duration.ZERO);
+    db.getCollection("users").insertOne(new Document("name", "Jammie").append("age", 25)
+      .append("company", "testers").append("email", "jammie@example.com").append("role", "viewer"));
+
+    List<String> names = eventuallyFinds("Jammie", () -> {
+      fuzzyLookupFor("Jamie");
+      userController.getUsersByFuzzyName(ctx);
+      verify(ctx).json(userArrayListCaptor.capture());
+      return userArrayListCaptor.getValue().stream().map(user -> user.name).collect(Collectors.toList());
+    });
+    assertEquals(List.of("Jamie", "Jammie"), names);
+  }
+
+  @Test
+  void fuzzyLookupIsPaged() throws IOException {
+    db.getCollection("users").insertMany(List.of(
+      new Document("name", "Jamie").append("email", "jamie2@frogs.com").append("role", "viewer"),
+      new Document("name", "Jamie").append("email", "jamie3@frogs.com").append("role", "viewer"),
+      new Document("name", "Jammie").append("email", "jammie@frogs.com").append("role", "viewer")));
+    UserController controller = new UserController(db);
+
+    // Jamie (the first one), then the other two, and then Jammie.
+    withQueryParams(Map.of(
+      UserController.NAME_KEY, "Jamie", UserController.LIMIT_KEY, "2", UserController.OFFSET_KEY, "2"));
+    controller.getUsersByFuzzyName(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(UserController.TOTAL_COUNT_HEADER, "4");
+    assertEquals(
+      List.of("jamie3@frogs.com", "jammie@frogs.com"),
+      userArrayListCaptor.getValue().stream().map(user -> user.email).collect(Collectors.toList()));
+  }
+
+  @Test
+  void fuzzyLookupWithNoMatchesIsEmpty() throws IOException {
+    fuzzyLookupFor("Xavier");
+    userController.getUsersByFuzzyName(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(0, userArrayListCaptor.getValue().size());
+  }
+
+  @Test
+  void facetsCountAllUsers() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    userController.getUserFacets(ctx);
+
+    ArgumentCaptor<UserFacets> facetsCaptor = ArgumentCaptor.forClass(UserFacets.class);
+    verify(ctx).json(facetsCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    UserFacets facets = facetsCaptor.getValue();
+
+    assertEquals(4, facets.total);
+    assertEquals(
+      List.of("Chris", "Jamie", "Pat", "Sam"),
+      facets.users.stream().map(user -> user.name).collect(Collectors.toList()));
+    assertEquals(List.of("viewer 2", "admin 1", "editor 1"), describe(facets.roles));
+    assertEquals(List.of("OHMNET 2", "IBM 1", "UMM 1"), describe(facets.companies));
+    assertEquals(List.of("20 1", "30 2", "40 1"), describe(facets.ageBuckets));
+  }
+
+  @Test
+  void facetsOnlyCountMatchingUsers() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, List.of("OHMNET"));
+    queryParams.put(UserController.LIMIT_KEY, List.of("1"));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("OHMNET");
+    when(ctx.queryParam(UserController.LIMIT_KEY)).thenReturn("1");
+    when(ctx.queryParamAsClass(UserController.LIMIT_KEY, Integer.class))
+      .thenReturn(new Validation().validator(UserController.LIMIT_KEY, Integer.class, "1"));
+    userController.getUserFacets(ctx);
+
+    ArgumentCaptor<UserFacets> facetsCaptor = ArgumentCaptor.forClass(UserFacets.class);
+    verify(ctx).json(facetsCaptor.capture());
+    UserFacets facets = facetsCaptor.getValue();
+
+    // Only one user on the page, but both of the matching users are counted.
+    assertEquals(2, facets.total);
+    assertEquals(1, facets.users.size());
+    assertEquals("Jamie", facets.users.get(0).name);
+    assertEquals(List.of("viewer 2"), describe(facets.roles));
+    assertEquals(List.of("OHMNET 2"), describe(facets.companies));
+    assertEquals(List.of("30 1", "40 1"), describe(facets.ageBuckets));
+  }
+
+  @Test
+  void facetsFromTheInMemoryCopy() throws IOException {
+    userController.replicateInMemory(Duration.ofMinutes(1));
+    // Added behind the copy's back, so it's only counted if we ask Mongo.
+    db.getCollection("users").insertOne(
+      new Document("name", "Lee").append("age", 70).append("company", "IBM").append("role", "admin"));
+
+    when(ctx.queryParamMap()).thenReturn(Collections.emptyMap());
+    userController.getUserFacets(ctx);
+
+    ArgumentCaptor<UserFacets> facetsCaptor = ArgumentCaptor.forClass(UserFacets.class);
+    verify(ctx).json(facetsCaptor.capture());
+    UserFacets facets = facetsCaptor.getValue();
+
+    assertEquals(4, facets.total);
+    assertEquals(
+      List.of("Chris", "Jamie", "Pat", "Sam"),
+      facets.users.stream().map(user -> user.name).collect(Collectors.toList()));
+    assertEquals(List.of("viewer 2", "admin 1", "editor 1"), describe(facets.roles));
+    assertEquals(List.of("OHMNET 2", "IBM 1", "UMM 1"), describe(facets.companies));
+    assertEquals(List.of("20 1", "30 2", "40 1"), describe(facets.ageBuckets));
+  }
+
+  @Test
+  void usersByCompanyFromTheInMemoryCopy() {
+    userController.replicateInMemory(Duration.ofMinutes(1));
+    db.getCollection("users").insertOne(
+      new Document("name", "Lee").append("age", 70).append("company", "IBM").append("role", "admin"));
+
+    withQueryParams(Map.of("sortBy", "count", "sortOrder", "desc", UserController.MEMBER_LIMIT_KEY, "1"));
+    userController.getUsersGroupedByCompany(ctx);
+
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    List<String> companies = userByCompanyListCaptor.getValue().stream()
+      .map(company -> company._id + " " + company.count + " " + company.users.get(0).name)
+      .toList();
+    // Companies with the same number of users are in order by name.
+    assertEquals(List.of("OHMNET 2 Jamie", "IBM 1 Pat", "UMM 1 Chris"), companies);
+  }
+
   @Test
   void tryToDeleteNotFoundUser() throws IOException {
     String testID = samsId.toHexString();
@@ -0,0 +1,249 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Tests for `UserPartitions`.
+ *
+ * The partitions are databases on the `mongod` at `MONGO_ADDR`, which is
+ * all the partitioning code cares about. To spread them across several
+ * local `mongod`s instead, set `MONGO_PARTITION_ADDRS` to a comma-separated
+ * list of their addresses (e.g., `localhost:27017,localhost:27018`).
+ */
+@SuppressWarnings({ "MagicNumber" })
+class UserPartitionsSpec {
+
+  private static final int USERS = 30;
+
+  private static List<MongoClient> clients = new ArrayList<>();
+  // Four databases: three partitions to start with, and one to add.
+  private static List<MongoDatabase> databases = new ArrayList<>();
+
+  private UserPartitions partitions;
+  private final List<User> users = new ArrayList<>();
+
+  @BeforeAll
+  static void setupAll() {
+    String addrs = System.getenv().getOrDefault("MONGO_PARTITION_ADDRS",
+      System.getenv().getOrDefault("MONGO_ADDR", "localhost"));
+    for (String addr : addrs.split(",")) {
+      clients.add(MongoClients.create("mongodb://" + addr.trim()));
+    }
+    for (int i = 0; i < 4; i++) {
+      databases.add(clients.get(i % clients.size()).getDatabase("test_partition_" + i));
+    }
+  }
+
+  @AfterAll
+  static void teardown() {
+    databases.forEach(MongoDatabase::drop);
+    clients.forEach(MongoClient::close);
+  }
+
+  private static User user(int i) {
+    User user = new User();
+    user.name = String.format("User %02d", i);
+    user.age = 20 + i % 7;
+    user.company = "Company " + i % 4;
+    user.email = "user" + i + "@example.com";
+    user.avatar = "https://gravatar.com/avatar/?d=mp";
+    user.role = List.of("admin", "editor", "viewer").get(i % 3);
+    return user;
+  }
+
+  private static MongoCollection<Document> usersIn(int database) {
+    return databases.get(database).getCollection("users");
+  }
+
+  @BeforeEach
+  void setupEach() {
+    for (int i = 0; i < databases.size(); i++) {
+      usersIn(i).drop();
+    }
+    partitions = new UserPartitions(databases.subList(0, 3));
+    for (int i = 0; i < USERS; i++) {
+      User user = user(i);
+      partitions.insert(user);
+      users.add(user);
+    }
+  }
+
+  @AfterEach
+  void teardownEach() {
+    partitions.close();
+  }
+
+  private static List<String> names(List<User> found) {
+    return found.stream().map(user -> user.name).toList();
+  }
+
+  // Every user in each of the first `count` databases is in the partition
+  // its id belongs in, and there are `USERS` of them in all.
+  private static void assertEveryoneIsHome(int count) {
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      for (Document user : usersIn(i).find()) {
+        assertEquals(i, UserPartitions.partitionOf(user.getObjectId("_id"), count));
+        total++;
+      }
+    }
+    assertEquals(USERS, total);
+  }
+
+  @Test
+  void spreadsIdsEvenly() {
+    int[] counts = new int[3];
+    for (int i = 0; i < 30_000; i++) {
+      counts[UserPartitions.partitionOf(new ObjectId(), 3)]++;
+    }
+    for (int count : counts) {
+      assertTrue(count > 9_000 && count < 11_000, "A partition got " + count + " of 30000 ids");
+    }
+    ObjectId id = new ObjectId();
+    assertEquals(UserPartitions.partitionOf(id, 5), UserPartitions.partitionOf(new ObjectId(id.toHexString()), 5));
+  }
+
+  @Test
+  void keepsEachUserInItsPartition() {
+    assertEveryoneIsHome(3);
+
+    ObjectId id = new ObjectId(users.get(7)._id);
+    assertEquals("User 07", partitions.find(id).name);
+    assertEquals("User 07", partitions.delete(id).name);
+    assertNull(partitions.find(id));
+    assertNull(partitions.delete(id));
+  }
+
+  @Test
+  void mergesSortedPagesFromEveryPartition() {
+    SortPlanner.Plan byAgeThenName = new SortPlanner.Plan(List.of("age", "name"), false, true);
+    List<String> expected = names(users.stream()
+      .sorted(Comparator.<User>comparingInt(user -> user.age).thenComparing(user -> user.name))
+      .toList());
+    assertEquals(expected, names(partitions.find(new Document(), byAgeThenName, 0, Integer.MAX_VALUE)));
+    assertEquals(expected.subList(5, 15), names(partitions.find(new Document(), byAgeThenName, 5, 10)));
+    assertEquals(List.of(), partitions.find(new Document(), byAgeThenName, USERS, 10));
+
+    SortPlanner.Plan byNameDescending = new SortPlanner.Plan(List.of("name"), true, true);
+    assertEquals(List.of("User 29", "User 28", "User 27"),
+      names(partitions.find(new Document(), byNameDescending, 0, 3)));
+  }
+
+  @Test
+  void filtersAndCountsAcrossPartitions() {
+    UserFilter viewersOver21 = new UserFilter(List.of("viewer"), List.of(), null, 22, null);
+    List<String> expected = names(users.stream()
+      .filter(user -> user.role.equals("viewer") && user.age >= 22)
+      .sorted(Comparator.comparing(user -> user.name))
+      .toList());
+    SortPlanner.Plan byName = new SortPlanner.Plan(List.of("name"), false, true);
+    assertEquals(expected, names(partitions.find(viewersOver21.toBson(), byName, 0, Integer.MAX_VALUE)));
+    assertEquals(expected.size(), partitions.count(viewersOver21.toBson()));
+    assertEquals(USERS, partitions.count(new Document()));
+  }
+
+  @Test
+  void addsUpCompaniesFromEveryPartition() {
+    // Companies 0 and 1 have 8 users each, and 2 and 3 have 7.
+    List<UserByCompany> biggest = partitions.byCompany(true, true, 0, 2, 3);
+    assertEquals(List.of("Company 0", "Company 1"), biggest.stream().map(company -> company._id).toList());
+    assertEquals(List.of(8, 8), biggest.stream().map(company -> company.count).toList());
+    assertEquals(List.of("User 00", "User 04", "User 08"),
+      biggest.get(0).users.stream().map(user -> user.name).toList());
+    assertEquals(users.get(4)._id, biggest.get(0).users.get(1)._id);
+
+    List<UserByCompany> byName = partitions.byCompany(false, true, 1, 10, 0);
+    assertEquals(List.of("Company 2", "Company 1", "Company 0"), byName.stream().map(company -> company._id).toList());
+    assertEquals(List.of(7, 8, 8), byName.stream().map(company -> company.count).toList());
+    assertTrue(byName.get(0).users.isEmpty());
+  }
+
+  @Test
+  void rebalancesWhenAPartitionIsAdded() {
+    try (UserPartitions grown = new UserPartitions(databases)) {
+      // Before the users are moved, they can still all be found.
+      for (User user : users) {
+        assertNotNull(grown.find(new ObjectId(user._id)));
+      }
+      assertEquals(USERS, grown.count(new Document()));
+
+      assertTrue(grown.rebalance() > 0);
+      assertEveryoneIsHome(4);
+      // Everyone's already home.
+      assertEquals(0, grown.rebalance());
+    }
+  }
+
+  // Copy a user into a partition it doesn't belong in, as if a move to its
+  // home had been interrupted between copying it there and deleting it here.
+  private static ObjectId copyOutOfPlace(User user) {
+    ObjectId id = new ObjectId(user._id);
+    int home = UserPartitions.partitionOf(id, 3);
+    usersIn((home + 1) % 3).insertOne(usersIn(home).find(eq("_id", id)).first());
+    return id;
+  }
+
+  @Test
+  void finishesAnInterruptedMove() {
+    copyOutOfPlace(users.get(0));
+    assertEquals(1, partitions.rebalance());
+    assertEveryoneIsHome(3);
+  }
+
+  @Test
+  void deletesEveryCopyOfAUser() {
+    ObjectId id = copyOutOfPlace(users.get(0));
+    assertNotNull(partitions.delete(id));
+    assertNull(partitions.find(id));
+    // So the next rebalance has nothing to bring back.
+    assertEquals(0, partitions.rebalance());
+    assertEquals(USERS - 1, partitions.count(new Document()));
+  }
+
+  @Test
+  void drainsARetiredPartition() {
+    // A field `User` doesn't know about, which has to survive the move.
+    ObjectId extra = new ObjectId();
+    usersIn(2).insertOne(new Document("_id", extra).append("name", "Extra").append("nickname", "X"));
+
+    try (UserPartitions shrunk = new UserPartitions(databases.subList(0, 2))) {
+      shrunk.drain(databases.get(2));
+      shrunk.rebalance();
+      assertEquals(0, usersIn(2).countDocuments());
+      assertEquals(USERS + 1, shrunk.count(new Document()));
+
+      int home = UserPartitions.partitionOf(extra, 2);
+      assertEquals("X", usersIn(home).find(eq("_id", extra)).first().getString("nickname"));
+      usersIn(home).deleteOne(eq("_id", extra));
+      assertEveryoneIsHome(2);
+    }
+  }
+
+  @Test
+  void mergesRunsInOrder() {
+    List<List<Integer>> runs = List.of(List.of(1, 4, 7), List.of(), List.of(2, 5), List.of(3, 6, 8));
+    assertEquals(List.of(3, 4, 5, 6), UserPartitions.merge(runs, Comparator.naturalOrder(), 2, 4));
+    assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8), UserPartitions.merge(runs, Comparator.naturalOrder(), 0, 100));
+  }
+}
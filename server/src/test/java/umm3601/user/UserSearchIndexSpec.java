@@ -0,0 +1,110 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static umm3601.user.TestUsers.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the in-memory `UserSearchIndex`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class UserSearchIndexSpec {
+
+  private UserSearchIndex index;
+
+  @BeforeEach
+  void setupEach() {
+    index = new UserSearchIndex();
+    index.add(user("chris", "Chris", "UMM", "chris@this.that"));
+    index.add(user("pat", "Pat", "IBM", "pat@something.com"));
+    index.add(user("jamie", "Jamie", "OHMNET", "jamie@frogs.com"));
+    index.add(user("sam", "Sam Frogs", "OHMNET", "sam@frogs.com"));
+  }
+
+  @Test
+  void tokenizesOnAnythingButLettersAndDigits() {
+    assertEquals(List.of("sam", "frogs", "com"), UserSearchIndex.tokenize("Sam@Frogs.COM"));
+    assertEquals(List.of("mary", "jo", "o", "neil", "3"), UserSearchIndex.tokenize("  Mary-Jo O'Neil #3 "));
+    assertEquals(List.of("zoë"), UserSearchIndex.tokenize("Zoë"));
+    assertEquals(List.of(), UserSearchIndex.tokenize(null));
+    assertEquals(List.of(), UserSearchIndex.tokenize(" -- "));
+  }
+
+  @Test
+  void findsMatchesInAnyField() {
+    assertEquals(List.of("pat"), index.search("pat", 0, 10).ids());
+    assertEquals(List.of("jamie", "sam"), index.search("ohmnet", 0, 10).ids());
+    assertEquals(List.of("chris"), index.search("THAT", 0, 10).ids());
+    assertEquals(0, index.search("nobody", 0, 10).total());
+    assertEquals(0, index.search("", 0, 10).total());
+  }
+
+  @Test
+  void nameMatchesRankHighest() {
+    // Sam has "frogs" in both his name and his email, Jamie only in her email.
+    UserSearchIndex.Hits hits = index.search("frogs", 0, 10);
+    assertEquals(List.of("sam", "jamie"), hits.ids());
+    assertEquals(2, hits.total());
+  }
+
+  @Test
+  void scoresAddUpAcrossTokens() {
+    // Jamie and Sam tie on "ohmnet", but only Sam matches "sam" as well.
+    assertEquals(List.of("sam", "jamie"), index.search("ohmnet sam", 0, 10).ids());
+  }
+
+  @Test
+  void resultsArePaged() {
+    index.add(user("sam2", "Sam", "UMM", "sam2@morris.edu"));
+    UserSearchIndex.Hits firstPage = index.search("com", 0, 2);
+    UserSearchIndex.Hits secondPage = index.search("com", 2, 2);
+    assertEquals(3, firstPage.total());
+    assertEquals(List.of("pat", "jamie"), firstPage.ids());
+    assertEquals(List.of("sam"), secondPage.ids());
+    assertEquals(List.of(), index.search("com", 5, 2).ids());
+    assertEquals(List.of(), index.search("com", Integer.MAX_VALUE, Integer.MAX_VALUE).ids());
+  }
+
+  @Test
+  void listensForChanges() {
+    index.userDeleted(user("jamie", "Jamie", "OHMNET", "jamie@frogs.com"));
+    assertEquals(List.of("sam"), index.search("ohmnet", 0, 10).ids());
+    assertEquals(3, index.size());
+
+    index.userAdded(user("sam", "Samantha", "IBM", "samantha@ibm.com"));
+    assertEquals(List.of(), index.search("ohmnet", 0, 10).ids());
+    assertEquals(List.of("sam", "pat"), index.search("ibm", 0, 10).ids());
+    assertEquals(3, index.size());
+
+    // Deleting someone who isn't there is harmless.
+    index.remove("nobody");
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  void compactsAfterManyDeletes() {
+    UserSearchIndex big = new UserSearchIndex();
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      String id = new ObjectId().toHexString();
+      ids.add(id);
+      big.add(user(id, "User " + i, i % 2 == 0 ? "Evens" : "Odds", "user" + i + "@morris.edu"));
+    }
+    for (int i = 0; i < 4000; i++) {
+      big.remove(ids.get(i));
+    }
+    assertEquals(1000, big.size());
+    UserSearchIndex.Hits evens = big.search("evens", 0, 1000);
+    assertEquals(500, evens.total());
+    assertEquals(ids.get(4000), evens.ids().get(0));
+    assertEquals(List.of(ids.get(4999)), big.search("4999", 0, 10).ids());
+    assertTrue(big.search("10", 0, 10).ids().isEmpty());
+  }
+}